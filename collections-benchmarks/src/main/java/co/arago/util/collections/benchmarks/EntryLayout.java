@@ -0,0 +1,124 @@
+package co.arago.util.collections.benchmarks;
+
+import co.arago.util.collections.expiringstore.AbstractExpiringStore;
+import co.arago.util.collections.expiringstore.messages.ExpiringMessage;
+import co.arago.util.collections.expiringstore.messages.ExpiringRetryMessage;
+import org.openjdk.jol.info.ClassLayout;
+import org.openjdk.jol.vm.VM;
+
+import java.lang.reflect.Field;
+import java.util.Map;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Measures the objects each entry of a store consists of with JOL and prints the shallow sizes as CSV: the message
+ * including the lock of a {@link TimerTask}, everything the scheduling of its expiry adds and the node of the map. The
+ * id and the payload are not included.
+ * <p>
+ * Unlike {@link MemoryFootprint}, this is exact and needs no large heap. JOL needs to attach to the JVM to measure
+ * the lambdas of the schedulers:
+ *
+ * <pre>
+ * java -Djdk.attach.allowAttachSelf -cp target/benchmarks.jar co.arago.util.collections.benchmarks.EntryLayout [--layout]
+ * </pre>
+ * <p>
+ * With "--layout", the field layouts of the message classes are printed as well.
+ */
+public final class EntryLayout {
+
+    private static final String[] STORES = {
+            "ExpiringStore", "ConcurrentExpiringStore", "ExpiringRetryStore", "ConcurrentExpiringRetryStore"
+    };
+    private static final String[] EXPIRIES = { Stores.TIMER, Stores.WHEEL, Stores.LAZY };
+
+    private EntryLayout() {
+    }
+
+    /**
+     * Run the measurements.
+     *
+     * @param args "--layout" to print the field layouts.
+     * @throws Exception When the store rejects a message or a field cannot be read.
+     */
+    public static void main(String[] args) throws Exception {
+        System.out.println("store,expiry,message,scheduling,mapNode,bytesPerEntry");
+        for (String store : STORES) {
+            for (String expiry : EXPIRIES) {
+                AbstractExpiringStore<String, String, ?> expiringStore = Stores.newStore(store, expiry);
+                try {
+                    expiringStore.put(System.currentTimeMillis() + 3_600_000, "id", "payload");
+                    Map<String, ExpiringMessage<?, ?>> storeMap = storeMap(expiringStore);
+                    ExpiringMessage<?, ?> message = storeMap.get("id");
+                    boolean concurrent = storeMap instanceof ConcurrentMap;
+
+                    long messageSize = VM.current().sizeOf(message) + lockSize(message);
+                    long scheduling = expiringStore.isLazyExpiry()
+                            ? sweepQueueSize(concurrent)
+                            : schedulingSize(message);
+                    long mapNode = ClassLayout.parseClass(Class.forName(concurrent
+                            ? "java.util.concurrent.ConcurrentHashMap$Node"
+                            : "java.util.HashMap$Node")).instanceSize();
+                    System.out.printf("%s,%s,%d,%d,%d,%d%n", store, expiry, messageSize, scheduling, mapNode,
+                            messageSize + scheduling + mapNode);
+                } finally {
+                    expiringStore.close();
+                }
+            }
+        }
+
+        if (args.length > 0 && args[0].equals("--layout")) {
+            System.out.println(ClassLayout.parseClass(ExpiringMessage.class).toPrintable());
+            System.out.println(ClassLayout.parseClass(ExpiringRetryMessage.class).toPrintable());
+        }
+    }
+
+    /**
+     * Getter
+     *
+     * @param object The object.
+     * @return Bytes of the lock of a {@link TimerTask}, 0 for other objects.
+     */
+    private static long lockSize(Object object) {
+        return (object instanceof TimerTask) ? VM.current().sizeOf(new Object()) : 0;
+    }
+
+    /**
+     * Getter
+     *
+     * @param message The message.
+     * @return Bytes of the objects the scheduling of the message adds: the handle of its expiry and, if it is a
+     *         separate {@link TimerTask}, its lock.
+     * @throws ReflectiveOperationException When the handle cannot be read.
+     */
+    private static long schedulingSize(ExpiringMessage<?, ?> message) throws ReflectiveOperationException {
+        Field field = ExpiringMessage.class.getDeclaredField("scheduledExpiry");
+        field.setAccessible(true);
+        Object handle = field.get(message);
+        if (handle == null || handle == message)
+            return 0;
+        return VM.current().sizeOf(handle) + lockSize(handle);
+    }
+
+    /**
+     * Getter
+     *
+     * @param concurrent Whether the store is concurrent.
+     * @return Bytes a message takes in the sweep queue: a node of a ConcurrentLinkedQueue or a slot of an ArrayDeque.
+     * @throws ClassNotFoundException Never.
+     */
+    private static long sweepQueueSize(boolean concurrent) throws ClassNotFoundException {
+        if (concurrent)
+            return ClassLayout.parseClass(Class.forName("java.util.concurrent.ConcurrentLinkedQueue$Node"))
+                    .instanceSize();
+        return VM.current().arrayIndexScale("java.lang.Object");
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, ExpiringMessage<?, ?>> storeMap(AbstractExpiringStore<String, String, ?> store)
+            throws ReflectiveOperationException {
+        Field field = AbstractExpiringStore.class.getDeclaredField("storeMap");
+        field.setAccessible(true);
+        return (Map<String, ExpiringMessage<?, ?>>) field.get(store);
+    }
+}
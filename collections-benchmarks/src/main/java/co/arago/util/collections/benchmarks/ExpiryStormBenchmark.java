@@ -0,0 +1,72 @@
+package co.arago.util.collections.benchmarks;
+
+import co.arago.util.collections.expiringstore.AbstractExpiringStore;
+import co.arago.util.collections.expiringstore.StoreItem;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time until a store is empty after {@link #entries} messages with the same expiresAt have expired.
+ * <p>
+ * The store is filled before each measurement and the setup waits until shortly before the common expiresAt, so the
+ * score is the time the scheduler needs to drain the storm plus at most one millisecond.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ExpiryStormBenchmark {
+
+    @Param({ "ExpiringStore", "ConcurrentExpiringStore" })
+    public String store;
+
+    @Param({ Stores.TIMER, Stores.WHEEL, Stores.COALESCED })
+    public String expiry;
+
+    @Param({ "10000", "100000", "1000000" })
+    public int entries;
+
+    AbstractExpiringStore<String, String, ?> expiringStore;
+    String[] ids;
+
+    @Setup(Level.Trial)
+    public void setupTrial() {
+        ids = Stores.ids("id-", entries);
+    }
+
+    @Setup(Level.Iteration)
+    public void setupIteration() throws InterruptedException {
+        expiringStore = Stores.newStore(store, expiry);
+
+        // Leave enough time to add all messages before they expire.
+        long expiresAt = System.currentTimeMillis() + 500 + entries / 500;
+        Instant expiresAtInstant = Instant.ofEpochMilli(expiresAt);
+        List<StoreItem<String, String>> items = new ArrayList<>(entries);
+        for (String id : ids) {
+            items.add(new StoreItem<>(expiresAtInstant, id, id));
+        }
+        if (!expiringStore.addAll(items).isEmpty())
+            throw new IllegalStateException("Filling the store took too long.");
+
+        Thread.sleep(Math.max(0, expiresAt - System.currentTimeMillis() - 1));
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        expiringStore.close();
+    }
+
+    @Benchmark
+    public int drain() {
+        while (expiringStore.size() > 0) {
+            Thread.onSpinWait();
+        }
+        return expiringStore.size();
+    }
+}
@@ -0,0 +1,93 @@
+package co.arago.util.collections.benchmarks;
+
+import co.arago.util.collections.expiringstore.ExpiringStore;
+import co.arago.util.collections.expiringstore.LongKeyExpiringStore;
+import co.arago.util.collections.expiringstore.exceptions.ExpiringStoreException;
+import co.arago.util.collections.expiringstore.scheduler.TimingWheelExpiryScheduler;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Instant;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of get and put with numeric ids: converted to Strings, boxed as Long, and primitive in a
+ * {@link LongKeyExpiringStore}. The ids are created per operation, like correlation ids arriving with messages.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LongKeyBenchmark {
+
+    @Param({ "StringIds", "LongIds", "LongKeyExpiringStore" })
+    public String ids;
+
+    @Param({ "65536" })
+    public int keys;
+
+    ExpiringStore<String, String> stringStore;
+    ExpiringStore<Long, String> longStore;
+    LongKeyExpiringStore<String> longKeyStore;
+    Instant expiresAt;
+
+    @Setup
+    public void setup() throws ExpiringStoreException {
+        expiresAt = Instant.now().plusSeconds(3600);
+        TimingWheelExpiryScheduler scheduler = new TimingWheelExpiryScheduler("Benchmark wheel");
+        switch (ids) {
+        case "StringIds":
+            stringStore = ExpiringStore.<String, String>newBuilder().setScheduler(scheduler).build();
+            break;
+        case "LongIds":
+            longStore = ExpiringStore.<Long, String>newBuilder().setScheduler(scheduler).build();
+            break;
+        default:
+            longKeyStore = LongKeyExpiringStore.<String>newBuilder().setScheduler(scheduler)
+                    .setExpectedSize(keys).build();
+        }
+        for (long id = 0; id < keys; id++) {
+            put(id);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (stringStore != null)
+            stringStore.close();
+        if (longStore != null)
+            longStore.close();
+        if (longKeyStore != null)
+            longKeyStore.close();
+    }
+
+    private long randomId() {
+        return ThreadLocalRandom.current().nextInt(keys);
+    }
+
+    @Benchmark
+    public String get() {
+        long id = randomId();
+        if (stringStore != null)
+            return stringStore.get(Long.toString(id));
+        if (longStore != null)
+            return longStore.get(id);
+        return longKeyStore.get(id);
+    }
+
+    @Benchmark
+    public void put() throws ExpiringStoreException {
+        put(randomId());
+    }
+
+    private void put(long id) throws ExpiringStoreException {
+        if (stringStore != null)
+            stringStore.put(expiresAt, Long.toString(id), "message");
+        else if (longStore != null)
+            longStore.put(expiresAt, id, "message");
+        else
+            longKeyStore.put(expiresAt, id, "message");
+    }
+}
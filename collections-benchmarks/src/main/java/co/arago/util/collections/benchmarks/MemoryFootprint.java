@@ -0,0 +1,105 @@
+package co.arago.util.collections.benchmarks;
+
+import co.arago.util.collections.expiringstore.AbstractExpiringStore;
+import co.arago.util.collections.expiringstore.LongKeyExpiringStore;
+import co.arago.util.collections.expiringstore.exceptions.ExpiringStoreException;
+import co.arago.util.collections.expiringstore.scheduler.TimingWheelExpiryScheduler;
+
+import java.time.Instant;
+
+/**
+ * Measures the retained heap per message of each store and expiry mode and prints it as CSV.
+ * <p>
+ * The bytes per message include the id, but not the payload, which is shared by all messages. JMH is not
+ * suited to measure retained memory, so this runs standalone:
+ *
+ * <pre>
+ * java -Xmx16g -cp target/benchmarks.jar co.arago.util.collections.benchmarks.MemoryFootprint [entries ...]
+ * </pre>
+ */
+public final class MemoryFootprint {
+
+    private static final String[] STORES = {
+            "ExpiringStore", "ConcurrentExpiringStore", "ExpiringRetryStore", "ConcurrentExpiringRetryStore"
+    };
+    private static final String[] EXPIRIES = { Stores.TIMER, Stores.WHEEL, Stores.LAZY };
+    private static final int[] DEFAULT_ENTRIES = { 10_000, 100_000, 1_000_000, 10_000_000 };
+    private static final String PAYLOAD = "payload";
+
+    private MemoryFootprint() {
+    }
+
+    /**
+     * Run the measurements.
+     *
+     * @param args Amounts of messages to measure. Defaults to 10^4 to 10^7.
+     * @throws Exception When the store rejects a message or the measurement is interrupted.
+     */
+    public static void main(String[] args) throws Exception {
+        int[] entries = DEFAULT_ENTRIES;
+        if (args.length > 0) {
+            entries = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                entries[i] = Integer.parseInt(args[i]);
+            }
+        }
+
+        System.out.println("store,expiry,entries,bytesPerEntry");
+        for (String store : STORES) {
+            for (String expiry : EXPIRIES) {
+                for (int count : entries) {
+                    System.out.printf("%s,%s,%d,%.1f%n", store, expiry, count, measure(store, expiry, count));
+                }
+            }
+        }
+        for (int count : entries) {
+            System.out.printf("LongKeyExpiringStore,%s,%d,%.1f%n", Stores.WHEEL, count, measureLongKeys(count));
+        }
+    }
+
+    private static double measureLongKeys(int count) throws ExpiringStoreException, InterruptedException {
+        long before = usedHeap();
+        LongKeyExpiringStore<String> longKeyStore = LongKeyExpiringStore.<String>newBuilder()
+                .setScheduler(new TimingWheelExpiryScheduler("Benchmark wheel"))
+                .build();
+        try {
+            Instant expiresAt = Instant.now().plusSeconds(3600);
+            for (long id = 0; id < count; id++) {
+                longKeyStore.put(expiresAt, id, PAYLOAD);
+            }
+            return (double) (usedHeap() - before) / count;
+        } finally {
+            longKeyStore.close();
+        }
+    }
+
+    private static double measure(String store, String expiry, int count)
+            throws ExpiringStoreException, InterruptedException {
+        long before = usedHeap();
+        AbstractExpiringStore<String, String, ?> expiringStore = Stores.newStore(store, expiry);
+        try {
+            Instant expiresAt = Instant.now().plusSeconds(3600);
+            for (int i = 0; i < count; i++) {
+                expiringStore.put(expiresAt, "id-" + i, PAYLOAD);
+            }
+            return (double) (usedHeap() - before) / count;
+        } finally {
+            expiringStore.close();
+        }
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        // Collect until the used heap does not shrink anymore.
+        for (int i = 0; i < 10; i++) {
+            System.gc();
+            Thread.sleep(50);
+            long current = runtime.totalMemory() - runtime.freeMemory();
+            if (current >= used)
+                break;
+            used = current;
+        }
+        return used;
+    }
+}
@@ -0,0 +1,63 @@
+package co.arago.util.collections.benchmarks;
+
+import co.arago.util.collections.expiringstore.AbstractExpiringStore;
+import co.arago.util.collections.expiringstore.exceptions.ExpiringStoreException;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Instant;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of a mix of reads and writes. Each operation is a get with a probability of {@link #readPercent} percent,
+ * otherwise a put of a random existing id.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MixedBenchmark {
+
+    @Param({ "ExpiringStore", "ConcurrentExpiringStore" })
+    public String store;
+
+    @Param({ Stores.TIMER, Stores.WHEEL })
+    public String expiry;
+
+    @Param({ "50", "90", "99" })
+    public int readPercent;
+
+    @Param({ "65536" })
+    public int keys;
+
+    AbstractExpiringStore<String, String, ?> expiringStore;
+    Instant expiresAt;
+    String[] ids;
+
+    @Setup
+    public void setup() throws ExpiringStoreException {
+        expiringStore = Stores.newStore(store, expiry);
+        expiresAt = Instant.now().plusSeconds(3600);
+        ids = Stores.ids("id-", keys);
+        for (String id : ids) {
+            expiringStore.put(expiresAt, id, id);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        expiringStore.close();
+    }
+
+    @Benchmark
+    public String readWrite() throws ExpiringStoreException {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        String id = ids[random.nextInt(keys)];
+        if (random.nextInt(100) < readPercent)
+            return expiringStore.get(id);
+        expiringStore.put(expiresAt, id, id);
+        return id;
+    }
+}
@@ -0,0 +1,54 @@
+package co.arago.util.collections.benchmarks;
+
+import co.arago.util.collections.expiringstore.ExpiringRetryStore;
+import co.arago.util.collections.expiringstore.exceptions.ExpiringStoreException;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Instant;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of retryGet. The messages have enough retries to never be exhausted during the run, so each call
+ * decrements the retries of an existing message.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RetryStoreBenchmark {
+
+    @Param({ "ExpiringRetryStore", "ConcurrentExpiringRetryStore" })
+    public String store;
+
+    @Param({ Stores.TIMER, Stores.WHEEL, Stores.LAZY })
+    public String expiry;
+
+    @Param({ "65536" })
+    public int keys;
+
+    ExpiringRetryStore<String, String> retryStore;
+    String[] ids;
+
+    @Setup
+    public void setup() throws ExpiringStoreException {
+        retryStore = Stores.newRetryStore(store, expiry, Integer.MAX_VALUE);
+        Instant expiresAt = Instant.now().plusSeconds(3600);
+        ids = Stores.ids("id-", keys);
+        for (String id : ids) {
+            retryStore.put(expiresAt, id, id);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        retryStore.close();
+    }
+
+    @Benchmark
+    public String retryGet() {
+        return retryStore.retryGet(ids[ThreadLocalRandom.current().nextInt(keys)]);
+    }
+}
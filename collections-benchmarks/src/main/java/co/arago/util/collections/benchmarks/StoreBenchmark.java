@@ -0,0 +1,98 @@
+package co.arago.util.collections.benchmarks;
+
+import co.arago.util.collections.expiringstore.AbstractExpiringStore;
+import co.arago.util.collections.expiringstore.exceptions.ExpiringStoreException;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Instant;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Throughput of the single operations of the stores. Run with -t 1, 4, 16 and 64 to see how they scale.
+ * <p>
+ * The store is filled with {@link #keys} messages that do not expire during the run. get and put hit random existing
+ * ids, addRemove adds and removes ids private to each thread.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StoreBenchmark {
+
+    @Param({ "ExpiringStore", "ConcurrentExpiringStore", "ExpiringRetryStore", "ConcurrentExpiringRetryStore" })
+    public String store;
+
+    @Param({ Stores.TIMER, Stores.WHEEL, Stores.LAZY })
+    public String expiry;
+
+    @Param({ "65536" })
+    public int keys;
+
+    AbstractExpiringStore<String, String, ?> expiringStore;
+    Instant expiresAt;
+    String[] ids;
+
+    /**
+     * The ids private to one thread.
+     */
+    @State(Scope.Thread)
+    public static class ThreadIds {
+        private static final AtomicInteger threads = new AtomicInteger();
+        private static final int IDS_PER_THREAD = 1024;
+
+        String[] ids;
+        int next;
+
+        @Setup
+        public void setup() {
+            ids = Stores.ids("thread-" + threads.incrementAndGet() + "-", IDS_PER_THREAD);
+        }
+
+        String next() {
+            String id = ids[next];
+            next = (next + 1) % IDS_PER_THREAD;
+            return id;
+        }
+    }
+
+    @Setup
+    public void setup() throws ExpiringStoreException {
+        expiringStore = Stores.newStore(store, expiry);
+        expiresAt = Instant.now().plusSeconds(3600);
+        ids = Stores.ids("id-", keys);
+        for (String id : ids) {
+            expiringStore.put(expiresAt, id, id);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        expiringStore.close();
+    }
+
+    private String randomId() {
+        return ids[ThreadLocalRandom.current().nextInt(keys)];
+    }
+
+    @Benchmark
+    public String get() {
+        return expiringStore.get(randomId());
+    }
+
+    @Benchmark
+    public void put() throws ExpiringStoreException {
+        String id = randomId();
+        expiringStore.put(expiresAt, id, id);
+    }
+
+    @Benchmark
+    public void addRemove(ThreadIds threadIds) throws ExpiringStoreException {
+        String id = threadIds.next();
+        expiringStore.add(expiresAt, id, id);
+        expiringStore.remove(id);
+    }
+}
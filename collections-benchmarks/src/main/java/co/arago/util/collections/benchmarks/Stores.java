@@ -0,0 +1,105 @@
+package co.arago.util.collections.benchmarks;
+
+import co.arago.util.collections.expiringstore.AbstractExpiringStore;
+import co.arago.util.collections.expiringstore.ExpiringRetryStore;
+import co.arago.util.collections.expiringstore.ExpiringStore;
+import co.arago.util.collections.expiringstore.scheduler.TimingWheelExpiryScheduler;
+
+import java.time.Duration;
+
+/**
+ * Creates the stores under test from the names used in the benchmark parameters.
+ */
+final class Stores {
+
+    /**
+     * Expiry with the default {@link co.arago.util.collections.expiringstore.scheduler.TimerExpiryScheduler}.
+     */
+    static final String TIMER = "timer";
+
+    /**
+     * Expiry with a {@link TimingWheelExpiryScheduler}.
+     */
+    static final String WHEEL = "wheel";
+
+    /**
+     * Lazy expiry without any scheduling.
+     */
+    static final String LAZY = "lazy";
+
+    /**
+     * Timer expiry coalesced into buckets of 10 milliseconds.
+     */
+    static final String COALESCED = "coalesced";
+
+    private Stores() {
+    }
+
+    /**
+     * Create a store.
+     *
+     * @param store  Simple class name of the store.
+     * @param expiry One of {@link #TIMER}, {@link #WHEEL}, {@link #LAZY} or {@link #COALESCED}.
+     * @return The new store.
+     */
+    static AbstractExpiringStore<String, String, ?> newStore(String store, String expiry) {
+        switch (store) {
+        case "ExpiringStore":
+            return withExpiry(ExpiringStore.<String, String>newBuilder(), expiry).build();
+        case "ConcurrentExpiringStore":
+            return withExpiry(ExpiringStore.<String, String>newBuilder().setConcurrent(true), expiry).build();
+        default:
+            return newRetryStore(store, expiry, Integer.MAX_VALUE);
+        }
+    }
+
+    /**
+     * Create a retry store.
+     *
+     * @param store      Simple class name of the store.
+     * @param expiry     One of {@link #TIMER}, {@link #WHEEL}, {@link #LAZY} or {@link #COALESCED}.
+     * @param maxRetries Retries of each message.
+     * @return The new store.
+     */
+    static ExpiringRetryStore<String, String> newRetryStore(String store, String expiry, int maxRetries) {
+        switch (store) {
+        case "ExpiringRetryStore":
+            return withExpiry(ExpiringRetryStore.<String, String>newBuilder(), expiry).setMaxRetries(maxRetries).build();
+        case "ConcurrentExpiringRetryStore":
+            return withExpiry(ExpiringRetryStore.<String, String>newBuilder().setConcurrent(true), expiry)
+                    .setMaxRetries(maxRetries).build();
+        default:
+            throw new IllegalArgumentException("Unknown store " + store + ".");
+        }
+    }
+
+    private static <B extends AbstractExpiringStore.Builder<String, String, ?, B>> B withExpiry(B builder, String expiry) {
+        switch (expiry) {
+        case TIMER:
+            return builder;
+        case WHEEL:
+            return builder.setScheduler(new TimingWheelExpiryScheduler("Benchmark wheel"));
+        case LAZY:
+            return builder.setLazyExpiry(true);
+        case COALESCED:
+            return builder.setCoalescedExpiry(Duration.ofMillis(10));
+        default:
+            throw new IllegalArgumentException("Unknown expiry " + expiry + ".");
+        }
+    }
+
+    /**
+     * Create the ids of the messages once, so the benchmarks do not measure string building.
+     *
+     * @param prefix Prefix of each id.
+     * @param count  Amount of ids.
+     * @return The ids.
+     */
+    static String[] ids(String prefix, int count) {
+        String[] ids = new String[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = prefix + i;
+        }
+        return ids;
+    }
+}
@@ -1,38 +1,512 @@
 package co.arago.util.collections.expiringstore;
 
+import co.arago.util.collections.expiringstore.clock.StoreClock;
+import co.arago.util.collections.expiringstore.exceptions.ExpiringStoreException;
 import co.arago.util.collections.expiringstore.exceptions.StoreItemExistsException;
+import co.arago.util.collections.expiringstore.eviction.EvictionPolicy;
+import co.arago.util.collections.expiringstore.eviction.Weigher;
 import co.arago.util.collections.expiringstore.exceptions.StoreItemExpiredException;
+import co.arago.util.collections.expiringstore.exceptions.StoreItemLoadException;
+import co.arago.util.collections.expiringstore.listener.RemovalCause;
+import co.arago.util.collections.expiringstore.listener.RemovalListener;
+import co.arago.util.collections.expiringstore.loader.Loader;
 import co.arago.util.collections.expiringstore.messages.ExpiringMessage;
+import co.arago.util.collections.expiringstore.reference.ValueReference;
+import co.arago.util.collections.expiringstore.reference.ValueStrength;
+import co.arago.util.collections.expiringstore.scheduler.ExpiryScheduler;
+import co.arago.util.collections.expiringstore.scheduler.ScheduledExpiry;
+import co.arago.util.collections.expiringstore.scheduler.SharedExpiryScheduler;
+import co.arago.util.collections.expiringstore.scheduler.TimerExpiryScheduler;
+import co.arago.util.collections.expiringstore.stats.LatencyHistogram;
+import co.arago.util.collections.expiringstore.stats.StoreStats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Abstract root class for expiring stores.
  * <p>
  * Contains the store items with an "expiresAt" after which the items are automatically removed from the store.
+ * <p>
+ * By default, each message is scheduled with the {@link ExpiryScheduler} and removed when its "expiresAt" has come. In
+ * lazy expiry mode, messages are not scheduled at all: reads check the "expiresAt" inline and never return expired
+ * messages, while a sweeper reclaims a bounded amount of expired messages with each write operation and optionally
+ * on a regular background tick.
+ * <p>
+ * Stores can be bounded by a maximum amount of messages and / or a maximum total weight. When a bound is exceeded,
+ * messages are evicted by an {@link EvictionPolicy} and their expiry is cancelled.
+ * <p>
+ * Stores backed by a {@link ConcurrentMap} run all operations without a store-wide lock, see {@link #isLockFree()}.
+ * Expiry and removal then only remove a message if it is still the one stored under its id. All other stores
+ * synchronize their operations on the store itself.
+ * <p>
+ * A {@link RemovalListener} learns about every message that leaves the store and why. Its notifications are delivered
+ * in batches on an executor, so a slow listener never delays the expiry of other messages.
+ * <p>
+ * {@link #getOrLoad(Object, Loader, Duration)} loads missing messages with a single load per id, no matter how many
+ * threads miss at the same time. Optionally, messages close to their expiry are refreshed in the background.
+ * <p>
+ * Stores can record statistics, see {@link #getStats()}. Recording is off by default and costs a single null check
+ * per operation then.
  *
+ * @param <K> Type of the ids of the items
  * @param <T> Type of items to store
  * @param <M> Type of ExpiringMessages to use.
  */
-public abstract class AbstractExpiringStore<T, M extends ExpiringMessage<T>> implements AutoCloseable {
+public abstract class AbstractExpiringStore<K, T, M extends ExpiringMessage<K, T>> implements AutoCloseable {
+
+    private final static Logger log = LoggerFactory.getLogger(AbstractExpiringStore.class);
 
     protected static final AtomicInteger counter = new AtomicInteger(0);
 
-    private final Timer timer;
+    public static final int DEFAULT_SWEEP_BATCH_SIZE = 4;
+    public static final int DEFAULT_EXPIRY_CHUNK_SIZE = 1000;
+    private static final int SWEEP_CHUNK_SIZE = 1024;
+
+    private static final ScheduledExpiry NOT_SCHEDULED = () -> false;
+
+    private static final StatsRecorder EMPTY_STATS = new StatsRecorder();
+
+    /**
+     * The operations whose latencies are recorded.
+     */
+    protected enum Latency {
+        ADD, ADD_LOCK_WAIT, GET, RETRY_GET
+    }
+
+    /**
+     * Base class for the builders of expiring stores.
+     *
+     * @param <K> Type of the ids of the items
+     * @param <T> Type of items to store
+     * @param <S> Type of the store to build.
+     * @param <B> Type of the builder itself.
+     */
+    public static abstract class Builder<K, T, S extends AbstractExpiringStore<K, T, ?>, B extends Builder<K, T, S, B>> {
+        protected String name;
+        protected ExpiryScheduler scheduler;
+        protected SharedExpiryScheduler sharedScheduler;
+        protected boolean lazyExpiry = false;
+        protected int sweepBatchSize = DEFAULT_SWEEP_BATCH_SIZE;
+        protected Duration sweepInterval;
+        protected Duration expiryBucket;
+        protected int expiryChunkSize = DEFAULT_EXPIRY_CHUNK_SIZE;
+        protected long maxEntries = 0;
+        protected long maxWeight = 0;
+        protected Weigher<? super K, ? super T> weigher;
+        protected RemovalListener<K, T> removalListener;
+        protected Executor removalExecutor;
+        protected boolean recordStats = false;
+        protected double refreshAhead = 0.0;
+        protected Executor refreshExecutor;
+        protected Executor asyncExecutor = ForkJoinPool.commonPool();
+        protected Duration slidingExpiry;
+        protected StoreClock clock = StoreClock.SYSTEM;
+        protected ValueStrength valueStrength = ValueStrength.STRONG;
+
+        /**
+         * Set the name of the store. A name is generated if this is not set.
+         *
+         * @param name Name of the store.
+         * @return Reference to self for chaining
+         */
+        public B setName(String name) {
+            this.name = name;
+            return self();
+        }
+
+        /**
+         * Set an own scheduler for the store. It will be closed together with the store.
+         *
+         * @param scheduler The scheduler for the expiry of the messages.
+         * @return Reference to self for chaining
+         */
+        public B setScheduler(ExpiryScheduler scheduler) {
+            this.scheduler = scheduler;
+            this.sharedScheduler = null;
+            return self();
+        }
+
+        /**
+         * Register the store with a scheduler shared among many stores. Closing the store only detaches it from the
+         * shared scheduler.
+         *
+         * @param sharedScheduler The shared scheduler for the expiry of the messages.
+         * @return Reference to self for chaining
+         */
+        public B setSharedScheduler(SharedExpiryScheduler sharedScheduler) {
+            this.sharedScheduler = sharedScheduler;
+            this.scheduler = null;
+            return self();
+        }
+
+        /**
+         * Use lazy expiry instead of scheduling each message. Reads check the expiry inline and a sweeper reclaims
+         * expired messages incrementally.
+         *
+         * @param lazyExpiry Flag
+         * @return Reference to self for chaining
+         */
+        public B setLazyExpiry(boolean lazyExpiry) {
+            this.lazyExpiry = lazyExpiry;
+            return self();
+        }
+
+        /**
+         * Set the maximum amount of messages the sweeper checks with each write operation in lazy expiry mode.
+         * Default is {@link #DEFAULT_SWEEP_BATCH_SIZE}.
+         *
+         * @param sweepBatchSize Amount of messages. 0 disables sweeping on write operations.
+         * @return Reference to self for chaining
+         */
+        public B setSweepBatchSize(int sweepBatchSize) {
+            this.sweepBatchSize = sweepBatchSize;
+            return self();
+        }
+
+        /**
+         * Let the sweeper check all messages on a regular background tick in lazy expiry mode. The tick runs on the
+         * scheduler of the store. No background sweeping takes place if this is not set.
+         *
+         * @param sweepInterval Interval between two sweeps.
+         * @return Reference to self for chaining
+         */
+        public B setSweepInterval(Duration sweepInterval) {
+            this.sweepInterval = sweepInterval;
+            return self();
+        }
+
+        /**
+         * Coalesce the expiries of the messages into buckets of this width. Only one task per bucket is scheduled, and
+         * the expired messages of a bucket are removed in chunks, each under one acquisition of the lock of the store.
+         * Many messages expiring at once then neither flood the scheduler nor keep readers waiting for the lock for
+         * long. A message is removed at most one bucket width after it has expired. Not used in lazy expiry mode.
+         *
+         * @param expiryBucket Width of a bucket.
+         * @return Reference to self for chaining
+         */
+        public B setCoalescedExpiry(Duration expiryBucket) {
+            this.expiryBucket = expiryBucket;
+            return self();
+        }
+
+        /**
+         * Set the maximum amount of expired messages removed under one acquisition of the lock of the store with
+         * coalesced expiry. Default is {@link #DEFAULT_EXPIRY_CHUNK_SIZE}.
+         *
+         * @param expiryChunkSize Amount of messages, at least 1.
+         * @return Reference to self for chaining
+         */
+        public B setExpiryChunkSize(int expiryChunkSize) {
+            this.expiryChunkSize = expiryChunkSize;
+            return self();
+        }
+
+        /**
+         * Reference the payloads softly or weakly, so the garbage collector can clear them before their messages
+         * expire. Messages whose payload has been cleared are removed with {@link RemovalCause#COLLECTED} during the
+         * next reads and writes, without scanning the store. Default is {@link ValueStrength#STRONG}.
+         *
+         * @param valueStrength How strongly the payloads are referenced.
+         * @return Reference to self for chaining
+         */
+        public B setValueStrength(ValueStrength valueStrength) {
+            this.valueStrength = valueStrength;
+            return self();
+        }
+
+        /**
+         * Bound the store by the amount of messages. Messages are evicted when the bound is exceeded.
+         *
+         * @param maxEntries Maximum amount of messages. 0 for no limit.
+         * @return Reference to self for chaining
+         */
+        public B setMaxEntries(long maxEntries) {
+            this.maxEntries = maxEntries;
+            return self();
+        }
+
+        /**
+         * Bound the store by the total weight of its messages. Messages are evicted when the bound is exceeded.
+         *
+         * @param maxWeight Maximum total weight. 0 for no limit.
+         * @param weigher   Calculates the weight of each message.
+         * @return Reference to self for chaining
+         */
+        public B setMaxWeight(long maxWeight, Weigher<? super K, ? super T> weigher) {
+            this.maxWeight = maxWeight;
+            this.weigher = weigher;
+            return self();
+        }
+
+        /**
+         * Set a listener for messages leaving the store. Notifications are delivered in batches on the common
+         * {@link ForkJoinPool}.
+         *
+         * @param removalListener The listener.
+         * @return Reference to self for chaining
+         */
+        public B setRemovalListener(RemovalListener<K, T> removalListener) {
+            return setRemovalListener(removalListener, ForkJoinPool.commonPool());
+        }
+
+        /**
+         * Set a listener for messages leaving the store.
+         *
+         * @param removalListener The listener.
+         * @param executor        The executor to deliver the batches of notifications on.
+         * @return Reference to self for chaining
+         */
+        public B setRemovalListener(RemovalListener<K, T> removalListener, Executor executor) {
+            this.removalListener = removalListener;
+            this.removalExecutor = executor;
+            return self();
+        }
+
+        /**
+         * Let {@link #getOrLoad(Object, Loader, Duration)} reload a message in the background on the common
+         * {@link ForkJoinPool} when it is read within the given fraction of its ttl before its expiry.
+         *
+         * @param refreshAhead Fraction of the ttl between 0 and 1. 0 disables refreshing.
+         * @return Reference to self for chaining
+         */
+        public B setRefreshAhead(double refreshAhead) {
+            return setRefreshAhead(refreshAhead, ForkJoinPool.commonPool());
+        }
+
+        /**
+         * Let {@link #getOrLoad(Object, Loader, Duration)} reload a message in the background when it is read within
+         * the given fraction of its ttl before its expiry. Readers get the current message until the new one is
+         * stored.
+         *
+         * @param refreshAhead Fraction of the ttl between 0 and 1. 0 disables refreshing.
+         * @param executor     The executor to load on. Must not be null.
+         * @return Reference to self for chaining
+         */
+        public B setRefreshAhead(double refreshAhead, Executor executor) {
+            if (refreshAhead < 0.0 || refreshAhead >= 1.0)
+                throw new IllegalArgumentException("The refreshAhead fraction must be at least 0 and less than 1.");
+            this.refreshAhead = refreshAhead;
+            this.refreshExecutor = Objects.requireNonNull(executor, "executor");
+            return self();
+        }
+
+        /**
+         * Let every read of a message and {@link #touch(Object)} extend its expiry to at least the given duration from
+         * now. Reads neither allocate nor reschedule, the expiry is checked again when the scheduled one runs.
+         *
+         * @param slidingExpiry Time to live after the last access. Must be positive.
+         * @return Reference to self for chaining
+         */
+        public B setSlidingExpiry(Duration slidingExpiry) {
+            if (slidingExpiry.isNegative() || slidingExpiry.isZero())
+                throw new IllegalArgumentException("The sliding expiry must be positive.");
+            this.slidingExpiry = slidingExpiry;
+            return self();
+        }
+
+        /**
+         * Set the time source for the checks of adds, puts and reads, i.e. a shared
+         * {@link co.arago.util.collections.expiringstore.clock.CoarseClock}. The expiry schedulers keep using the
+         * system time. {@link StoreClock#SYSTEM} by default.
+         *
+         * @param clock The clock.
+         * @return Reference to self for chaining
+         */
+        public B setClock(StoreClock clock) {
+            this.clock = clock;
+            return self();
+        }
+
+        /**
+         * Set the executor of the asynchronous methods like {@link #getAsync(Object)}. The common {@link ForkJoinPool}
+         * by default.
+         *
+         * @param asyncExecutor The executor.
+         * @return Reference to self for chaining
+         */
+        public B setAsyncExecutor(Executor asyncExecutor) {
+            this.asyncExecutor = asyncExecutor;
+            return self();
+        }
+
+        /**
+         * Record hit and miss counts, counts of added, put and removed messages and latencies of add, get and
+         * retryGet. Off by default.
+         *
+         * @param recordStats Flag
+         * @return Reference to self for chaining
+         */
+        public B setRecordStats(boolean recordStats) {
+            this.recordStats = recordStats;
+            return self();
+        }
+
+        /**
+         * Create the scheduler for the store. A {@link TimerExpiryScheduler} is used when neither a scheduler nor a
+         * shared scheduler has been set. In lazy expiry mode without background sweeping, no scheduler is needed.
+         *
+         * @param storeName Name of the store.
+         * @return The scheduler for the store or null.
+         */
+        protected ExpiryScheduler buildScheduler(String storeName) {
+            if (!needsScheduler())
+                return null;
+            if (sharedScheduler != null)
+                return sharedScheduler.register(storeName);
+            if (scheduler != null)
+                return scheduler;
+            return new TimerExpiryScheduler("Timer for " + storeName);
+        }
+
+        /**
+         * Getter
+         *
+         * @return true if the store needs a scheduler. Only lazy expiry mode without background sweeping does not.
+         */
+        protected boolean needsScheduler() {
+            return !lazyExpiry || sweepInterval != null;
+        }
+
+        /**
+         * Apply the settings that do not need to be known at construction time to the new store.
+         *
+         * @param store The new store.
+         * @return The store.
+         */
+        protected S configure(S store) {
+            AbstractExpiringStore<K, T, ?> base = store;
+            base.sweepBatchSize = sweepBatchSize;
+            if (recordStats)
+                base.stats = new StatsRecorder();
+            base.refreshAhead = refreshAhead;
+            base.refreshExecutor = refreshExecutor;
+            base.asyncExecutor = asyncExecutor;
+            base.clock = clock;
+            if (slidingExpiry != null)
+                base.slidingExpiryMillis = slidingExpiry.toMillis();
+            if (valueStrength != ValueStrength.STRONG) {
+                base.valueStrength = valueStrength;
+                base.referenceQueue = new ReferenceQueue<>();
+            }
+            if (expiryBucket != null && !lazyExpiry)
+                base.initExpiryBuckets(expiryBucket.toMillis(), expiryChunkSize);
+            if (maxEntries > 0 || maxWeight > 0)
+                base.initEviction(maxEntries, maxWeight, weigher);
+            if (removalListener != null)
+                base.removalDispatcher = new RemovalDispatcher<>(removalListener, removalExecutor);
+            if (lazyExpiry && sweepInterval != null)
+                base.scheduleSweep(sweepInterval.toMillis());
+            return store;
+        }
+
+        protected abstract B self();
+
+        /**
+         * Create the store.
+         *
+         * @return The new store.
+         */
+        public abstract S build();
+    }
+
+    private final ExpiryScheduler scheduler;
     private final String name;
 
-    protected final Map<String, M> storeMap = new HashMap<>();
+    protected final Map<K, M> storeMap;
+
+    private final Queue<M> sweepQueue;
+    private final boolean lockFree;
+    private int sweepBatchSize = DEFAULT_SWEEP_BATCH_SIZE;
+
+    private ExpiryBuckets<M> expiryBuckets;
+    private volatile ScheduledExpiry sweepExpiry;
+
+    private ValueStrength valueStrength = ValueStrength.STRONG;
+    private ReferenceQueue<Object> referenceQueue;
+
+    private EvictionPolicy<K, M> evictionPolicy;
+    private Weigher<? super K, ? super T> weigher;
+
+    private RemovalDispatcher<K, T> removalDispatcher;
+
+    private StatsRecorder stats;
+
+    private final ConcurrentHashMap<K, CompletableFuture<T>> loads = new ConcurrentHashMap<>();
+    private double refreshAhead = 0.0;
+    private Executor refreshExecutor;
+    private Executor asyncExecutor = ForkJoinPool.commonPool();
+    private long slidingExpiryMillis = 0;
+    private StoreClock clock = StoreClock.SYSTEM;
 
     /**
      * Constructor
+     * <p>
+     * Uses a {@link TimerExpiryScheduler} for the expiry of the messages.
      *
      * @param name Name of the ExpiringStore.
      */
     public AbstractExpiringStore(String name) {
+        this(name, new TimerExpiryScheduler("Timer for " + name));
+    }
+
+    /**
+     * Constructor
+     *
+     * @param name      Name of the ExpiringStore.
+     * @param scheduler The scheduler for the expiry of the messages. It will be closed together with this store.
+     */
+    public AbstractExpiringStore(String name, ExpiryScheduler scheduler) {
+        this(name, scheduler, new HashMap<>());
+    }
+
+    /**
+     * Constructor
+     *
+     * @param name      Name of the ExpiringStore.
+     * @param scheduler The scheduler for the expiry of the messages. It will be closed together with this store.
+     * @param storeMap  The (empty) map holding the messages of this store.
+     */
+    protected AbstractExpiringStore(String name, ExpiryScheduler scheduler, Map<K, M> storeMap) {
+        this(name, scheduler, storeMap, null);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param name       Name of the ExpiringStore.
+     * @param scheduler  The scheduler for the expiry of the messages. It will be closed together with this store.
+     *                   Can be null in lazy expiry mode without background sweeping.
+     * @param storeMap   The (empty) map holding the messages of this store.
+     * @param sweepQueue The (empty) queue of the sweeper. Setting this enables lazy expiry mode. Must be thread-safe
+     *                   if the store does not synchronize its operations.
+     */
+    protected AbstractExpiringStore(
+            String name,
+            ExpiryScheduler scheduler,
+            Map<K, M> storeMap,
+            Queue<M> sweepQueue) {
         this.name = name;
-        this.timer = new Timer("Timer for " + name);
+        this.scheduler = scheduler;
+        this.storeMap = storeMap;
+        this.sweepQueue = sweepQueue;
+        this.lockFree = storeMap instanceof ConcurrentMap;
     }
 
     /**
@@ -40,24 +514,478 @@ public abstract class AbstractExpiringStore<T, M extends ExpiringMessage<T>> imp
      *
      * @param expiringMessage Message to add
      * @throws StoreItemExistsException When the expiringMessage already exists.
+     * @throws IllegalArgumentException When the weigher of the store returns a negative weight for the message.
      */
     protected void addInternal(M expiringMessage) throws StoreItemExistsException {
+        int weight = weigh(expiringMessage);
         M existingMessage = storeMap.putIfAbsent(expiringMessage.getId(), expiringMessage);
-        if (existingMessage != null) {
-            throw new StoreItemExistsException("Not adding " + expiringMessage.getMessage().getClass().getSimpleName() +
-                    " " + expiringMessage.getId() + " because it already exists.");
+        if (existingMessage != null && !replaceExpired(existingMessage, expiringMessage)) {
+            StoreItemExistsException e = newStoreItemExistsException(expiringMessage);
+            discard(expiringMessage);
+            throw e;
         }
+        written(expiringMessage, weight);
+        if (stats != null)
+            stats.adds.increment();
+        scheduleInternal(expiringMessage);
+    }
+
+    /**
+     * In lazy expiry mode, an expired message that has not been swept yet does not block the add of a new message
+     * with the same id.
+     *
+     * @param existingMessage The message in the storeMap.
+     * @param expiringMessage The new message.
+     * @return true if the existing message was expired and has been replaced.
+     */
+    private boolean replaceExpired(M existingMessage, M expiringMessage) {
+        if (sweepQueue != null
+                && existingMessage.isExpiredAt(clock.millis())
+                && storeMap.replace(expiringMessage.getId(), existingMessage, expiringMessage)) {
+            notifyRemoval(existingMessage, RemovalCause.EXPIRED);
+            discard(existingMessage);
+            return true;
+        }
+        return false;
+    }
+
+    private static StoreItemExistsException newStoreItemExistsException(ExpiringMessage<?, ?> expiringMessage) {
+        return new StoreItemExistsException("Not adding " + expiringMessage.getMessage().getClass().getSimpleName() +
+                " " + expiringMessage.getId() + " because it already exists.");
     }
 
     /**
      * Put the message, allowing to overwrite messages with the same id. Overwritten messages will be canceled.
      *
      * @param expiringMessage Message to put
+     * @throws IllegalArgumentException When the weigher of the store returns a negative weight for the message.
      */
     protected void putInternal(M expiringMessage) {
+        int weight = weigh(expiringMessage);
         M existingMessage = storeMap.put(expiringMessage.getId(), expiringMessage);
-        if (existingMessage != null)
-            existingMessage.cancel();
+        if (existingMessage != null) {
+            existingMessage.cancelExpiry();
+            notifyRemoval(existingMessage, RemovalCause.REPLACED);
+            discard(existingMessage);
+        }
+        written(expiringMessage, weight);
+        if (stats != null)
+            stats.puts.increment();
+        scheduleInternal(expiringMessage);
+    }
+
+    /**
+     * Remove the message with this id and cancel its expiry.
+     *
+     * @param id    Id of the message
+     * @param cause Why the message is removed.
+     * @return The removed message or null if none existed.
+     */
+    protected M removeInternal(K id, RemovalCause cause) {
+        M message = storeMap.remove(id);
+        if (message != null)
+            removed(message, cause);
+        return message;
+    }
+
+    /**
+     * Remove exactly this message and cancel its expiry. Nothing happens if the message has been replaced or removed
+     * in the meantime.
+     *
+     * @param message The message to remove.
+     * @param cause   Why the message is removed.
+     * @return true if the message has been removed.
+     */
+    protected boolean removeInternal(ExpiringMessage<?, ?> message, RemovalCause cause) {
+        if (!storeMap.remove(message.getId(), message))
+            return false;
+        // The message was mapped in the storeMap, so it is an M.
+        @SuppressWarnings("unchecked")
+        M removedMessage = (M) message;
+        removed(removedMessage, cause);
+        return true;
+    }
+
+    private void removed(M message, RemovalCause cause) {
+        message.cancelExpiry();
+        if (evictionPolicy != null)
+            evictionPolicy.remove(message.getId(), message);
+        notifyRemoval(message, cause);
+        discard(message);
+    }
+
+    /**
+     * Hand a notification about a message that has left this store to the removal listener, if there is one.
+     *
+     * @param message The message.
+     * @param cause   Why the message has left the store.
+     */
+    private void notifyRemoval(M message, RemovalCause cause) {
+        if (stats != null)
+            stats.recordRemoval(cause);
+        if (removalDispatcher != null)
+            removalDispatcher.notify(message.getId(), message.getMessage(), cause);
+    }
+
+    /**
+     * Called for each message that has been added to the storeMap, before it is handed to the eviction policy.
+     *
+     * @param message The message.
+     */
+    protected void accepted(M message) {
+    }
+
+    /**
+     * Called exactly once for each message that has left this store for good or has never been accepted by it, after
+     * its expiry has been cancelled. Subclasses can release resources held by the message here.
+     *
+     * @param message The message.
+     */
+    protected void discard(M message) {
+    }
+
+    /**
+     * Calculate the weight of a new message before it enters the storeMap. A message with a negative weight is
+     * discarded.
+     *
+     * @param message The new message.
+     * @return The weight of the message, 1 if this store is not bounded by weight.
+     * @throws IllegalArgumentException When the weigher returns a negative weight.
+     */
+    private int weigh(M message) {
+        if (weigher == null)
+            return 1;
+        int weight = weigher.weigh(message.getId(), message.getMessage());
+        if (weight < 0) {
+            message.cancelExpiry();
+            discard(message);
+            throw new IllegalArgumentException("Negative weight " + weight + " of message " + message.getId() + ".");
+        }
+        return weight;
+    }
+
+    /**
+     * Let the eviction policy know about a new message.
+     *
+     * @param message The message that has been added to the storeMap.
+     * @param weight  The weight of the message.
+     */
+    private void written(M message, int weight) {
+        drainReferences();
+        accepted(message);
+        if (evictionPolicy == null)
+            return;
+        evictionPolicy.write(message.getId(), message, weight);
+        // A concurrent removal might have happened before the policy knew about the message.
+        if (storeMap.get(message.getId()) != message)
+            evictionPolicy.remove(message.getId(), message);
+    }
+
+    /**
+     * Called by the eviction policy.
+     *
+     * @param id      Id of the evicted message.
+     * @param message The evicted message.
+     */
+    private void evicted(K id, M message) {
+        if (storeMap.remove(id, message)) {
+            message.cancelExpiry();
+            if (!spill(message))
+                notifyRemoval(message, RemovalCause.EVICTED);
+            discard(message);
+        }
+    }
+
+    /**
+     * Called for each message evicted because the store exceeded its bounds, after its expiry has been cancelled.
+     * Subclasses can keep the message in another tier here instead of dropping it.
+     *
+     * @param message The evicted message.
+     * @return true if the message has been kept elsewhere. Its eviction is not reported to the removal listener then.
+     */
+    protected boolean spill(M message) {
+        return false;
+    }
+
+    private void initExpiryBuckets(long bucketMillis, int chunkSize) {
+        if (bucketMillis < 1 || chunkSize < 1)
+            throw new IllegalArgumentException(
+                    "Expiry buckets need a width of at least one millisecond and chunks of at least one message.");
+        this.expiryBuckets = new ExpiryBuckets<>(this, scheduler, bucketMillis, chunkSize);
+    }
+
+    private void initEviction(long maxEntries, long maxWeight, Weigher<? super K, ? super T> weigher) {
+        this.weigher = (maxWeight > 0) ? weigher : null;
+        this.evictionPolicy = new EvictionPolicy<>(maxEntries, maxWeight, this::evicted);
+    }
+
+    /**
+     * Check a message read from the storeMap. In lazy expiry mode, an expired message is removed here. Valid messages
+     * are recorded as used by the eviction policy and get their expiry extended with sliding expiry.
+     *
+     * @param message The message or null.
+     * @return The message or null if it is null or expired.
+     */
+    protected M checkRead(M message) {
+        drainReferences();
+        if (message == null)
+            return null;
+        if (sweepQueue != null || slidingExpiryMillis > 0) {
+            long now = clock.millis();
+            if (sweepQueue != null && message.isExpiredAt(now)) {
+                removeInternal(message, RemovalCause.EXPIRED);
+                return null;
+            }
+            if (slidingExpiryMillis > 0)
+                message.extendTo(now + slidingExpiryMillis);
+        }
+        if (evictionPolicy != null)
+            evictionPolicy.read(message.getId());
+        return message;
+    }
+
+    /**
+     * Reference the payload of a new message with the {@link ValueStrength} of this store.
+     *
+     * @param value   The payload.
+     * @param message The new message.
+     * @return The payload itself or a {@link co.arago.util.collections.expiringstore.reference.ValueReference} to it.
+     */
+    public Object referenceValue(Object value, ExpiringMessage<?, ?> message) {
+        if (referenceQueue == null)
+            return value;
+        return valueStrength.reference(value, message, referenceQueue);
+    }
+
+    /**
+     * Remove the messages whose payloads have been cleared by the garbage collector. Stores that are not backed by a
+     * {@link ConcurrentMap} remove them under their lock.
+     */
+    private void drainReferences() {
+        if (referenceQueue == null)
+            return;
+        Reference<?> cleared = referenceQueue.poll();
+        if (cleared == null)
+            return;
+        if (lockFree) {
+            removeCollected(cleared);
+        } else {
+            synchronized (this) {
+                removeCollected(cleared);
+            }
+        }
+    }
+
+    private void removeCollected(Reference<?> cleared) {
+        for (; cleared != null; cleared = referenceQueue.poll()) {
+            removeInternal(((ValueReference) cleared).getMessage(), RemovalCause.COLLECTED);
+        }
+    }
+
+    /**
+     * Let the sweeper check the next messages in its queue. Expired messages are removed, messages that have been
+     * removed or replaced are dropped from the queue, all others are put back to its end.
+     *
+     * @param max Maximum amount of messages to check.
+     * @return Amount of expired messages removed.
+     */
+    protected int sweepInternal(int max) {
+        if (sweepQueue == null)
+            return 0;
+
+        long now = currentTimeMillis();
+        int removed = 0;
+        for (int i = 0; i < max; i++) {
+            M message = sweepQueue.poll();
+            if (message == null)
+                break;
+            if (storeMap.get(message.getId()) != message)
+                continue;
+            if (message.isExpiredAt(now)) {
+                if (removeInternal(message, RemovalCause.EXPIRED))
+                    removed++;
+            } else {
+                sweepQueue.offer(message);
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Let the sweeper check all messages regularly. Each round is done in chunks, so the store is not locked for the
+     * whole round.
+     *
+     * @param intervalMillis Interval between two rounds.
+     */
+    private void scheduleSweep(long intervalMillis) {
+        try {
+            sweepExpiry = scheduler.schedule(() -> {
+                int chunks = storeMap.size() / SWEEP_CHUNK_SIZE + 1;
+                for (int i = 0; i < chunks; i++) {
+                    sweep(SWEEP_CHUNK_SIZE);
+                }
+                scheduleSweep(intervalMillis);
+            }, currentTimeMillis() + intervalMillis);
+        } catch (IllegalStateException e) {
+            // The scheduler has been closed together with this store.
+        }
+    }
+
+    /**
+     * Schedule a new message or hand it to the sweeper in lazy expiry mode. This happens after the message has been
+     * put into the {@link #storeMap}, so an expiry that runs right away finds the message and removes it.
+     *
+     * @param message The new message.
+     */
+    private void scheduleInternal(M message) {
+        if (sweepQueue != null) {
+            sweepQueue.offer(message);
+            sweepInternal(sweepBatchSize);
+        } else {
+            message.setScheduledExpiry(schedule(message, message.getExpiresAtMillis()));
+        }
+    }
+
+    /**
+     * Schedule new messages or hand them to the sweeper in lazy expiry mode.
+     *
+     * @param messages The new messages.
+     */
+    private void scheduleAllInternal(List<M> messages) {
+        if (sweepQueue != null) {
+            sweepQueue.addAll(messages);
+            sweepInternal(sweepBatchSize);
+        } else if (expiryBuckets != null) {
+            expiryBuckets.addAll(messages);
+        } else {
+            scheduler.scheduleAll(messages);
+        }
+    }
+
+    /**
+     * Create a message for a batch without scheduling it.
+     *
+     * @param item      The item to create the message for.
+     * @param nowMillis The current time of the batch in milliseconds since the epoch.
+     * @return The new message.
+     * @throws StoreItemExpiredException When the expiresAt of the item is before now.
+     */
+    protected abstract M newMessage(StoreItem<K, T> item, long nowMillis) throws StoreItemExpiredException;
+
+    /**
+     * Add all items that do not exist yet. All added messages are scheduled with one call to the scheduler.
+     *
+     * @param items The items to add.
+     * @return Failures by id of the item, i.e. {@link StoreItemExistsException} or {@link StoreItemExpiredException}.
+     */
+    protected Map<K, ExpiringStoreException> addAllInternal(Collection<? extends StoreItem<K, T>> items) {
+        long now = clock.millis();
+        Map<K, ExpiringStoreException> failures = new HashMap<>();
+        List<M> added = new ArrayList<>(items.size());
+
+        for (StoreItem<K, T> item : items) {
+            try {
+                M expiringMessage = newMessage(item, now);
+                int weight = weigh(expiringMessage);
+                M existingMessage = storeMap.putIfAbsent(expiringMessage.getId(), expiringMessage);
+                if (existingMessage != null && !replaceExpired(existingMessage, expiringMessage)) {
+                    failures.put(item.getId(), newStoreItemExistsException(expiringMessage));
+                    discard(expiringMessage);
+                } else {
+                    written(expiringMessage, weight);
+                    added.add(expiringMessage);
+                }
+            } catch (StoreItemExpiredException e) {
+                failures.put(item.getId(), e);
+            } catch (IllegalArgumentException e) {
+                failures.put(item.getId(), new ExpiringStoreException(e.getMessage(), e));
+            }
+        }
+
+        if (stats != null)
+            stats.adds.add(added.size());
+        scheduleAllInternal(added);
+        return failures;
+    }
+
+    /**
+     * Put all items, possibly overwriting existing messages. Overwritten messages will be canceled. All new messages
+     * are scheduled with one call to the scheduler.
+     *
+     * @param items The items to put.
+     * @return Failures by id of the item, i.e. {@link StoreItemExpiredException}.
+     */
+    protected Map<K, ExpiringStoreException> putAllInternal(Collection<? extends StoreItem<K, T>> items) {
+        long now = clock.millis();
+        Map<K, ExpiringStoreException> failures = new HashMap<>();
+        List<M> added = new ArrayList<>(items.size());
+
+        for (StoreItem<K, T> item : items) {
+            try {
+                M expiringMessage = newMessage(item, now);
+                int weight = weigh(expiringMessage);
+                M existingMessage = storeMap.put(expiringMessage.getId(), expiringMessage);
+                if (existingMessage != null) {
+                    existingMessage.cancelExpiry();
+                    notifyRemoval(existingMessage, RemovalCause.REPLACED);
+                    discard(existingMessage);
+                }
+                written(expiringMessage, weight);
+                added.add(expiringMessage);
+            } catch (StoreItemExpiredException e) {
+                failures.put(item.getId(), e);
+            } catch (IllegalArgumentException e) {
+                failures.put(item.getId(), new ExpiringStoreException(e.getMessage(), e));
+            }
+        }
+
+        if (stats != null)
+            stats.puts.add(added.size());
+        scheduleAllInternal(added);
+        return failures;
+    }
+
+    /**
+     * Get the message with this id.
+     *
+     * @param id Id of the message
+     * @return The stored message or null.
+     */
+    protected T getInternal(K id) {
+        M message = checkRead(storeMap.get(id));
+        T value = (message != null) ? message.getMessage() : null;
+        recordRead(value != null);
+        return value;
+    }
+
+    /**
+     * Get all existing messages.
+     *
+     * @param ids Ids of the messages.
+     * @return Map of the found messages by their id.
+     */
+    protected Map<K, T> getAllInternal(Collection<K> ids) {
+        Map<K, T> result = new HashMap<>();
+        for (K id : ids) {
+            M message = checkRead(storeMap.get(id));
+            T value = (message != null) ? message.getMessage() : null;
+            if (stats != null)
+                stats.recordRead(value != null);
+            if (value != null)
+                result.put(id, value);
+        }
+        return result;
+    }
+
+    /**
+     * Remove all messages and cancel their expiry.
+     *
+     * @param ids Ids of the messages.
+     */
+    protected void removeAllInternal(Collection<K> ids) {
+        for (K id : ids) {
+            removeInternal(id, RemovalCause.REMOVED);
+        }
     }
 
     /**
@@ -69,7 +997,20 @@ public abstract class AbstractExpiringStore<T, M extends ExpiringMessage<T>> imp
      * @throws StoreItemExpiredException When the expiresAt is already expired.
      * @throws StoreItemExistsException  When the message already exists.
      */
-    public abstract void add(Instant expiresAt, String id, T message)
+    public void add(Instant expiresAt, K id, T message) throws StoreItemExpiredException, StoreItemExistsException {
+        add(expiresAt.toEpochMilli(), id, message);
+    }
+
+    /**
+     * Add a message to the store if it does not exist. Neither this nor the message allocate any time objects.
+     *
+     * @param expiresAtMillis Timestamp in milliseconds since the epoch after which the message expires
+     * @param id              The unique id of the message
+     * @param message         The message itself to store
+     * @throws StoreItemExpiredException When the expiresAt is already expired.
+     * @throws StoreItemExistsException  When the message already exists.
+     */
+    public abstract void add(long expiresAtMillis, K id, T message)
             throws StoreItemExpiredException, StoreItemExistsException;
 
     /**
@@ -80,17 +1021,180 @@ public abstract class AbstractExpiringStore<T, M extends ExpiringMessage<T>> imp
      * @param message   The message itself to store
      * @throws StoreItemExpiredException When the expiresAt is already expired.
      */
-    public abstract void put(Instant expiresAt, String id, T message) throws StoreItemExpiredException;
+    public void put(Instant expiresAt, K id, T message) throws StoreItemExpiredException {
+        put(expiresAt.toEpochMilli(), id, message);
+    }
 
     /**
-     * Remove a message from the storeMap and cancel its TimerTask.
+     * Put a message to the store, possibly overwriting existing messages. Neither this nor the message allocate any
+     * time objects.
+     *
+     * @param expiresAtMillis Timestamp in milliseconds since the epoch after which the message expires
+     * @param id              The unique id of the message
+     * @param message         The message itself to store
+     * @throws StoreItemExpiredException When the expiresAt is already expired.
+     */
+    public abstract void put(long expiresAtMillis, K id, T message) throws StoreItemExpiredException;
+
+    /**
+     * Add a new message of a subclass under the lock of the store, or without it if the store is lock-free.
+     *
+     * @param expiringMessage Message to add
+     * @throws StoreItemExistsException When the expiringMessage already exists.
+     */
+    protected void addMessage(M expiringMessage) throws StoreItemExistsException {
+        long start = startTiming();
+        try {
+            if (lockFree) {
+                addInternal(expiringMessage);
+                return;
+            }
+            synchronized (this) {
+                recordLatency(start, Latency.ADD_LOCK_WAIT);
+                addInternal(expiringMessage);
+            }
+        } finally {
+            recordLatency(start, Latency.ADD);
+        }
+    }
+
+    /**
+     * Put a new message of a subclass under the lock of the store, or without it if the store is lock-free.
+     *
+     * @param expiringMessage Message to put
+     */
+    protected void putMessage(M expiringMessage) {
+        if (lockFree) {
+            putInternal(expiringMessage);
+            return;
+        }
+        synchronized (this) {
+            putInternal(expiringMessage);
+        }
+    }
+
+    /**
+     * Add all messages that do not exist yet. Failing items do not stop the batch.
+     *
+     * @param items The items to add.
+     * @return Failures by id of the item, i.e. {@link StoreItemExistsException} or {@link StoreItemExpiredException}.
+     *         Empty if all items have been added.
+     */
+    public Map<K, ExpiringStoreException> addAll(Collection<? extends StoreItem<K, T>> items) {
+        if (lockFree)
+            return addAllInternal(items);
+        synchronized (this) {
+            return addAllInternal(items);
+        }
+    }
+
+    /**
+     * Put all messages, possibly overwriting existing messages. Failing items do not stop the batch.
+     *
+     * @param items The items to put.
+     * @return Failures by id of the item, i.e. {@link StoreItemExpiredException}. Empty if all items have been put.
+     */
+    public Map<K, ExpiringStoreException> putAll(Collection<? extends StoreItem<K, T>> items) {
+        if (lockFree)
+            return putAllInternal(items);
+        synchronized (this) {
+            return putAllInternal(items);
+        }
+    }
+
+    /**
+     * Getter for many messages
+     *
+     * @param ids Ids of the messages
+     * @return Map of the found messages by their id.
+     */
+    public Map<K, T> getAll(Collection<K> ids) {
+        if (lockFree)
+            return getAllInternal(ids);
+        synchronized (this) {
+            return getAllInternal(ids);
+        }
+    }
+
+    /**
+     * Remove many messages from the storeMap and cancel their expiry.
+     *
+     * @param ids Ids of the messages
+     */
+    public void removeAll(Collection<K> ids) {
+        if (lockFree) {
+            removeAllInternal(ids);
+            return;
+        }
+        synchronized (this) {
+            removeAllInternal(ids);
+        }
+    }
+
+    /**
+     * Let the sweeper check the next messages in lazy expiry mode. Can be called regularly by applications that
+     * manage their own background threads.
+     *
+     * @param max Maximum amount of messages to check.
+     * @return Amount of expired messages removed.
+     */
+    public int sweep(int max) {
+        if (lockFree)
+            return sweepInternal(max);
+        synchronized (this) {
+            return sweepInternal(max);
+        }
+    }
+
+    /**
+     * Remove a message from the storeMap and cancel its expiry.
      *
      * @param id Id of the message
      */
-    public synchronized void remove(String id) {
-        M message = storeMap.remove(id);
-        if (message != null)
-            message.cancel();
+    public void remove(K id) {
+        if (lockFree) {
+            removeInternal(id, RemovalCause.REMOVED);
+            return;
+        }
+        synchronized (this) {
+            removeInternal(id, RemovalCause.REMOVED);
+        }
+    }
+
+    /**
+     * Remove an expired message from the storeMap. Nothing happens if the message has been replaced or removed in the
+     * meantime.
+     *
+     * @param expiringMessage The message that expired.
+     */
+    public void expire(ExpiringMessage<?, ?> expiringMessage) {
+        if (lockFree) {
+            removeInternal(expiringMessage, RemovalCause.EXPIRED);
+            return;
+        }
+        synchronized (this) {
+            removeInternal(expiringMessage, RemovalCause.EXPIRED);
+        }
+    }
+
+    /**
+     * Remove a chunk of expired messages under one acquisition of the lock of the store. Messages that have been
+     * replaced or removed in the meantime are skipped.
+     *
+     * @param expiringMessages The messages that expired.
+     */
+    protected void expireAll(List<? extends ExpiringMessage<?, ?>> expiringMessages) {
+        if (lockFree) {
+            for (ExpiringMessage<?, ?> expiringMessage : expiringMessages) {
+                removeInternal(expiringMessage, RemovalCause.EXPIRED);
+            }
+            return;
+        }
+        synchronized (this) {
+            for (ExpiringMessage<?, ?> expiringMessage : expiringMessages) {
+                expire(expiringMessage);
+            }
+        }
     }
 
     /**
@@ -99,9 +1203,324 @@ public abstract class AbstractExpiringStore<T, M extends ExpiringMessage<T>> imp
      * @param id Id of the message
      * @return The stored message
      */
-    public synchronized T get(String id) {
-        M message = storeMap.get(id);
-        return (message != null ? message.getMessage() : null);
+    public T get(K id) {
+        long start = startTiming();
+        try {
+            if (lockFree)
+                return getInternal(id);
+            synchronized (this) {
+                return getInternal(id);
+            }
+        } finally {
+            recordLatency(start, Latency.GET);
+        }
+    }
+
+    /**
+     * Read the message with this id.
+     *
+     * @param id Id of the message
+     * @return The message or null.
+     */
+    protected M readMessage(K id) {
+        if (lockFree)
+            return checkRead(storeMap.get(id));
+        synchronized (this) {
+            return checkRead(storeMap.get(id));
+        }
+    }
+
+    /**
+     * Extend the expiry of a message to the sliding expiry from now. Like a read, but without returning the message.
+     *
+     * @param id Id of the message
+     * @return true if the message exists.
+     * @throws IllegalStateException When the store has been built without sliding expiry.
+     */
+    public boolean touch(K id) {
+        if (slidingExpiryMillis <= 0)
+            throw new IllegalStateException("The store " + name + " has no sliding expiry.");
+        return readMessage(id) != null;
+    }
+
+    /**
+     * Extend the expiry of a message without rescheduling it. A timestamp before the current expiry is ignored.
+     *
+     * @param id           Id of the message
+     * @param newExpiresAt The new timestamp after which the message expires.
+     * @return true if the message exists.
+     */
+    public boolean extend(K id, Instant newExpiresAt) {
+        M message = readMessage(id);
+        if (message == null)
+            return false;
+        message.extendTo(newExpiresAt.toEpochMilli());
+        return true;
+    }
+
+    /**
+     * Getter
+     *
+     * @return The current time of the clock of the store in milliseconds since the epoch.
+     */
+    public long currentTimeMillis() {
+        return clock.millis();
+    }
+
+    /**
+     * Getter
+     *
+     * @return Time to live after the last access in milliseconds, 0 without sliding expiry.
+     */
+    public long getSlidingExpiryMillis() {
+        return slidingExpiryMillis;
+    }
+
+    /**
+     * Get a message or load it if it is missing. Concurrent calls for a missing id share a single load, the other
+     * callers wait for its result. A loaded message is put with the given ttl.
+     * <p>
+     * If the store has been built with refresh-ahead, a message read within that fraction of the ttl before its expiry
+     * is reloaded in the background, while readers still get the current message.
+     *
+     * @param id     Id of the message
+     * @param loader Loads the message if it is missing.
+     * @param ttl    Time to live of a loaded message. Must be positive.
+     * @return The message or null if it is missing and the loader returned null.
+     * @throws StoreItemLoadException When the loader failed. Waiting callers get the same failure.
+     */
+    public T getOrLoad(K id, Loader<? super K, ? extends T> loader, Duration ttl) throws StoreItemLoadException {
+        return await(id, lookupOrLoad(id, loader, ttl));
+    }
+
+    /**
+     * Get the message or run the load for a missing id in the calling thread, unless a load for the id is running
+     * already.
+     *
+     * @param id     Id of the message
+     * @param loader Loads the message if it is missing.
+     * @param ttl    Time to live of a loaded message.
+     * @return A completed future for found messages and own loads, the future of the running load otherwise.
+     */
+    private CompletableFuture<T> lookupOrLoad(K id, Loader<? super K, ? extends T> loader, Duration ttl) {
+        if (ttl.isNegative() || ttl.isZero())
+            throw new IllegalArgumentException("The ttl must be positive.");
+
+        M message = readMessage(id);
+        recordRead(message != null);
+        if (message != null) {
+            if (refreshAhead > 0.0
+                    && message.getExpiresAtMillis() - clock.millis() < refreshAhead * ttl.toMillis())
+                refresh(id, loader, ttl);
+            return CompletableFuture.completedFuture(message.getMessage());
+        }
+
+        CompletableFuture<T> load = new CompletableFuture<>();
+        CompletableFuture<T> running = loads.putIfAbsent(id, load);
+        if (running != null)
+            return running;
+
+        try {
+            // A load that finished right before might have stored the message already.
+            message = readMessage(id);
+            load.complete((message != null) ? message.getMessage() : loadAndPut(id, loader, ttl));
+        } catch (Throwable t) {
+            load.completeExceptionally(t);
+        } finally {
+            loads.remove(id, load);
+        }
+        return load;
+    }
+
+    /**
+     * Reload a message in the background, unless a load for its id is running already.
+     *
+     * @param id     Id of the message
+     * @param loader Loads the message.
+     * @param ttl    Time to live of the loaded message.
+     */
+    private void refresh(K id, Loader<? super K, ? extends T> loader, Duration ttl) {
+        CompletableFuture<T> load = new CompletableFuture<>();
+        if (loads.putIfAbsent(id, load) != null)
+            return;
+
+        try {
+            refreshExecutor.execute(() -> {
+                try {
+                    load.complete(loadAndPut(id, loader, ttl));
+                } catch (Throwable t) {
+                    log.warn("Refreshing {} of {} failed.", id, name, t);
+                    load.completeExceptionally(t);
+                } finally {
+                    loads.remove(id, load);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            loads.remove(id, load);
+            load.completeExceptionally(e);
+        }
+    }
+
+    private T loadAndPut(K id, Loader<? super K, ? extends T> loader, Duration ttl) throws StoreItemLoadException {
+        try {
+            T value = loader.load(id);
+            if (value != null)
+                put(clock.millis() + ttl.toMillis(), id, value);
+            return value;
+        } catch (Exception e) {
+            throw new StoreItemLoadException("Loading " + id + " failed.", e);
+        }
+    }
+
+    private T await(K id, CompletableFuture<T> load) throws StoreItemLoadException {
+        try {
+            return load.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StoreItemLoadException("Interrupted while waiting for loading " + id + ".", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof StoreItemLoadException)
+                cause = cause.getCause();
+            throw new StoreItemLoadException("Loading " + id + " failed.", cause);
+        }
+    }
+
+    /**
+     * A weakly consistent stream of the messages that have not expired. Messages added, removed or replaced during
+     * the traversal may or may not be seen. Reads by the stream do not count as access for eviction or sliding expiry.
+     * <p>
+     * Stores backed by a {@link ConcurrentMap} are traversed without any lock. Other stores copy the references to
+     * their messages under the lock first, the traversal itself does not hold it.
+     *
+     * @return Sequential stream of items.
+     */
+    public Stream<StoreItem<K, T>> stream() {
+        return items(false);
+    }
+
+    /**
+     * Like {@link #stream()}, but parallel. The messages are split among the threads of the stream.
+     *
+     * @return Parallel stream of items.
+     */
+    public Stream<StoreItem<K, T>> parallelStream() {
+        return items(true);
+    }
+
+    /**
+     * A weakly consistent view of the messages that have not expired. See {@link #stream()}.
+     *
+     * @return Iterable over the items, each iteration traverses the store anew.
+     */
+    public Iterable<StoreItem<K, T>> entries() {
+        return () -> stream().iterator();
+    }
+
+    /**
+     * A weakly consistent view of the ids of the messages that have not expired. See {@link #stream()}.
+     *
+     * @return Iterable over the ids, each iteration traverses the store anew.
+     */
+    public Iterable<K> keys() {
+        return () -> messages(false).map(ExpiringMessage::getId).iterator();
+    }
+
+    private Stream<StoreItem<K, T>> items(boolean parallel) {
+        return messages(parallel)
+                .map(message -> {
+                    T value = message.getMessage();
+                    return (value != null)
+                            ? new StoreItem<>(Instant.ofEpochMilli(message.getExpiresAtMillis()), message.getId(), value)
+                            : null;
+                })
+                .filter(Objects::nonNull);
+    }
+
+    private Stream<M> messages(boolean parallel) {
+        long now = clock.millis();
+        return StreamSupport.stream(messageSpliterator(), parallel)
+                .filter(message -> !message.isExpiredAt(now));
+    }
+
+    /**
+     * Getter
+     *
+     * @return Spliterator over the messages in the storeMap. Live for a {@link ConcurrentMap}, a snapshot otherwise.
+     */
+    protected Spliterator<M> messageSpliterator() {
+        if (lockFree)
+            return storeMap.values().spliterator();
+
+        Object[] snapshot;
+        synchronized (this) {
+            snapshot = storeMap.values().toArray();
+        }
+        return Spliterators.spliterator(snapshot, Spliterator.DISTINCT | Spliterator.NONNULL);
+    }
+
+    /**
+     * Add a message on the async executor of the store.
+     *
+     * @param expiresAt Timestamp after which the message expires
+     * @param id        The unique id of the message
+     * @param message   The message itself to store
+     * @return Future that completes when the message has been added. It fails with a
+     *         {@link StoreItemExpiredException} or {@link StoreItemExistsException} like {@link #add(Instant, Object,
+     *         Object)}.
+     */
+    public CompletableFuture<Void> addAsync(Instant expiresAt, K id, T message) {
+        return callAsync(() -> {
+            add(expiresAt, id, message);
+            return null;
+        });
+    }
+
+    /**
+     * Get a message on the async executor of the store.
+     *
+     * @param id Id of the message
+     * @return Future of the stored message or null.
+     */
+    public CompletableFuture<T> getAsync(K id) {
+        return callAsync(() -> get(id));
+    }
+
+    /**
+     * Like {@link #getOrLoad(Object, Loader, Duration)}, but on the async executor of the store. A call that finds a
+     * load for the id running already does not wait in the executor, its future completes with the running load.
+     *
+     * @param id     Id of the message
+     * @param loader Loads the message if it is missing.
+     * @param ttl    Time to live of a loaded message. Must be positive.
+     * @return Future of the message or null. It fails with a {@link StoreItemLoadException} when the loader failed.
+     */
+    public CompletableFuture<T> getOrLoadAsync(K id, Loader<? super K, ? extends T> loader, Duration ttl) {
+        return callAsync(() -> lookupOrLoad(id, loader, ttl)).thenCompose(load -> load);
+    }
+
+    /**
+     * Run a call on the async executor of the store, so the calling thread never waits for the lock of the store.
+     *
+     * @param call The call.
+     * @param <R>  Type of the result.
+     * @return Future of the result. Fails with the exception thrown by the call or with a
+     *         {@link RejectedExecutionException} when the executor does not take the call.
+     */
+    protected final <R> CompletableFuture<R> callAsync(Callable<R> call) {
+        CompletableFuture<R> future = new CompletableFuture<>();
+        try {
+            asyncExecutor.execute(() -> {
+                try {
+                    future.complete(call.call());
+                } catch (Throwable t) {
+                    future.completeExceptionally(t);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
     }
 
     /**
@@ -114,22 +1533,190 @@ public abstract class AbstractExpiringStore<T, M extends ExpiringMessage<T>> imp
     }
 
     /**
-     * Schedule an expiry with the {@link #timer},
+     * Getter
+     *
+     * @return true if this store uses lazy expiry.
+     */
+    public boolean isLazyExpiry() {
+        return sweepQueue != null;
+    }
+
+    /**
+     * Getter
+     *
+     * @return true if this store is backed by a {@link ConcurrentMap} and runs its operations without a store-wide
+     *         lock.
+     */
+    public boolean isLockFree() {
+        return lockFree;
+    }
+
+    /**
+     * Getter
+     *
+     * @return The current amount of messages in this store, including expired messages not yet removed.
+     */
+    public int size() {
+        return storeMap.size();
+    }
+
+    /**
+     * Getter
+     *
+     * @return The total weight of all messages if this store is bounded by weight, the amount of messages if it is
+     *         bounded by amount only, 0 if it is unbounded.
+     */
+    public long getWeight() {
+        return (evictionPolicy != null) ? evictionPolicy.getWeight() : 0;
+    }
+
+    /**
+     * Take a snapshot of the statistics of this store.
+     *
+     * @return The statistics. All counters are 0 if this store does not record statistics.
+     */
+    public StoreStats getStats() {
+        long pendingExpiries = (scheduler != null && sweepQueue == null) ? scheduler.getPendingCount() : -1;
+        return (stats != null ? stats : EMPTY_STATS).snapshot(name, currentTimeMillis(), storeMap.size(),
+                pendingExpiries);
+    }
+
+    /**
+     * Getter
+     *
+     * @return true if this store records statistics.
+     */
+    public boolean isRecordingStats() {
+        return stats != null;
+    }
+
+    /**
+     * Start timing an operation.
+     *
+     * @return The start time to pass to {@link #recordLatency(long, Latency)}, 0 if this store does not record
+     *         statistics.
+     */
+    protected final long startTiming() {
+        return (stats != null) ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Record the latency of an operation.
+     *
+     * @param start   The result of {@link #startTiming()}.
+     * @param latency The operation.
+     */
+    protected final void recordLatency(long start, Latency latency) {
+        if (stats != null)
+            histogram(latency).record(System.nanoTime() - start);
+    }
+
+    /**
+     * Record a read.
+     *
+     * @param hit true if a message has been found.
+     */
+    protected final void recordRead(boolean hit) {
+        if (stats != null)
+            stats.recordRead(hit);
+    }
+
+    private LatencyHistogram histogram(Latency latency) {
+        switch (latency) {
+        case ADD:
+            return stats.addLatency;
+        case ADD_LOCK_WAIT:
+            return stats.addLockWait;
+        case GET:
+            return stats.getLatency;
+        default:
+            return stats.retryGetLatency;
+        }
+    }
+
+    /**
+     * Schedule an expiry with the {@link #scheduler}, In lazy expiry mode, nothing is scheduled.
      *
      * @param timerTask The timerTask to schedule.
      * @param date      The timestamp when the timerTask will be called.
      */
     public void schedule(TimerTask timerTask, Date date) {
-        timer.schedule(timerTask, date);
+        schedule(timerTask, date.toInstant());
     }
 
     /**
-     * Cancel the {@link #timer} and clear the {@link #storeMap}. This Store cannot be used thereafter.
+     * Schedule an expiry with the {@link #scheduler}, In lazy expiry mode, nothing is scheduled.
+     *
+     * @param task      The task to schedule.
+     * @param expiresAt The timestamp when the task will be called.
+     * @return Handle to cancel the expiry.
+     */
+    public ScheduledExpiry schedule(Runnable task, Instant expiresAt) {
+        return schedule(task, expiresAt.toEpochMilli());
+    }
+
+    /**
+     * Schedule an expiry with the {@link #scheduler}, In lazy expiry mode, nothing is scheduled. With coalesced
+     * expiry, the messages of this store are added to their bucket.
+     *
+     * @param task            The task to schedule.
+     * @param expiresAtMillis The timestamp in milliseconds since the epoch when the task will be called.
+     * @return Handle to cancel the expiry.
+     */
+    public ScheduledExpiry schedule(Runnable task, long expiresAtMillis) {
+        if (sweepQueue != null)
+            return NOT_SCHEDULED;
+        if (expiryBuckets != null && task instanceof ExpiringMessage) {
+            // Messages are only scheduled by the store they belong to, so they are Ms.
+            @SuppressWarnings("unchecked")
+            M message = (M) task;
+            return expiryBuckets.add(message, expiresAtMillis);
+        }
+        return scheduler.schedule(task, expiresAtMillis);
+    }
+
+    /**
+     * Schedule a task of the store itself with the scheduler of the store, i.e. a retry attempt. Unlike
+     * {@link #schedule(Runnable, long)}, the task is also scheduled in lazy expiry mode and never coalesced.
+     *
+     * @param task     The task to run.
+     * @param atMillis Timestamp in milliseconds since the epoch at which the task shall run.
+     * @return Handle to cancel the task.
+     * @throws IllegalStateException When the store has no scheduler or the scheduler has been closed.
+     */
+    protected ScheduledExpiry scheduleTask(Runnable task, long atMillis) {
+        if (scheduler == null)
+            throw new IllegalStateException("Store " + name + " has no scheduler.");
+        return scheduler.schedule(task, atMillis);
+    }
+
+    /**
+     * Cancel all pending expiries, close the {@link #scheduler} and clear the {@link #storeMap}. This Store cannot be
+     * used thereafter.
+     * <p>
+     * The expiries are cancelled one by one, so a scheduler shared with other stores does not keep the messages of this
+     * store until their expiry would have been due.
      */
     @Override
     public synchronized void close() {
-        timer.cancel();
+        ScheduledExpiry sweep = sweepExpiry;
+        if (sweep != null)
+            sweep.cancel();
+        if (expiryBuckets != null)
+            expiryBuckets.cancelAll();
+        for (M message : storeMap.values()) {
+            message.cancelExpiry();
+        }
+        if (scheduler != null)
+            scheduler.close();
+        for (M message : storeMap.values()) {
+            discard(message);
+        }
         storeMap.clear();
+        if (sweepQueue != null)
+            sweepQueue.clear();
+        if (evictionPolicy != null)
+            evictionPolicy.clear();
     }
 
 }
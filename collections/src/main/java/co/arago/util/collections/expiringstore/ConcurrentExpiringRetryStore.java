@@ -0,0 +1,73 @@
+package co.arago.util.collections.expiringstore;
+
+import co.arago.util.collections.expiringstore.scheduler.ExpiryScheduler;
+import co.arago.util.collections.expiringstore.scheduler.TimerExpiryScheduler;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * An {@link ExpiringRetryStore} without a store-wide lock.
+ * <p>
+ * The messages are kept in a {@link ConcurrentHashMap}: reads never block and writes only lock the bin of the map
+ * they touch. Retries are counted down atomically per message. A message is only removed if it is still the one
+ * stored under its id, so neither expiry nor exhausted retries remove a message that replaced the original one.
+ *
+ * @param <K> Type of the ids of the items
+ * @param <T> Type of items to store
+ */
+public class ConcurrentExpiringRetryStore<K, T> extends ExpiringRetryStore<K, T> {
+
+    /**
+     * Constructor
+     * <p>
+     * Default maxRetries is {@link #DEFAULT_RETRIES}.
+     */
+    public ConcurrentExpiringRetryStore() {
+        this(DEFAULT_RETRIES);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param maxRetries Maximum amount of retries.
+     */
+    public ConcurrentExpiringRetryStore(int maxRetries) {
+        this(maxRetries, "ConcurrentRetryStore-" + counter.incrementAndGet());
+    }
+
+    /**
+     * Constructor
+     *
+     * @param maxRetries Maximum amount of retries.
+     * @param name       Name of this store.
+     */
+    public ConcurrentExpiringRetryStore(int maxRetries, String name) {
+        this(maxRetries, name, new TimerExpiryScheduler("Timer for " + name));
+    }
+
+    /**
+     * Constructor
+     *
+     * @param maxRetries Maximum amount of retries.
+     * @param name       Name of this store.
+     * @param scheduler  The scheduler for the expiry of the messages. It will be closed together with this store.
+     */
+    public ConcurrentExpiringRetryStore(int maxRetries, String name, ExpiryScheduler scheduler) {
+        this(maxRetries, name, scheduler, false);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param maxRetries Maximum amount of retries.
+     * @param name       Name of this store.
+     * @param scheduler  The scheduler for the expiry of the messages. It will be closed together with this store.
+     *                   Can be null in lazy expiry mode without background sweeping.
+     * @param lazyExpiry Use lazy expiry instead of scheduling each message.
+     */
+    protected ConcurrentExpiringRetryStore(int maxRetries, String name, ExpiryScheduler scheduler, boolean lazyExpiry) {
+        super(maxRetries, name, scheduler, new ConcurrentHashMap<>(),
+                lazyExpiry ? new ConcurrentLinkedQueue<>() : null);
+    }
+}
@@ -0,0 +1,60 @@
+package co.arago.util.collections.expiringstore;
+
+import co.arago.util.collections.expiringstore.scheduler.ExpiryScheduler;
+import co.arago.util.collections.expiringstore.scheduler.TimerExpiryScheduler;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * An {@link ExpiringStore} without a store-wide lock.
+ * <p>
+ * The messages are kept in a {@link ConcurrentHashMap}: reads never block and writes only lock the bin of the map
+ * they touch. Expiry removes a message only if it is still the one stored under its id, so it never contends with
+ * readers and never removes a message that replaced the expired one.
+ *
+ * @param <K> Type of the ids of the items
+ * @param <T> Type of items to store
+ */
+public class ConcurrentExpiringStore<K, T> extends ExpiringStore<K, T> {
+
+    /**
+     * Constructor
+     * <p>
+     * Generate an automatic name.
+     */
+    public ConcurrentExpiringStore() {
+        this("ConcurrentStore-" + counter.incrementAndGet());
+    }
+
+    /**
+     * Constructor
+     *
+     * @param name Name of the ExpiringStore.
+     */
+    public ConcurrentExpiringStore(String name) {
+        this(name, new TimerExpiryScheduler("Timer for " + name));
+    }
+
+    /**
+     * Constructor
+     *
+     * @param name      Name of the ExpiringStore.
+     * @param scheduler The scheduler for the expiry of the messages. It will be closed together with this store.
+     */
+    public ConcurrentExpiringStore(String name, ExpiryScheduler scheduler) {
+        this(name, scheduler, false);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param name       Name of the ExpiringStore.
+     * @param scheduler  The scheduler for the expiry of the messages. It will be closed together with this store.
+     *                   Can be null in lazy expiry mode without background sweeping.
+     * @param lazyExpiry Use lazy expiry instead of scheduling each message.
+     */
+    protected ConcurrentExpiringStore(String name, ExpiryScheduler scheduler, boolean lazyExpiry) {
+        super(name, scheduler, new ConcurrentHashMap<>(), lazyExpiry ? new ConcurrentLinkedQueue<>() : null);
+    }
+}
@@ -2,25 +2,160 @@ package co.arago.util.collections.expiringstore;
 
 import co.arago.util.collections.expiringstore.exceptions.StoreItemExistsException;
 import co.arago.util.collections.expiringstore.exceptions.StoreItemExpiredException;
+import co.arago.util.collections.expiringstore.listener.RemovalCause;
 import co.arago.util.collections.expiringstore.messages.ExpiringRetryMessage;
+import co.arago.util.collections.expiringstore.retry.Backoff;
+import co.arago.util.collections.expiringstore.retry.RetryHandler;
+import co.arago.util.collections.expiringstore.scheduler.ExpiryScheduler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * This store contains a counter for retriesLeft. If retriesLeft reaches zero, the message is automatically
  * discarded.
+ * <p>
+ * With a {@link Backoff}, the store also schedules the retries itself: each message gets a next attempt time growing
+ * exponentially with its attempts. The attempts run on the scheduler of the store, no extra thread is started. Due
+ * messages are handed in batches to a {@link RetryHandler} on an executor or can be taken with {@link #drainDue(int)}.
+ * Each handed out attempt uses up one retry.
  *
+ * @param <K> Type of the ids of the items
  * @param <T> Type of items to store
  */
-public class ExpiringRetryStore<T> extends AbstractExpiringStore<T, ExpiringRetryMessage<T>> {
+public class ExpiringRetryStore<K, T> extends AbstractExpiringStore<K, T, ExpiringRetryMessage<K, T>> {
 
     static final int DEFAULT_RETRIES = 4;
     private final static Logger log = LoggerFactory.getLogger(ExpiringRetryStore.class);
 
+    static final int RETRY_BATCH_SIZE = 256;
+
     protected int retriesLeft;
 
+    private RetryQueue<K, T> retryQueue;
+    private RetryHandler<K, T> retryHandler;
+    private Executor retryExecutor;
+    private final AtomicBoolean dispatching = new AtomicBoolean(false);
+
+    /**
+     * Builder for {@link ExpiringRetryStore} and {@link ConcurrentExpiringRetryStore}.
+     *
+     * @param <K> Type of the ids of the items
+     * @param <T> Type of items to store
+     */
+    public static class Builder<K, T> extends AbstractExpiringStore.Builder<K, T, ExpiringRetryStore<K, T>, Builder<K, T>> {
+        protected int maxRetries = DEFAULT_RETRIES;
+        protected boolean concurrent = false;
+        protected Backoff backoff;
+        protected RetryHandler<K, T> retryHandler;
+        protected Executor retryExecutor;
+
+        /**
+         * Set the default amount of retries. Default is {@link #DEFAULT_RETRIES}.
+         *
+         * @param maxRetries Maximum amount of retries.
+         * @return Reference to self for chaining
+         */
+        public Builder<K, T> setMaxRetries(int maxRetries) {
+            this.maxRetries = maxRetries;
+            return self();
+        }
+
+        /**
+         * Build a {@link ConcurrentExpiringRetryStore} instead of an {@link ExpiringRetryStore}.
+         *
+         * @param concurrent Flag
+         * @return Reference to self for chaining
+         */
+        public Builder<K, T> setConcurrent(boolean concurrent) {
+            this.concurrent = concurrent;
+            return self();
+        }
+
+        /**
+         * Let the store schedule the retry attempts of its messages. Due messages can be taken with
+         * {@link #drainDue(int)}.
+         *
+         * @param backoff The backoff between attempts.
+         * @return Reference to self for chaining
+         */
+        public Builder<K, T> setBackoff(Backoff backoff) {
+            this.backoff = backoff;
+            return self();
+        }
+
+        /**
+         * Let the store schedule the retry attempts of its messages and hand due messages in batches to a handler.
+         *
+         * @param backoff      The backoff between attempts.
+         * @param retryHandler The handler for due messages.
+         * @param executor     The executor to call the handler on.
+         * @return Reference to self for chaining
+         */
+        public Builder<K, T> setBackoff(Backoff backoff, RetryHandler<K, T> retryHandler, Executor executor) {
+            this.backoff = backoff;
+            this.retryHandler = retryHandler;
+            this.retryExecutor = executor;
+            return self();
+        }
+
+        @Override
+        protected Builder<K, T> self() {
+            return this;
+        }
+
+        /**
+         * Getter
+         *
+         * @return true if the store needs a scheduler. Retry attempts need one also in lazy expiry mode.
+         */
+        @Override
+        protected boolean needsScheduler() {
+            return super.needsScheduler() || backoff != null;
+        }
+
+        @Override
+        protected ExpiringRetryStore<K, T> configure(ExpiringRetryStore<K, T> store) {
+            super.configure(store);
+            if (backoff != null)
+                store.initRetryScheduling(backoff, retryHandler, retryExecutor);
+            return store;
+        }
+
+        @Override
+        public ExpiringRetryStore<K, T> build() {
+            String storeName = (name != null) ? name
+                    : (concurrent ? "ConcurrentRetryStore-" : "RetryStore-") + counter.incrementAndGet();
+            ExpiryScheduler storeScheduler = buildScheduler(storeName);
+            return configure(concurrent
+                    ? new ConcurrentExpiringRetryStore<>(maxRetries, storeName, storeScheduler, lazyExpiry)
+                    : new ExpiringRetryStore<>(maxRetries, storeName, storeScheduler, new HashMap<>(),
+                            lazyExpiry ? new ArrayDeque<>() : null));
+        }
+    }
+
+    /**
+     * Create a new builder.
+     *
+     * @param <K> Type of the ids of the items
+     * @param <T> Type of items to store
+     * @return New instance of {@link Builder}
+     */
+    public static <K, T> Builder<K, T> newBuilder() {
+        return new Builder<>();
+    }
+
     /**
      * Constructor
      * <p>
@@ -51,25 +186,177 @@ public class ExpiringRetryStore<T> extends AbstractExpiringStore<T, ExpiringRetr
     }
 
     /**
-     * Add a message to the store if it does not exist. This message will also be removed when its "retriesLeft" is
-     * exhausted via {@link #retryGet(String)}.
+     * Constructor
      *
-     * @param expiresAt Timestamp after which the message expires
-     * @param id        The unique id of the message
-     * @param message   The message itself to store
-     * @throws StoreItemExpiredException When the expiresAt is already expired.
-     * @throws StoreItemExistsException  When the message already exists.
+     * @param maxRetries Maximum amount of retries.
+     * @param name       Name of this store.
+     * @param scheduler  The scheduler for the expiry of the messages, i.e. a
+     *                   {@link co.arago.util.collections.expiringstore.scheduler.TimingWheelExpiryScheduler}. It will be
+     *                   closed together with this store.
      */
-    public synchronized void add(
-            Instant expiresAt,
-            String id,
-            T message) throws StoreItemExpiredException, StoreItemExistsException {
-        addInternal(new ExpiringRetryMessage<>(this, expiresAt, id, message, retriesLeft));
+    public ExpiringRetryStore(int maxRetries, String name, ExpiryScheduler scheduler) {
+        super(name, scheduler);
+        this.retriesLeft = maxRetries;
+    }
+
+    /**
+     * Constructor
+     *
+     * @param maxRetries Maximum amount of retries.
+     * @param name       Name of this store.
+     * @param scheduler  The scheduler for the expiry of the messages. It will be closed together with this store.
+     * @param storeMap   The (empty) map holding the messages of this store.
+     */
+    protected ExpiringRetryStore(
+            int maxRetries,
+            String name,
+            ExpiryScheduler scheduler,
+            Map<K, ExpiringRetryMessage<K, T>> storeMap) {
+        this(maxRetries, name, scheduler, storeMap, null);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param maxRetries Maximum amount of retries.
+     * @param name       Name of this store.
+     * @param scheduler  The scheduler for the expiry of the messages. It will be closed together with this store.
+     *                   Can be null in lazy expiry mode without background sweeping.
+     * @param storeMap   The (empty) map holding the messages of this store.
+     * @param sweepQueue The (empty) queue of the sweeper. Setting this enables lazy expiry mode.
+     */
+    protected ExpiringRetryStore(
+            int maxRetries,
+            String name,
+            ExpiryScheduler scheduler,
+            Map<K, ExpiringRetryMessage<K, T>> storeMap,
+            Queue<ExpiringRetryMessage<K, T>> sweepQueue) {
+        super(name, scheduler, storeMap, sweepQueue);
+        this.retriesLeft = maxRetries;
+    }
+
+    private void initRetryScheduling(Backoff backoff, RetryHandler<K, T> retryHandler, Executor executor) {
+        this.retryHandler = retryHandler;
+        this.retryExecutor = executor;
+        this.retryQueue = new RetryQueue<>(this, backoff, this::retriesDue);
+    }
+
+    /**
+     * Called on the thread of the scheduler when an attempt has become due. Starts a dispatch of the due attempts on
+     * the executor unless one is pending already.
+     */
+    private void retriesDue() {
+        if (retryHandler == null || !dispatching.compareAndSet(false, true))
+            return;
+        try {
+            retryExecutor.execute(this::dispatchRetries);
+        } catch (RejectedExecutionException e) {
+            dispatching.set(false);
+            log.warn("Cannot dispatch the retries of {}.", getName(), e);
+        }
+    }
+
+    private void dispatchRetries() {
+        // Attempts that become due from now on start another dispatch.
+        dispatching.set(false);
+        for (;;) {
+            List<RetryQueue.Entry<K, T>> attempts = retryQueue.pollDue(RETRY_BATCH_SIZE);
+            if (attempts.isEmpty())
+                return;
+            List<StoreItem<K, T>> due = attemptAll(attempts);
+            if (!due.isEmpty())
+                retryHandler.onRetry(due);
+        }
+    }
+
+    /**
+     * Schedule the first retry attempt of a new message.
+     *
+     * @param message The message.
+     */
+    @Override
+    protected void accepted(ExpiringRetryMessage<K, T> message) {
+        if (retryQueue != null)
+            retryQueue.schedule(message, 0, currentTimeMillis());
+    }
+
+    /**
+     * Drop the pending retry attempt of a message that has left the store.
+     *
+     * @param message The message.
+     */
+    @Override
+    protected void discard(ExpiringRetryMessage<K, T> message) {
+        if (retryQueue != null)
+            retryQueue.cancel(message);
+    }
+
+    /**
+     * Take the messages whose next retry attempt is due. Each returned message has used up one retry and its next
+     * attempt is scheduled. Messages without retries left are removed instead.
+     *
+     * @param max Maximum amount of messages.
+     * @return The due messages, possibly empty.
+     * @throws IllegalStateException When the store has no {@link Backoff}.
+     */
+    public List<StoreItem<K, T>> drainDue(int max) {
+        if (retryQueue == null)
+            throw new IllegalStateException("Store " + getName() + " does not schedule retries.");
+        return attemptAll(retryQueue.pollDue(max));
+    }
+
+    /**
+     * Make the given attempts.
+     *
+     * @param due The due attempts.
+     * @return The messages of the attempts that have been made.
+     */
+    protected List<StoreItem<K, T>> attemptAll(List<RetryQueue.Entry<K, T>> due) {
+        if (isLockFree())
+            return attemptAllInternal(due);
+        synchronized (this) {
+            return attemptAllInternal(due);
+        }
+    }
+
+    /**
+     * Make the given attempts. Attempts of messages that have been removed or replaced in the meantime are skipped.
+     *
+     * @param due The due attempts.
+     * @return The messages of the attempts that have been made.
+     */
+    protected List<StoreItem<K, T>> attemptAllInternal(List<RetryQueue.Entry<K, T>> due) {
+        long now = currentTimeMillis();
+        List<StoreItem<K, T>> result = new ArrayList<>(due.size());
+
+        for (RetryQueue.Entry<K, T> entry : due) {
+            ExpiringRetryMessage<K, T> message = entry.message;
+            if (message == null || storeMap.get(message.getId()) != message || checkRead(message) == null)
+                continue;
+
+            if (message.getAndDecRetries() <= 0) {
+                log.debug("Discard message {} because no retries left.", message.getId());
+                removeInternal(message, RemovalCause.RETRIES_EXHAUSTED);
+                continue;
+            }
+
+            retryQueue.schedule(message, entry.attempt + 1, now);
+            result.add(new StoreItem<>(Instant.ofEpochMilli(message.getExpiresAtMillis()), message.getId(),
+                    message.getMessage()));
+        }
+
+        return result;
+    }
+
+    @Override
+    protected ExpiringRetryMessage<K, T> newMessage(StoreItem<K, T> item, long nowMillis) throws StoreItemExpiredException {
+        return new ExpiringRetryMessage<>(this, item.getExpiresAt().toEpochMilli(), item.getId(), item.getMessage(),
+                retriesLeft, nowMillis);
     }
 
     /**
      * Add a message to the store if it does not exist. This message will also be removed when its "retriesLeft" is
-     * exhausted via {@link #retryGet(String)}.
+     * exhausted via {@link #retryGet(Object)}.
      *
      * @param expiresAt   Timestamp after which the message expires
      * @param id          The unique id of the message
@@ -78,35 +365,71 @@ public class ExpiringRetryStore<T> extends AbstractExpiringStore<T, ExpiringRetr
      * @throws StoreItemExpiredException When the expiresAt is already expired.
      * @throws StoreItemExistsException  When the message already exists.
      */
-    public synchronized void add(
+    public void add(
             Instant expiresAt,
-            String id,
+            K id,
             T message,
             int retriesLeft) throws StoreItemExpiredException, StoreItemExistsException {
-        addInternal(new ExpiringRetryMessage<>(this, expiresAt, id, message, retriesLeft));
+        add(expiresAt.toEpochMilli(), id, message, retriesLeft);
+    }
+
+    /**
+     * Add a message to the store if it does not exist. This message will also be removed when its "retriesLeft" is
+     * exhausted via {@link #retryGet(Object)}.
+     *
+     * @param expiresAtMillis Timestamp in milliseconds since the epoch after which the message expires
+     * @param id              The unique id of the message
+     * @param message         The message itself to store
+     * @throws StoreItemExpiredException When the expiresAt is already expired.
+     * @throws StoreItemExistsException  When the message already exists.
+     */
+    public void add(
+            long expiresAtMillis,
+            K id,
+            T message) throws StoreItemExpiredException, StoreItemExistsException {
+        addMessage(new ExpiringRetryMessage<>(this, expiresAtMillis, id, message, retriesLeft));
+    }
+
+    /**
+     * Add a message to the store if it does not exist. This message will also be removed when its "retriesLeft" is
+     * exhausted via {@link #retryGet(Object)}.
+     *
+     * @param expiresAtMillis Timestamp in milliseconds since the epoch after which the message expires
+     * @param id              The unique id of the message
+     * @param message         The message itself to store
+     * @param retriesLeft     Explicitly set the retries for this message.
+     * @throws StoreItemExpiredException When the expiresAt is already expired.
+     * @throws StoreItemExistsException  When the message already exists.
+     */
+    public void add(
+            long expiresAtMillis,
+            K id,
+            T message,
+            int retriesLeft) throws StoreItemExpiredException, StoreItemExistsException {
+        addMessage(new ExpiringRetryMessage<>(this, expiresAtMillis, id, message, retriesLeft));
     }
 
     /**
      * Put a message to the store, possibly overwriting existing messages with the same id.
      * This message will also be removed when its "retriesLeft" is
-     * exhausted via {@link #retryGet(String)}.
+     * exhausted via {@link #retryGet(Object)}.
      *
-     * @param expiresAt Timestamp after which the message expires
-     * @param id        The unique id of the message
-     * @param message   The message itself to store
+     * @param expiresAtMillis Timestamp in milliseconds since the epoch after which the message expires
+     * @param id              The unique id of the message
+     * @param message         The message itself to store
      * @throws StoreItemExpiredException When the expiresAt is already expired.
      */
-    public synchronized void put(
-            Instant expiresAt,
-            String id,
+    public void put(
+            long expiresAtMillis,
+            K id,
             T message) throws StoreItemExpiredException {
-        putInternal(new ExpiringRetryMessage<>(this, expiresAt, id, message, retriesLeft));
+        putMessage(new ExpiringRetryMessage<>(this, expiresAtMillis, id, message, retriesLeft));
     }
 
     /**
      * Put a message to the store, possibly overwriting existing messages with the same id.
      * This message will also be removed when its "retriesLeft" is
-     * exhausted via {@link #retryGet(String)}.
+     * exhausted via {@link #retryGet(Object)}.
      *
      * @param expiresAt   Timestamp after which the message expires
      * @param id          The unique id of the message
@@ -114,12 +437,31 @@ public class ExpiringRetryStore<T> extends AbstractExpiringStore<T, ExpiringRetr
      * @param retriesLeft Explicitly set the retries for this message.
      * @throws StoreItemExpiredException When the expiresAt is already expired.
      */
-    public synchronized void put(
+    public void put(
             Instant expiresAt,
-            String id,
+            K id,
             T message,
             int retriesLeft) throws StoreItemExpiredException {
-        putInternal(new ExpiringRetryMessage<>(this, expiresAt, id, message, retriesLeft));
+        put(expiresAt.toEpochMilli(), id, message, retriesLeft);
+    }
+
+    /**
+     * Put a message to the store, possibly overwriting existing messages with the same id.
+     * This message will also be removed when its "retriesLeft" is
+     * exhausted via {@link #retryGet(Object)}.
+     *
+     * @param expiresAtMillis Timestamp in milliseconds since the epoch after which the message expires
+     * @param id              The unique id of the message
+     * @param message         The message itself to store
+     * @param retriesLeft     Explicitly set the retries for this message.
+     * @throws StoreItemExpiredException When the expiresAt is already expired.
+     */
+    public void put(
+            long expiresAtMillis,
+            K id,
+            T message,
+            int retriesLeft) throws StoreItemExpiredException {
+        putMessage(new ExpiringRetryMessage<>(this, expiresAtMillis, id, message, retriesLeft));
     }
 
     /**
@@ -129,17 +471,53 @@ public class ExpiringRetryStore<T> extends AbstractExpiringStore<T, ExpiringRetr
      * @param id Id of the message.
      * @return The message or null when message got discarded or no message with this id exists.
      */
-    public synchronized T retryGet(String id) {
-        ExpiringRetryMessage<T> existingRetryMessage = storeMap.get(id);
-        if (existingRetryMessage == null)
-            return null;
+    public T retryGet(K id) {
+        long start = startTiming();
+        try {
+            if (isLockFree())
+                return retryGetInternal(id);
+            synchronized (this) {
+                return retryGetInternal(id);
+            }
+        } finally {
+            recordLatency(start, Latency.RETRY_GET);
+        }
+    }
+
+    /**
+     * Like {@link #retryGet(Object)}, but on the async executor of the store.
+     *
+     * @param id Id of the message.
+     * @return Future of the message or null when message got discarded or no message with this id exists.
+     */
+    public CompletableFuture<T> retryGetAsync(K id) {
+        return callAsync(() -> retryGet(id));
+    }
 
-        if (existingRetryMessage.getAndDecRetries() <= 0) {
+    /**
+     * Use up one retry of the message with this id and remove it when its retries are exhausted.
+     *
+     * @param id Id of the message.
+     * @return The message or null when message got discarded or no message with this id exists.
+     */
+    protected T retryGetInternal(K id) {
+        ExpiringRetryMessage<K, T> existingRetryMessage = checkRead(storeMap.get(id));
+        if (existingRetryMessage != null && existingRetryMessage.getAndDecRetries() <= 0) {
             log.debug("Discard message {} because no retries left.", id);
-            remove(id);
-            return null;
+            removeInternal(existingRetryMessage, RemovalCause.RETRIES_EXHAUSTED);
+            existingRetryMessage = null;
         }
+        recordRead(existingRetryMessage != null);
+        return (existingRetryMessage != null ? existingRetryMessage.getMessage() : null);
+    }
 
-        return existingRetryMessage.getMessage();
+    /**
+     * Stop scheduling retries and close the store.
+     */
+    @Override
+    public void close() {
+        if (retryQueue != null)
+            retryQueue.clear();
+        super.close();
     }
 }
@@ -3,20 +3,72 @@ package co.arago.util.collections.expiringstore;
 import co.arago.util.collections.expiringstore.exceptions.StoreItemExistsException;
 import co.arago.util.collections.expiringstore.exceptions.StoreItemExpiredException;
 import co.arago.util.collections.expiringstore.messages.ExpiringMessage;
+import co.arago.util.collections.expiringstore.scheduler.ExpiryScheduler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
 
 /**
  * Contains the store items with an "expiresAt" after which the items are automatically removed from the store.
  *
+ * @param <K> Type of the ids of the items
  * @param <T> Type of items to store
  */
-public class ExpiringStore<T> extends AbstractExpiringStore<T, ExpiringMessage<T>> {
+public class ExpiringStore<K, T> extends AbstractExpiringStore<K, T, ExpiringMessage<K, T>> {
 
     private final static Logger log = LoggerFactory.getLogger(ExpiringStore.class);
 
+    /**
+     * Builder for {@link ExpiringStore} and {@link ConcurrentExpiringStore}.
+     *
+     * @param <K> Type of the ids of the items
+     * @param <T> Type of items to store
+     */
+    public static class Builder<K, T> extends AbstractExpiringStore.Builder<K, T, ExpiringStore<K, T>, Builder<K, T>> {
+        protected boolean concurrent = false;
+
+        /**
+         * Build a {@link ConcurrentExpiringStore} instead of an {@link ExpiringStore}.
+         *
+         * @param concurrent Flag
+         * @return Reference to self for chaining
+         */
+        public Builder<K, T> setConcurrent(boolean concurrent) {
+            this.concurrent = concurrent;
+            return self();
+        }
+
+        @Override
+        protected Builder<K, T> self() {
+            return this;
+        }
+
+        @Override
+        public ExpiringStore<K, T> build() {
+            String storeName = (name != null) ? name
+                    : (concurrent ? "ConcurrentStore-" : "Store-") + counter.incrementAndGet();
+            ExpiryScheduler storeScheduler = buildScheduler(storeName);
+            return configure(concurrent ? new ConcurrentExpiringStore<>(storeName, storeScheduler, lazyExpiry)
+                    : new ExpiringStore<>(storeName, storeScheduler, new HashMap<>(),
+                            lazyExpiry ? new ArrayDeque<>() : null));
+        }
+    }
+
+    /**
+     * Create a new builder.
+     *
+     * @param <K> Type of the ids of the items
+     * @param <T> Type of items to store
+     * @return New instance of {@link Builder}
+     */
+    public static <K, T> Builder<K, T> newBuilder() {
+        return new Builder<>();
+    }
+
     /**
      * Constructor
      * <p>
@@ -35,35 +87,81 @@ public class ExpiringStore<T> extends AbstractExpiringStore<T, ExpiringMessage<T
         super(name);
     }
 
+    /**
+     * Constructor
+     *
+     * @param name      Name of the ExpiringStore.
+     * @param scheduler The scheduler for the expiry of the messages, i.e. a
+     *                  {@link co.arago.util.collections.expiringstore.scheduler.TimingWheelExpiryScheduler}. It will be
+     *                  closed together with this store.
+     */
+    public ExpiringStore(String name, ExpiryScheduler scheduler) {
+        super(name, scheduler);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param name      Name of the ExpiringStore.
+     * @param scheduler The scheduler for the expiry of the messages. It will be closed together with this store.
+     * @param storeMap  The (empty) map holding the messages of this store.
+     */
+    protected ExpiringStore(String name, ExpiryScheduler scheduler, Map<K, ExpiringMessage<K, T>> storeMap) {
+        super(name, scheduler, storeMap);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param name       Name of the ExpiringStore.
+     * @param scheduler  The scheduler for the expiry of the messages. It will be closed together with this store.
+     *                   Can be null in lazy expiry mode without background sweeping.
+     * @param storeMap   The (empty) map holding the messages of this store.
+     * @param sweepQueue The (empty) queue of the sweeper. Setting this enables lazy expiry mode.
+     */
+    protected ExpiringStore(
+            String name,
+            ExpiryScheduler scheduler,
+            Map<K, ExpiringMessage<K, T>> storeMap,
+            Queue<ExpiringMessage<K, T>> sweepQueue) {
+        super(name, scheduler, storeMap, sweepQueue);
+    }
+
+    @Override
+    protected ExpiringMessage<K, T> newMessage(StoreItem<K, T> item, long nowMillis) throws StoreItemExpiredException {
+        return new ExpiringMessage<>(this, item.getExpiresAt().toEpochMilli(), item.getId(), item.getMessage(),
+                nowMillis);
+    }
+
     /**
      * Add a message to the store if it does not exist
      *
-     * @param expiresAt Timestamp after which the message expires
-     * @param id        The unique id of the message
-     * @param message   The message itself to store
+     * @param expiresAtMillis Timestamp in milliseconds since the epoch after which the message expires
+     * @param id              The unique id of the message
+     * @param message         The message itself to store
      * @throws StoreItemExpiredException When the expiresAt is already expired.
      * @throws StoreItemExistsException  When the message already exists.
      */
-    public synchronized void add(
-            Instant expiresAt,
-            String id,
+    public void add(
+            long expiresAtMillis,
+            K id,
             T message) throws StoreItemExpiredException, StoreItemExistsException {
-        addInternal(new ExpiringMessage<>(this, expiresAt, id, message));
+        addMessage(new ExpiringMessage<>(this, expiresAtMillis, id, message));
     }
 
     /**
      * Put a message to the store, possibly overwriting existing messages.
      *
-     * @param expiresAt Timestamp after which the message expires
-     * @param id        The unique id of the message
-     * @param message   The message itself to store
+     * @param expiresAtMillis Timestamp in milliseconds since the epoch after which the message expires
+     * @param id              The unique id of the message
+     * @param message         The message itself to store
      * @throws StoreItemExpiredException When the expiresAt is already expired.
      */
-    public synchronized void put(
-            Instant expiresAt,
-            String id,
+    public void put(
+            long expiresAtMillis,
+            K id,
             T message) throws StoreItemExpiredException {
-        putInternal(new ExpiringMessage<>(this, expiresAt, id, message));
+        putMessage(new ExpiringMessage<>(this, expiresAtMillis, id, message));
     }
 
 }
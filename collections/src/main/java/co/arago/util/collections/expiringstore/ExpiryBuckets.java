@@ -0,0 +1,174 @@
+package co.arago.util.collections.expiringstore;
+
+import co.arago.util.collections.expiringstore.messages.ExpiringMessage;
+import co.arago.util.collections.expiringstore.scheduler.ExpiryScheduler;
+import co.arago.util.collections.expiringstore.scheduler.ScheduledExpiry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * The expiries of the messages of a store, coalesced into buckets of a fixed width.
+ * <p>
+ * Only one task per bucket is scheduled, at the end of the bucket. It removes the expired messages of the bucket in
+ * chunks via {@link AbstractExpiringStore#expireAll(List)}, so a store with a lock takes it once per chunk instead of
+ * once per message, and releases it between the chunks. Messages that have been extended in the meantime move to the
+ * bucket of their new expiry.
+ * <p>
+ * Each message takes a slot in its bucket, which is also the handle of its expiry. Cancelling the handle of a message
+ * that has been removed or replaced clears its slot, so the bucket does not keep the message reachable until it is due.
+ *
+ * @param <M> Type of the messages
+ */
+class ExpiryBuckets<M extends ExpiringMessage<?, ?>> {
+
+    /**
+     * The slot of a message in its bucket and the handle of its coalesced expiry.
+     *
+     * @param <M> Type of the messages
+     */
+    private static final class Slot<M> implements ScheduledExpiry {
+        // Null once the expiry has been cancelled or the bucket has taken the message.
+        private volatile M message;
+
+        private Slot(M message) {
+            this.message = message;
+        }
+
+        @Override
+        public boolean cancel() {
+            if (message == null)
+                return false;
+            message = null;
+            return true;
+        }
+    }
+
+    /**
+     * The messages that expire within one bucket.
+     */
+    private final class Bucket implements Runnable {
+        private final long end;
+        private final ConcurrentLinkedQueue<Slot<M>> slots = new ConcurrentLinkedQueue<>();
+        private volatile boolean due = false;
+        private volatile ScheduledExpiry expiry;
+
+        private Bucket(long end) {
+            this.end = end;
+        }
+
+        @Override
+        public void run() {
+            due = true;
+            buckets.remove(end, this);
+
+            List<M> chunk = new ArrayList<>(Math.min(chunkSize, slots.size()));
+            for (Slot<M> slot = slots.poll(); slot != null; slot = slots.poll()) {
+                M message = slot.message;
+                if (message == null)
+                    continue;
+                slot.message = null;
+                if (message.getExpiresAtMillis() > store.currentTimeMillis()) {
+                    // Extended, the message schedules itself for its new expiry.
+                    message.run();
+                    continue;
+                }
+                chunk.add(message);
+                if (chunk.size() >= chunkSize) {
+                    store.expireAll(chunk);
+                    chunk.clear();
+                }
+            }
+            if (!chunk.isEmpty())
+                store.expireAll(chunk);
+        }
+    }
+
+    private final AbstractExpiringStore<?, ?, M> store;
+    private final ExpiryScheduler scheduler;
+    private final long bucketMillis;
+    private final int chunkSize;
+
+    private final ConcurrentHashMap<Long, Bucket> buckets = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor
+     *
+     * @param store        The store of the messages.
+     * @param scheduler    The scheduler of the store that runs the buckets.
+     * @param bucketMillis Width of a bucket in milliseconds.
+     * @param chunkSize    Maximum amount of messages removed under one lock of the store.
+     */
+    ExpiryBuckets(AbstractExpiringStore<?, ?, M> store, ExpiryScheduler scheduler, long bucketMillis, int chunkSize) {
+        this.store = store;
+        this.scheduler = scheduler;
+        this.bucketMillis = bucketMillis;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Add the expiry of a message to its bucket.
+     *
+     * @param message         The message.
+     * @param expiresAtMillis Timestamp in milliseconds since the epoch at which the message expires.
+     * @return Handle of the expiry. Cancelling it clears the slot of the message in its bucket.
+     * @throws IllegalStateException When the scheduler has been closed.
+     */
+    ScheduledExpiry add(M message, long expiresAtMillis) {
+        // The end of the bucket is the first bucket boundary after the expiry.
+        long end = (Math.floorDiv(expiresAtMillis, bucketMillis) + 1) * bucketMillis;
+
+        Bucket bucket = buckets.get(end);
+        if (bucket == null) {
+            Bucket created = new Bucket(end);
+            bucket = buckets.putIfAbsent(end, created);
+            if (bucket == null) {
+                bucket = created;
+                bucket.expiry = scheduler.schedule(bucket, end);
+            }
+        }
+        Slot<M> slot = new Slot<>(message);
+        bucket.slots.offer(slot);
+        if (bucket.due) {
+            // The bucket might have been drained before the message arrived. Drain it once more.
+            bucket.expiry = scheduler.schedule(bucket, end);
+        }
+        return slot;
+    }
+
+    /**
+     * Add the expiries of many messages to their buckets.
+     *
+     * @param messages The messages.
+     * @throws IllegalStateException When the scheduler has been closed.
+     */
+    void addAll(List<M> messages) {
+        for (M message : messages) {
+            message.setScheduledExpiry(add(message, message.getExpiresAtMillis()));
+        }
+    }
+
+    /**
+     * Cancel the tasks of all buckets that are not due yet and drop their messages.
+     */
+    void cancelAll() {
+        for (Bucket bucket : buckets.values()) {
+            ScheduledExpiry expiry = bucket.expiry;
+            if (expiry != null)
+                expiry.cancel();
+            bucket.slots.clear();
+        }
+        buckets.clear();
+    }
+
+    /**
+     * Getter
+     *
+     * @return Amount of buckets that are not due yet.
+     */
+    int getPendingBuckets() {
+        return buckets.size();
+    }
+}
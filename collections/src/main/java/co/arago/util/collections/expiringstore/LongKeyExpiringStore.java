@@ -0,0 +1,298 @@
+package co.arago.util.collections.expiringstore;
+
+import co.arago.util.collections.expiringstore.clock.StoreClock;
+import co.arago.util.collections.expiringstore.exceptions.StoreItemExistsException;
+import co.arago.util.collections.expiringstore.exceptions.StoreItemExpiredException;
+import co.arago.util.collections.expiringstore.longkey.LongKeyMap;
+import co.arago.util.collections.expiringstore.messages.LongKeyMessage;
+import co.arago.util.collections.expiringstore.scheduler.ExpiryScheduler;
+import co.arago.util.collections.expiringstore.scheduler.SharedExpiryScheduler;
+import co.arago.util.collections.expiringstore.scheduler.TimerExpiryScheduler;
+
+import java.time.Instant;
+
+/**
+ * An expiring store with primitive long ids, i.e. numeric correlation ids.
+ * <p>
+ * The messages are kept in a {@link LongKeyMap} with open addressing, so neither a boxed {@link Long} nor a String is
+ * created per id, no map entry object exists per message and looking up an id costs one multiplication instead of
+ * hashing a String. Compared to an {@link ExpiringStore} with String ids, this saves the key objects and the map
+ * entries of each message.
+ * <p>
+ * This store covers the core operations of {@link ExpiringStore}. Bounds, removal listeners, lazy expiry and
+ * statistics are only available with the generic stores. All operations are synchronized on the store.
+ *
+ * @param <T> Type of items to store
+ */
+public class LongKeyExpiringStore<T> implements AutoCloseable {
+
+    /**
+     * Builder for {@link LongKeyExpiringStore}.
+     *
+     * @param <T> Type of items to store
+     */
+    public static class Builder<T> {
+        protected String name;
+        protected ExpiryScheduler scheduler;
+        protected SharedExpiryScheduler sharedScheduler;
+        protected int expectedSize = LongKeyMap.DEFAULT_CAPACITY;
+        protected StoreClock clock = StoreClock.SYSTEM;
+
+        /**
+         * Set the name of the store. A name is generated if this is not set.
+         *
+         * @param name Name of the store.
+         * @return Reference to self for chaining
+         */
+        public Builder<T> setName(String name) {
+            this.name = name;
+            return this;
+        }
+
+        /**
+         * Set an own scheduler for the store. It will be closed together with the store.
+         *
+         * @param scheduler The scheduler for the expiry of the messages.
+         * @return Reference to self for chaining
+         */
+        public Builder<T> setScheduler(ExpiryScheduler scheduler) {
+            this.scheduler = scheduler;
+            this.sharedScheduler = null;
+            return this;
+        }
+
+        /**
+         * Register the store with a scheduler shared among many stores. Closing the store only detaches it from the
+         * shared scheduler.
+         *
+         * @param sharedScheduler The shared scheduler for the expiry of the messages.
+         * @return Reference to self for chaining
+         */
+        public Builder<T> setSharedScheduler(SharedExpiryScheduler sharedScheduler) {
+            this.sharedScheduler = sharedScheduler;
+            this.scheduler = null;
+            return this;
+        }
+
+        /**
+         * Size the map of the store for an expected amount of messages, so it does not grow while filling up.
+         *
+         * @param expectedSize Amount of messages.
+         * @return Reference to self for chaining
+         */
+        public Builder<T> setExpectedSize(int expectedSize) {
+            this.expectedSize = expectedSize;
+            return this;
+        }
+
+        /**
+         * Set the time source for the checks of adds and puts. {@link StoreClock#SYSTEM} by default.
+         *
+         * @param clock The clock.
+         * @return Reference to self for chaining
+         */
+        public Builder<T> setClock(StoreClock clock) {
+            this.clock = clock;
+            return this;
+        }
+
+        /**
+         * Create the store.
+         *
+         * @return The new store.
+         */
+        public LongKeyExpiringStore<T> build() {
+            String storeName = (name != null) ? name : "LongKeyStore-" + AbstractExpiringStore.counter.incrementAndGet();
+            ExpiryScheduler storeScheduler;
+            if (sharedScheduler != null)
+                storeScheduler = sharedScheduler.register(storeName);
+            else if (scheduler != null)
+                storeScheduler = scheduler;
+            else
+                storeScheduler = new TimerExpiryScheduler("Timer for " + storeName);
+            LongKeyExpiringStore<T> store = new LongKeyExpiringStore<>(storeName, storeScheduler, expectedSize);
+            store.clock = clock;
+            return store;
+        }
+    }
+
+    /**
+     * Create a new builder.
+     *
+     * @param <T> Type of items to store
+     * @return New instance of {@link Builder}
+     */
+    public static <T> Builder<T> newBuilder() {
+        return new Builder<>();
+    }
+
+    private final String name;
+    private final ExpiryScheduler scheduler;
+    private final LongKeyMap<LongKeyMessage<T>> storeMap;
+    private StoreClock clock = StoreClock.SYSTEM;
+
+    /**
+     * Constructor
+     * <p>
+     * Generate an automatic name.
+     */
+    public LongKeyExpiringStore() {
+        this("LongKeyStore-" + AbstractExpiringStore.counter.incrementAndGet());
+    }
+
+    /**
+     * Constructor
+     *
+     * @param name Name of the store.
+     */
+    public LongKeyExpiringStore(String name) {
+        this(name, new TimerExpiryScheduler("Timer for " + name), LongKeyMap.DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param name         Name of the store.
+     * @param scheduler    The scheduler for the expiry of the messages. It will be closed together with this store.
+     * @param expectedSize Amount of messages the store can hold without growing its map.
+     */
+    public LongKeyExpiringStore(String name, ExpiryScheduler scheduler, int expectedSize) {
+        this.name = name;
+        this.scheduler = scheduler;
+        this.storeMap = new LongKeyMap<>(expectedSize);
+    }
+
+    /**
+     * Add a message to the store if it does not exist
+     *
+     * @param expiresAt Timestamp after which the message expires
+     * @param id        The unique id of the message
+     * @param message   The message itself to store
+     * @throws StoreItemExpiredException When the expiresAt is already expired.
+     * @throws StoreItemExistsException  When the message already exists.
+     */
+    public void add(
+            Instant expiresAt,
+            long id,
+            T message) throws StoreItemExpiredException, StoreItemExistsException {
+        add(expiresAt.toEpochMilli(), id, message);
+    }
+
+    /**
+     * Add a message to the store if it does not exist
+     *
+     * @param expiresAtMillis Timestamp in milliseconds since the epoch after which the message expires
+     * @param id              The unique id of the message
+     * @param message         The message itself to store
+     * @throws StoreItemExpiredException When the expiresAt is already expired.
+     * @throws StoreItemExistsException  When the message already exists.
+     */
+    public synchronized void add(
+            long expiresAtMillis,
+            long id,
+            T message) throws StoreItemExpiredException, StoreItemExistsException {
+        LongKeyMessage<T> longKeyMessage = new LongKeyMessage<>(this, expiresAtMillis, id, message, clock.millis());
+        if (storeMap.putIfAbsent(id, longKeyMessage) != null)
+            throw new StoreItemExistsException("Not adding " + message.getClass().getSimpleName() + " " + id +
+                    " because it already exists.");
+        schedule(longKeyMessage);
+    }
+
+    /**
+     * Put a message to the store, possibly overwriting existing messages.
+     *
+     * @param expiresAt Timestamp after which the message expires
+     * @param id        The unique id of the message
+     * @param message   The message itself to store
+     * @throws StoreItemExpiredException When the expiresAt is already expired.
+     */
+    public void put(
+            Instant expiresAt,
+            long id,
+            T message) throws StoreItemExpiredException {
+        put(expiresAt.toEpochMilli(), id, message);
+    }
+
+    /**
+     * Put a message to the store, possibly overwriting existing messages.
+     *
+     * @param expiresAtMillis Timestamp in milliseconds since the epoch after which the message expires
+     * @param id              The unique id of the message
+     * @param message         The message itself to store
+     * @throws StoreItemExpiredException When the expiresAt is already expired.
+     */
+    public synchronized void put(
+            long expiresAtMillis,
+            long id,
+            T message) throws StoreItemExpiredException {
+        LongKeyMessage<T> longKeyMessage = new LongKeyMessage<>(this, expiresAtMillis, id, message, clock.millis());
+        LongKeyMessage<T> existingMessage = storeMap.put(id, longKeyMessage);
+        if (existingMessage != null)
+            existingMessage.cancelExpiry();
+        schedule(longKeyMessage);
+    }
+
+    private void schedule(LongKeyMessage<T> message) {
+        message.setScheduledExpiry(scheduler.schedule(message, message.getExpiresAtMillis()));
+    }
+
+    /**
+     * Getter
+     *
+     * @param id Id of the message
+     * @return The stored message or null.
+     */
+    public synchronized T get(long id) {
+        LongKeyMessage<T> message = storeMap.get(id);
+        return (message != null ? message.getMessage() : null);
+    }
+
+    /**
+     * Remove a message from the store and cancel its expiry.
+     *
+     * @param id Id of the message
+     */
+    public synchronized void remove(long id) {
+        LongKeyMessage<T> message = storeMap.remove(id);
+        if (message != null)
+            message.cancelExpiry();
+    }
+
+    /**
+     * Remove an expired message from the store. Nothing happens if the message has been replaced or removed in the
+     * meantime.
+     *
+     * @param message The message that expired.
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized void expire(LongKeyMessage<?> message) {
+        storeMap.remove(message.getId(), (LongKeyMessage<T>) message);
+    }
+
+    /**
+     * Getter
+     *
+     * @return The name of this store.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Getter
+     *
+     * @return The current amount of messages in this store.
+     */
+    public synchronized int size() {
+        return storeMap.size();
+    }
+
+    /**
+     * Close the scheduler and clear the store. This Store cannot be used thereafter.
+     */
+    @Override
+    public synchronized void close() {
+        scheduler.close();
+        storeMap.clear();
+    }
+}
@@ -0,0 +1,205 @@
+package co.arago.util.collections.expiringstore;
+
+import co.arago.util.collections.expiringstore.exceptions.StoreItemExistsException;
+import co.arago.util.collections.expiringstore.exceptions.StoreItemExpiredException;
+import co.arago.util.collections.expiringstore.messages.OffHeapMessage;
+import co.arago.util.collections.expiringstore.offheap.SlabAllocator;
+import co.arago.util.collections.expiringstore.reference.ValueStrength;
+import co.arago.util.collections.expiringstore.scheduler.ExpiryScheduler;
+import co.arago.util.collections.expiringstore.scheduler.TimerExpiryScheduler;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * An expiring store for byte[] payloads that keeps the payloads outside the Java heap.
+ * <p>
+ * Payloads are copied into slabs of direct memory by a {@link SlabAllocator}. Only a small index of id, expiry and
+ * position of the payload stays on the heap, so large amounts of payload neither fill the old generation nor prolong
+ * garbage collection pauses. {@link #get(Object)} returns a copy of the payload. The memory of a payload is reused as
+ * soon as its message has been removed, replaced, evicted or has expired.
+ * <p>
+ * Like {@link ConcurrentExpiringStore}, this store has no store-wide lock.
+ */
+public class OffHeapExpiringStore extends AbstractExpiringStore<String, byte[], OffHeapMessage> {
+
+    /**
+     * Builder for {@link OffHeapExpiringStore}.
+     */
+    public static class Builder extends AbstractExpiringStore.Builder<String, byte[], OffHeapExpiringStore, Builder> {
+        protected int slabSize = SlabAllocator.DEFAULT_SLAB_SIZE;
+
+        /**
+         * Set the size of the slabs of direct memory. Default is {@link SlabAllocator#DEFAULT_SLAB_SIZE}.
+         *
+         * @param slabSize Size in bytes.
+         * @return Reference to self for chaining
+         */
+        public Builder setSlabSize(int slabSize) {
+            this.slabSize = slabSize;
+            return self();
+        }
+
+        @Override
+        protected Builder self() {
+            return this;
+        }
+
+        /**
+         * Create the store.
+         *
+         * @return The new store.
+         * @throws IllegalArgumentException When soft or weak values have been set. The payloads are copied off-heap
+         *                                  where the garbage collector does not reach them.
+         */
+        @Override
+        public OffHeapExpiringStore build() {
+            if (valueStrength != ValueStrength.STRONG)
+                throw new IllegalArgumentException("Off-heap payloads cannot be referenced softly or weakly.");
+            String storeName = (name != null) ? name : "OffHeapStore-" + counter.incrementAndGet();
+            return configure(new OffHeapExpiringStore(storeName, buildScheduler(storeName), lazyExpiry,
+                    new SlabAllocator(slabSize)));
+        }
+    }
+
+    /**
+     * Create a new builder.
+     *
+     * @return New instance of {@link Builder}
+     */
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    private final SlabAllocator allocator;
+
+    /**
+     * Constructor
+     * <p>
+     * Generate an automatic name.
+     */
+    public OffHeapExpiringStore() {
+        this("OffHeapStore-" + counter.incrementAndGet());
+    }
+
+    /**
+     * Constructor
+     *
+     * @param name Name of the ExpiringStore.
+     */
+    public OffHeapExpiringStore(String name) {
+        this(name, new TimerExpiryScheduler("Timer for " + name));
+    }
+
+    /**
+     * Constructor
+     *
+     * @param name      Name of the ExpiringStore.
+     * @param scheduler The scheduler for the expiry of the messages. It will be closed together with this store.
+     */
+    public OffHeapExpiringStore(String name, ExpiryScheduler scheduler) {
+        this(name, scheduler, false, new SlabAllocator());
+    }
+
+    /**
+     * Constructor
+     *
+     * @param name       Name of the ExpiringStore.
+     * @param scheduler  The scheduler for the expiry of the messages. It will be closed together with this store.
+     *                   Can be null in lazy expiry mode without background sweeping.
+     * @param lazyExpiry Use lazy expiry instead of scheduling each message.
+     * @param allocator  The allocator for the payloads. It will be closed together with this store.
+     */
+    protected OffHeapExpiringStore(
+            String name,
+            ExpiryScheduler scheduler,
+            boolean lazyExpiry,
+            SlabAllocator allocator) {
+        super(name, scheduler, new ConcurrentHashMap<>(), lazyExpiry ? new ConcurrentLinkedQueue<>() : null);
+        this.allocator = allocator;
+    }
+
+    @Override
+    protected OffHeapMessage newMessage(StoreItem<String, byte[]> item, long nowMillis) throws StoreItemExpiredException {
+        return new OffHeapMessage(this, item.getExpiresAt().toEpochMilli(), item.getId(), item.getMessage(), nowMillis);
+    }
+
+    /**
+     * Free the off-heap memory of a message that has left this store.
+     *
+     * @param message The message.
+     */
+    @Override
+    protected void discard(OffHeapMessage message) {
+        message.release();
+    }
+
+    /**
+     * Add a message to the store if it does not exist
+     *
+     * @param expiresAtMillis Timestamp in milliseconds since the epoch after which the message expires
+     * @param id              The unique id of the message
+     * @param message         The payload to store. It is copied off-heap.
+     * @throws StoreItemExpiredException When the expiresAt is already expired.
+     * @throws StoreItemExistsException  When the message already exists.
+     */
+    @Override
+    public void add(
+            long expiresAtMillis,
+            String id,
+            byte[] message) throws StoreItemExpiredException, StoreItemExistsException {
+        addMessage(new OffHeapMessage(this, expiresAtMillis, id, message));
+    }
+
+    /**
+     * Put a message to the store, possibly overwriting existing messages.
+     *
+     * @param expiresAtMillis Timestamp in milliseconds since the epoch after which the message expires
+     * @param id              The unique id of the message
+     * @param message         The payload to store. It is copied off-heap.
+     * @throws StoreItemExpiredException When the expiresAt is already expired.
+     */
+    @Override
+    public void put(
+            long expiresAtMillis,
+            String id,
+            byte[] message) throws StoreItemExpiredException {
+        putMessage(new OffHeapMessage(this, expiresAtMillis, id, message));
+    }
+
+    /**
+     * Getter
+     *
+     * @return The allocator of the payloads of this store.
+     */
+    public SlabAllocator getAllocator() {
+        return allocator;
+    }
+
+    /**
+     * Getter
+     *
+     * @return Bytes of direct memory held by this store.
+     */
+    public long getReservedBytes() {
+        return allocator.getReservedBytes();
+    }
+
+    /**
+     * Getter
+     *
+     * @return Bytes of payload currently held by this store.
+     */
+    public long getUsedBytes() {
+        return allocator.getUsedBytes();
+    }
+
+    /**
+     * Close the store and release all of its off-heap memory. This Store cannot be used thereafter.
+     */
+    @Override
+    public synchronized void close() {
+        super.close();
+        allocator.close();
+    }
+}
@@ -0,0 +1,435 @@
+package co.arago.util.collections.expiringstore;
+
+import co.arago.util.collections.expiringstore.exceptions.ExpiringStoreException;
+import co.arago.util.collections.expiringstore.exceptions.StoreItemExistsException;
+import co.arago.util.collections.expiringstore.exceptions.StoreItemExpiredException;
+import co.arago.util.collections.expiringstore.messages.ExpiringRetryMessage;
+import co.arago.util.collections.expiringstore.persistent.AppendLog;
+import co.arago.util.collections.expiringstore.persistent.LogRecord;
+import co.arago.util.collections.expiringstore.persistent.Serializer;
+import co.arago.util.collections.expiringstore.reference.ValueStrength;
+import co.arago.util.collections.expiringstore.scheduler.ExpiryScheduler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * An {@link ExpiringRetryStore} that survives restarts.
+ * <p>
+ * Each add, put, remove and retry is appended to an {@link AppendLog} of memory-mapped segment files in a directory.
+ * A new store on the same directory replays the log and continues with all messages that have not expired yet,
+ * including their retries left. Expiry itself is not logged, since replay skips expired messages anyway.
+ * <p>
+ * When enough segments have been filled, a background thread compacts them into one segment holding only the live
+ * messages, so the time to recover depends on the amount of live messages instead of the history of the store.
+ * <p>
+ * Ids are Strings, since they are written to the log as they are.
+ *
+ * @param <T> Type of items to store
+ */
+public class PersistentExpiringRetryStore<T> extends ExpiringRetryStore<String, T> {
+
+    private final static Logger log = LoggerFactory.getLogger(PersistentExpiringRetryStore.class);
+
+    public static final int DEFAULT_COMPACTION_THRESHOLD = 4;
+
+    private static final long MIN_COMPACTION_BACKOFF_MILLIS = 1000;
+    private static final long MAX_COMPACTION_BACKOFF_MILLIS = 60000;
+
+    /**
+     * Builder for {@link PersistentExpiringRetryStore}.
+     *
+     * @param <T> Type of items to store
+     */
+    public static class Builder<T>
+            extends AbstractExpiringStore.Builder<String, T, PersistentExpiringRetryStore<T>, Builder<T>> {
+        protected final Path directory;
+        protected final Serializer<T> serializer;
+        protected int maxRetries = DEFAULT_RETRIES;
+        protected int segmentSize = AppendLog.DEFAULT_SEGMENT_SIZE;
+        protected int compactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+
+        /**
+         * Constructor
+         *
+         * @param directory  Directory of the log.
+         * @param serializer Serializer for the messages.
+         */
+        protected Builder(Path directory, Serializer<T> serializer) {
+            this.directory = directory;
+            this.serializer = serializer;
+        }
+
+        /**
+         * Set the default amount of retries. Default is {@link #DEFAULT_RETRIES}.
+         *
+         * @param maxRetries Maximum amount of retries.
+         * @return Reference to self for chaining
+         */
+        public Builder<T> setMaxRetries(int maxRetries) {
+            this.maxRetries = maxRetries;
+            return self();
+        }
+
+        /**
+         * Set the size of the segment files. Default is {@link AppendLog#DEFAULT_SEGMENT_SIZE}.
+         *
+         * @param segmentSize Size in bytes.
+         * @return Reference to self for chaining
+         */
+        public Builder<T> setSegmentSize(int segmentSize) {
+            this.segmentSize = segmentSize;
+            return self();
+        }
+
+        /**
+         * Set the amount of filled segments that triggers a compaction. Default is
+         * {@link #DEFAULT_COMPACTION_THRESHOLD}.
+         *
+         * @param compactionThreshold Amount of segments, at least 2. A compaction leaves one segment behind.
+         * @return Reference to self for chaining
+         */
+        public Builder<T> setCompactionThreshold(int compactionThreshold) {
+            this.compactionThreshold = compactionThreshold;
+            return self();
+        }
+
+        @Override
+        protected Builder<T> self() {
+            return this;
+        }
+
+        /**
+         * Create the store and recover its messages from the log.
+         *
+         * @return The new store.
+         * @throws UncheckedIOException     When the log cannot be read.
+         * @throws IllegalArgumentException When soft or weak values have been set. The store has to keep its payloads
+         *                                  to write them to the log on compaction. Also when the compaction threshold
+         *                                  is less than 2.
+         */
+        @Override
+        public PersistentExpiringRetryStore<T> build() {
+            if (valueStrength != ValueStrength.STRONG)
+                throw new IllegalArgumentException("A persistent store cannot reference its payloads softly or weakly.");
+            String storeName = (name != null) ? name : "PersistentRetryStore-" + counter.incrementAndGet();
+            try {
+                PersistentExpiringRetryStore<T> store = configure(new PersistentExpiringRetryStore<>(maxRetries,
+                        storeName, buildScheduler(storeName), lazyExpiry, new AppendLog(directory, segmentSize),
+                        serializer, compactionThreshold));
+                store.recover();
+                return store;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Create a new builder.
+     *
+     * @param directory  Directory of the log. It is created if it does not exist.
+     * @param serializer Serializer for the messages.
+     * @param <T>        Type of items to store
+     * @return New instance of {@link Builder}
+     */
+    public static <T> Builder<T> newBuilder(Path directory, Serializer<T> serializer) {
+        return new Builder<>(directory, serializer);
+    }
+
+    private final AppendLog appendLog;
+    private final Serializer<T> serializer;
+    private final int compactionThreshold;
+    private final ExecutorService compactor;
+    private final AtomicBoolean compacting = new AtomicBoolean(false);
+    private long compactionBackoffMillis = 0;
+    private volatile long nextCompactionMillis = 0;
+
+    /**
+     * Constructor
+     * <p>
+     * Recovers the messages from the log.
+     *
+     * @param maxRetries Maximum amount of retries.
+     * @param name       Name of this store.
+     * @param scheduler  The scheduler for the expiry of the messages. It will be closed together with this store.
+     * @param directory  Directory of the log. It is created if it does not exist.
+     * @param serializer Serializer for the messages.
+     * @throws IOException When the log cannot be read.
+     */
+    public PersistentExpiringRetryStore(
+            int maxRetries,
+            String name,
+            ExpiryScheduler scheduler,
+            Path directory,
+            Serializer<T> serializer) throws IOException {
+        this(maxRetries, name, scheduler, false, new AppendLog(directory, AppendLog.DEFAULT_SEGMENT_SIZE),
+                serializer, DEFAULT_COMPACTION_THRESHOLD);
+        recover();
+    }
+
+    /**
+     * Constructor
+     * <p>
+     * The store cannot be used before {@link #recover()} has been called.
+     *
+     * @param maxRetries          Maximum amount of retries.
+     * @param name                Name of this store.
+     * @param scheduler           The scheduler for the expiry of the messages. It will be closed together with this
+     *                            store. Can be null in lazy expiry mode without background sweeping.
+     * @param lazyExpiry          Use lazy expiry instead of scheduling each message.
+     * @param appendLog           The log. It will be closed together with this store.
+     * @param serializer          Serializer for the messages.
+     * @param compactionThreshold Amount of filled segments that triggers a compaction, at least 2.
+     * @throws IllegalArgumentException When the compaction threshold is less than 2.
+     */
+    protected PersistentExpiringRetryStore(
+            int maxRetries,
+            String name,
+            ExpiryScheduler scheduler,
+            boolean lazyExpiry,
+            AppendLog appendLog,
+            Serializer<T> serializer,
+            int compactionThreshold) {
+        super(maxRetries, name, scheduler, new HashMap<>(), lazyExpiry ? new ArrayDeque<>() : null);
+        if (compactionThreshold < 2)
+            throw new IllegalArgumentException("The compaction threshold must be at least 2 segments.");
+        this.appendLog = appendLog;
+        this.serializer = serializer;
+        this.compactionThreshold = compactionThreshold;
+        this.compactor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Compaction for " + name);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Replay the log and add all messages that have not expired yet.
+     *
+     * @throws IOException When the log cannot be read.
+     */
+    protected synchronized void recover() throws IOException {
+        long now = currentTimeMillis();
+        Map<String, LogRecord> live = appendLog.recover(now);
+        for (LogRecord record : live.values()) {
+            try {
+                putInternal(new ExpiringRetryMessage<>(this, record.getExpiresAt(),
+                        record.getId(), serializer.deserialize(record.getPayload()), record.getRetriesLeft()));
+            } catch (StoreItemExpiredException e) {
+                // Expired during recovery.
+            }
+        }
+        log.debug("Recovered {} messages of {}.", storeMap.size(), getName());
+        if (appendLog.getSealedSegments() >= compactionThreshold)
+            scheduleCompaction();
+    }
+
+    @Override
+    public synchronized void add(
+            long expiresAtMillis,
+            String id,
+            T message) throws StoreItemExpiredException, StoreItemExistsException {
+        super.add(expiresAtMillis, id, message);
+        appendPut(id);
+    }
+
+    @Override
+    public synchronized void add(
+            long expiresAtMillis,
+            String id,
+            T message,
+            int retriesLeft) throws StoreItemExpiredException, StoreItemExistsException {
+        super.add(expiresAtMillis, id, message, retriesLeft);
+        appendPut(id);
+    }
+
+    @Override
+    public synchronized void put(
+            long expiresAtMillis,
+            String id,
+            T message) throws StoreItemExpiredException {
+        super.put(expiresAtMillis, id, message);
+        appendPut(id);
+    }
+
+    @Override
+    public synchronized void put(
+            long expiresAtMillis,
+            String id,
+            T message,
+            int retriesLeft) throws StoreItemExpiredException {
+        super.put(expiresAtMillis, id, message, retriesLeft);
+        appendPut(id);
+    }
+
+    @Override
+    public synchronized Map<String, ExpiringStoreException> addAll(Collection<? extends StoreItem<String, T>> items) {
+        Map<String, ExpiringStoreException> failures = super.addAll(items);
+        appendPutAll(items, failures);
+        return failures;
+    }
+
+    @Override
+    public synchronized Map<String, ExpiringStoreException> putAll(Collection<? extends StoreItem<String, T>> items) {
+        Map<String, ExpiringStoreException> failures = super.putAll(items);
+        appendPutAll(items, failures);
+        return failures;
+    }
+
+    /**
+     * Extend the expiry and log the message with its new expiry. Extensions by sliding expiry are not logged, a
+     * recovered message expires at its last logged expiry.
+     *
+     * @param id           Id of the message
+     * @param newExpiresAt The new timestamp after which the message expires.
+     * @return true if the message exists.
+     */
+    @Override
+    public synchronized boolean extend(String id, Instant newExpiresAt) {
+        if (!super.extend(id, newExpiresAt))
+            return false;
+        appendPut(id);
+        return true;
+    }
+
+    @Override
+    public synchronized T retryGet(String id) {
+        T message = super.retryGet(id);
+        ExpiringRetryMessage<String, T> retryMessage = storeMap.get(id);
+        if (message != null && retryMessage != null)
+            append(LogRecord.retries(id, retryMessage.getRetriesLeft()));
+        return message;
+    }
+
+    /**
+     * Log the removal of a message unless it has been replaced, has expired or the store is closing.
+     *
+     * @param message The message.
+     */
+    @Override
+    protected void discard(ExpiringRetryMessage<String, T> message) {
+        super.discard(message);
+        if (storeMap.get(message.getId()) == null && !message.isExpiredAt(currentTimeMillis()))
+            append(LogRecord.remove(message.getId()));
+    }
+
+    /**
+     * Log the current state of the message with this id, if it is in the store.
+     *
+     * @param id Id of the message
+     */
+    private void appendPut(String id) {
+        ExpiringRetryMessage<String, T> message = storeMap.get(id);
+        if (message != null)
+            append(toRecord(message));
+    }
+
+    private void appendPutAll(Collection<? extends StoreItem<String, T>> items, Map<String, ExpiringStoreException> failures) {
+        for (StoreItem<String, T> item : items) {
+            if (!failures.containsKey(item.getId()))
+                appendPut(item.getId());
+        }
+    }
+
+    private LogRecord toRecord(ExpiringRetryMessage<String, T> message) {
+        return LogRecord.put(message.getId(), message.getExpiresAtMillis(), message.getRetriesLeft(),
+                serializer.serialize(message.getMessage()));
+    }
+
+    private void append(LogRecord record) {
+        if (appendLog.append(record) && appendLog.getSealedSegments() >= compactionThreshold)
+            scheduleCompaction();
+    }
+
+    private void scheduleCompaction() {
+        if (currentTimeMillis() < nextCompactionMillis || !compacting.compareAndSet(false, true))
+            return;
+        try {
+            compactor.execute(this::compact);
+        } catch (RejectedExecutionException e) {
+            // The store is closing.
+            compacting.set(false);
+        }
+    }
+
+    /**
+     * Replace all filled segments by one segment with the live messages. After a failure, the next compaction waits
+     * for a backoff that doubles with each failure in a row.
+     */
+    private void compact() {
+        boolean compacted = false;
+        try {
+            long last;
+            List<ExpiringRetryMessage<String, T>> messages;
+            synchronized (this) {
+                last = appendLog.getLastSealedSegment();
+                messages = new ArrayList<>(storeMap.values());
+            }
+
+            long now = currentTimeMillis();
+            List<LogRecord> records = new ArrayList<>(messages.size());
+            for (ExpiringRetryMessage<String, T> message : messages) {
+                if (!message.isExpiredAt(now))
+                    records.add(toRecord(message));
+            }
+
+            appendLog.compact(last, records);
+            log.debug("Compacted {} to {} messages.", getName(), records.size());
+            compactionBackoffMillis = 0;
+            compacted = true;
+        } catch (IOException | RuntimeException e) {
+            compactionBackoffMillis = Math.min(MAX_COMPACTION_BACKOFF_MILLIS,
+                    Math.max(MIN_COMPACTION_BACKOFF_MILLIS, compactionBackoffMillis * 2));
+            nextCompactionMillis = currentTimeMillis() + compactionBackoffMillis;
+            log.error("Compaction of {} failed, next attempt in {} ms.", getName(), compactionBackoffMillis, e);
+        } finally {
+            compacting.set(false);
+        }
+        // Segments sealed during the compaction did not schedule another one.
+        if (compacted && appendLog.getSealedSegments() >= compactionThreshold)
+            scheduleCompaction();
+    }
+
+    /**
+     * Force all logged operations to the disk. Without this, they survive a crash of the process, but not
+     * necessarily a crash of the operating system.
+     */
+    public void sync() {
+        appendLog.sync();
+    }
+
+    /**
+     * Close the store and its log after a running compaction has finished. The messages remain in the log for the
+     * next store on the same directory.
+     */
+    @Override
+    public void close() {
+        compactor.shutdown();
+        try {
+            if (!compactor.awaitTermination(1, TimeUnit.MINUTES))
+                log.warn("Compaction of {} did not finish in time.", getName());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            super.close();
+            appendLog.close();
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package co.arago.util.collections.expiringstore;
+
+import co.arago.util.collections.expiringstore.listener.RemovalCause;
+import co.arago.util.collections.expiringstore.listener.RemovalListener;
+import co.arago.util.collections.expiringstore.listener.RemovalNotification;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Queues removal notifications of a store and delivers them in batches to its {@link RemovalListener} on an
+ * executor. At most one delivery runs at a time, it drains the queue until it is empty.
+ *
+ * @param <K> Type of the ids
+ * @param <T> Type of items in the store
+ */
+class RemovalDispatcher<K, T> {
+
+    private final static Logger log = LoggerFactory.getLogger(RemovalDispatcher.class);
+
+    static final int MAX_BATCH_SIZE = 1024;
+
+    private final RemovalListener<K, T> listener;
+    private final Executor executor;
+    private final Queue<RemovalNotification<K, T>> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean delivering = new AtomicBoolean(false);
+
+    /**
+     * Constructor
+     *
+     * @param listener The listener.
+     * @param executor The executor for the deliveries.
+     */
+    RemovalDispatcher(RemovalListener<K, T> listener, Executor executor) {
+        this.listener = listener;
+        this.executor = executor;
+    }
+
+    /**
+     * Queue a notification and start a delivery if none is running.
+     *
+     * @param id      Id of the message
+     * @param message The message itself
+     * @param cause   Why the message has left the store.
+     */
+    void notify(K id, T message, RemovalCause cause) {
+        queue.offer(new RemovalNotification<>(id, message, cause));
+        if (delivering.compareAndSet(false, true)) {
+            try {
+                executor.execute(this::deliver);
+            } catch (RejectedExecutionException e) {
+                delivering.set(false);
+                log.warn("Cannot deliver removal notifications.", e);
+            }
+        }
+    }
+
+    private void deliver() {
+        for (;;) {
+            List<RemovalNotification<K, T>> batch = new ArrayList<>();
+            RemovalNotification<K, T> notification;
+            while (batch.size() < MAX_BATCH_SIZE && (notification = queue.poll()) != null) {
+                batch.add(notification);
+            }
+
+            if (batch.isEmpty()) {
+                delivering.set(false);
+                // Another notification might have been queued before the flag was reset.
+                if (queue.isEmpty() || !delivering.compareAndSet(false, true))
+                    return;
+                continue;
+            }
+
+            try {
+                listener.onRemoval(batch);
+            } catch (RuntimeException e) {
+                log.warn("Removal listener failed.", e);
+            }
+        }
+    }
+}
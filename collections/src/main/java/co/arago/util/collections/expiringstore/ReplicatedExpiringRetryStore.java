@@ -0,0 +1,664 @@
+package co.arago.util.collections.expiringstore;
+
+import co.arago.util.collections.expiringstore.exceptions.ExpiringStoreException;
+import co.arago.util.collections.expiringstore.exceptions.StoreItemExistsException;
+import co.arago.util.collections.expiringstore.exceptions.StoreItemExpiredException;
+import co.arago.util.collections.expiringstore.listener.RemovalCause;
+import co.arago.util.collections.expiringstore.messages.ExpiringRetryMessage;
+import co.arago.util.collections.expiringstore.persistent.Serializer;
+import co.arago.util.collections.expiringstore.replication.LoopbackNetwork;
+import co.arago.util.collections.expiringstore.replication.ReplicationEvent;
+import co.arago.util.collections.expiringstore.replication.ReplicationTransport;
+import co.arago.util.collections.expiringstore.scheduler.ExpiryScheduler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An {@link ExpiringRetryStore} that replicates its messages to the stores of other nodes.
+ * <p>
+ * Each add, put, remove and used up retry becomes a {@link ReplicationEvent}. Events are collected and shipped in
+ * batches through a {@link ReplicationTransport}, either when a batch is full or after the batch interval. Batches
+ * received from other nodes are applied to this store without being shipped again. Use a {@link LoopbackNetwork} to
+ * run several nodes in one process.
+ * <p>
+ * Conflicting writes are resolved by "last writer wins": each write gets a version from a hybrid logical clock, i.e.
+ * the current time, but always above every version this node has seen. The write with the highest version wins, the
+ * id of the node decides between equal versions. A removal is remembered until the removed message would have
+ * expired, so a delayed older write cannot bring it back.
+ * <p>
+ * Retries are shared: each node counts the retries it has used up per write, and the retries left of a write are its
+ * retries minus the sum of all nodes, so a message is not retried more often than its retries allow just because it is
+ * stored on several nodes. Retries used up concurrently on several nodes all count. Retries that arrive before their
+ * write are kept until the write arrives or the message would have expired. Extending and expiring messages is not
+ * replicated. Each node expires its messages by itself at the same time.
+ * <p>
+ * Batches that cannot be shipped are shipped again together with the next batch, in the order of their events. At most
+ * {@link Builder#setMaxPendingEvents(int)} events are kept while the transport fails, the oldest ones are dropped.
+ * <p>
+ * Ids are Strings, since they are shipped as they are.
+ *
+ * @param <T> Type of items to store
+ */
+public class ReplicatedExpiringRetryStore<T> extends ExpiringRetryStore<String, T> {
+
+    private final static Logger log = LoggerFactory.getLogger(ReplicatedExpiringRetryStore.class);
+
+    public static final int DEFAULT_BATCH_SIZE = 256;
+    public static final Duration DEFAULT_BATCH_INTERVAL = Duration.ofMillis(10);
+    public static final int DEFAULT_MAX_PENDING_EVENTS = 100_000;
+
+    /**
+     * Versions of removed and expired messages are dropped at most this often.
+     */
+    private static final long PURGE_INTERVAL_MILLIS = 10_000;
+
+    /**
+     * Builder for {@link ReplicatedExpiringRetryStore}.
+     *
+     * @param <T> Type of items to store
+     */
+    public static class Builder<T>
+            extends AbstractExpiringStore.Builder<String, T, ReplicatedExpiringRetryStore<T>, Builder<T>> {
+        protected final String nodeId;
+        protected final ReplicationTransport transport;
+        protected final Serializer<T> serializer;
+        protected int maxRetries = DEFAULT_RETRIES;
+        protected int batchSize = DEFAULT_BATCH_SIZE;
+        protected Duration batchInterval = DEFAULT_BATCH_INTERVAL;
+        protected int maxPendingEvents = DEFAULT_MAX_PENDING_EVENTS;
+
+        /**
+         * Constructor
+         *
+         * @param nodeId     Id of this node. It has to be unique among all nodes.
+         * @param transport  Transport to the other nodes.
+         * @param serializer Serializer for the messages.
+         */
+        protected Builder(String nodeId, ReplicationTransport transport, Serializer<T> serializer) {
+            this.nodeId = nodeId;
+            this.transport = transport;
+            this.serializer = serializer;
+        }
+
+        /**
+         * Set the default amount of retries. Default is {@link #DEFAULT_RETRIES}.
+         *
+         * @param maxRetries Maximum amount of retries.
+         * @return Reference to self for chaining
+         */
+        public Builder<T> setMaxRetries(int maxRetries) {
+            this.maxRetries = maxRetries;
+            return self();
+        }
+
+        /**
+         * Set the amount of events that are shipped at once. Default is {@link #DEFAULT_BATCH_SIZE}.
+         *
+         * @param batchSize Amount of events.
+         * @return Reference to self for chaining
+         */
+        public Builder<T> setBatchSize(int batchSize) {
+            this.batchSize = batchSize;
+            return self();
+        }
+
+        /**
+         * Set the time after which events are shipped even if their batch is not full. Default is
+         * {@link #DEFAULT_BATCH_INTERVAL}.
+         *
+         * @param batchInterval The interval.
+         * @return Reference to self for chaining
+         */
+        public Builder<T> setBatchInterval(Duration batchInterval) {
+            this.batchInterval = batchInterval;
+            return self();
+        }
+
+        /**
+         * Set the amount of events that are kept while they cannot be shipped. When there are more, the oldest ones
+         * are dropped. Default is {@link #DEFAULT_MAX_PENDING_EVENTS}.
+         *
+         * @param maxPendingEvents Amount of events, at least the batch size.
+         * @return Reference to self for chaining
+         */
+        public Builder<T> setMaxPendingEvents(int maxPendingEvents) {
+            this.maxPendingEvents = maxPendingEvents;
+            return self();
+        }
+
+        @Override
+        protected Builder<T> self() {
+            return this;
+        }
+
+        /**
+         * Create the store and start receiving the events of the other nodes.
+         *
+         * @return The new store.
+         * @throws IllegalArgumentException When the batch size or interval is not positive, or fewer pending events
+         *                                  than a batch are allowed.
+         */
+        @Override
+        public ReplicatedExpiringRetryStore<T> build() {
+            if (batchSize <= 0 || batchInterval.isNegative() || batchInterval.isZero())
+                throw new IllegalArgumentException("Batch size and interval must be positive.");
+            if (maxPendingEvents < batchSize)
+                throw new IllegalArgumentException("At least one batch of pending events must be allowed.");
+            String storeName = (name != null) ? name : "ReplicatedRetryStore-" + counter.incrementAndGet();
+            ReplicatedExpiringRetryStore<T> store = configure(new ReplicatedExpiringRetryStore<>(maxRetries,
+                    storeName, buildScheduler(storeName), lazyExpiry, nodeId, transport, serializer, batchSize,
+                    batchInterval, maxPendingEvents));
+            store.start();
+            return store;
+        }
+    }
+
+    /**
+     * Create a new builder.
+     *
+     * @param nodeId     Id of this node. It has to be unique among all nodes.
+     * @param transport  Transport to the other nodes. It will be closed together with this store.
+     * @param serializer Serializer for the messages.
+     * @param <T>        Type of items to store
+     * @return New instance of {@link Builder}
+     */
+    public static <T> Builder<T> newBuilder(String nodeId, ReplicationTransport transport, Serializer<T> serializer) {
+        return new Builder<>(nodeId, transport, serializer);
+    }
+
+    /**
+     * The last write of an id and the retries of it that each node has used up.
+     */
+    private static final class Version {
+        private final long version;
+        private final String origin;
+        private final long expiresAt;
+        private final int retries;
+        private Map<String, Integer> retriesUsed;
+
+        private Version(long version, String origin, long expiresAt, int retries) {
+            this.version = version;
+            this.origin = origin;
+            this.expiresAt = expiresAt;
+            this.retries = retries;
+        }
+
+        /**
+         * Merge the retries a node has used up. The counts only grow, so duplicate and late events do not count twice.
+         *
+         * @param node        Id of the node.
+         * @param retriesUsed All retries the node has used up.
+         */
+        private void mergeRetriesUsed(String node, int retriesUsed) {
+            if (this.retriesUsed == null)
+                this.retriesUsed = new HashMap<>();
+            this.retriesUsed.merge(node, retriesUsed, Math::max);
+        }
+
+        /**
+         * Count a retry used up by a node.
+         *
+         * @param node Id of the node.
+         * @return All retries the node has used up.
+         */
+        private int useRetry(String node) {
+            if (retriesUsed == null)
+                retriesUsed = new HashMap<>();
+            return retriesUsed.merge(node, 1, Integer::sum);
+        }
+
+        private int getRetriesLeft() {
+            int used = 0;
+            if (retriesUsed != null) {
+                for (int count : retriesUsed.values()) {
+                    used += count;
+                }
+            }
+            return Math.max(0, retries - used);
+        }
+
+        private boolean isOlderThan(long otherVersion, String otherOrigin) {
+            return version < otherVersion || (version == otherVersion && origin.compareTo(otherOrigin) < 0);
+        }
+
+        private boolean isSameAs(long otherVersion, String otherOrigin) {
+            return version == otherVersion && origin.equals(otherOrigin);
+        }
+    }
+
+    private final String nodeId;
+    private final ReplicationTransport transport;
+    private final Serializer<T> serializer;
+    private final int batchSize;
+    private final int maxPendingEvents;
+    private final ScheduledExecutorService shipper;
+    private final Object shipLock = new Object();
+
+    private final Map<String, Version> versions = new HashMap<>();
+    private final Map<String, List<ReplicationEvent>> earlyRetries = new HashMap<>();
+    private final ArrayDeque<ReplicationEvent> pending = new ArrayDeque<>();
+    private long droppedEvents = 0;
+    private long clock = 0;
+    private long lastPurge = 0;
+
+    /**
+     * Constructor
+     * <p>
+     * The store does not receive events before {@link #start()} has been called.
+     *
+     * @param maxRetries       Maximum amount of retries.
+     * @param name             Name of this store.
+     * @param scheduler        The scheduler for the expiry of the messages. It will be closed together with this
+     *                         store. Can be null in lazy expiry mode without background sweeping.
+     * @param lazyExpiry       Use lazy expiry instead of scheduling each message.
+     * @param nodeId           Id of this node. It has to be unique among all nodes.
+     * @param transport        Transport to the other nodes. It will be closed together with this store.
+     * @param serializer       Serializer for the messages.
+     * @param batchSize        Amount of events that are shipped at once.
+     * @param batchInterval    Time after which events are shipped even if their batch is not full.
+     * @param maxPendingEvents Amount of events that are kept while they cannot be shipped.
+     */
+    protected ReplicatedExpiringRetryStore(
+            int maxRetries,
+            String name,
+            ExpiryScheduler scheduler,
+            boolean lazyExpiry,
+            String nodeId,
+            ReplicationTransport transport,
+            Serializer<T> serializer,
+            int batchSize,
+            Duration batchInterval,
+            int maxPendingEvents) {
+        super(maxRetries, name, scheduler, new HashMap<>(), lazyExpiry ? new ArrayDeque<>() : null);
+        this.nodeId = nodeId;
+        this.transport = transport;
+        this.serializer = serializer;
+        this.batchSize = batchSize;
+        this.maxPendingEvents = maxPendingEvents;
+        this.shipper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Replication for " + name);
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = batchInterval.toMillis();
+        shipper.scheduleWithFixedDelay(this::ship, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Start receiving the events of the other nodes.
+     */
+    protected void start() {
+        transport.start(this::receive);
+    }
+
+    /**
+     * Getter
+     *
+     * @return Id of this node.
+     */
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    @Override
+    public synchronized void add(
+            long expiresAtMillis,
+            String id,
+            T message) throws StoreItemExpiredException, StoreItemExistsException {
+        super.add(expiresAtMillis, id, message);
+        emitPut(id);
+    }
+
+    @Override
+    public synchronized void add(
+            long expiresAtMillis,
+            String id,
+            T message,
+            int retriesLeft) throws StoreItemExpiredException, StoreItemExistsException {
+        super.add(expiresAtMillis, id, message, retriesLeft);
+        emitPut(id);
+    }
+
+    @Override
+    public synchronized void put(
+            long expiresAtMillis,
+            String id,
+            T message) throws StoreItemExpiredException {
+        super.put(expiresAtMillis, id, message);
+        emitPut(id);
+    }
+
+    @Override
+    public synchronized void put(
+            long expiresAtMillis,
+            String id,
+            T message,
+            int retriesLeft) throws StoreItemExpiredException {
+        super.put(expiresAtMillis, id, message, retriesLeft);
+        emitPut(id);
+    }
+
+    @Override
+    public synchronized Map<String, ExpiringStoreException> addAll(Collection<? extends StoreItem<String, T>> items) {
+        Map<String, ExpiringStoreException> failures = super.addAll(items);
+        emitPutAll(items, failures);
+        return failures;
+    }
+
+    @Override
+    public synchronized Map<String, ExpiringStoreException> putAll(Collection<? extends StoreItem<String, T>> items) {
+        Map<String, ExpiringStoreException> failures = super.putAll(items);
+        emitPutAll(items, failures);
+        return failures;
+    }
+
+    @Override
+    public synchronized void remove(String id) {
+        ExpiringRetryMessage<String, T> message = storeMap.get(id);
+        super.remove(id);
+        if (message != null)
+            emitRemove(message);
+    }
+
+    @Override
+    public synchronized void removeAll(Collection<String> ids) {
+        List<ExpiringRetryMessage<String, T>> removed = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            ExpiringRetryMessage<String, T> message = storeMap.get(id);
+            if (message != null)
+                removed.add(message);
+        }
+        super.removeAll(ids);
+        for (ExpiringRetryMessage<String, T> message : removed) {
+            emitRemove(message);
+        }
+    }
+
+    @Override
+    public synchronized T retryGet(String id) {
+        ExpiringRetryMessage<String, T> message = storeMap.get(id);
+        int retriesLeft = (message != null) ? message.getRetriesLeft() : 0;
+        T result = super.retryGet(id);
+        if (message != null && retriesLeft > 0 && message.getRetriesLeft() < retriesLeft)
+            emitRetries(message);
+        return result;
+    }
+
+    @Override
+    protected synchronized List<StoreItem<String, T>> attemptAll(List<RetryQueue.Entry<String, T>> due) {
+        int[] retriesLeft = new int[due.size()];
+        for (int i = 0; i < due.size(); i++) {
+            ExpiringRetryMessage<String, T> message = due.get(i).message;
+            retriesLeft[i] = (message != null) ? message.getRetriesLeft() : 0;
+        }
+        List<StoreItem<String, T>> result = super.attemptAll(due);
+        for (int i = 0; i < due.size(); i++) {
+            ExpiringRetryMessage<String, T> message = due.get(i).message;
+            if (message != null && retriesLeft[i] > 0 && message.getRetriesLeft() < retriesLeft[i])
+                emitRetries(message);
+        }
+        return result;
+    }
+
+    /**
+     * Apply a batch of events of other nodes. Writes of this node and writes that have been overtaken by a newer write
+     * are ignored. Retries of a write that has not arrived yet are kept until it arrives.
+     *
+     * @param events The events.
+     */
+    protected synchronized void receive(List<ReplicationEvent> events) {
+        for (ReplicationEvent event : events) {
+            clock = Math.max(clock, event.getVersion());
+            Version current = versions.get(event.getId());
+
+            if (event.getType() == ReplicationEvent.Type.RETRIES) {
+                if (nodeId.equals(event.getNode()))
+                    continue;
+                if (current != null && current.isSameAs(event.getVersion(), event.getOrigin())) {
+                    applyRetries(current, event);
+                } else if (current == null || current.isOlderThan(event.getVersion(), event.getOrigin())) {
+                    earlyRetries.computeIfAbsent(event.getId(), key -> new ArrayList<>()).add(event);
+                }
+                continue;
+            }
+
+            // Writes of this node are already applied. Retries refer to the origin of the write they belong to and
+            // can come from any node.
+            if (nodeId.equals(event.getOrigin()))
+                continue;
+            if (current != null && !current.isOlderThan(event.getVersion(), event.getOrigin()))
+                continue;
+            Version version = new Version(event.getVersion(), event.getOrigin(), event.getExpiresAt(),
+                    event.getRetriesLeft());
+            versions.put(event.getId(), version);
+
+            if (event.getType() == ReplicationEvent.Type.REMOVE) {
+                removeInternal(event.getId(), RemovalCause.REMOVED);
+                takeEarlyRetries(event.getId(), version);
+                continue;
+            }
+
+            try {
+                putInternal(new ExpiringRetryMessage<>(this, event.getExpiresAt(), event.getId(),
+                        serializer.deserialize(event.getPayload()), event.getRetriesLeft()));
+            } catch (StoreItemExpiredException e) {
+                // Expired on the way, the local copy of an older write is not valid anymore either.
+                removeInternal(event.getId(), RemovalCause.REPLACED);
+            }
+            for (ReplicationEvent early : takeEarlyRetries(event.getId(), version)) {
+                applyRetries(version, early);
+            }
+        }
+    }
+
+    /**
+     * Merge the retries a node has used up of the current write of an id and lower the retries left of its message.
+     *
+     * @param version The current write.
+     * @param event   The {@link ReplicationEvent.Type#RETRIES} event of the write.
+     */
+    private void applyRetries(Version version, ReplicationEvent event) {
+        version.mergeRetriesUsed(event.getNode(), event.getRetriesUsed());
+        ExpiringRetryMessage<String, T> message = storeMap.get(event.getId());
+        if (message != null)
+            message.lowerRetriesTo(version.getRetriesLeft());
+    }
+
+    /**
+     * Take the retries that arrived before the write they belong to. Retries of writes that are older than the new
+     * one are dropped, retries of newer writes are kept.
+     *
+     * @param id      Id of the message.
+     * @param version The new write of the id.
+     * @return The retries of the new write.
+     */
+    private List<ReplicationEvent> takeEarlyRetries(String id, Version version) {
+        List<ReplicationEvent> buffered = earlyRetries.get(id);
+        if (buffered == null)
+            return Collections.emptyList();
+        List<ReplicationEvent> matching = new ArrayList<>();
+        buffered.removeIf(event -> {
+            if (version.isSameAs(event.getVersion(), event.getOrigin())) {
+                matching.add(event);
+                return true;
+            }
+            return !version.isOlderThan(event.getVersion(), event.getOrigin());
+        });
+        if (buffered.isEmpty())
+            earlyRetries.remove(id);
+        return matching;
+    }
+
+    /**
+     * Version and emit the current state of the message with this id, if it is in the store.
+     *
+     * @param id Id of the message
+     */
+    private void emitPut(String id) {
+        ExpiringRetryMessage<String, T> message = storeMap.get(id);
+        if (message == null)
+            return;
+        Version version = nextVersion(id, message.getExpiresAtMillis(), message.getRetriesLeft());
+        emit(ReplicationEvent.put(id, nodeId, version.version, message.getExpiresAtMillis(),
+                message.getRetriesLeft(), serializer.serialize(message.getMessage())));
+    }
+
+    private void emitPutAll(
+            Collection<? extends StoreItem<String, T>> items,
+            Map<String, ExpiringStoreException> failures) {
+        for (StoreItem<String, T> item : items) {
+            if (!failures.containsKey(item.getId()))
+                emitPut(item.getId());
+        }
+    }
+
+    private void emitRemove(ExpiringRetryMessage<String, T> message) {
+        Version version = nextVersion(message.getId(), message.getExpiresAtMillis(), 0);
+        emit(ReplicationEvent.remove(message.getId(), nodeId, version.version, message.getExpiresAtMillis()));
+    }
+
+    /**
+     * Count a retry this node has used up of a message and emit all retries it has used up of its write, as long as it
+     * is still the last write of its id.
+     *
+     * @param message The message.
+     */
+    private void emitRetries(ExpiringRetryMessage<String, T> message) {
+        Version version = versions.get(message.getId());
+        ExpiringRetryMessage<String, T> current = storeMap.get(message.getId());
+        if (version == null || (current != null && current != message))
+            return;
+        emit(ReplicationEvent.retries(message.getId(), version.origin, version.version, version.expiresAt, nodeId,
+                version.useRetry(nodeId)));
+    }
+
+    private Version nextVersion(String id, long expiresAt, int retries) {
+        clock = Math.max(currentTimeMillis(), clock + 1);
+        Version version = new Version(clock, nodeId, expiresAt, retries);
+        versions.put(id, version);
+        // Retries kept for older writes will not be needed anymore.
+        takeEarlyRetries(id, version);
+        return version;
+    }
+
+    private void emit(ReplicationEvent event) {
+        pending.add(event);
+        dropOldestPending();
+        if (pending.size() >= batchSize) {
+            try {
+                shipper.execute(this::ship);
+            } catch (RejectedExecutionException e) {
+                // The store is closing and ships its last batch itself.
+            }
+        }
+    }
+
+    /**
+     * Ship all pending events. Batches are shipped one after the other, in the order of their events.
+     */
+    private void ship() {
+        synchronized (shipLock) {
+            List<ReplicationEvent> batch;
+            synchronized (this) {
+                purgeVersions();
+                if (droppedEvents > 0) {
+                    log.error("Dropped the {} oldest events of {} because more than {} events could not be shipped.",
+                            droppedEvents, getName(), maxPendingEvents);
+                    droppedEvents = 0;
+                }
+                if (pending.isEmpty())
+                    return;
+                batch = new ArrayList<>(pending);
+                pending.clear();
+            }
+            try {
+                transport.publish(batch);
+            } catch (RuntimeException e) {
+                log.warn("Cannot ship {} events of {}, shipping them again with the next batch.", batch.size(),
+                        getName(), e);
+                synchronized (this) {
+                    for (int i = batch.size() - 1; i >= 0; i--) {
+                        pending.addFirst(batch.get(i));
+                    }
+                    dropOldestPending();
+                }
+            }
+        }
+    }
+
+    /**
+     * Drop the oldest pending events beyond {@link #maxPendingEvents}. They are reported with the next batch.
+     */
+    private void dropOldestPending() {
+        while (pending.size() > maxPendingEvents) {
+            pending.pollFirst();
+            droppedEvents++;
+        }
+    }
+
+    /**
+     * Drop the versions of messages that are neither in the store nor can come back by a delayed write, and the
+     * retries of writes that have not arrived before their messages would have expired.
+     */
+    private void purgeVersions() {
+        long now = currentTimeMillis();
+        if (now - lastPurge < PURGE_INTERVAL_MILLIS)
+            return;
+        lastPurge = now;
+        Iterator<Map.Entry<String, Version>> iterator = versions.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Version> entry = iterator.next();
+            if (entry.getValue().expiresAt < now && !storeMap.containsKey(entry.getKey()))
+                iterator.remove();
+        }
+        Iterator<List<ReplicationEvent>> buffered = earlyRetries.values().iterator();
+        while (buffered.hasNext()) {
+            List<ReplicationEvent> events = buffered.next();
+            events.removeIf(event -> event.getExpiresAt() < now);
+            if (events.isEmpty())
+                buffered.remove();
+        }
+    }
+
+    /**
+     * Ship all pending events now instead of waiting for the batch interval.
+     */
+    public void flush() {
+        ship();
+    }
+
+    /**
+     * Ship the pending events, close the transport and the store.
+     */
+    @Override
+    public void close() {
+        shipper.shutdown();
+        try {
+            if (!shipper.awaitTermination(1, TimeUnit.MINUTES))
+                log.warn("Replication of {} did not finish in time.", getName());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        ship();
+        synchronized (this) {
+            if (!pending.isEmpty())
+                log.error("Dropping {} events of {} that could not be shipped.", pending.size(), getName());
+        }
+        transport.close();
+        super.close();
+    }
+}
@@ -0,0 +1,146 @@
+package co.arago.util.collections.expiringstore;
+
+import co.arago.util.collections.expiringstore.messages.ExpiringRetryMessage;
+import co.arago.util.collections.expiringstore.retry.Backoff;
+import co.arago.util.collections.expiringstore.scheduler.ScheduledExpiry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * The next retry attempts of the messages of an {@link ExpiringRetryStore}.
+ * <p>
+ * Each attempt is a task on the scheduler of the store, so no thread of its own waits for the attempts. A task that is
+ * due moves its attempt to a lock-free queue of due attempts, from which the store takes them in batches. Every
+ * message has at most one pending attempt. When a message leaves the store, its attempt is cancelled and drops its
+ * reference to the message, so neither the scheduler nor the queue of due attempts keep it reachable.
+ *
+ * @param <K> Type of the ids of the items
+ * @param <T> Type of items in the store
+ */
+class RetryQueue<K, T> {
+
+    /**
+     * A retry attempt of a message.
+     *
+     * @param <K> Type of the ids of the items
+     * @param <T> Type of items in the store
+     */
+    static final class Entry<K, T> implements Runnable {
+        // Null once the attempt has been cancelled.
+        volatile ExpiringRetryMessage<K, T> message;
+        final int attempt;
+        private final RetryQueue<K, T> queue;
+        private volatile ScheduledExpiry scheduled;
+
+        private Entry(RetryQueue<K, T> queue, ExpiringRetryMessage<K, T> message, int attempt) {
+            this.queue = queue;
+            this.message = message;
+            this.attempt = attempt;
+        }
+
+        /**
+         * The attempt is due.
+         */
+        @Override
+        public void run() {
+            if (message == null)
+                return;
+            queue.due.offer(this);
+            queue.onDue.run();
+        }
+
+        private void cancel() {
+            message = null;
+            ScheduledExpiry scheduled = this.scheduled;
+            if (scheduled != null)
+                scheduled.cancel();
+        }
+    }
+
+    private final AbstractExpiringStore<K, T, ?> store;
+    private final Backoff backoff;
+    private final Runnable onDue;
+
+    private final ConcurrentHashMap<ExpiringRetryMessage<K, T>, Entry<K, T>> pending = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Entry<K, T>> due = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Constructor
+     *
+     * @param store   The store whose scheduler runs the attempts.
+     * @param backoff The backoff between attempts.
+     * @param onDue   Called on the thread of the scheduler whenever an attempt has become due.
+     */
+    RetryQueue(AbstractExpiringStore<K, T, ?> store, Backoff backoff, Runnable onDue) {
+        this.store = store;
+        this.backoff = backoff;
+        this.onDue = onDue;
+    }
+
+    /**
+     * Schedule an attempt of a message. Nothing is scheduled if the message expires before the attempt is due or the
+     * scheduler has been closed.
+     *
+     * @param message The message.
+     * @param attempt Number of the attempt, starting with 0.
+     * @param now     The current time of the store in milliseconds since the epoch.
+     */
+    void schedule(ExpiringRetryMessage<K, T> message, int attempt, long now) {
+        long dueAt = now + backoff.delayMillis(attempt);
+        if (message.isExpiredAt(dueAt))
+            return;
+
+        Entry<K, T> entry = new Entry<>(this, message, attempt);
+        Entry<K, T> previous = pending.put(message, entry);
+        if (previous != null)
+            previous.cancel();
+        try {
+            entry.scheduled = store.scheduleTask(entry, dueAt);
+        } catch (IllegalStateException e) {
+            // The store is closing.
+            pending.remove(message, entry);
+        }
+    }
+
+    /**
+     * Take the due attempts without waiting. Cancelled attempts are skipped.
+     *
+     * @param max Maximum amount of attempts.
+     * @return The due attempts, possibly empty.
+     */
+    List<Entry<K, T>> pollDue(int max) {
+        List<Entry<K, T>> result = new ArrayList<>();
+        Entry<K, T> entry;
+        while (result.size() < max && (entry = due.poll()) != null) {
+            ExpiringRetryMessage<K, T> message = entry.message;
+            if (message != null && pending.remove(message, entry))
+                result.add(entry);
+        }
+        return result;
+    }
+
+    /**
+     * Drop the pending attempt of a message that has left the store.
+     *
+     * @param message The message.
+     */
+    void cancel(ExpiringRetryMessage<K, T> message) {
+        Entry<K, T> entry = pending.remove(message);
+        if (entry != null)
+            entry.cancel();
+    }
+
+    /**
+     * Drop all scheduled attempts.
+     */
+    void clear() {
+        for (Entry<K, T> entry : pending.values()) {
+            entry.cancel();
+        }
+        pending.clear();
+        due.clear();
+    }
+}
@@ -0,0 +1,50 @@
+package co.arago.util.collections.expiringstore;
+
+import co.arago.util.collections.expiringstore.listener.RemovalCause;
+import co.arago.util.collections.expiringstore.stats.LatencyHistogram;
+import co.arago.util.collections.expiringstore.stats.StoreStats;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records the statistics of a store with striped counters. Only created if a store records statistics.
+ */
+class StatsRecorder {
+
+    final LongAdder hits = new LongAdder();
+    final LongAdder misses = new LongAdder();
+    final LongAdder adds = new LongAdder();
+    final LongAdder puts = new LongAdder();
+    final LongAdder[] removals = new LongAdder[RemovalCause.values().length];
+    final LatencyHistogram addLatency = new LatencyHistogram();
+    final LatencyHistogram addLockWait = new LatencyHistogram();
+    final LatencyHistogram getLatency = new LatencyHistogram();
+    final LatencyHistogram retryGetLatency = new LatencyHistogram();
+
+    StatsRecorder() {
+        for (int i = 0; i < removals.length; i++) {
+            removals[i] = new LongAdder();
+        }
+    }
+
+    void recordRead(boolean hit) {
+        if (hit)
+            hits.increment();
+        else
+            misses.increment();
+    }
+
+    void recordRemoval(RemovalCause cause) {
+        removals[cause.ordinal()].increment();
+    }
+
+    StoreStats snapshot(String name, long timestamp, int size, long pendingExpiries) {
+        long[] removalCounts = new long[removals.length];
+        for (int i = 0; i < removals.length; i++) {
+            removalCounts[i] = removals[i].sum();
+        }
+        return new StoreStats(name, timestamp, size, pendingExpiries, hits.sum(), misses.sum(),
+                adds.sum(), puts.sum(), removalCounts, addLatency.snapshot(), addLockWait.snapshot(), getLatency.snapshot(),
+                retryGetLatency.snapshot());
+    }
+}
@@ -0,0 +1,40 @@
+package co.arago.util.collections.expiringstore;
+
+import java.time.Instant;
+
+/**
+ * An item for the batch operations of the expiring stores.
+ *
+ * @param <K> Type of the id
+ * @param <T> Type of the message
+ */
+public class StoreItem<K, T> {
+    protected final Instant expiresAt;
+    protected final K id;
+    protected final T message;
+
+    /**
+     * Constructor
+     *
+     * @param expiresAt Timestamp after which the message expires
+     * @param id        The unique id of the message
+     * @param message   The message itself to store
+     */
+    public StoreItem(Instant expiresAt, K id, T message) {
+        this.expiresAt = expiresAt;
+        this.id = id;
+        this.message = message;
+    }
+
+    public Instant getExpiresAt() {
+        return expiresAt;
+    }
+
+    public K getId() {
+        return id;
+    }
+
+    public T getMessage() {
+        return message;
+    }
+}
@@ -0,0 +1,439 @@
+package co.arago.util.collections.expiringstore;
+
+import co.arago.util.collections.expiringstore.exceptions.ExpiringStoreException;
+import co.arago.util.collections.expiringstore.exceptions.StoreItemExistsException;
+import co.arago.util.collections.expiringstore.exceptions.StoreItemExpiredException;
+import co.arago.util.collections.expiringstore.messages.ExpiringRetryMessage;
+import co.arago.util.collections.expiringstore.persistent.LogRecord;
+import co.arago.util.collections.expiringstore.persistent.Serializer;
+import co.arago.util.collections.expiringstore.scheduler.ExpiryScheduler;
+import co.arago.util.collections.expiringstore.tiered.ColdTier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * An {@link ExpiringRetryStore} with a bounded hot tier on the heap and a cold tier on the local disk.
+ * <p>
+ * The hot tier is bounded by {@link Builder#setMaxEntries(long)}. Messages it evicts are serialized and spilled to a
+ * {@link ColdTier} instead of being dropped, so the store can hold far more messages than fit on the heap. The cold
+ * tier still keeps an index entry of about 80 bytes plus the id per message on the heap, see {@link ColdTier}. Reads
+ * of a message in the cold tier via get, retryGet, getAll, getOrLoad, touch or extend move it back to the hot tier
+ * transparently, with its expiry and retries left.
+ * <p>
+ * Expiry is enforced in both tiers. Messages in the hot tier expire as in any store. The cold tier is checked on reads
+ * and swept regularly on the scheduler of the store, which removes expired messages without deserializing them. The
+ * removal listener is not notified about messages that expire in the cold tier.
+ * <p>
+ * The cold tier is not durable, see {@link PersistentExpiringRetryStore} for a store that survives restarts. Iteration
+ * via {@link #stream()} and its siblings only covers the hot tier.
+ *
+ * @param <T> Type of items to store
+ */
+public class TieredExpiringRetryStore<T> extends ExpiringRetryStore<String, T> {
+
+    private final static Logger log = LoggerFactory.getLogger(TieredExpiringRetryStore.class);
+
+    public static final Duration DEFAULT_COLD_SWEEP_INTERVAL = Duration.ofMinutes(1);
+
+    /**
+     * Builder for {@link TieredExpiringRetryStore}.
+     *
+     * @param <T> Type of items to store
+     */
+    public static class Builder<T>
+            extends AbstractExpiringStore.Builder<String, T, TieredExpiringRetryStore<T>, Builder<T>> {
+        protected final Path directory;
+        protected final Serializer<T> serializer;
+        protected int maxRetries = DEFAULT_RETRIES;
+        protected int segmentSize = ColdTier.DEFAULT_SEGMENT_SIZE;
+        protected Duration coldSweepInterval = DEFAULT_COLD_SWEEP_INTERVAL;
+
+        /**
+         * Constructor
+         *
+         * @param directory  Directory of the cold tier.
+         * @param serializer Serializer for the messages.
+         */
+        protected Builder(Path directory, Serializer<T> serializer) {
+            this.directory = directory;
+            this.serializer = serializer;
+        }
+
+        /**
+         * Set the default amount of retries. Default is {@link #DEFAULT_RETRIES}.
+         *
+         * @param maxRetries Maximum amount of retries.
+         * @return Reference to self for chaining
+         */
+        public Builder<T> setMaxRetries(int maxRetries) {
+            this.maxRetries = maxRetries;
+            return self();
+        }
+
+        /**
+         * Set the size of the segment files of the cold tier. Default is {@link ColdTier#DEFAULT_SEGMENT_SIZE}.
+         *
+         * @param segmentSize Size in bytes.
+         * @return Reference to self for chaining
+         */
+        public Builder<T> setSegmentSize(int segmentSize) {
+            this.segmentSize = segmentSize;
+            return self();
+        }
+
+        /**
+         * Set the interval of the sweeps that remove expired messages from the cold tier. Default is
+         * {@link #DEFAULT_COLD_SWEEP_INTERVAL}.
+         *
+         * @param coldSweepInterval Interval between two sweeps.
+         * @return Reference to self for chaining
+         */
+        public Builder<T> setColdSweepInterval(Duration coldSweepInterval) {
+            this.coldSweepInterval = coldSweepInterval;
+            return self();
+        }
+
+        @Override
+        protected Builder<T> self() {
+            return this;
+        }
+
+        /**
+         * Create the store with an empty cold tier.
+         *
+         * @return The new store.
+         * @throws IllegalArgumentException When the hot tier is not bounded by {@link #setMaxEntries(long)}, is
+         *                                  bounded by weight or lazy expiry has been set.
+         * @throws UncheckedIOException     When the directory of the cold tier cannot be created.
+         */
+        @Override
+        public TieredExpiringRetryStore<T> build() {
+            if (maxEntries <= 0 || maxWeight > 0)
+                throw new IllegalArgumentException("The hot tier must be bounded by setMaxEntries only.");
+            if (lazyExpiry)
+                throw new IllegalArgumentException("A tiered store needs a scheduler to sweep its cold tier.");
+            String storeName = (name != null) ? name : "TieredRetryStore-" + counter.incrementAndGet();
+            try {
+                TieredExpiringRetryStore<T> store = configure(new TieredExpiringRetryStore<>(maxRetries, storeName,
+                        buildScheduler(storeName), new ColdTier(directory, storeName, segmentSize), serializer,
+                        coldSweepInterval.toMillis()));
+                store.scheduleColdSweep();
+                return store;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Create a new builder.
+     *
+     * @param directory  Directory of the cold tier. It is created if it does not exist.
+     * @param serializer Serializer for the messages.
+     * @param <T>        Type of items to store
+     * @return New instance of {@link Builder}
+     */
+    public static <T> Builder<T> newBuilder(Path directory, Serializer<T> serializer) {
+        return new Builder<>(directory, serializer);
+    }
+
+    private final ColdTier coldTier;
+    private final Serializer<T> serializer;
+    private final long coldSweepMillis;
+
+    /**
+     * Constructor
+     * <p>
+     * The hot tier is unbounded until the store has been configured by its {@link Builder}.
+     *
+     * @param maxRetries      Maximum amount of retries.
+     * @param name            Name of this store.
+     * @param scheduler       The scheduler for the expiry of the messages and the sweeps of the cold tier. It will be
+     *                        closed together with this store.
+     * @param coldTier        The cold tier. It will be closed together with this store.
+     * @param serializer      Serializer for the messages.
+     * @param coldSweepMillis Interval between two sweeps of the cold tier in milliseconds.
+     */
+    protected TieredExpiringRetryStore(
+            int maxRetries,
+            String name,
+            ExpiryScheduler scheduler,
+            ColdTier coldTier,
+            Serializer<T> serializer,
+            long coldSweepMillis) {
+        super(maxRetries, name, scheduler, new HashMap<>());
+        this.coldTier = coldTier;
+        this.serializer = serializer;
+        this.coldSweepMillis = coldSweepMillis;
+    }
+
+    /**
+     * Spill a message evicted from the hot tier to the cold tier. If it cannot be written, it is evicted for good.
+     *
+     * @param message The evicted message.
+     * @return true if the message is in the cold tier now.
+     */
+    @Override
+    protected boolean spill(ExpiringRetryMessage<String, T> message) {
+        T value = message.getMessage();
+        if (value == null)
+            return false;
+        try {
+            coldTier.put(message.getId(), message.getExpiresAtMillis(), message.getRetriesLeft(),
+                    serializer.serialize(value));
+            return true;
+        } catch (IOException e) {
+            log.error("Cannot spill message {} of {}. Evicting it.", message.getId(), getName(), e);
+            return false;
+        }
+    }
+
+    /**
+     * Move the message with this id from the cold tier back to the hot tier, unless it has expired, and read it. The
+     * payload is read and deserialized without holding the lock of the store. The lock is only taken to move the
+     * message and read it in one go, so it cannot be spilled again in between. If the message has changed in the cold
+     * tier while it has been read, it is read once more.
+     *
+     * @param id   Id of the message
+     * @param read The read of the message in the hot tier.
+     * @param <R>  Type of the result of the read
+     * @return The result of the read.
+     */
+    private <R> R promoted(String id, Supplier<R> read) {
+        for (;;) {
+            synchronized (this) {
+                if (storeMap.containsKey(id))
+                    return read.get();
+            }
+            ColdTier.Copy copy;
+            try {
+                copy = coldTier.read(id);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            if (copy == null) {
+                synchronized (this) {
+                    return read.get();
+                }
+            }
+            LogRecord record = copy.getRecord();
+            T value = serializer.deserialize(record.getPayload());
+
+            synchronized (this) {
+                try {
+                    if (!coldTier.remove(id, copy))
+                        continue;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                try {
+                    putInternal(new ExpiringRetryMessage<>(this, record.getExpiresAt(), id, value,
+                            record.getRetriesLeft()));
+                } catch (StoreItemExpiredException e) {
+                    // Expired in the cold tier.
+                }
+                return read.get();
+            }
+        }
+    }
+
+    private void removeCold(String id) {
+        try {
+            coldTier.remove(id);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void checkNotCold(String id) throws StoreItemExistsException {
+        if (coldTier.contains(id, currentTimeMillis()))
+            throw new StoreItemExistsException("Not adding message " + id + " because it already exists.");
+        removeCold(id);
+    }
+
+    @Override
+    public synchronized void add(
+            long expiresAtMillis,
+            String id,
+            T message) throws StoreItemExpiredException, StoreItemExistsException {
+        checkNotCold(id);
+        super.add(expiresAtMillis, id, message);
+    }
+
+    @Override
+    public synchronized void add(
+            long expiresAtMillis,
+            String id,
+            T message,
+            int retriesLeft) throws StoreItemExpiredException, StoreItemExistsException {
+        checkNotCold(id);
+        super.add(expiresAtMillis, id, message, retriesLeft);
+    }
+
+    @Override
+    public synchronized void put(
+            long expiresAtMillis,
+            String id,
+            T message) throws StoreItemExpiredException {
+        removeCold(id);
+        super.put(expiresAtMillis, id, message);
+    }
+
+    @Override
+    public synchronized void put(
+            long expiresAtMillis,
+            String id,
+            T message,
+            int retriesLeft) throws StoreItemExpiredException {
+        removeCold(id);
+        super.put(expiresAtMillis, id, message, retriesLeft);
+    }
+
+    @Override
+    public synchronized Map<String, ExpiringStoreException> addAll(Collection<? extends StoreItem<String, T>> items) {
+        Map<String, ExpiringStoreException> failures = new HashMap<>();
+        List<StoreItem<String, T>> hot = new ArrayList<>(items.size());
+        for (StoreItem<String, T> item : items) {
+            try {
+                checkNotCold(item.getId());
+                hot.add(item);
+            } catch (StoreItemExistsException e) {
+                failures.put(item.getId(), e);
+            }
+        }
+        failures.putAll(super.addAll(hot));
+        return failures;
+    }
+
+    @Override
+    public synchronized Map<String, ExpiringStoreException> putAll(Collection<? extends StoreItem<String, T>> items) {
+        for (StoreItem<String, T> item : items) {
+            removeCold(item.getId());
+        }
+        return super.putAll(items);
+    }
+
+    @Override
+    public T get(String id) {
+        return promoted(id, () -> super.get(id));
+    }
+
+    @Override
+    public T retryGet(String id) {
+        return promoted(id, () -> super.retryGet(id));
+    }
+
+    @Override
+    public Map<String, T> getAll(Collection<String> ids) {
+        for (String id : ids) {
+            promoted(id, () -> null);
+        }
+        return super.getAll(ids);
+    }
+
+    @Override
+    protected ExpiringRetryMessage<String, T> readMessage(String id) {
+        return promoted(id, () -> super.readMessage(id));
+    }
+
+    @Override
+    public synchronized void remove(String id) {
+        super.remove(id);
+        removeCold(id);
+    }
+
+    @Override
+    public synchronized void removeAll(Collection<String> ids) {
+        super.removeAll(ids);
+        for (String id : ids) {
+            removeCold(id);
+        }
+    }
+
+    /**
+     * Remove the expired messages from the cold tier. This runs on the scheduler of the store regularly.
+     *
+     * @return Amount of expired messages removed.
+     * @throws UncheckedIOException When the cold tier cannot be read or written.
+     */
+    public int sweepColdTier() {
+        try {
+            return coldTier.removeExpired(currentTimeMillis());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void scheduleColdSweep() {
+        try {
+            schedule(() -> {
+                try {
+                    sweepColdTier();
+                } catch (UncheckedIOException e) {
+                    log.error("Cannot sweep the cold tier of {}.", getName(), e);
+                }
+                scheduleColdSweep();
+            }, currentTimeMillis() + coldSweepMillis);
+        } catch (IllegalStateException e) {
+            // The scheduler has been closed together with this store.
+        }
+    }
+
+    /**
+     * Getter
+     *
+     * @return Amount of messages in both tiers. Messages that have expired in the cold tier are counted until they are
+     *         swept.
+     */
+    @Override
+    public int size() {
+        return super.size() + coldTier.size();
+    }
+
+    /**
+     * Getter
+     *
+     * @return Amount of messages in the hot tier.
+     */
+    public int getHotSize() {
+        return super.size();
+    }
+
+    /**
+     * Getter
+     *
+     * @return Amount of messages in the cold tier.
+     */
+    public int getColdSize() {
+        return coldTier.size();
+    }
+
+    /**
+     * Getter
+     *
+     * @return Bytes of the files of the cold tier on disk.
+     */
+    public long getColdDiskBytes() {
+        return coldTier.getDiskBytes();
+    }
+
+    /**
+     * Close the store and delete the files of its cold tier. This Store cannot be used thereafter.
+     */
+    @Override
+    public void close() {
+        super.close();
+        coldTier.close();
+    }
+}
@@ -0,0 +1,75 @@
+package co.arago.util.collections.expiringstore.clock;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A clock that caches the current time in a volatile field. A daemon thread updates it once per resolution, so a read
+ * is a plain memory access instead of a call to the system clock. The time may lag behind by up to one resolution.
+ * <p>
+ * One coarse clock can be shared by any number of stores. Closing a store does not close its clock.
+ */
+public class CoarseClock implements StoreClock, AutoCloseable {
+
+    private final Thread ticker;
+    private final long resolutionNanos;
+
+    private volatile long millis = System.currentTimeMillis();
+    private volatile boolean running = true;
+
+    /**
+     * Constructor
+     *
+     * @param name       Name of the thread that updates the time.
+     * @param resolution Interval of the updates. Must be positive.
+     */
+    public CoarseClock(String name, Duration resolution) {
+        if (resolution.isNegative() || resolution.isZero())
+            throw new IllegalArgumentException("The resolution must be positive.");
+        this.resolutionNanos = resolution.toNanos();
+        this.ticker = new Thread(this::tick, name);
+        this.ticker.setDaemon(true);
+        this.ticker.start();
+    }
+
+    /**
+     * Constructor with a resolution of one millisecond.
+     *
+     * @param name Name of the thread that updates the time.
+     */
+    public CoarseClock(String name) {
+        this(name, Duration.ofMillis(1));
+    }
+
+    private void tick() {
+        while (running) {
+            millis = System.currentTimeMillis();
+            LockSupport.parkNanos(this, resolutionNanos);
+        }
+    }
+
+    /**
+     * Getter
+     *
+     * @return The cached time in milliseconds since the epoch.
+     */
+    @Override
+    public long millis() {
+        return millis;
+    }
+
+    /**
+     * Stop the thread that updates the time. The time does not move anymore thereafter.
+     */
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(ticker);
+        try {
+            ticker.join(TimeUnit.NANOSECONDS.toMillis(resolutionNanos) + 1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
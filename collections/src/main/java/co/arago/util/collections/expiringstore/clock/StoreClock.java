@@ -0,0 +1,21 @@
+package co.arago.util.collections.expiringstore.clock;
+
+/**
+ * The time source of an expiring store. It is asked for the current time on every add, put and read, so it should be
+ * cheap.
+ */
+@FunctionalInterface
+public interface StoreClock {
+
+    /**
+     * The system clock via {@link System#currentTimeMillis()}.
+     */
+    StoreClock SYSTEM = System::currentTimeMillis;
+
+    /**
+     * Getter
+     *
+     * @return The current time in milliseconds since the epoch.
+     */
+    long millis();
+}
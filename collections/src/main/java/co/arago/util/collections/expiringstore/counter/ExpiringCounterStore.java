@@ -0,0 +1,419 @@
+package co.arago.util.collections.expiringstore.counter;
+
+import co.arago.util.collections.expiringstore.clock.StoreClock;
+import co.arago.util.collections.expiringstore.scheduler.ExpiryScheduler;
+import co.arago.util.collections.expiringstore.scheduler.SharedExpiryScheduler;
+import co.arago.util.collections.expiringstore.scheduler.TimerExpiryScheduler;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A store of primitive long counters per key that count within a time window, i.e. for rate limits per client.
+ * <p>
+ * The window is divided into buckets. With a single bucket, the default, the counters count in fixed windows aligned
+ * to multiples of the window since the epoch and start again at zero with each new window. With more buckets, a counter
+ * is the sum of its current bucket and the previous ones of the window, so it slides with the granularity of a bucket.
+ * <p>
+ * Counters have no timers. Each counter rolls its buckets forward itself when it is used in a new bucket. One task on
+ * the scheduler of the store removes all counters that have not been used within the last window at once, see
+ * {@link #rollover()}. Once a counter exists, incrementing it allocates nothing.
+ * <p>
+ * There is no store-wide lock. Each counter is updated under its own monitor, so increments of one key are atomic and
+ * increments of different keys do not contend.
+ *
+ * @param <K> Type of the keys
+ */
+public class ExpiringCounterStore<K> implements AutoCloseable {
+
+    protected static final AtomicInteger counter = new AtomicInteger(0);
+
+    /**
+     * Builder for {@link ExpiringCounterStore}.
+     *
+     * @param <K> Type of the keys
+     */
+    public static class Builder<K> {
+        protected String name;
+        protected Duration window;
+        protected int buckets = 1;
+        protected StoreClock clock = StoreClock.SYSTEM;
+        protected ExpiryScheduler scheduler;
+        protected SharedExpiryScheduler sharedScheduler;
+
+        /**
+         * Set the name of the store. An automatic name is generated if this is not set.
+         *
+         * @param name Name of the store.
+         * @return Reference to self for chaining
+         */
+        public Builder<K> setName(String name) {
+            this.name = name;
+            return this;
+        }
+
+        /**
+         * Set the time window of the counters. Required.
+         *
+         * @param window The window. Must be at least one millisecond per bucket.
+         * @return Reference to self for chaining
+         */
+        public Builder<K> setWindow(Duration window) {
+            this.window = window;
+            return this;
+        }
+
+        /**
+         * Set the amount of buckets of the window. 1 counts in fixed windows, more buckets let the window slide. Default
+         * is 1.
+         *
+         * @param buckets Amount of buckets, at least 1.
+         * @return Reference to self for chaining
+         */
+        public Builder<K> setBuckets(int buckets) {
+            this.buckets = buckets;
+            return this;
+        }
+
+        /**
+         * Set the time source of the windows. {@link StoreClock#SYSTEM} by default.
+         *
+         * @param clock The clock.
+         * @return Reference to self for chaining
+         */
+        public Builder<K> setClock(StoreClock clock) {
+            this.clock = clock;
+            return this;
+        }
+
+        /**
+         * Set an own scheduler for the rollover. It will be closed together with the store.
+         *
+         * @param scheduler The scheduler.
+         * @return Reference to self for chaining
+         */
+        public Builder<K> setScheduler(ExpiryScheduler scheduler) {
+            this.scheduler = scheduler;
+            return this;
+        }
+
+        /**
+         * Register the store with a scheduler shared among many stores. Closing the store only detaches it from the
+         * shared scheduler.
+         *
+         * @param sharedScheduler The shared scheduler.
+         * @return Reference to self for chaining
+         */
+        public Builder<K> setSharedScheduler(SharedExpiryScheduler sharedScheduler) {
+            this.sharedScheduler = sharedScheduler;
+            return this;
+        }
+
+        /**
+         * Create the store.
+         *
+         * @return The new store.
+         * @throws IllegalArgumentException When the window is missing or shorter than one millisecond per bucket.
+         */
+        public ExpiringCounterStore<K> build() {
+            if (window == null)
+                throw new IllegalArgumentException("The window is required.");
+            if (buckets < 1 || window.toMillis() < buckets)
+                throw new IllegalArgumentException("There must be at least one bucket of at least one millisecond.");
+
+            String storeName = (name != null) ? name : "CounterStore-" + counter.incrementAndGet();
+            ExpiryScheduler storeScheduler;
+            if (sharedScheduler != null)
+                storeScheduler = sharedScheduler.register(storeName);
+            else if (scheduler != null)
+                storeScheduler = scheduler;
+            else
+                storeScheduler = new TimerExpiryScheduler("Timer for " + storeName);
+
+            ExpiringCounterStore<K> store = new ExpiringCounterStore<>(storeName, storeScheduler, this);
+            store.scheduleRollover();
+            return store;
+        }
+    }
+
+    /**
+     * Create a new builder.
+     *
+     * @param <K> Type of the keys
+     * @return New instance of {@link Builder}
+     */
+    public static <K> Builder<K> newBuilder() {
+        return new Builder<>();
+    }
+
+    /**
+     * The buckets of one key. All fields are guarded by the monitor of the counter.
+     */
+    private static final class Counter {
+        private final long[] counts;
+        private long bucket;
+        private long total;
+        private boolean removed;
+
+        private Counter(int buckets, long bucket) {
+            this.counts = new long[buckets];
+            this.bucket = bucket;
+        }
+
+        /**
+         * Move to a newer bucket and clear the buckets that have left the window.
+         *
+         * @param now The current bucket.
+         */
+        private void roll(long now) {
+            if (now <= bucket)
+                return;
+            if (now - bucket >= counts.length) {
+                Arrays.fill(counts, 0L);
+                total = 0;
+            } else {
+                for (long next = bucket + 1; next <= now; next++) {
+                    int index = (int) (next % counts.length);
+                    total -= counts[index];
+                    counts[index] = 0;
+                }
+            }
+            bucket = now;
+        }
+
+        private void add(long delta) {
+            counts[(int) (bucket % counts.length)] += delta;
+            total += delta;
+        }
+    }
+
+    private final String name;
+    private final ExpiryScheduler scheduler;
+    private final StoreClock clock;
+    private final long windowMillis;
+    private final long bucketMillis;
+    private final int buckets;
+
+    private final ConcurrentHashMap<K, Counter> counters = new ConcurrentHashMap<>();
+
+    private volatile boolean closed = false;
+
+    /**
+     * Constructor
+     *
+     * @param name      Name of the store.
+     * @param scheduler The scheduler of the rollover. It will be closed together with this store.
+     * @param builder   The settings.
+     */
+    protected ExpiringCounterStore(String name, ExpiryScheduler scheduler, Builder<K> builder) {
+        this.name = name;
+        this.scheduler = scheduler;
+        this.clock = builder.clock;
+        this.buckets = builder.buckets;
+        // Round up, so the buckets cover at least the window.
+        this.bucketMillis = (builder.window.toMillis() + buckets - 1) / buckets;
+        this.windowMillis = bucketMillis * buckets;
+    }
+
+    /**
+     * Add to the counter of a key within the current window.
+     *
+     * @param key   The key.
+     * @param delta The amount to add. May be negative.
+     * @return The count of the key within the window after the addition.
+     */
+    public long incrementAndGet(K key, long delta) {
+        for (;;) {
+            long now = currentBucket();
+            Counter entry = counterOf(key, now);
+            synchronized (entry) {
+                if (entry.removed)
+                    continue;
+                entry.roll(now);
+                entry.add(delta);
+                return entry.total;
+            }
+        }
+    }
+
+    /**
+     * Add one to the counter of a key within the current window.
+     *
+     * @param key The key.
+     * @return The count of the key within the window after the addition.
+     */
+    public long incrementAndGet(K key) {
+        return incrementAndGet(key, 1L);
+    }
+
+    /**
+     * Add to the counter of a key only if the count stays within a limit. Use this to admit requests of a client up to a
+     * rate limit.
+     *
+     * @param key   The key.
+     * @param delta The amount to add.
+     * @param limit The maximum count within the window.
+     * @return true if the amount has been added, false if it would have exceeded the limit and the counter is
+     *         unchanged.
+     */
+    public boolean tryIncrement(K key, long delta, long limit) {
+        for (;;) {
+            long now = currentBucket();
+            Counter entry = counterOf(key, now);
+            synchronized (entry) {
+                if (entry.removed)
+                    continue;
+                entry.roll(now);
+                if (entry.total + delta > limit)
+                    return false;
+                entry.add(delta);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Getter
+     *
+     * @param key The key.
+     * @return The count of the key within the current window, 0 if the key has no counter.
+     */
+    public long get(K key) {
+        Counter entry = counters.get(key);
+        if (entry == null)
+            return 0L;
+        long now = currentBucket();
+        synchronized (entry) {
+            if (entry.removed)
+                return 0L;
+            entry.roll(now);
+            return entry.total;
+        }
+    }
+
+    /**
+     * Remove the counter of a key. It starts at zero again with the next increment.
+     *
+     * @param key The key.
+     */
+    public void remove(K key) {
+        Counter entry = counters.remove(key);
+        if (entry != null) {
+            synchronized (entry) {
+                entry.removed = true;
+            }
+        }
+    }
+
+    /**
+     * Remove all counters that have not been used within the last window. This runs on the scheduler of the store once
+     * per window, counters do not need to be removed one by one.
+     *
+     * @return Amount of counters removed.
+     */
+    public int rollover() {
+        long now = currentBucket();
+        int removed = 0;
+        for (Map.Entry<K, Counter> mapEntry : counters.entrySet()) {
+            Counter entry = mapEntry.getValue();
+            synchronized (entry) {
+                if (entry.removed || now - entry.bucket < buckets)
+                    continue;
+                entry.removed = true;
+            }
+            // Right away, so increments do not find the removed counter again while the rollover goes on.
+            counters.remove(mapEntry.getKey(), entry);
+            removed++;
+        }
+        return removed;
+    }
+
+    /**
+     * Remove all counters.
+     */
+    public void clear() {
+        counters.values().removeIf(entry -> {
+            synchronized (entry) {
+                entry.removed = true;
+            }
+            return true;
+        });
+    }
+
+    /**
+     * Getter
+     *
+     * @return Amount of counters, including the ones not used within the last window that have not been rolled over
+     *         yet.
+     */
+    public int size() {
+        return counters.size();
+    }
+
+    /**
+     * Getter
+     *
+     * @return Name of the store.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Getter
+     *
+     * @return Length of the window in milliseconds, rounded up to whole buckets.
+     */
+    public long getWindowMillis() {
+        return windowMillis;
+    }
+
+    /**
+     * Getter
+     *
+     * @return Length of a bucket in milliseconds.
+     */
+    public long getBucketMillis() {
+        return bucketMillis;
+    }
+
+    private Counter counterOf(K key, long now) {
+        Counter entry = counters.get(key);
+        if (entry != null)
+            return entry;
+        return counters.computeIfAbsent(key, k -> new Counter(buckets, now));
+    }
+
+    private long currentBucket() {
+        return clock.millis() / bucketMillis;
+    }
+
+    /**
+     * Run {@link #rollover()} once per window.
+     */
+    private void scheduleRollover() {
+        if (closed)
+            return;
+        try {
+            scheduler.schedule(() -> {
+                rollover();
+                scheduleRollover();
+            }, clock.millis() + windowMillis);
+        } catch (IllegalStateException e) {
+            // The scheduler has been closed together with this store.
+        }
+    }
+
+    /**
+     * Close the store and stop the rollover. This Store cannot be used thereafter.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        scheduler.close();
+        counters.clear();
+    }
+}
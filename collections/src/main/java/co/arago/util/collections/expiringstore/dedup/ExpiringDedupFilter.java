@@ -0,0 +1,374 @@
+package co.arago.util.collections.expiringstore.dedup;
+
+import co.arago.util.collections.expiringstore.clock.StoreClock;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A time-sliced Bloom filter that tells whether an id has been seen within a time window. It replaces an
+ * {@link co.arago.util.collections.expiringstore.ExpiringStore} that only stores ids to detect duplicates: the memory
+ * is fixed and neither ids nor payloads are kept.
+ * <p>
+ * The window is divided into slices. Each slice has its own Bloom filter, an id is recorded in the filter of the
+ * current slice and looked up in the filters of the window. When a new slice begins, the filter of the slice after it
+ * is cleared in advance, so ids fall out of the window slice by slice. An id seen within the window is always
+ * detected. After the window it is forgotten within one more slice. Ids that have never been seen are reported as
+ * seen with about the configured false positive rate.
+ * <p>
+ * Lookups and inserts are lock-free: bits are set with compare-and-set on an {@link AtomicLongArray}. The thread that
+ * starts a new slice clears one slice of bits. Two concurrent first calls of {@link #seenBefore(Object)} for the same
+ * id may both return false. When the filter has been idle for longer than a slice, an id recorded by one thread while
+ * another one clears the stale slices can get lost.
+ */
+public class ExpiringDedupFilter {
+
+    public static final int DEFAULT_SLICES = 4;
+    public static final double DEFAULT_FALSE_POSITIVE_RATE = 0.001;
+
+    /**
+     * Builder for {@link ExpiringDedupFilter}.
+     */
+    public static class Builder {
+        protected Duration window;
+        protected long expectedInsertions;
+        protected double falsePositiveRate = DEFAULT_FALSE_POSITIVE_RATE;
+        protected int slices = DEFAULT_SLICES;
+        protected StoreClock clock = StoreClock.SYSTEM;
+
+        /**
+         * Set the time within which ids are detected as duplicates. Required.
+         *
+         * @param window The window. Must be at least one millisecond per slice.
+         * @return Reference to self for chaining
+         */
+        public Builder setWindow(Duration window) {
+            this.window = window;
+            return this;
+        }
+
+        /**
+         * Set the amount of distinct ids expected within one window. Required. The memory is sized for it, more ids
+         * raise the false positive rate.
+         *
+         * @param expectedInsertions Amount of ids per window.
+         * @return Reference to self for chaining
+         */
+        public Builder setExpectedInsertions(long expectedInsertions) {
+            this.expectedInsertions = expectedInsertions;
+            return this;
+        }
+
+        /**
+         * Set the rate of ids that are reported as seen although they have not been seen. Default is 0.001.
+         *
+         * @param falsePositiveRate Rate between 0 and 1.
+         * @return Reference to self for chaining
+         */
+        public Builder setFalsePositiveRate(double falsePositiveRate) {
+            this.falsePositiveRate = falsePositiveRate;
+            return this;
+        }
+
+        /**
+         * Set the amount of slices of the window. More slices forget ids closer to the end of the window, but need
+         * more memory for the same false positive rate. Default is 4.
+         *
+         * @param slices Amount of slices, at least 1.
+         * @return Reference to self for chaining
+         */
+        public Builder setSlices(int slices) {
+            this.slices = slices;
+            return this;
+        }
+
+        /**
+         * Set the time source. {@link StoreClock#SYSTEM} by default.
+         *
+         * @param clock The clock.
+         * @return Reference to self for chaining
+         */
+        public Builder setClock(StoreClock clock) {
+            this.clock = clock;
+            return this;
+        }
+
+        /**
+         * Create the filter.
+         *
+         * @return The new filter.
+         * @throws IllegalArgumentException When a setting is missing or out of range, or the filter would be too
+         *                                  large.
+         */
+        public ExpiringDedupFilter build() {
+            if (window == null || expectedInsertions <= 0)
+                throw new IllegalArgumentException("Window and expected insertions are required.");
+            if (falsePositiveRate <= 0.0 || falsePositiveRate >= 1.0)
+                throw new IllegalArgumentException("The false positive rate must be between 0 and 1.");
+            if (slices < 1 || window.toMillis() < slices)
+                throw new IllegalArgumentException("There must be at least one slice of at least one millisecond.");
+            return new ExpiringDedupFilter(this);
+        }
+    }
+
+    /**
+     * Create a new builder.
+     *
+     * @return New instance of {@link Builder}
+     */
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    private final int slices;
+    private final int slots;
+    private final long sliceMillis;
+    private final int hashFunctions;
+    private final int wordsPerSlot;
+    private final long bitsPerSlot;
+    private final StoreClock clock;
+
+    private final AtomicLongArray bits;
+    private final AtomicLong currentSlice;
+
+    /**
+     * Constructor
+     *
+     * @param builder The settings.
+     */
+    protected ExpiringDedupFilter(Builder builder) {
+        this.slices = builder.slices;
+        // The slices of the window, the current one and the one cleared in advance.
+        this.slots = slices + 2;
+        // Round up, so the slices cover at least the window.
+        this.sliceMillis = (builder.window.toMillis() + slices - 1) / slices;
+        this.clock = builder.clock;
+
+        // A lookup checks the current and all previous slices of the window, so their rates add up.
+        double sliceRate = builder.falsePositiveRate / (slices + 1);
+        double insertionsPerSlice = Math.ceil((double) builder.expectedInsertions / slices);
+        double ln2 = Math.log(2);
+        double bitCount = Math.ceil(-insertionsPerSlice * Math.log(sliceRate) / (ln2 * ln2));
+        long words = (long) Math.ceil(bitCount / Long.SIZE);
+        if (words * slots > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("The filter would need more than " + Integer.MAX_VALUE + " words.");
+
+        this.wordsPerSlot = (int) words;
+        this.bitsPerSlot = words * Long.SIZE;
+        this.hashFunctions = (int) Math.max(1, Math.round(bitsPerSlot / insertionsPerSlice * ln2));
+        this.bits = new AtomicLongArray(wordsPerSlot * slots);
+        this.currentSlice = new AtomicLong(clock.millis() / sliceMillis);
+    }
+
+    /**
+     * Record an id and tell whether it has been seen within the window before.
+     *
+     * @param id The id. Strings and other char sequences are hashed by their characters, other objects by their
+     *           {@link Object#hashCode()}.
+     * @return true if the id has probably been seen before, false if it certainly has not.
+     */
+    public boolean seenBefore(Object id) {
+        return seenBeforeHash(hash(id));
+    }
+
+    /**
+     * Record an id and tell whether it has been seen within the window before.
+     *
+     * @param id The id.
+     * @return true if the id has probably been seen before, false if it certainly has not.
+     */
+    public boolean seenBefore(long id) {
+        return seenBeforeHash(mix(id));
+    }
+
+    /**
+     * Tell whether an id has been seen within the window without recording it.
+     *
+     * @param id The id.
+     * @return true if the id has probably been seen, false if it certainly has not.
+     */
+    public boolean mightContain(Object id) {
+        return mightContainHash(hash(id));
+    }
+
+    /**
+     * Tell whether an id has been seen within the window without recording it.
+     *
+     * @param id The id.
+     * @return true if the id has probably been seen, false if it certainly has not.
+     */
+    public boolean mightContain(long id) {
+        return mightContainHash(mix(id));
+    }
+
+    private boolean seenBeforeHash(long hash) {
+        long slice = advance();
+        long h2 = Long.rotateLeft(hash, 32);
+
+        boolean seen = true;
+        int base = slotBase(slice);
+        for (int i = 0; i < hashFunctions; i++) {
+            seen &= setBit(base, bitIndex(hash + i * h2, bitsPerSlot));
+        }
+        if (seen)
+            return true;
+
+        for (int age = 1; age <= slices; age++) {
+            if (contains(slotBase(slice - age), hash, h2))
+                return true;
+        }
+        return false;
+    }
+
+    private boolean mightContainHash(long hash) {
+        long slice = advance();
+        long h2 = Long.rotateLeft(hash, 32);
+        for (int age = 0; age <= slices; age++) {
+            if (contains(slotBase(slice - age), hash, h2))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Start the slice of the current time if no other thread did. The thread that starts it clears the slot of the
+     * following slice, and all stale slots in between when the filter has been idle.
+     *
+     * @return The current slice.
+     */
+    private long advance() {
+        long slice = clock.millis() / sliceMillis;
+        long started = currentSlice.get();
+        if (slice > started && currentSlice.compareAndSet(started, slice)) {
+            long from = Math.max(started + 2, slice + 2 - slots);
+            for (long stale = from; stale <= slice + 1; stale++) {
+                clearSlot(slotBase(stale));
+            }
+        }
+        return slice;
+    }
+
+    /**
+     * Check the bits of an id in a slot. The bits are derived from the hash by double hashing with 64 bits, so slots
+     * of more than 2^32 bits are covered, too.
+     *
+     * @param base First word of the slot.
+     * @param h1   The hash of the id.
+     * @param h2   The second hash of the id.
+     * @return true if all bits of the id are set.
+     */
+    private boolean contains(int base, long h1, long h2) {
+        for (int i = 0; i < hashFunctions; i++) {
+            long bit = bitIndex(h1 + i * h2, bitsPerSlot);
+            if ((bits.get(base + (int) (bit >>> 6)) & (1L << bit)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Set a bit.
+     *
+     * @param base First word of the slot.
+     * @param bit  Index of the bit in the slot.
+     * @return true if the bit has been set already.
+     */
+    private boolean setBit(int base, long bit) {
+        int index = base + (int) (bit >>> 6);
+        long mask = 1L << bit;
+        for (;;) {
+            long word = bits.get(index);
+            if ((word & mask) != 0)
+                return true;
+            if (bits.compareAndSet(index, word, word | mask))
+                return false;
+        }
+    }
+
+    private void clearSlot(int base) {
+        for (int i = base; i < base + wordsPerSlot; i++) {
+            bits.set(i, 0L);
+        }
+    }
+
+    private int slotBase(long slice) {
+        return (int) Math.floorMod(slice, (long) slots) * wordsPerSlot;
+    }
+
+    /**
+     * Map a hash onto the bits of a slot without a modulo. The index is a long, a slot can have up to
+     * {@code Integer.MAX_VALUE} words and thus more bits than an int can address.
+     *
+     * @param hash        The hash.
+     * @param bitsPerSlot Amount of bits of a slot.
+     * @return Index of the bit between 0 and bitsPerSlot - 1.
+     */
+    static long bitIndex(long hash, long bitsPerSlot) {
+        return Math.multiplyHigh(hash >>> 1, bitsPerSlot << 1);
+    }
+
+    /**
+     * Forget all ids.
+     */
+    public void clear() {
+        for (int i = 0; i < bits.length(); i++) {
+            bits.set(i, 0L);
+        }
+    }
+
+    /**
+     * Getter
+     *
+     * @return Size of the bits of all slices in bytes.
+     */
+    public long getMemoryBytes() {
+        return (long) bits.length() * Long.BYTES;
+    }
+
+    /**
+     * Getter
+     *
+     * @return Amount of bits set per id in a slice.
+     */
+    public int getHashFunctions() {
+        return hashFunctions;
+    }
+
+    /**
+     * Getter
+     *
+     * @return Length of a slice in milliseconds.
+     */
+    public long getSliceMillis() {
+        return sliceMillis;
+    }
+
+    private static long hash(Object id) {
+        if (id instanceof CharSequence) {
+            // FNV-1a over the characters, so long ids do not collide in 32 bits of String#hashCode.
+            CharSequence chars = (CharSequence) id;
+            long hash = 0xcbf29ce484222325L;
+            for (int i = 0; i < chars.length(); i++) {
+                hash = (hash ^ chars.charAt(i)) * 0x100000001b3L;
+            }
+            return mix(hash);
+        }
+        return mix(id.hashCode());
+    }
+
+    /**
+     * The finalizer of MurmurHash3, so every bit of the input affects both halves of the hash.
+     *
+     * @param value The value to hash.
+     * @return The hash.
+     */
+    private static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return value;
+    }
+}
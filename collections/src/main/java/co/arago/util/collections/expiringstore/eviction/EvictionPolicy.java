@@ -0,0 +1,309 @@
+package co.arago.util.collections.expiringstore.eviction;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+
+/**
+ * Bounds a store by amount of entries and / or total weight, using W-TinyLFU.
+ * <p>
+ * New entries enter a small LRU window. Entries leaving the window become candidates for the main space, which is a
+ * segmented LRU of a probation and a protected segment. When the store is full, a candidate only replaces the least
+ * recently used entry of the probation segment if a {@link FrequencySketch} says it has been used more often. Entries
+ * used again while on probation are promoted to the protected segment. This keeps popular entries under skewed access
+ * and protects the store against scans of one-hit wonders.
+ * <p>
+ * Writes wait for the lock of the policy, reads only record their access if the lock is free, so they never block.
+ * Evicted entries are collected under the lock and handed to the evictor after it has been released, so a slow
+ * evictor does not hold up other writes.
+ *
+ * @param <K> Type of the ids
+ * @param <V> Type of the values kept with the ids, i.e. the messages of the store.
+ */
+public class EvictionPolicy<K, V> {
+
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    private static final class Node<K, V> {
+        private final K id;
+        private V value;
+        private int weight;
+        private int segment = WINDOW;
+        private Node<K, V> prev;
+        private Node<K, V> next;
+
+        private Node(K id, V value, int weight) {
+            this.id = id;
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * Doubly linked LRU list. The head is the least recently used node.
+     */
+    private static final class Segment<K, V> {
+        private Node<K, V> head;
+        private Node<K, V> tail;
+        private long weight = 0;
+
+        private void addLast(Node<K, V> node) {
+            node.prev = tail;
+            node.next = null;
+            if (tail == null)
+                head = node;
+            else
+                tail.next = node;
+            tail = node;
+            weight += node.weight;
+        }
+
+        private void remove(Node<K, V> node) {
+            if (node.prev == null)
+                head = node.next;
+            else
+                node.prev.next = node.next;
+            if (node.next == null)
+                tail = node.prev;
+            else
+                node.next.prev = node.prev;
+            node.prev = null;
+            node.next = null;
+            weight -= node.weight;
+        }
+
+        private void moveToLast(Node<K, V> node) {
+            if (node != tail) {
+                remove(node);
+                addLast(node);
+            }
+        }
+    }
+
+    private final long maxEntries;
+    private final long maxWeight;
+    private final long windowMax;
+    private final long protectedMax;
+    private final BiConsumer<K, V> evictor;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<K, Node<K, V>> nodes = new HashMap<>();
+    private final Segment<K, V> window = new Segment<>();
+    private final Segment<K, V> probation = new Segment<>();
+    private final Segment<K, V> protectedSegment = new Segment<>();
+    private final FrequencySketch sketch;
+
+    private long weight = 0;
+
+    /**
+     * Constructor
+     *
+     * @param maxEntries Maximum amount of entries. 0 or less for no limit.
+     * @param maxWeight  Maximum total weight. 0 or less for no limit.
+     * @param evictor    Called with id and value of each evicted entry, after the lock of the policy has been
+     *                   released.
+     */
+    public EvictionPolicy(long maxEntries, long maxWeight, BiConsumer<K, V> evictor) {
+        if (maxEntries <= 0 && maxWeight <= 0)
+            throw new IllegalArgumentException("Either maxEntries or maxWeight must be set.");
+
+        this.maxEntries = (maxEntries > 0) ? maxEntries : Long.MAX_VALUE;
+        this.maxWeight = (maxWeight > 0) ? maxWeight : Long.MAX_VALUE;
+        this.evictor = evictor;
+
+        // The segments are sized by weight if there is a weight limit, by amount of entries otherwise.
+        long capacity = (maxWeight > 0) ? maxWeight : maxEntries;
+        this.windowMax = Math.max(1, capacity / 100);
+        this.protectedMax = (capacity - windowMax) * 4 / 5;
+        this.sketch = new FrequencySketch((maxEntries > 0) ? maxEntries : Math.min(maxWeight, 1 << 20));
+    }
+
+    /**
+     * Record a new or replaced entry. Evicts entries if the limits are exceeded.
+     *
+     * @param id          Id of the entry
+     * @param value       Value of the entry
+     * @param entryWeight Weight of the entry
+     * @throws IllegalArgumentException When the weight is negative.
+     */
+    public void write(K id, V value, int entryWeight) {
+        if (entryWeight < 0)
+            throw new IllegalArgumentException("Negative weight " + entryWeight + " of entry " + id + ".");
+
+        List<Node<K, V>> victims;
+        lock.lock();
+        try {
+            sketch.increment(id);
+
+            Node<K, V> node = nodes.get(id);
+            if (node == null) {
+                node = new Node<>(id, value, entryWeight);
+                nodes.put(id, node);
+                window.addLast(node);
+                weight += entryWeight;
+            } else {
+                Segment<K, V> segment = segmentOf(node);
+                segment.remove(node);
+                weight += entryWeight - node.weight;
+                node.value = value;
+                node.weight = entryWeight;
+                segment.addLast(node);
+                onHit(node);
+            }
+
+            victims = evict();
+        } finally {
+            lock.unlock();
+        }
+
+        if (victims == null)
+            return;
+        for (Node<K, V> victim : victims) {
+            evictor.accept(victim.id, victim.value);
+        }
+    }
+
+    /**
+     * Record the read access of an entry. Skipped if the policy is busy.
+     *
+     * @param id Id of the entry
+     */
+    public void read(K id) {
+        if (!lock.tryLock())
+            return;
+        try {
+            sketch.increment(id);
+            Node<K, V> node = nodes.get(id);
+            if (node != null)
+                onHit(node);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Forget an entry that has been removed from the store.
+     *
+     * @param id    Id of the entry
+     * @param value The removed value. Nothing happens if the entry has another value by now.
+     */
+    public void remove(K id, V value) {
+        lock.lock();
+        try {
+            Node<K, V> node = nodes.get(id);
+            if (node != null && node.value == value)
+                unlink(node);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Forget all entries.
+     */
+    public void clear() {
+        lock.lock();
+        try {
+            nodes.clear();
+            window.head = window.tail = null;
+            probation.head = probation.tail = null;
+            protectedSegment.head = protectedSegment.tail = null;
+            window.weight = probation.weight = protectedSegment.weight = 0;
+            weight = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Getter
+     *
+     * @return Total weight of all entries.
+     */
+    public long getWeight() {
+        lock.lock();
+        try {
+            return weight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Segment<K, V> segmentOf(Node<K, V> node) {
+        switch (node.segment) {
+        case PROBATION:
+            return probation;
+        case PROTECTED:
+            return protectedSegment;
+        default:
+            return window;
+        }
+    }
+
+    private void onHit(Node<K, V> node) {
+        switch (node.segment) {
+        case PROBATION:
+            probation.remove(node);
+            node.segment = PROTECTED;
+            protectedSegment.addLast(node);
+            // Demote the least recently used protected nodes if the segment has grown too large.
+            while (protectedSegment.weight > protectedMax && protectedSegment.head != node) {
+                Node<K, V> demoted = protectedSegment.head;
+                protectedSegment.remove(demoted);
+                demoted.segment = PROBATION;
+                probation.addLast(demoted);
+            }
+            break;
+        case PROTECTED:
+            protectedSegment.moveToLast(node);
+            break;
+        default:
+            window.moveToLast(node);
+        }
+    }
+
+    /**
+     * Unlink entries until the limits are kept.
+     *
+     * @return The unlinked entries for the evictor or null if there are none.
+     */
+    private List<Node<K, V>> evict() {
+        // Nodes leaving the window become candidates at the end of the probation segment.
+        while (window.weight > windowMax && window.head != null) {
+            Node<K, V> candidate = window.head;
+            window.remove(candidate);
+            candidate.segment = PROBATION;
+            probation.addLast(candidate);
+        }
+
+        List<Node<K, V>> victims = null;
+        while (nodes.size() > maxEntries || weight > maxWeight) {
+            Node<K, V> victim = probation.head;
+            Node<K, V> candidate = probation.tail;
+
+            if (victim == null) {
+                victim = (protectedSegment.head != null) ? protectedSegment.head : window.head;
+            } else if (candidate != victim && sketch.frequency(candidate.id) <= sketch.frequency(victim.id)) {
+                // The candidate is not more popular than the victim: reject the candidate.
+                victim = candidate;
+            }
+
+            unlink(victim);
+            if (victims == null)
+                victims = new ArrayList<>();
+            victims.add(victim);
+        }
+        return victims;
+    }
+
+    private void unlink(Node<K, V> node) {
+        segmentOf(node).remove(node);
+        nodes.remove(node.id);
+        weight -= node.weight;
+    }
+}
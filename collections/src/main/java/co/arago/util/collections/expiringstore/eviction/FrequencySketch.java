@@ -0,0 +1,96 @@
+package co.arago.util.collections.expiringstore.eviction;
+
+/**
+ * A count-min sketch estimating how often ids have been used recently.
+ * <p>
+ * Each counter has 4 bits, 16 counters are packed into one long. Every id maps to four counters, its frequency is the
+ * minimum of them. All counters are halved after a sample period, so old popularity fades away. Not thread-safe.
+ */
+final class FrequencySketch {
+
+    private static final long[] SEED = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private final long[] table;
+    private final int tableMask;
+    private final int sampleSize;
+    private int size = 0;
+
+    /**
+     * Constructor
+     *
+     * @param expectedEntries Amount of entries expected in the store.
+     */
+    FrequencySketch(long expectedEntries) {
+        int capacity = (int) Math.max(16, Math.min(expectedEntries, 1 << 26));
+        this.table = new long[Integer.highestOneBit(capacity - 1) << 1];
+        this.tableMask = table.length - 1;
+        this.sampleSize = 10 * capacity;
+    }
+
+    /**
+     * Estimate the frequency of an id.
+     *
+     * @param id The id.
+     * @return The estimated frequency between 0 and 15.
+     */
+    int frequency(Object id) {
+        int hash = spread(id.hashCode());
+        int start = (hash & 3) << 2;
+        int frequency = Integer.MAX_VALUE;
+        for (int i = 0; i < 4; i++) {
+            int index = indexOf(hash, i);
+            int count = (int) ((table[index] >>> ((start + i) << 2)) & 0xfL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    /**
+     * Increment the frequency of an id.
+     *
+     * @param id The id.
+     */
+    void increment(Object id) {
+        int hash = spread(id.hashCode());
+        int start = (hash & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            added |= incrementAt(indexOf(hash, i), start + i);
+        }
+        if (added && ++size == sampleSize)
+            reset();
+    }
+
+    private boolean incrementAt(int index, int counter) {
+        int offset = counter << 2;
+        long mask = 0xfL << offset;
+        if ((table[index] & mask) == mask)
+            return false;
+        table[index] += 1L << offset;
+        return true;
+    }
+
+    /**
+     * Halve all counters.
+     */
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        size = size / 2;
+    }
+
+    private int indexOf(int hash, int i) {
+        long result = (hash + SEED[i]) * SEED[i];
+        result += result >>> 32;
+        return ((int) result) & tableMask;
+    }
+
+    private static int spread(int x) {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+}
@@ -0,0 +1,21 @@
+package co.arago.util.collections.expiringstore.eviction;
+
+/**
+ * Calculates the weight of a message for stores bounded by weight.
+ *
+ * @param <K> Type of the ids
+ * @param <T> Type of the messages
+ */
+@FunctionalInterface
+public interface Weigher<K, T> {
+
+    /**
+     * Calculate the weight of a message. It is calculated once when the message is added to the store.
+     *
+     * @param id      The id of the message
+     * @param message The message
+     * @return The weight. Must not be negative, the store rejects the message with an
+     *         {@link IllegalArgumentException} otherwise.
+     */
+    int weigh(K id, T message);
+}
@@ -0,0 +1,32 @@
+package co.arago.util.collections.expiringstore.listener;
+
+/**
+ * The reason why a message has left a store.
+ */
+public enum RemovalCause {
+    /**
+     * The "expiresAt" of the message has passed.
+     */
+    EXPIRED,
+    /**
+     * The retries of the message have been used up by retryGet.
+     */
+    RETRIES_EXHAUSTED,
+    /**
+     * Another message with the same id has been put.
+     */
+    REPLACED,
+    /**
+     * The message has been removed explicitly.
+     */
+    REMOVED,
+    /**
+     * The message has been evicted because the store exceeded its bounds.
+     */
+    EVICTED,
+    /**
+     * The payload of the message has been cleared by the garbage collector, see
+     * {@link co.arago.util.collections.expiringstore.reference.ValueStrength}.
+     */
+    COLLECTED
+}
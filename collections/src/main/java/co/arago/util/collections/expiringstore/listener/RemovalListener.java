@@ -0,0 +1,22 @@
+package co.arago.util.collections.expiringstore.listener;
+
+import java.util.List;
+
+/**
+ * Receives notifications about messages that have left a store. Notifications are delivered in batches on the
+ * executor given to the store, never on the thread that removed the messages.
+ *
+ * @param <K> Type of the ids
+ * @param <T> Type of items in the store
+ */
+@FunctionalInterface
+public interface RemovalListener<K, T> {
+
+    /**
+     * Called with a batch of notifications, in the order the messages have been removed. Calls for one store never
+     * overlap.
+     *
+     * @param notifications The notifications.
+     */
+    void onRemoval(List<RemovalNotification<K, T>> notifications);
+}
@@ -0,0 +1,44 @@
+package co.arago.util.collections.expiringstore.listener;
+
+/**
+ * Notification about a message that has left a store.
+ *
+ * @param <K> Type of the ids
+ * @param <T> Type of items in the store
+ */
+public class RemovalNotification<K, T> {
+
+    private final K id;
+    private final T message;
+    private final RemovalCause cause;
+
+    /**
+     * Constructor
+     *
+     * @param id      Id of the message
+     * @param message The message itself
+     * @param cause   Why the message has left the store.
+     */
+    public RemovalNotification(K id, T message, RemovalCause cause) {
+        this.id = id;
+        this.message = message;
+        this.cause = cause;
+    }
+
+    public K getId() {
+        return id;
+    }
+
+    public T getMessage() {
+        return message;
+    }
+
+    public RemovalCause getCause() {
+        return cause;
+    }
+
+    @Override
+    public String toString() {
+        return "RemovalNotification{id=" + id + ", cause=" + cause + "}";
+    }
+}
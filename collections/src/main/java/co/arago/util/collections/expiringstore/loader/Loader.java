@@ -0,0 +1,20 @@
+package co.arago.util.collections.expiringstore.loader;
+
+/**
+ * Loads a message that is missing in a store, i.e. from a backend.
+ *
+ * @param <K> Type of the ids
+ * @param <T> Type of items in the store
+ */
+@FunctionalInterface
+public interface Loader<K, T> {
+
+    /**
+     * Load the message with this id.
+     *
+     * @param id Id of the message
+     * @return The message or null if there is none. Null is not stored.
+     * @throws Exception When loading fails.
+     */
+    T load(K id) throws Exception;
+}
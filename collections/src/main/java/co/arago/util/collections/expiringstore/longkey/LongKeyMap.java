@@ -0,0 +1,239 @@
+package co.arago.util.collections.expiringstore.longkey;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * A hash map with primitive long keys and open addressing.
+ * <p>
+ * Keys and values are kept in two parallel arrays, so an entry costs no object of its own and no boxed key. Collisions
+ * are resolved by linear probing. Removal shifts the following entries of a probe sequence back instead of leaving
+ * tombstones, so lookups never slow down after many removals. A slot is free if its value is null, so null values
+ * cannot be stored.
+ * <p>
+ * This map is not thread-safe.
+ *
+ * @param <V> Type of the values
+ */
+public class LongKeyMap<V> {
+
+    public static final int DEFAULT_CAPACITY = 16;
+
+    private static final int MAX_CAPACITY = 1 << 30;
+
+    private long[] keys;
+    private Object[] values;
+    private int mask;
+    private int size = 0;
+    private int resizeAt;
+
+    /**
+     * Constructor
+     */
+    public LongKeyMap() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param expectedSize Amount of entries the map can hold without growing.
+     */
+    public LongKeyMap(int expectedSize) {
+        allocate(tableSizeFor(expectedSize));
+    }
+
+    private static int tableSizeFor(int expectedSize) {
+        // Keep the load factor at 3/4 at most.
+        long minCapacity = Math.max(2L, (long) expectedSize * 4 / 3 + 1);
+        if (minCapacity > MAX_CAPACITY)
+            return MAX_CAPACITY;
+        return Integer.highestOneBit((int) minCapacity - 1) << 1;
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+        resizeAt = capacity / 4 * 3;
+    }
+
+    /**
+     * Spread the bits of the key, so sequential ids do not fill runs of neighbouring slots.
+     *
+     * @param key The key.
+     * @return Index of the first slot to probe.
+     */
+    private int slot(long key) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+
+    private int indexOf(long key) {
+        for (int index = slot(key);; index = (index + 1) & mask) {
+            if (values[index] == null)
+                return -1;
+            if (keys[index] == key)
+                return index;
+        }
+    }
+
+    /**
+     * Getter
+     *
+     * @param key The key.
+     * @return The value or null.
+     */
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        int index = indexOf(key);
+        return (index >= 0) ? (V) values[index] : null;
+    }
+
+    /**
+     * Put a value, replacing an existing one.
+     *
+     * @param key   The key.
+     * @param value The value, not null.
+     * @return The replaced value or null.
+     */
+    public V put(long key, V value) {
+        return put(key, value, false);
+    }
+
+    /**
+     * Put a value if there is none for this key.
+     *
+     * @param key   The key.
+     * @param value The value, not null.
+     * @return The existing value or null if the value has been put.
+     */
+    public V putIfAbsent(long key, V value) {
+        return put(key, value, true);
+    }
+
+    @SuppressWarnings("unchecked")
+    private V put(long key, V value, boolean onlyIfAbsent) {
+        if (value == null)
+            throw new NullPointerException("Values must not be null.");
+
+        int index = slot(key);
+        for (; values[index] != null; index = (index + 1) & mask) {
+            if (keys[index] == key) {
+                V existing = (V) values[index];
+                if (!onlyIfAbsent)
+                    values[index] = value;
+                return existing;
+            }
+        }
+
+        keys[index] = key;
+        values[index] = value;
+        if (++size > resizeAt)
+            resize();
+        return null;
+    }
+
+    /**
+     * Remove the value of a key.
+     *
+     * @param key The key.
+     * @return The removed value or null.
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        int index = indexOf(key);
+        if (index < 0)
+            return null;
+        V existing = (V) values[index];
+        removeAt(index);
+        return existing;
+    }
+
+    /**
+     * Remove the value of a key only if it is exactly the given value.
+     *
+     * @param key   The key.
+     * @param value The value.
+     * @return true if the value has been removed.
+     */
+    public boolean remove(long key, V value) {
+        int index = indexOf(key);
+        if (index < 0 || values[index] != value)
+            return false;
+        removeAt(index);
+        return true;
+    }
+
+    /**
+     * Free a slot and shift back the entries behind it that would not be found anymore otherwise.
+     *
+     * @param index The slot.
+     */
+    private void removeAt(int index) {
+        size--;
+        int free = index;
+        for (int next = (free + 1) & mask; values[next] != null; next = (next + 1) & mask) {
+            int home = slot(keys[next]);
+            // Move the entry if its home slot is not within the cyclic range (free, next].
+            if (((next - home) & mask) >= ((next - free) & mask)) {
+                keys[free] = keys[next];
+                values[free] = values[next];
+                free = next;
+            }
+        }
+        values[free] = null;
+        keys[free] = 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void resize() {
+        if (keys.length == MAX_CAPACITY)
+            throw new IllegalStateException("LongKeyMap cannot grow beyond " + MAX_CAPACITY + " slots.");
+
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        allocate(oldKeys.length << 1);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] != null) {
+                int index = slot(oldKeys[i]);
+                while (values[index] != null) {
+                    index = (index + 1) & mask;
+                }
+                keys[index] = oldKeys[i];
+                values[index] = oldValues[i];
+            }
+        }
+    }
+
+    /**
+     * Call an action for each value.
+     *
+     * @param action The action. Must not modify this map.
+     */
+    @SuppressWarnings("unchecked")
+    public void forEachValue(Consumer<? super V> action) {
+        for (Object value : values) {
+            if (value != null)
+                action.accept((V) value);
+        }
+    }
+
+    /**
+     * Getter
+     *
+     * @return Amount of entries.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Remove all entries. The capacity is kept.
+     */
+    public void clear() {
+        Arrays.fill(values, null);
+        Arrays.fill(keys, 0L);
+        size = 0;
+    }
+}
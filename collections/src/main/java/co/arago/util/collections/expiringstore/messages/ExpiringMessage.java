@@ -2,24 +2,60 @@ package co.arago.util.collections.expiringstore.messages;
 
 import co.arago.util.collections.expiringstore.AbstractExpiringStore;
 import co.arago.util.collections.expiringstore.exceptions.StoreItemExpiredException;
+import co.arago.util.collections.expiringstore.reference.ValueReference;
+import co.arago.util.collections.expiringstore.scheduler.ExpiryTask;
+import co.arago.util.collections.expiringstore.scheduler.ScheduledExpiry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.time.Instant;
-import java.util.Date;
-import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 
 /**
  * A message with an expire. The item is removed from its container when timeout has run out.
+ * <p>
+ * The message is the entry of the store: it holds the payload, the id, the expiry as primitive and, for
+ * {@link ExpiringRetryMessage}, the retries. It is not a {@link java.util.TimerTask}, whatever the scheduler needs to
+ * run it is kept by the scheduler. With compressed references, the message itself takes 40 bytes. The scheduler adds
+ * its own entry per message: the default
+ * {@link co.arago.util.collections.expiringstore.scheduler.TimerExpiryScheduler} allocates a
+ * {@link java.util.TimerTask} of about 60 bytes including its lock, coalesced expiry a slot and a queue node of 40
+ * bytes together in the bucket of the message.
+ * <p>
+ * The expiry can be extended without rescheduling. Only the timestamp is updated, the message checks it when its
+ * scheduled expiry runs and schedules itself once more for the new timestamp if it has been extended in the meantime.
+ * <p>
+ * Stores with soft or weak values hold the payload via a {@link ValueReference}. Once the garbage collector has cleared
+ * it, {@link #getMessage()} returns null and the store removes the message.
+ *
+ * @param <K> Type of the id
+ * @param <T> Type of the message
  */
-public class ExpiringMessage<T> extends TimerTask {
+public class ExpiringMessage<K, T> implements ExpiryTask {
 
     private final static Logger log = LoggerFactory.getLogger(ExpiringMessage.class);
 
-    protected final AbstractExpiringStore<?, ?> parent;
-    protected final T message;
-    protected final String id;
-    protected final Instant expiresAt;
+    // Field updaters cannot be created for a generic class without a raw type.
+    @SuppressWarnings("rawtypes")
+    private static final AtomicLongFieldUpdater<ExpiringMessage> EXPIRES_AT = AtomicLongFieldUpdater
+            .newUpdater(ExpiringMessage.class, "expiresAtMillis");
+
+    /**
+     * The store of the message. It is needed to expire and reschedule the message and to reach the resources of the
+     * store, i.e. the allocator of an off-heap store.
+     */
+    protected final AbstractExpiringStore<?, ?, ?> parent;
+    /**
+     * The payload, or a {@link ValueReference} to it if the store does not reference its payloads strongly.
+     */
+    protected final Object value;
+    protected final K id;
+    protected volatile long expiresAtMillis;
+    protected volatile ScheduledExpiry scheduledExpiry;
+    /**
+     * Set by {@link #cancelExpiry()}. Keeps {@link #run()} from rescheduling a cancelled message.
+     */
+    private volatile boolean cancelled = false;
 
     /**
      * Constructor
@@ -31,43 +67,152 @@ public class ExpiringMessage<T> extends TimerTask {
      * @param message   The original message
      * @throws StoreItemExpiredException When the expiresAt is already expired.
      */
-    public ExpiringMessage(AbstractExpiringStore<?, ?> parent, Instant expiresAt, String id, T message)
+    public ExpiringMessage(AbstractExpiringStore<?, ?, ?> parent, Instant expiresAt, K id, T message)
+            throws StoreItemExpiredException {
+        this(parent, expiresAt.toEpochMilli(), id, message);
+    }
+
+    /**
+     * Constructor. The message is not scheduled, the store schedules it once it is in the store, so its expiry cannot
+     * run before it can remove it.
+     *
+     * @param parent          Reference to the ExpiringStore.
+     * @param expiresAtMillis Timestamp in milliseconds since the epoch after which the message expires and will be
+     *                        removed from the ExpiringStore#storeMap.
+     * @param id              The unique id of the message
+     * @param message         The original message
+     * @throws StoreItemExpiredException When the expiresAt is already expired.
+     */
+    public ExpiringMessage(AbstractExpiringStore<?, ?, ?> parent, long expiresAtMillis, K id, T message)
+            throws StoreItemExpiredException {
+        this(parent, expiresAtMillis, id, message, parent.currentTimeMillis());
+    }
+
+    /**
+     * Constructor for batches. The message is not scheduled, this is left to
+     * {@link co.arago.util.collections.expiringstore.scheduler.ExpiryScheduler#scheduleAll(java.util.Collection)}.
+     *
+     * @param parent          Reference to the ExpiringStore.
+     * @param expiresAtMillis Timestamp in milliseconds since the epoch after which the message expires and will be
+     *                        removed from the ExpiringStore#storeMap.
+     * @param id              The unique id of the message
+     * @param message         The original message
+     * @param nowMillis       The current time of the batch in milliseconds since the epoch.
+     * @throws StoreItemExpiredException When the expiresAt is before now.
+     */
+    public ExpiringMessage(AbstractExpiringStore<?, ?, ?> parent, long expiresAtMillis, K id, T message, long nowMillis)
             throws StoreItemExpiredException {
         this.parent = parent;
-        if (expiresAt.isBefore(Instant.now())) {
+        if (expiresAtMillis < nowMillis) {
             throw new StoreItemExpiredException("Not adding " +
                     message.getClass().getSimpleName() + " " + id +
-                    " because it has expired at " + expiresAt + ".");
+                    " because it has expired at " + Instant.ofEpochMilli(expiresAtMillis) + ".");
         }
 
         this.id = id;
-        this.message = message;
-        this.expiresAt = expiresAt;
-        this.parent.schedule(this, Date.from(expiresAt));
+        this.value = parent.referenceValue(message, this);
+        this.expiresAtMillis = expiresAtMillis;
     }
 
     /**
-     * The action to be performed by this timer task. Remove message from the ExpiringStore.
+     * The action to be performed by the scheduler. Remove message from the ExpiringStore, unless its expiry has been
+     * extended in the meantime. Then it is scheduled again for its new timestamp.
      */
     @Override
     public void run() {
-        log.debug("Discard {} {} because it expired at {}.",
-                message.getClass().getSimpleName(),
-                id,
-                expiresAt);
-        parent.remove(id);
+        if (cancelled)
+            return;
+        long deadline = expiresAtMillis;
+        if (deadline > parent.currentTimeMillis()) {
+            try {
+                ScheduledExpiry rescheduled = parent.schedule(this, deadline);
+                this.scheduledExpiry = rescheduled;
+                // A concurrent cancelExpiry() may have missed the new expiry.
+                if (cancelled)
+                    rescheduled.cancel();
+            } catch (IllegalStateException e) {
+                log.debug("Not rescheduling {} because the scheduler has been closed.", id);
+            }
+            return;
+        }
+
+        if (log.isDebugEnabled()) {
+            T message = getMessage();
+            log.debug("Discard {} {} because it expired at {}.",
+                    (message != null) ? message.getClass().getSimpleName() : "message",
+                    id,
+                    deadline);
+        }
+        parent.expire(this);
+    }
+
+    /**
+     * Move the expiry to a later timestamp. Earlier timestamps are ignored. Nothing gets allocated or rescheduled.
+     *
+     * @param expiresAtMillis New timestamp in milliseconds since the epoch.
+     */
+    public void extendTo(long expiresAtMillis) {
+        EXPIRES_AT.accumulateAndGet(this, expiresAtMillis, Math::max);
     }
 
     /**
      * Getter
      *
-     * @return The message
+     * @return The message or null if it has been cleared by the garbage collector.
      */
+    // The value is the payload of type T or a reference to it, see referenceValue of the store.
+    @SuppressWarnings("unchecked")
     public T getMessage() {
-        return message;
+        Object value = this.value;
+        if (value instanceof ValueReference)
+            return (T) ((ValueReference) value).get();
+        return (T) value;
+    }
+
+    /**
+     * Getter
+     *
+     * @return The reference to the payload, or null if the store references its payloads strongly.
+     */
+    public ValueReference getValueReference() {
+        Object value = this.value;
+        return (value instanceof ValueReference) ? (ValueReference) value : null;
     }
 
-    public String getId() {
+    public K getId() {
         return id;
     }
+
+    /**
+     * Check the expiry
+     *
+     * @param millis Timestamp in milliseconds since the epoch.
+     * @return true if this message has expired at the given timestamp.
+     */
+    public boolean isExpiredAt(long millis) {
+        return expiresAtMillis < millis;
+    }
+
+    @Override
+    public long getExpiresAtMillis() {
+        return expiresAtMillis;
+    }
+
+    @Override
+    public void setScheduledExpiry(ScheduledExpiry scheduledExpiry) {
+        this.scheduledExpiry = scheduledExpiry;
+        // The message may have been removed while it was being scheduled.
+        if (cancelled)
+            scheduledExpiry.cancel();
+    }
+
+    /**
+     * Cancel the scheduled expiry of this message. A message that has not been scheduled yet will not run either.
+     */
+    public void cancelExpiry() {
+        cancelled = true;
+        ScheduledExpiry scheduledExpiry = this.scheduledExpiry;
+        if (scheduledExpiry != null)
+            scheduledExpiry.cancel();
+    }
 }
@@ -4,12 +4,21 @@ import co.arago.util.collections.expiringstore.AbstractExpiringStore;
 import co.arago.util.collections.expiringstore.exceptions.StoreItemExpiredException;
 
 import java.time.Instant;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 /**
  * A message with an expire and retry. The item is removed from its container when timeout has run out.
+ *
+ * @param <K> Type of the id
+ * @param <T> Type of the message
  */
-public class ExpiringRetryMessage<T> extends ExpiringMessage<T> {
-    protected int retriesLeft;
+public class ExpiringRetryMessage<K, T> extends ExpiringMessage<K, T> {
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<ExpiringRetryMessage> RETRIES_LEFT = AtomicIntegerFieldUpdater
+            .newUpdater(ExpiringRetryMessage.class, "retriesLeft");
+
+    protected volatile int retriesLeft;
 
     /**
      * Constructor
@@ -22,13 +31,76 @@ public class ExpiringRetryMessage<T> extends ExpiringMessage<T> {
      * @param maxRetries Max retries (default is 4)
      * @throws StoreItemExpiredException When the expiresAt is already expired.
      */
-    public ExpiringRetryMessage(AbstractExpiringStore<?, ?> parent, Instant expiresAt, String id, T message, int maxRetries)
+    public ExpiringRetryMessage(AbstractExpiringStore<?, ?, ?> parent, Instant expiresAt, K id, T message, int maxRetries)
             throws StoreItemExpiredException {
-        super(parent, expiresAt, id, message);
+        this(parent, expiresAt.toEpochMilli(), id, message, maxRetries);
+    }
+
+    /**
+     * Constructor. The message is not scheduled, the store schedules it once it is in the store.
+     *
+     * @param parent          Reference to the ExpiringRetryStore.
+     * @param expiresAtMillis Timestamp in milliseconds since the epoch after which the message expires and will be
+     *                        removed from the ExpiringStore#storeMap.
+     * @param id              The unique id of the message
+     * @param message         The original message
+     * @param maxRetries      Max retries (default is 4)
+     * @throws StoreItemExpiredException When the expiresAt is already expired.
+     */
+    public ExpiringRetryMessage(AbstractExpiringStore<?, ?, ?> parent, long expiresAtMillis, K id, T message,
+            int maxRetries) throws StoreItemExpiredException {
+        super(parent, expiresAtMillis, id, message);
+        this.retriesLeft = maxRetries;
+    }
+
+    /**
+     * Constructor for batches. The message is not scheduled, this is left to
+     * {@link co.arago.util.collections.expiringstore.scheduler.ExpiryScheduler#scheduleAll(java.util.Collection)}.
+     *
+     * @param parent          Reference to the ExpiringRetryStore.
+     * @param expiresAtMillis Timestamp in milliseconds since the epoch after which the message expires and will be
+     *                        removed from the ExpiringStore#storeMap.
+     * @param id              The unique id of the message
+     * @param message         The original message
+     * @param maxRetries      Max retries (default is 4)
+     * @param nowMillis       The current time of the batch in milliseconds since the epoch.
+     * @throws StoreItemExpiredException When the expiresAt is before now.
+     */
+    public ExpiringRetryMessage(
+            AbstractExpiringStore<?, ?, ?> parent,
+            long expiresAtMillis,
+            K id,
+            T message,
+            int maxRetries,
+            long nowMillis) throws StoreItemExpiredException {
+        super(parent, expiresAtMillis, id, message, nowMillis);
         this.retriesLeft = maxRetries;
     }
 
-    public synchronized int getAndDecRetries() {
-        return this.retriesLeft--;
+    /**
+     * Getter
+     *
+     * @return The retries left.
+     */
+    public int getRetriesLeft() {
+        return retriesLeft;
+    }
+
+    /**
+     * Decrement the retries atomically without locking.
+     *
+     * @return The retries left before this call.
+     */
+    public int getAndDecRetries() {
+        return RETRIES_LEFT.getAndDecrement(this);
+    }
+
+    /**
+     * Lower the retries atomically without locking. A value above the current retries left is ignored.
+     *
+     * @param retriesLeft The retries left at most.
+     */
+    public void lowerRetriesTo(int retriesLeft) {
+        RETRIES_LEFT.accumulateAndGet(this, retriesLeft, Math::min);
     }
 }
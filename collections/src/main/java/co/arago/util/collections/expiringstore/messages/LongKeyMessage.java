@@ -0,0 +1,94 @@
+package co.arago.util.collections.expiringstore.messages;
+
+import co.arago.util.collections.expiringstore.LongKeyExpiringStore;
+import co.arago.util.collections.expiringstore.exceptions.StoreItemExpiredException;
+import co.arago.util.collections.expiringstore.scheduler.ExpiryTask;
+import co.arago.util.collections.expiringstore.scheduler.ScheduledExpiry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Instant;
+
+/**
+ * A message of a {@link LongKeyExpiringStore}. Keeps its id as primitive long and its expiry as milliseconds since the
+ * epoch, so it holds no other objects than the message itself.
+ *
+ * @param <T> Type of the message
+ */
+public class LongKeyMessage<T> implements ExpiryTask {
+
+    private final static Logger log = LoggerFactory.getLogger(LongKeyMessage.class);
+
+    protected final LongKeyExpiringStore<?> parent;
+    protected final T message;
+    protected final long id;
+    protected final long expiresAtMillis;
+    protected ScheduledExpiry scheduledExpiry;
+
+    /**
+     * Constructor. The message is not scheduled yet.
+     *
+     * @param parent          Reference to the store.
+     * @param expiresAtMillis Timestamp in milliseconds since the epoch after which the message expires.
+     * @param id              The unique id of the message
+     * @param message         The original message
+     * @param nowMillis       The current time in milliseconds since the epoch.
+     * @throws StoreItemExpiredException When the expiresAt is before now.
+     */
+    public LongKeyMessage(LongKeyExpiringStore<?> parent, long expiresAtMillis, long id, T message, long nowMillis)
+            throws StoreItemExpiredException {
+        this.expiresAtMillis = expiresAtMillis;
+        if (expiresAtMillis < nowMillis) {
+            throw new StoreItemExpiredException("Not adding " +
+                    message.getClass().getSimpleName() + " " + id +
+                    " because it has expired at " + Instant.ofEpochMilli(expiresAtMillis) + ".");
+        }
+
+        this.parent = parent;
+        this.id = id;
+        this.message = message;
+    }
+
+    /**
+     * The action to be performed by the scheduler. Remove message from the store.
+     */
+    @Override
+    public void run() {
+        log.debug("Discard {} {} because it expired at {}.",
+                message.getClass().getSimpleName(),
+                id,
+                expiresAtMillis);
+        parent.expire(this);
+    }
+
+    /**
+     * Getter
+     *
+     * @return The message
+     */
+    public T getMessage() {
+        return message;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    @Override
+    public long getExpiresAtMillis() {
+        return expiresAtMillis;
+    }
+
+    @Override
+    public void setScheduledExpiry(ScheduledExpiry scheduledExpiry) {
+        this.scheduledExpiry = scheduledExpiry;
+    }
+
+    /**
+     * Cancel the scheduled expiry of this message. Nothing happens if the message has not been scheduled yet.
+     */
+    public void cancelExpiry() {
+        if (scheduledExpiry != null)
+            scheduledExpiry.cancel();
+    }
+}
@@ -0,0 +1,137 @@
+package co.arago.util.collections.expiringstore.messages;
+
+import co.arago.util.collections.expiringstore.OffHeapExpiringStore;
+import co.arago.util.collections.expiringstore.exceptions.StoreItemExpiredException;
+import co.arago.util.collections.expiringstore.offheap.SlabAllocator;
+
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * A message with an expire whose payload is kept off-heap by a {@link SlabAllocator}.
+ * <p>
+ * The memory of the payload is reference counted: the store holds one reference until it calls {@link #release()},
+ * each read holds one while copying. The memory is freed when the last reference is gone, so a read never sees memory
+ * that has been handed to another message. The memory is freed with the {@link SlabAllocator} of the store, so the
+ * message does not keep a reference of its own to it.
+ */
+public class OffHeapMessage extends ExpiringMessage<String, byte[]> {
+
+    private static final byte[] NO_PAYLOAD = new byte[0];
+
+    private static final AtomicIntegerFieldUpdater<OffHeapMessage> REFERENCES = AtomicIntegerFieldUpdater
+            .newUpdater(OffHeapMessage.class, "references");
+    private static final AtomicIntegerFieldUpdater<OffHeapMessage> RELEASED = AtomicIntegerFieldUpdater
+            .newUpdater(OffHeapMessage.class, "released");
+
+    private final SlabAllocator.Allocation allocation;
+
+    private volatile int references = 1;
+    private volatile int released = 0;
+
+    /**
+     * Constructor
+     *
+     * @param parent    Reference to the OffHeapExpiringStore.
+     * @param expiresAt Timestamp after which the message expires and will be removed from the
+     *                  ExpiringStore#storeMap.
+     * @param id        The unique id of the message
+     * @param payload   The original payload. It is copied off-heap.
+     * @throws StoreItemExpiredException When the expiresAt is already expired.
+     */
+    public OffHeapMessage(
+            OffHeapExpiringStore parent,
+            Instant expiresAt,
+            String id,
+            byte[] payload) throws StoreItemExpiredException {
+        this(parent, expiresAt.toEpochMilli(), id, payload);
+    }
+
+    /**
+     * Constructor. The message is not scheduled, the store schedules it once it is in the store.
+     *
+     * @param parent          Reference to the OffHeapExpiringStore. Its allocator holds the payload.
+     * @param expiresAtMillis Timestamp in milliseconds since the epoch after which the message expires and will be
+     *                        removed from the ExpiringStore#storeMap.
+     * @param id              The unique id of the message
+     * @param payload         The original payload. It is copied off-heap.
+     * @throws StoreItemExpiredException When the expiresAt is already expired.
+     */
+    public OffHeapMessage(
+            OffHeapExpiringStore parent,
+            long expiresAtMillis,
+            String id,
+            byte[] payload) throws StoreItemExpiredException {
+        this(parent, expiresAtMillis, id, payload, parent.currentTimeMillis());
+    }
+
+    /**
+     * Constructor for batches. The message is not scheduled, this is left to
+     * {@link co.arago.util.collections.expiringstore.scheduler.ExpiryScheduler#scheduleAll(java.util.Collection)}.
+     *
+     * @param parent          Reference to the OffHeapExpiringStore. Its allocator holds the payload.
+     * @param expiresAtMillis Timestamp in milliseconds since the epoch after which the message expires and will be
+     *                        removed from the ExpiringStore#storeMap.
+     * @param id              The unique id of the message
+     * @param payload         The original payload. It is copied off-heap.
+     * @param nowMillis       The current time of the batch in milliseconds since the epoch.
+     * @throws StoreItemExpiredException When the expiresAt is before now.
+     */
+    public OffHeapMessage(
+            OffHeapExpiringStore parent,
+            long expiresAtMillis,
+            String id,
+            byte[] payload,
+            long nowMillis) throws StoreItemExpiredException {
+        super(parent, expiresAtMillis, id, NO_PAYLOAD, nowMillis);
+        this.allocation = parent.getAllocator().allocate(payload);
+    }
+
+    /**
+     * Getter
+     *
+     * @return A copy of the payload or null if the message has been released in the meantime.
+     */
+    @Override
+    public byte[] getMessage() {
+        if (!acquire())
+            return null;
+        try {
+            return allocation.read();
+        } finally {
+            releaseReference();
+        }
+    }
+
+    /**
+     * Getter
+     *
+     * @return Length of the payload in bytes.
+     */
+    public int getLength() {
+        return allocation.getLength();
+    }
+
+    /**
+     * Give up the reference of the store. Further calls have no effect.
+     */
+    public void release() {
+        if (RELEASED.compareAndSet(this, 0, 1))
+            releaseReference();
+    }
+
+    private boolean acquire() {
+        for (;;) {
+            int current = references;
+            if (current <= 0)
+                return false;
+            if (REFERENCES.compareAndSet(this, current, current + 1))
+                return true;
+        }
+    }
+
+    private void releaseReference() {
+        if (REFERENCES.decrementAndGet(this) == 0)
+            ((OffHeapExpiringStore) parent).getAllocator().free(allocation);
+    }
+}
@@ -0,0 +1,320 @@
+package co.arago.util.collections.expiringstore.offheap;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Allocates chunks of direct memory outside the Java heap.
+ * <p>
+ * Memory is reserved in slabs of {@link #getSlabSize()} bytes. Each slab is cut into chunks of one size class. Size
+ * classes grow in quarter steps between powers of two, so at most 20% of a chunk stay unused. Payloads larger than a
+ * slab get a dedicated buffer. A slab is released as soon as all of its chunks are free, unless it is the last slab
+ * with free chunks of its size class. The direct memory of a released slab is returned to the operating system right
+ * away via the cleaner of its buffer. Only if the runtime does not allow this, it is returned when the garbage collector
+ * reclaims the buffer.
+ * <p>
+ * All methods are thread-safe.
+ */
+public class SlabAllocator implements AutoCloseable {
+
+    public static final int DEFAULT_SLAB_SIZE = 4 * 1024 * 1024;
+    public static final int MIN_CHUNK_SIZE = 64;
+
+    /**
+     * Unsafe#invokeCleaner(ByteBuffer) bound to the instance of Unsafe, or null if the runtime does not offer it.
+     */
+    private static final MethodHandle INVOKE_CLEANER = lookupCleaner();
+
+    /**
+     * A slab of direct memory. Slabs of a size class are cut into chunks, dedicated slabs have exactly one.
+     */
+    private static final class Slab {
+        private final SizeClass sizeClass;
+        private final ByteBuffer buffer;
+        private final int[] freeChunks;
+        private int freeCount;
+        // Position in the available slabs of the size class, -1 if the slab has no free chunk.
+        private int index = -1;
+
+        private Slab(SizeClass sizeClass, int capacity) {
+            this.sizeClass = sizeClass;
+            this.buffer = ByteBuffer.allocateDirect(capacity);
+            int chunks = (sizeClass != null) ? capacity / sizeClass.chunkSize : 1;
+            this.freeChunks = new int[chunks];
+            for (int i = 0; i < chunks; i++) {
+                freeChunks[i] = chunks - 1 - i;
+            }
+            this.freeCount = chunks;
+        }
+    }
+
+    /**
+     * The slabs of one chunk size. The slabs with free chunks are kept in a list indexed by the slabs themselves, so a
+     * slab is added and removed in O(1). New chunks are cut from the slab added last.
+     */
+    private static final class SizeClass {
+        private final int chunkSize;
+        private final ArrayList<Slab> available = new ArrayList<>();
+
+        private SizeClass(int chunkSize) {
+            this.chunkSize = chunkSize;
+        }
+
+        private Slab peek() {
+            return available.isEmpty() ? null : available.get(available.size() - 1);
+        }
+
+        private void add(Slab slab) {
+            slab.index = available.size();
+            available.add(slab);
+        }
+
+        private void remove(Slab slab) {
+            Slab last = available.remove(available.size() - 1);
+            if (last != slab) {
+                available.set(slab.index, last);
+                last.index = slab.index;
+            }
+            slab.index = -1;
+        }
+    }
+
+    /**
+     * A chunk of off-heap memory holding one payload.
+     */
+    public static final class Allocation {
+        private final Slab slab;
+        private final int chunk;
+        private final int offset;
+        private final int length;
+
+        private Allocation(Slab slab, int chunk, int offset, int length) {
+            this.slab = slab;
+            this.chunk = chunk;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        /**
+         * Getter
+         *
+         * @return Length of the payload in bytes.
+         */
+        public int getLength() {
+            return length;
+        }
+
+        /**
+         * Copy the payload into a new array. The allocation must not be freed concurrently.
+         *
+         * @return The payload.
+         */
+        public byte[] read() {
+            byte[] payload = new byte[length];
+            ByteBuffer view = slab.buffer.duplicate();
+            view.position(offset);
+            view.get(payload, 0, length);
+            return payload;
+        }
+
+        private void write(byte[] payload) {
+            ByteBuffer view = slab.buffer.duplicate();
+            view.position(offset);
+            view.put(payload, 0, length);
+        }
+    }
+
+    private final int slabSize;
+    private final int[] chunkSizes;
+    private final SizeClass[] sizeClasses;
+
+    private long reservedBytes = 0;
+    private long usedBytes = 0;
+    private boolean closed = false;
+
+    /**
+     * Constructor
+     * <p>
+     * Uses slabs of {@link #DEFAULT_SLAB_SIZE}.
+     */
+    public SlabAllocator() {
+        this(DEFAULT_SLAB_SIZE);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param slabSize Size of a slab in bytes. Payloads larger than this get a dedicated buffer.
+     */
+    public SlabAllocator(int slabSize) {
+        if (slabSize < MIN_CHUNK_SIZE)
+            throw new IllegalArgumentException("The slab size must be at least " + MIN_CHUNK_SIZE + " bytes.");
+        this.slabSize = slabSize;
+
+        List<Integer> sizes = new ArrayList<>();
+        for (long base = MIN_CHUNK_SIZE; base <= slabSize; base <<= 1) {
+            for (int quarter = 0; quarter < 4 && base + quarter * base / 4 <= slabSize; quarter++) {
+                sizes.add((int) (base + quarter * base / 4));
+            }
+        }
+        this.chunkSizes = sizes.stream().mapToInt(Integer::intValue).toArray();
+        this.sizeClasses = new SizeClass[chunkSizes.length];
+        for (int i = 0; i < chunkSizes.length; i++) {
+            sizeClasses[i] = new SizeClass(chunkSizes[i]);
+        }
+    }
+
+    /**
+     * Copy a payload to off-heap memory.
+     *
+     * @param payload The payload.
+     * @return The allocation holding the payload.
+     * @throws IllegalStateException When the allocator has been closed.
+     */
+    public Allocation allocate(byte[] payload) {
+        Allocation allocation = reserve(payload.length);
+        allocation.write(payload);
+        return allocation;
+    }
+
+    private synchronized Allocation reserve(int length) {
+        if (closed)
+            throw new IllegalStateException("SlabAllocator has been closed.");
+
+        usedBytes += length;
+
+        if (length > slabSize) {
+            Slab dedicated = new Slab(null, length);
+            dedicated.freeCount = 0;
+            reservedBytes += length;
+            return new Allocation(dedicated, 0, 0, length);
+        }
+
+        int index = Arrays.binarySearch(chunkSizes, Math.max(length, 1));
+        SizeClass sizeClass = sizeClasses[(index >= 0) ? index : -index - 1];
+
+        Slab slab = sizeClass.peek();
+        if (slab == null) {
+            slab = new Slab(sizeClass, slabSize);
+            sizeClass.add(slab);
+            reservedBytes += slabSize;
+        }
+
+        int chunk = slab.freeChunks[--slab.freeCount];
+        if (slab.freeCount == 0)
+            sizeClass.remove(slab);
+
+        return new Allocation(slab, chunk, chunk * sizeClass.chunkSize, length);
+    }
+
+    /**
+     * Return the memory of an allocation. The allocation must not be used thereafter.
+     *
+     * @param allocation The allocation to free.
+     */
+    public synchronized void free(Allocation allocation) {
+        if (closed)
+            return;
+
+        usedBytes -= allocation.length;
+
+        Slab slab = allocation.slab;
+        SizeClass sizeClass = slab.sizeClass;
+        if (sizeClass == null) {
+            reservedBytes -= slab.buffer.capacity();
+            release(slab);
+            return;
+        }
+
+        boolean wasFull = slab.freeCount == 0;
+        slab.freeChunks[slab.freeCount++] = allocation.chunk;
+        // A slab of one chunk is full and fully free at once, so check for the latter first.
+        if (slab.freeCount == slab.freeChunks.length && sizeClass.available.size() > (wasFull ? 0 : 1)) {
+            if (!wasFull)
+                sizeClass.remove(slab);
+            reservedBytes -= slabSize;
+            release(slab);
+        } else if (wasFull) {
+            sizeClass.add(slab);
+        }
+    }
+
+    /**
+     * Getter
+     *
+     * @return Size of a slab in bytes.
+     */
+    public int getSlabSize() {
+        return slabSize;
+    }
+
+    /**
+     * Getter
+     *
+     * @return Bytes of direct memory held by slabs.
+     */
+    public synchronized long getReservedBytes() {
+        return reservedBytes;
+    }
+
+    /**
+     * Getter
+     *
+     * @return Bytes of payload in all current allocations.
+     */
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    /**
+     * Release all slabs. Allocations must not be used thereafter. The memory of slabs without any current allocation
+     * is returned right away, slabs still in use are left to the garbage collector.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        for (SizeClass sizeClass : sizeClasses) {
+            for (Slab slab : sizeClass.available) {
+                if (slab.freeCount == slab.freeChunks.length)
+                    release(slab);
+            }
+            sizeClass.available.clear();
+        }
+        reservedBytes = 0;
+        usedBytes = 0;
+    }
+
+    /**
+     * Return the direct memory of a slab that has no allocations left.
+     *
+     * @param slab The slab. It must not be used thereafter.
+     */
+    private static void release(Slab slab) {
+        if (INVOKE_CLEANER == null)
+            return;
+        try {
+            INVOKE_CLEANER.invokeExact(slab.buffer);
+        } catch (Throwable e) {
+            // The garbage collector returns the memory then.
+        }
+    }
+
+    private static MethodHandle lookupCleaner() {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            return MethodHandles.lookup()
+                    .findVirtual(unsafeClass, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class))
+                    .bindTo(theUnsafe.get(null));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,357 @@
+package co.arago.util.collections.expiringstore.persistent;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+
+/**
+ * A log of {@link LogRecord}s in segment files of a directory.
+ * <p>
+ * Records are appended to the active segment, which is a memory-mapped file of a fixed size. Writes to the mapping
+ * survive a crash of the process. {@link #sync()} forces them to the disk, which also protects them against a crash
+ * of the operating system. When the active segment is full, it is sealed and a new one is started.
+ * <p>
+ * Each record is stored as its length, a CRC32 checksum and its body. Recovery reads the segments in order and stops
+ * reading a segment at the first record that is incomplete or does not match its checksum, i.e. a torn write.
+ * <p>
+ * Compaction replaces all sealed segments by one segment that only contains the live records. Since records carry
+ * absolute state, the compacted segment stays valid no matter which records have been appended to the active segment
+ * in the meantime. The compacted segment is written to a temporary file and moved over the last sealed segment
+ * atomically. It starts with a marker that it supersedes all older segments: older segments left behind by a crash
+ * after the move, or because they could not be deleted, are skipped and deleted by recovery. Otherwise a PUT in such
+ * a segment would bring back a message whose REMOVE has been compacted away.
+ */
+public class AppendLog implements AutoCloseable {
+
+    private final static Logger log = LoggerFactory.getLogger(AppendLog.class);
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private static final int MAGIC = 0x45584c31; // "EXL1"
+    // A compacted segment, which supersedes all segments with lower numbers.
+    private static final int MAGIC_COMPACTED = 0x45584331; // "EXC1"
+    private static final int HEADER_SIZE = 8;
+    private static final int FIXED_BODY_SIZE = 1 + 8 + 4 + 4 + 4;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final Path directory;
+    private final int segmentSize;
+
+    private final TreeSet<Long> sealedSegments = new TreeSet<>();
+    private long activeSegment = -1;
+    private MappedByteBuffer activeBuffer;
+    private boolean closed = false;
+
+    /**
+     * Constructor
+     *
+     * @param directory   Directory of the segment files. It is created if it does not exist.
+     * @param segmentSize Size of a segment in bytes. Larger records get a segment of their own size.
+     * @throws IOException When the directory cannot be read.
+     */
+    public AppendLog(Path directory, int segmentSize) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                String fileName = file.getFileName().toString();
+                if (fileName.endsWith(TEMP_SUFFIX)) {
+                    // Leftover of an interrupted compaction.
+                    Files.delete(file);
+                } else if (fileName.startsWith(SEGMENT_PREFIX) && fileName.endsWith(SEGMENT_SUFFIX)) {
+                    sealedSegments.add(Long.parseLong(
+                            fileName.substring(SEGMENT_PREFIX.length(), fileName.length() - SEGMENT_SUFFIX.length())));
+                }
+            }
+        }
+    }
+
+    /**
+     * Replay all existing segments and start a new active segment.
+     *
+     * @param now Timestamp in milliseconds since the epoch. Records that expired before are skipped.
+     * @return The live records by id, with their current retries left.
+     * @throws IOException When a segment cannot be read or the new segment cannot be created.
+     */
+    public synchronized Map<String, LogRecord> recover(long now) throws IOException {
+        Map<String, LogRecord> live = new HashMap<>();
+
+        for (long segment : sealedSegments.descendingSet()) {
+            if (isCompacted(segmentPath(segment))) {
+                deleteSuperseded(segment);
+                break;
+            }
+        }
+        for (long segment : sealedSegments) {
+            replay(segmentPath(segment), live);
+        }
+        live.values().removeIf(record -> record.getExpiresAt() < now);
+
+        openSegment((sealedSegments.isEmpty() ? 0 : sealedSegments.last()) + 1, segmentSize);
+        return live;
+    }
+
+    private static boolean isCompacted(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(4);
+            while (magic.hasRemaining() && channel.read(magic) >= 0) {
+                // Read the whole marker.
+            }
+            return !magic.hasRemaining() && magic.getInt(0) == MAGIC_COMPACTED;
+        }
+    }
+
+    /**
+     * Forget all sealed segments before a compacted segment and delete their files.
+     *
+     * @param compacted The compacted segment.
+     */
+    private void deleteSuperseded(long compacted) {
+        Iterator<Long> iterator = sealedSegments.headSet(compacted).iterator();
+        while (iterator.hasNext()) {
+            Path obsolete = segmentPath(iterator.next());
+            iterator.remove();
+            try {
+                Files.deleteIfExists(obsolete);
+            } catch (IOException e) {
+                // Skipped by the next recovery, since the compacted segment supersedes it.
+                log.warn("Cannot delete compacted segment {}.", obsolete, e);
+            }
+        }
+    }
+
+    private void replay(Path path, Map<String, LogRecord> live) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int magic = (buffer.remaining() < 4) ? 0 : buffer.getInt();
+            if (magic != MAGIC && magic != MAGIC_COMPACTED) {
+                log.warn("Skipping {} because it is not a segment.", path);
+                return;
+            }
+
+            CRC32 crc = new CRC32();
+            while (buffer.remaining() >= HEADER_SIZE) {
+                int length = buffer.getInt();
+                int checksum = buffer.getInt();
+                if (length < FIXED_BODY_SIZE || length > buffer.remaining())
+                    break;
+
+                ByteBuffer body = buffer.slice();
+                body.limit(length);
+                crc.reset();
+                crc.update(body.duplicate());
+                if ((int) crc.getValue() != checksum) {
+                    log.warn("Stopping replay of {} at a torn record.", path);
+                    break;
+                }
+                buffer.position(buffer.position() + length);
+
+                apply(decode(body), live);
+            }
+        }
+    }
+
+    private static void apply(LogRecord record, Map<String, LogRecord> live) {
+        switch (record.getType()) {
+        case LogRecord.PUT:
+            live.put(record.getId(), record);
+            break;
+        case LogRecord.REMOVE:
+            live.remove(record.getId());
+            break;
+        case LogRecord.RETRIES:
+            live.computeIfPresent(record.getId(), (id, put) -> put.withRetriesLeft(record.getRetriesLeft()));
+            break;
+        default:
+            // Unknown record types are skipped.
+        }
+    }
+
+    private static LogRecord decode(ByteBuffer body) {
+        byte type = body.get();
+        long expiresAt = body.getLong();
+        int retriesLeft = body.getInt();
+        byte[] id = new byte[body.getInt()];
+        body.get(id);
+        byte[] payload = new byte[body.getInt()];
+        body.get(payload);
+        return new LogRecord(type, new String(id, StandardCharsets.UTF_8), expiresAt, retriesLeft, payload);
+    }
+
+    private static ByteBuffer encode(LogRecord record) {
+        byte[] id = record.getId().getBytes(StandardCharsets.UTF_8);
+        byte[] payload = record.getPayload();
+        int length = FIXED_BODY_SIZE + id.length + payload.length;
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + length);
+        buffer.putInt(length);
+        buffer.putInt(0);
+        buffer.put(record.getType());
+        buffer.putLong(record.getExpiresAt());
+        buffer.putInt(record.getRetriesLeft());
+        buffer.putInt(id.length);
+        buffer.put(id);
+        buffer.putInt(payload.length);
+        buffer.put(payload);
+
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), HEADER_SIZE, length);
+        buffer.putInt(4, (int) crc.getValue());
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Append a record to the active segment. A sealed segment is forced to the disk after the lock of the log has been
+     * released.
+     *
+     * @param record The record.
+     * @return true if the active segment has been full and has been sealed.
+     * @throws UncheckedIOException  When a new segment cannot be created.
+     * @throws IllegalStateException When the log has been closed or has not been recovered.
+     */
+    public boolean append(LogRecord record) {
+        ByteBuffer encoded = encode(record);
+        MappedByteBuffer sealed = null;
+        synchronized (this) {
+            if (closed || activeBuffer == null)
+                throw new IllegalStateException("AppendLog " + directory + " is not open.");
+
+            if (encoded.remaining() > activeBuffer.remaining()) {
+                sealed = activeBuffer;
+                roll(encoded.remaining());
+            }
+            activeBuffer.put(encoded);
+        }
+        if (sealed == null)
+            return false;
+        sealed.force();
+        return true;
+    }
+
+    private void roll(int minSize) {
+        sealedSegments.add(activeSegment);
+        try {
+            openSegment(activeSegment + 1, Math.max(segmentSize, minSize + 4));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void openSegment(long segment, int size) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(segmentPath(segment).toFile(), "rw")) {
+            file.setLength(size);
+            activeBuffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+        activeBuffer.putInt(MAGIC);
+        activeSegment = segment;
+    }
+
+    /**
+     * Getter
+     *
+     * @return Amount of sealed segments.
+     */
+    public synchronized int getSealedSegments() {
+        return sealedSegments.size();
+    }
+
+    /**
+     * Getter
+     *
+     * @return Number of the last sealed segment or -1 if there is none.
+     */
+    public synchronized long getLastSealedSegment() {
+        return sealedSegments.isEmpty() ? -1 : sealedSegments.last();
+    }
+
+    /**
+     * Replace all sealed segments up to a segment by one segment containing the given records. The compacted segment
+     * is on the disk before any of the replaced segments is deleted.
+     *
+     * @param last The last segment to replace, as returned by {@link #getLastSealedSegment()}.
+     * @param live The live records. They must have been collected after {@link #getLastSealedSegment()} returned
+     *             the last segment, so no record in the replaced segments is newer than them.
+     * @throws IOException When the compacted segment cannot be written.
+     */
+    public void compact(long last, Collection<LogRecord> live) throws IOException {
+        if (last < 0)
+            return;
+
+        Path temp = directory.resolve(segmentPath(last).getFileName() + TEMP_SUFFIX);
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer magic = ByteBuffer.allocate(4).putInt(0, MAGIC_COMPACTED);
+            channel.write(magic);
+            for (LogRecord record : live) {
+                ByteBuffer encoded = encode(record);
+                while (encoded.hasRemaining()) {
+                    channel.write(encoded);
+                }
+            }
+            channel.force(true);
+        }
+        Files.move(temp, segmentPath(last), StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory();
+
+        synchronized (this) {
+            deleteSuperseded(last);
+        }
+    }
+
+    /**
+     * Force the entries of the directory to the disk, so a moved segment survives a crash of the operating system.
+     */
+    private void syncDirectory() {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Not supported on every platform, i.e. on Windows.
+            log.debug("Cannot sync directory {}.", directory, e);
+        }
+    }
+
+    /**
+     * Force all appended records to the disk.
+     */
+    public synchronized void sync() {
+        if (activeBuffer != null)
+            activeBuffer.force();
+    }
+
+    private Path segmentPath(long segment) {
+        return directory.resolve(String.format("%s%016d%s", SEGMENT_PREFIX, segment, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * Force all appended records to the disk and close the log.
+     */
+    @Override
+    public synchronized void close() {
+        sync();
+        activeBuffer = null;
+        closed = true;
+    }
+}
@@ -0,0 +1,86 @@
+package co.arago.util.collections.expiringstore.persistent;
+
+/**
+ * A record of an {@link AppendLog}. Records carry absolute state, never deltas, so replaying a record twice has the
+ * same effect as replaying it once.
+ */
+public final class LogRecord {
+
+    static final byte PUT = 1;
+    static final byte REMOVE = 2;
+    static final byte RETRIES = 3;
+
+    private static final byte[] NO_PAYLOAD = new byte[0];
+
+    private final byte type;
+    private final String id;
+    private final long expiresAt;
+    private final int retriesLeft;
+    private final byte[] payload;
+
+    LogRecord(byte type, String id, long expiresAt, int retriesLeft, byte[] payload) {
+        this.type = type;
+        this.id = id;
+        this.expiresAt = expiresAt;
+        this.retriesLeft = retriesLeft;
+        this.payload = payload;
+    }
+
+    /**
+     * Create a record of a message that has been added or put.
+     *
+     * @param id          Id of the message
+     * @param expiresAt   Expiry of the message in milliseconds since the epoch.
+     * @param retriesLeft Retries left of the message.
+     * @param payload     The serialized message.
+     * @return The record.
+     */
+    public static LogRecord put(String id, long expiresAt, int retriesLeft, byte[] payload) {
+        return new LogRecord(PUT, id, expiresAt, retriesLeft, payload);
+    }
+
+    /**
+     * Create a record of a removed message.
+     *
+     * @param id Id of the message
+     * @return The record.
+     */
+    public static LogRecord remove(String id) {
+        return new LogRecord(REMOVE, id, 0, 0, NO_PAYLOAD);
+    }
+
+    /**
+     * Create a record of the retries left of a message.
+     *
+     * @param id          Id of the message
+     * @param retriesLeft Retries left of the message.
+     * @return The record.
+     */
+    public static LogRecord retries(String id, int retriesLeft) {
+        return new LogRecord(RETRIES, id, 0, retriesLeft, NO_PAYLOAD);
+    }
+
+    byte getType() {
+        return type;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    public int getRetriesLeft() {
+        return retriesLeft;
+    }
+
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    LogRecord withRetriesLeft(int retriesLeft) {
+        return new LogRecord(type, id, expiresAt, retriesLeft, payload);
+    }
+}
@@ -0,0 +1,65 @@
+package co.arago.util.collections.expiringstore.persistent;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Converts messages to bytes and back for a persistent store.
+ *
+ * @param <T> Type of the messages.
+ */
+public interface Serializer<T> {
+
+    /**
+     * Convert a message to bytes.
+     *
+     * @param message The message.
+     * @return The bytes of the message.
+     */
+    byte[] serialize(T message);
+
+    /**
+     * Convert bytes back to a message.
+     *
+     * @param bytes The bytes created by {@link #serialize(Object)}.
+     * @return The message.
+     */
+    T deserialize(byte[] bytes);
+
+    /**
+     * Serializer for byte[] messages, which are stored as they are.
+     *
+     * @return The serializer.
+     */
+    static Serializer<byte[]> ofBytes() {
+        return new Serializer<>() {
+            @Override
+            public byte[] serialize(byte[] message) {
+                return message;
+            }
+
+            @Override
+            public byte[] deserialize(byte[] bytes) {
+                return bytes;
+            }
+        };
+    }
+
+    /**
+     * Serializer for String messages, which are stored as UTF-8.
+     *
+     * @return The serializer.
+     */
+    static Serializer<String> ofString() {
+        return new Serializer<>() {
+            @Override
+            public byte[] serialize(String message) {
+                return message.getBytes(StandardCharsets.UTF_8);
+            }
+
+            @Override
+            public String deserialize(byte[] bytes) {
+                return new String(bytes, StandardCharsets.UTF_8);
+            }
+        };
+    }
+}
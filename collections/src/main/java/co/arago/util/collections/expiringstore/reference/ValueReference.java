@@ -0,0 +1,76 @@
+package co.arago.util.collections.expiringstore.reference;
+
+import co.arago.util.collections.expiringstore.messages.ExpiringMessage;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+
+/**
+ * A soft or weak reference to the payload of a message that knows its message, so the store can remove the message
+ * when the reference has been cleared and enqueued.
+ */
+public interface ValueReference {
+
+    /**
+     * Getter
+     *
+     * @return The payload or null if it has been cleared.
+     */
+    Object get();
+
+    /**
+     * Getter
+     *
+     * @return The message holding this reference.
+     */
+    ExpiringMessage<?, ?> getMessage();
+
+    /**
+     * A soft reference to a payload.
+     */
+    final class Soft extends SoftReference<Object> implements ValueReference {
+        private final ExpiringMessage<?, ?> message;
+
+        /**
+         * Constructor
+         *
+         * @param value   The payload.
+         * @param message The message holding the payload.
+         * @param queue   The queue this reference is enqueued in when it has been cleared.
+         */
+        public Soft(Object value, ExpiringMessage<?, ?> message, ReferenceQueue<Object> queue) {
+            super(value, queue);
+            this.message = message;
+        }
+
+        @Override
+        public ExpiringMessage<?, ?> getMessage() {
+            return message;
+        }
+    }
+
+    /**
+     * A weak reference to a payload.
+     */
+    final class Weak extends WeakReference<Object> implements ValueReference {
+        private final ExpiringMessage<?, ?> message;
+
+        /**
+         * Constructor
+         *
+         * @param value   The payload.
+         * @param message The message holding the payload.
+         * @param queue   The queue this reference is enqueued in when it has been cleared.
+         */
+        public Weak(Object value, ExpiringMessage<?, ?> message, ReferenceQueue<Object> queue) {
+            super(value, queue);
+            this.message = message;
+        }
+
+        @Override
+        public ExpiringMessage<?, ?> getMessage() {
+            return message;
+        }
+    }
+}
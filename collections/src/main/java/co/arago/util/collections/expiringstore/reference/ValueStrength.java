@@ -0,0 +1,49 @@
+package co.arago.util.collections.expiringstore.reference;
+
+import co.arago.util.collections.expiringstore.messages.ExpiringMessage;
+
+import java.lang.ref.ReferenceQueue;
+
+/**
+ * How strongly a store references the payloads of its messages.
+ */
+public enum ValueStrength {
+    /**
+     * The payloads are kept until their messages leave the store. This is the default.
+     */
+    STRONG {
+        @Override
+        public Object reference(Object value, ExpiringMessage<?, ?> message, ReferenceQueue<Object> queue) {
+            return value;
+        }
+    },
+    /**
+     * The payloads are referenced softly. The garbage collector clears them under heap pressure, least recently used
+     * first, before the heap is exhausted.
+     */
+    SOFT {
+        @Override
+        public Object reference(Object value, ExpiringMessage<?, ?> message, ReferenceQueue<Object> queue) {
+            return new ValueReference.Soft(value, message, queue);
+        }
+    },
+    /**
+     * The payloads are referenced weakly. The garbage collector clears them as soon as nothing else references them.
+     */
+    WEAK {
+        @Override
+        public Object reference(Object value, ExpiringMessage<?, ?> message, ReferenceQueue<Object> queue) {
+            return new ValueReference.Weak(value, message, queue);
+        }
+    };
+
+    /**
+     * Reference a payload with this strength.
+     *
+     * @param value   The payload.
+     * @param message The message holding the payload.
+     * @param queue   The queue the reference is enqueued in when it has been cleared.
+     * @return The payload itself for {@link #STRONG}, else a {@link ValueReference} to it.
+     */
+    public abstract Object reference(Object value, ExpiringMessage<?, ?> message, ReferenceQueue<Object> queue);
+}
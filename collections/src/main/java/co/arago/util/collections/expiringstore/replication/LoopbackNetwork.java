@@ -0,0 +1,113 @@
+package co.arago.util.collections.expiringstore.replication;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+
+/**
+ * An in-process network of {@link ReplicationTransport}s, to run replicated stores on one machine, i.e. in tests.
+ * <p>
+ * Each batch published by a transport is encoded once with {@link ReplicationEvent#encode(List)} and decoded for each
+ * other transport of the network, so the stores share no objects. Batches are delivered in the order they have been
+ * published, on one thread of the network.
+ */
+public class LoopbackNetwork implements AutoCloseable {
+
+    private final static Logger log = LoggerFactory.getLogger(LoopbackNetwork.class);
+
+    /**
+     * A transport of this network.
+     */
+    private final class Transport implements ReplicationTransport {
+        private volatile Consumer<List<ReplicationEvent>> receiver;
+
+        @Override
+        public void start(Consumer<List<ReplicationEvent>> receiver) {
+            this.receiver = receiver;
+            transports.add(this);
+        }
+
+        @Override
+        public void publish(List<ReplicationEvent> events) {
+            byte[] batch = ReplicationEvent.encode(events);
+            try {
+                delivery.execute(() -> deliver(this, batch));
+            } catch (RejectedExecutionException e) {
+                log.debug("Dropping a batch of {} events because the network has been closed.", events.size());
+            }
+        }
+
+        @Override
+        public void close() {
+            transports.remove(this);
+        }
+    }
+
+    private final List<Transport> transports = new CopyOnWriteArrayList<>();
+    private final ExecutorService delivery;
+
+    /**
+     * Constructor
+     *
+     * @param name Name of the network, used for its delivery thread.
+     */
+    public LoopbackNetwork(String name) {
+        this.delivery = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Delivery of " + name);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Create a new transport of this network. It receives the batches of all other transports once it has been
+     * started.
+     *
+     * @return The new transport.
+     */
+    public ReplicationTransport newTransport() {
+        return new Transport();
+    }
+
+    private void deliver(Transport sender, byte[] batch) {
+        for (Transport transport : transports) {
+            if (transport == sender)
+                continue;
+            try {
+                transport.receiver.accept(ReplicationEvent.decode(batch));
+            } catch (RuntimeException e) {
+                log.error("Cannot deliver a batch of replication events.", e);
+            }
+        }
+    }
+
+    /**
+     * Wait until all batches published so far have been delivered.
+     *
+     * @throws InterruptedException When interrupted while waiting.
+     */
+    public void awaitDelivery() throws InterruptedException {
+        try {
+            delivery.submit(() -> {
+            }).get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Stop delivering batches.
+     */
+    @Override
+    public void close() {
+        delivery.shutdownNow();
+        transports.clear();
+    }
+}
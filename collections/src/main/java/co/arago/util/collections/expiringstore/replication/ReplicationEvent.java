@@ -0,0 +1,250 @@
+package co.arago.util.collections.expiringstore.replication;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A change of a replicated store, shipped to the other nodes in batches.
+ * <p>
+ * Events carry absolute state, never deltas, so applying an event twice has the same effect as applying it once.
+ * Writes are ordered by their version and the id of the node that made them: the last writer wins. A
+ * {@link Type#RETRIES} event refers to the version of the write it belongs to and carries the amount of retries of
+ * exactly that write that one node has used up so far. The retries left of the write are its retries minus the sum over
+ * all nodes, so retries used up on any node are used up on all nodes.
+ */
+public final class ReplicationEvent {
+
+    /**
+     * The kinds of changes.
+     */
+    public enum Type {
+        /**
+         * A message has been added or put.
+         */
+        PUT,
+        /**
+         * A message has been removed.
+         */
+        REMOVE,
+        /**
+         * Retries of a message have been used up.
+         */
+        RETRIES
+    }
+
+    private static final byte[] NO_PAYLOAD = new byte[0];
+    private static final Type[] TYPES = Type.values();
+
+    private final Type type;
+    private final String id;
+    private final String origin;
+    private final long version;
+    private final long expiresAt;
+    private final String node;
+    // Retries left of a PUT, retries used up on the node of a RETRIES event.
+    private final int retries;
+    private final byte[] payload;
+
+    private ReplicationEvent(
+            Type type,
+            String id,
+            String origin,
+            long version,
+            long expiresAt,
+            String node,
+            int retries,
+            byte[] payload) {
+        this.type = type;
+        this.id = id;
+        this.origin = origin;
+        this.version = version;
+        this.expiresAt = expiresAt;
+        this.node = node;
+        this.retries = retries;
+        this.payload = payload;
+    }
+
+    /**
+     * Create an event of a message that has been added or put.
+     *
+     * @param id          Id of the message
+     * @param origin      Id of the node that wrote the message.
+     * @param version     Version of the write.
+     * @param expiresAt   Expiry of the message in milliseconds since the epoch.
+     * @param retriesLeft Retries left of the message.
+     * @param payload     The serialized message.
+     * @return The event.
+     */
+    public static ReplicationEvent put(
+            String id,
+            String origin,
+            long version,
+            long expiresAt,
+            int retriesLeft,
+            byte[] payload) {
+        return new ReplicationEvent(Type.PUT, id, origin, version, expiresAt, origin, retriesLeft, payload);
+    }
+
+    /**
+     * Create an event of a removed message.
+     *
+     * @param id        Id of the message
+     * @param origin    Id of the node that removed the message.
+     * @param version   Version of the removal.
+     * @param expiresAt Expiry of the removed message. The removal is remembered until then.
+     * @return The event.
+     */
+    public static ReplicationEvent remove(String id, String origin, long version, long expiresAt) {
+        return new ReplicationEvent(Type.REMOVE, id, origin, version, expiresAt, origin, 0, NO_PAYLOAD);
+    }
+
+    /**
+     * Create an event of the retries of a message used up on one node.
+     *
+     * @param id          Id of the message
+     * @param origin      Id of the node that wrote the message.
+     * @param version     Version of the write of the message.
+     * @param expiresAt   Expiry of the message. The event is kept until then if it arrives before its write.
+     * @param node        Id of the node that used up the retries.
+     * @param retriesUsed All retries of the write used up on that node so far.
+     * @return The event.
+     */
+    public static ReplicationEvent retries(
+            String id,
+            String origin,
+            long version,
+            long expiresAt,
+            String node,
+            int retriesUsed) {
+        return new ReplicationEvent(Type.RETRIES, id, origin, version, expiresAt, node, retriesUsed, NO_PAYLOAD);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getOrigin() {
+        return origin;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    /**
+     * Getter
+     *
+     * @return Id of the node that made the change. It is the origin except for {@link Type#RETRIES} events.
+     */
+    public String getNode() {
+        return node;
+    }
+
+    /**
+     * Getter
+     *
+     * @return Retries left of a {@link Type#PUT}.
+     */
+    public int getRetriesLeft() {
+        return (type == Type.PUT) ? retries : 0;
+    }
+
+    /**
+     * Getter
+     *
+     * @return Retries of the write used up on the node of a {@link Type#RETRIES} event.
+     */
+    public int getRetriesUsed() {
+        return (type == Type.RETRIES) ? retries : 0;
+    }
+
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    /**
+     * Encode a batch of events for a transport that ships bytes.
+     *
+     * @param events The events.
+     * @return The encoded batch.
+     */
+    public static byte[] encode(List<ReplicationEvent> events) {
+        List<byte[]> strings = new ArrayList<>(events.size() * 3);
+        int length = Integer.BYTES;
+        for (ReplicationEvent event : events) {
+            byte[] id = event.id.getBytes(StandardCharsets.UTF_8);
+            byte[] origin = event.origin.getBytes(StandardCharsets.UTF_8);
+            byte[] node = event.node.getBytes(StandardCharsets.UTF_8);
+            strings.add(id);
+            strings.add(origin);
+            strings.add(node);
+            length += 1 + Long.BYTES * 2 + Integer.BYTES * 5 + id.length + origin.length + node.length
+                    + event.payload.length;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        buffer.putInt(events.size());
+        for (int i = 0; i < events.size(); i++) {
+            ReplicationEvent event = events.get(i);
+            buffer.put((byte) event.type.ordinal());
+            buffer.putLong(event.version);
+            buffer.putLong(event.expiresAt);
+            buffer.putInt(event.retries);
+            putBytes(buffer, strings.get(i * 3));
+            putBytes(buffer, strings.get(i * 3 + 1));
+            putBytes(buffer, strings.get(i * 3 + 2));
+            putBytes(buffer, event.payload);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Decode a batch of events encoded by {@link #encode(List)}.
+     *
+     * @param bytes The encoded batch.
+     * @return The events.
+     * @throws IllegalArgumentException When the bytes are not a valid batch.
+     */
+    public static List<ReplicationEvent> decode(byte[] bytes) {
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            int count = buffer.getInt();
+            List<ReplicationEvent> events = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                Type type = TYPES[buffer.get()];
+                long version = buffer.getLong();
+                long expiresAt = buffer.getLong();
+                int retries = buffer.getInt();
+                String id = new String(getBytes(buffer), StandardCharsets.UTF_8);
+                String origin = new String(getBytes(buffer), StandardCharsets.UTF_8);
+                String node = new String(getBytes(buffer), StandardCharsets.UTF_8);
+                events.add(new ReplicationEvent(type, id, origin, version, expiresAt, node, retries,
+                        getBytes(buffer)));
+            }
+            return events;
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Not a valid batch of replication events.", e);
+        }
+    }
+
+    private static void putBytes(ByteBuffer buffer, byte[] bytes) {
+        buffer.putInt(bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static byte[] getBytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return bytes;
+    }
+}
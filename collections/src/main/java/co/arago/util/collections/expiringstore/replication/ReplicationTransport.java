@@ -0,0 +1,37 @@
+package co.arago.util.collections.expiringstore.replication;
+
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Ships the batches of {@link ReplicationEvent}s of a replicated store to the stores of the other nodes.
+ * <p>
+ * A transport does not need to guarantee ordering or exactly-once delivery: events carry absolute state and versions,
+ * so stores ignore duplicates and events that have been overtaken, and keep retries that arrive before their write
+ * until it arrives. Transports that ship bytes can use {@link ReplicationEvent#encode(List)} and
+ * {@link ReplicationEvent#decode(byte[])}.
+ */
+public interface ReplicationTransport extends AutoCloseable {
+
+    /**
+     * Start receiving the batches of the other nodes.
+     *
+     * @param receiver Applies a batch to the local store. It is thread-safe.
+     */
+    void start(Consumer<List<ReplicationEvent>> receiver);
+
+    /**
+     * Ship a batch of local events to all other nodes. This must not block for long, since the store ships its batches
+     * on a single thread.
+     *
+     * @param events The events.
+     * @throws RuntimeException When the batch cannot be shipped. The store ships its events again with the next batch.
+     */
+    void publish(List<ReplicationEvent> events);
+
+    /**
+     * Stop shipping and receiving batches.
+     */
+    @Override
+    void close();
+}
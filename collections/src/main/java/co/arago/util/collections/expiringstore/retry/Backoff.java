@@ -0,0 +1,65 @@
+package co.arago.util.collections.expiringstore.retry;
+
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Exponential backoff with jitter for the attempts of a retry.
+ * <p>
+ * The delay before attempt n (starting with 0) is initialDelay * multiplier^n, capped at maxDelay. Jitter randomly
+ * shortens each delay by up to the given fraction, so retries of many messages added at the same time spread out.
+ */
+public class Backoff {
+
+    public static final double DEFAULT_MULTIPLIER = 2.0;
+    public static final double DEFAULT_JITTER = 0.2;
+
+    private final long initialDelayMillis;
+    private final double multiplier;
+    private final long maxDelayMillis;
+    private final double jitter;
+
+    /**
+     * Constructor
+     *
+     * @param initialDelay Delay before the first attempt.
+     * @param multiplier   Factor the delay grows with each attempt. Must be at least 1.
+     * @param maxDelay     Upper limit of the delay.
+     * @param jitter       Fraction between 0 and 1 by which each delay is randomly shortened.
+     */
+    public Backoff(Duration initialDelay, double multiplier, Duration maxDelay, double jitter) {
+        if (multiplier < 1.0)
+            throw new IllegalArgumentException("The multiplier must be at least 1.");
+        if (jitter < 0.0 || jitter > 1.0)
+            throw new IllegalArgumentException("The jitter must be between 0 and 1.");
+
+        this.initialDelayMillis = initialDelay.toMillis();
+        this.multiplier = multiplier;
+        this.maxDelayMillis = maxDelay.toMillis();
+        this.jitter = jitter;
+    }
+
+    /**
+     * Exponential backoff with {@link #DEFAULT_MULTIPLIER} and {@link #DEFAULT_JITTER}.
+     *
+     * @param initialDelay Delay before the first attempt.
+     * @param maxDelay     Upper limit of the delay.
+     * @return The backoff.
+     */
+    public static Backoff exponential(Duration initialDelay, Duration maxDelay) {
+        return new Backoff(initialDelay, DEFAULT_MULTIPLIER, maxDelay, DEFAULT_JITTER);
+    }
+
+    /**
+     * Calculate the delay before an attempt.
+     *
+     * @param attempt Number of the attempt, starting with 0.
+     * @return Delay in milliseconds.
+     */
+    public long delayMillis(int attempt) {
+        double delay = Math.min(maxDelayMillis, initialDelayMillis * Math.pow(multiplier, attempt));
+        if (jitter > 0.0)
+            delay -= delay * jitter * ThreadLocalRandom.current().nextDouble();
+        return (long) delay;
+    }
+}
@@ -0,0 +1,23 @@
+package co.arago.util.collections.expiringstore.retry;
+
+import co.arago.util.collections.expiringstore.StoreItem;
+
+import java.util.List;
+
+/**
+ * Receives the messages of a store that are due for their next retry attempt.
+ *
+ * @param <K> Type of the ids
+ * @param <T> Type of items in the store
+ */
+@FunctionalInterface
+public interface RetryHandler<K, T> {
+
+    /**
+     * Called on the executor given to the store with a batch of due messages. Each message has used up one retry.
+     * Remove a message from the store when it has been handled successfully, otherwise it will be due again.
+     *
+     * @param due The due messages.
+     */
+    void onRetry(List<StoreItem<K, T>> due);
+}
@@ -0,0 +1,12 @@
+package co.arago.util.collections.expiringstore.scheduler;
+
+/**
+ * A group of tasks in a {@link TimingWheelExpiryScheduler} that can be closed as a whole.
+ */
+interface ExpiryGroup {
+
+    /**
+     * @return true if the tasks of this group shall not run anymore.
+     */
+    boolean isClosed();
+}
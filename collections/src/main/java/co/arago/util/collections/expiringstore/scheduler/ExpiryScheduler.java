@@ -0,0 +1,52 @@
+package co.arago.util.collections.expiringstore.scheduler;
+
+import java.util.Collection;
+
+/**
+ * The engine that runs the expiry tasks of an expiring store at their "expiresAt".
+ */
+public interface ExpiryScheduler extends AutoCloseable {
+
+    /**
+     * Schedule a task.
+     *
+     * @param task            The task to run.
+     * @param expiresAtMillis Timestamp in milliseconds since the epoch at which the task shall run. Timestamps in the
+     *                        past let the task run as soon as possible.
+     * @return Handle to cancel the task.
+     * @throws IllegalStateException When the scheduler has been closed.
+     */
+    ScheduledExpiry schedule(Runnable task, long expiresAtMillis);
+
+    /**
+     * Schedule many tasks at once. Each task receives its handle via
+     * {@link ExpiryTask#setScheduledExpiry(ScheduledExpiry)}.
+     * <p>
+     * The default implementation schedules them one by one.
+     *
+     * @param tasks The tasks to run.
+     * @throws IllegalStateException When the scheduler has been closed.
+     */
+    default void scheduleAll(Collection<? extends ExpiryTask> tasks) {
+        for (ExpiryTask task : tasks) {
+            task.setScheduledExpiry(schedule(task, task.getExpiresAtMillis()));
+        }
+    }
+
+    /**
+     * Getter
+     * <p>
+     * The default implementation does not know the amount.
+     *
+     * @return Amount of tasks that have neither run nor been cancelled yet, -1 if unknown.
+     */
+    default long getPendingCount() {
+        return -1;
+    }
+
+    /**
+     * Stop the scheduler. Pending tasks will not run anymore and the scheduler cannot be used thereafter.
+     */
+    @Override
+    void close();
+}
@@ -0,0 +1,24 @@
+package co.arago.util.collections.expiringstore.scheduler;
+
+import java.util.Collection;
+
+/**
+ * A task that knows its own timestamp, so it can be scheduled in batches via
+ * {@link ExpiryScheduler#scheduleAll(Collection)}.
+ */
+public interface ExpiryTask extends Runnable {
+
+    /**
+     * Getter
+     *
+     * @return Timestamp in milliseconds since the epoch at which the task shall run.
+     */
+    long getExpiresAtMillis();
+
+    /**
+     * Setter. Called by the scheduler with the handle of the scheduled task.
+     *
+     * @param scheduledExpiry Handle to cancel the task.
+     */
+    void setScheduledExpiry(ScheduledExpiry scheduledExpiry);
+}
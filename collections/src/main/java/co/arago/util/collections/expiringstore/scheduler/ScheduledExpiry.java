@@ -0,0 +1,15 @@
+package co.arago.util.collections.expiringstore.scheduler;
+
+/**
+ * Handle of a task scheduled with an {@link ExpiryScheduler}.
+ */
+@FunctionalInterface
+public interface ScheduledExpiry {
+
+    /**
+     * Cancel the scheduled task. If the task has not run yet, it will never run.
+     *
+     * @return true if the task has been cancelled by this call, false if it already ran or has been cancelled before.
+     */
+    boolean cancel();
+}
@@ -0,0 +1,174 @@
+package co.arago.util.collections.expiringstore.scheduler;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An expiry engine shared by many stores.
+ * <p>
+ * One {@link TimingWheelExpiryScheduler} keeps track of the expiries of all registered stores and hands due tasks to
+ * a bounded thread pool or to any given {@link ExecutorService}, i.e. one using virtual threads. The amount of threads
+ * therefore does not grow with the amount of stores.
+ * <p>
+ * Each store gets its own {@link ExpiryScheduler} via {@link #register(String)}. Closing it only detaches that store:
+ * its pending tasks are dropped when the wheel reaches them, while the shared threads keep running until
+ * {@link #close()} is called on this scheduler. A closing store cancels its pending tasks first, so the wheel does not
+ * keep its messages until then.
+ */
+public class SharedExpiryScheduler implements AutoCloseable {
+
+    private final static Logger log = LoggerFactory.getLogger(SharedExpiryScheduler.class);
+
+    public static final int DEFAULT_THREADS = 2;
+
+    /**
+     * The {@link ExpiryScheduler} of a single store.
+     */
+    private class Registration implements ExpiryScheduler, ExpiryGroup {
+        private final String storeName;
+        private volatile boolean closed = false;
+
+        private Registration(String storeName) {
+            this.storeName = storeName;
+        }
+
+        @Override
+        public ScheduledExpiry schedule(Runnable task, long expiresAtMillis) {
+            if (closed)
+                throw new IllegalStateException("Scheduler of " + storeName + " already closed.");
+            return wheel.schedule(task, expiresAtMillis, this);
+        }
+
+        @Override
+        public void scheduleAll(Collection<? extends ExpiryTask> tasks) {
+            if (closed)
+                throw new IllegalStateException("Scheduler of " + storeName + " already closed.");
+            wheel.scheduleAll(tasks, this);
+        }
+
+        /**
+         * Getter
+         *
+         * @return Amount of pending tasks of all stores sharing the scheduler.
+         */
+        @Override
+        public long getPendingCount() {
+            return wheel.getPendingCount();
+        }
+
+        @Override
+        public boolean isClosed() {
+            return closed;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    private final String name;
+    private final TimingWheelExpiryScheduler wheel;
+    private final ExecutorService executor;
+    private final boolean ownsExecutor;
+
+    /**
+     * Constructor
+     * <p>
+     * Uses {@link #DEFAULT_THREADS} threads and {@link TimingWheelExpiryScheduler#DEFAULT_TICK}.
+     *
+     * @param name Name of this scheduler. Used for the names of its threads.
+     */
+    public SharedExpiryScheduler(String name) {
+        this(name, DEFAULT_THREADS);
+    }
+
+    /**
+     * Constructor
+     * <p>
+     * Uses {@link TimingWheelExpiryScheduler#DEFAULT_TICK}.
+     *
+     * @param name    Name of this scheduler. Used for the names of its threads.
+     * @param threads Amount of threads running the expiry tasks.
+     */
+    public SharedExpiryScheduler(String name, int threads) {
+        this(name, TimingWheelExpiryScheduler.DEFAULT_TICK, threads);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param name    Name of this scheduler. Used for the names of its threads.
+     * @param tick    Resolution of the timing wheel.
+     * @param threads Amount of threads running the expiry tasks.
+     */
+    public SharedExpiryScheduler(String name, Duration tick, int threads) {
+        this(name, tick, Executors.newFixedThreadPool(threads, newThreadFactory(name)), true);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param name     Name of this scheduler. Used for the name of the thread of the timing wheel.
+     * @param tick     Resolution of the timing wheel.
+     * @param executor The executor running the expiry tasks, i.e. a virtual thread per task executor. It will not be
+     *                 shut down by {@link #close()}.
+     */
+    public SharedExpiryScheduler(String name, Duration tick, ExecutorService executor) {
+        this(name, tick, executor, false);
+    }
+
+    private SharedExpiryScheduler(String name, Duration tick, ExecutorService executor, boolean ownsExecutor) {
+        this.name = name;
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+        this.wheel = new TimingWheelExpiryScheduler("Wheel for " + name, tick,
+                TimingWheelExpiryScheduler.DEFAULT_WHEEL_SIZE, executor);
+    }
+
+    private static ThreadFactory newThreadFactory(String name) {
+        AtomicInteger threadCounter = new AtomicInteger(0);
+        return runnable -> {
+            Thread thread = new Thread(runnable, "Expiry for " + name + "-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setUncaughtExceptionHandler((t, e) -> log.error("Expiry task failed.", e));
+            return thread;
+        };
+    }
+
+    /**
+     * Register a store with this scheduler.
+     *
+     * @param storeName Name of the store.
+     * @return The scheduler to hand to the store. Closing it detaches the store from this scheduler.
+     */
+    public ExpiryScheduler register(String storeName) {
+        return new Registration(storeName);
+    }
+
+    /**
+     * Getter
+     *
+     * @return Name of this scheduler.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Stop the timing wheel and the threads of this scheduler. Expiries of all registered stores stop.
+     */
+    @Override
+    public void close() {
+        wheel.close();
+        if (ownsExecutor)
+            executor.shutdownNow();
+    }
+}
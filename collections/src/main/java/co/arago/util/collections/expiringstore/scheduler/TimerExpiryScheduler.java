@@ -0,0 +1,62 @@
+package co.arago.util.collections.expiringstore.scheduler;
+
+import java.util.Date;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * The default {@link ExpiryScheduler} using a {@link Timer}. Scheduling is O(log n) and cancelled tasks stay in the
+ * queue of the timer until their time has come.
+ */
+public class TimerExpiryScheduler implements ExpiryScheduler {
+
+    /**
+     * The {@link TimerTask} of a scheduled task, which is also its handle.
+     */
+    private static final class TimerEntry extends TimerTask implements ScheduledExpiry {
+        private final Runnable task;
+
+        private TimerEntry(Runnable task) {
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            task.run();
+        }
+    }
+
+    private final Timer timer;
+
+    /**
+     * Constructor
+     *
+     * @param name Name of the thread of the timer.
+     */
+    public TimerExpiryScheduler(String name) {
+        this.timer = new Timer(name);
+    }
+
+    /**
+     * Schedule a task with the {@link #timer}. Each task gets its own {@link TimerEntry}, so the tasks do not need to
+     * be {@link TimerTask}s and can be scheduled again after they have run.
+     *
+     * @param task            The task to run.
+     * @param expiresAtMillis Timestamp in milliseconds since the epoch at which the task shall run.
+     * @return Handle to cancel the task.
+     */
+    @Override
+    public ScheduledExpiry schedule(Runnable task, long expiresAtMillis) {
+        TimerEntry entry = new TimerEntry(task);
+        timer.schedule(entry, new Date(expiresAtMillis));
+        return entry;
+    }
+
+    /**
+     * Cancel the {@link #timer}.
+     */
+    @Override
+    public void close() {
+        timer.cancel();
+    }
+}
@@ -0,0 +1,455 @@
+package co.arago.util.collections.expiringstore.scheduler;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A hierarchical hashed timing wheel as {@link ExpiryScheduler}.
+ * <p>
+ * Time is divided into ticks of a configurable resolution. Level 0 of the wheel has one bucket per tick, each
+ * higher level has buckets spanning a whole revolution of the level below. Tasks far in the future are placed in a
+ * higher level and cascade down level by level as their time approaches.
+ * <p>
+ * {@link #schedule(Runnable, long)} and {@link ScheduledExpiry#cancel()} are O(1) and lock-free: they only enqueue
+ * into concurrent queues. The worker thread owns the buckets, moves new tasks into them, unlinks cancelled tasks and
+ * runs the tasks that are due. Tasks run at the first tick after their timestamp, so they may run up to one tick
+ * late, but never early.
+ * <p>
+ * Due tasks run on the worker thread unless an {@link Executor} is given, which is then used to run them.
+ */
+public class TimingWheelExpiryScheduler implements ExpiryScheduler {
+
+    private final static Logger log = LoggerFactory.getLogger(TimingWheelExpiryScheduler.class);
+
+    public static final Duration DEFAULT_TICK = Duration.ofMillis(10);
+    public static final int DEFAULT_WHEEL_SIZE = 64;
+
+    private static final int STATE_WAITING = 0;
+    private static final int STATE_CANCELLED = 1;
+    private static final int STATE_EXPIRED = 2;
+
+    private static final AtomicIntegerFieldUpdater<Entry> STATE = AtomicIntegerFieldUpdater.newUpdater(Entry.class,
+            "state");
+
+    /**
+     * A scheduled task. Instances are linked into the buckets of the wheel.
+     */
+    private final class Entry implements ScheduledExpiry {
+        private final Runnable task;
+        private final long deadlineTick;
+        private final ExpiryGroup group;
+        volatile int state = STATE_WAITING;
+
+        // Only accessed by the worker thread
+        private Bucket bucket;
+        private Entry prev;
+        private Entry next;
+
+        private Entry(Runnable task, long deadlineTick, ExpiryGroup group) {
+            this.task = task;
+            this.deadlineTick = deadlineTick;
+            this.group = group;
+        }
+
+        /**
+         * Check whether the entry is still waiting. Entries of closed groups get cancelled.
+         *
+         * @return true if the entry is still waiting.
+         */
+        private boolean isWaiting() {
+            if (group != null && group.isClosed() && STATE.compareAndSet(this, STATE_WAITING, STATE_CANCELLED))
+                pending.decrement();
+            return state == STATE_WAITING;
+        }
+
+        @Override
+        public boolean cancel() {
+            if (!STATE.compareAndSet(this, STATE_WAITING, STATE_CANCELLED))
+                return false;
+            pending.decrement();
+            cancelledEntries.offer(this);
+            return true;
+        }
+    }
+
+    /**
+     * Doubly linked list of entries.
+     */
+    private static final class Bucket {
+        private Entry head;
+        private Entry tail;
+
+        private void add(Entry entry) {
+            entry.bucket = this;
+            entry.prev = tail;
+            entry.next = null;
+            if (tail == null)
+                head = entry;
+            else
+                tail.next = entry;
+            tail = entry;
+        }
+
+        private void remove(Entry entry) {
+            if (entry.prev == null)
+                head = entry.next;
+            else
+                entry.prev.next = entry.next;
+            if (entry.next == null)
+                tail = entry.prev;
+            else
+                entry.next.prev = entry.prev;
+            entry.bucket = null;
+            entry.prev = null;
+            entry.next = null;
+        }
+
+        /**
+         * Detach all entries from this bucket.
+         *
+         * @return The first entry of the detached chain linked via {@link Entry#next}.
+         */
+        private Entry clear() {
+            Entry first = head;
+            head = null;
+            tail = null;
+            return first;
+        }
+    }
+
+    private final long tickMillis;
+    private final int wheelBits;
+    private final long wheelMask;
+    private final Bucket[][] levels;
+    private final Executor executor;
+
+    private final Queue<Entry> newEntries = new ConcurrentLinkedQueue<>();
+    private final Queue<Entry> cancelledEntries = new ConcurrentLinkedQueue<>();
+
+    private final Thread workerThread;
+    private volatile boolean closed = false;
+    private final LongAdder pending = new LongAdder();
+
+    // Only accessed by the worker thread
+    private long currentTick;
+    private long size = 0;
+
+    /**
+     * Constructor
+     * <p>
+     * Uses {@link #DEFAULT_TICK} and {@link #DEFAULT_WHEEL_SIZE}.
+     *
+     * @param name Name of the worker thread.
+     */
+    public TimingWheelExpiryScheduler(String name) {
+        this(name, DEFAULT_TICK);
+    }
+
+    /**
+     * Constructor
+     * <p>
+     * Uses {@link #DEFAULT_WHEEL_SIZE}.
+     *
+     * @param name Name of the worker thread.
+     * @param tick Resolution of the wheel. Must be at least one millisecond.
+     */
+    public TimingWheelExpiryScheduler(String name, Duration tick) {
+        this(name, tick, DEFAULT_WHEEL_SIZE);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param name      Name of the worker thread.
+     * @param tick      Resolution of the wheel. Must be at least one millisecond.
+     * @param wheelSize Amount of buckets per level. Must be a power of two and at least 2.
+     */
+    public TimingWheelExpiryScheduler(String name, Duration tick, int wheelSize) {
+        this(name, tick, wheelSize, null);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param name      Name of the worker thread.
+     * @param tick      Resolution of the wheel. Must be at least one millisecond.
+     * @param wheelSize Amount of buckets per level. Must be a power of two and at least 2.
+     * @param executor  Executor to run due tasks on. If this is null, tasks run on the worker thread.
+     */
+    public TimingWheelExpiryScheduler(String name, Duration tick, int wheelSize, Executor executor) {
+        if (tick.toMillis() < 1)
+            throw new IllegalArgumentException("Tick must be at least one millisecond.");
+        if (wheelSize < 2 || Integer.bitCount(wheelSize) != 1)
+            throw new IllegalArgumentException("WheelSize must be a power of two and at least 2.");
+
+        this.tickMillis = tick.toMillis();
+        this.wheelBits = Integer.numberOfTrailingZeros(wheelSize);
+        this.wheelMask = wheelSize - 1;
+        this.levels = new Bucket[(Long.SIZE - 1 + wheelBits - 1) / wheelBits][];
+        this.executor = executor;
+        this.currentTick = System.currentTimeMillis() / tickMillis;
+
+        this.workerThread = new Thread(this::work, name);
+        this.workerThread.setDaemon(true);
+        this.workerThread.start();
+    }
+
+    /**
+     * Schedule a task. O(1), the task is handed to the worker thread.
+     *
+     * @param task            The task to run.
+     * @param expiresAtMillis Timestamp in milliseconds since the epoch at which the task shall run.
+     * @return Handle to cancel the task.
+     * @throws IllegalStateException When the scheduler has been closed.
+     */
+    @Override
+    public ScheduledExpiry schedule(Runnable task, long expiresAtMillis) {
+        return schedule(task, expiresAtMillis, null);
+    }
+
+    /**
+     * Schedule a task that belongs to a group. When the group is closed, its pending tasks are dropped when the wheel
+     * reaches them.
+     *
+     * @param task            The task to run.
+     * @param expiresAtMillis Timestamp in milliseconds since the epoch at which the task shall run.
+     * @param group           The group of the task. Can be null.
+     * @return Handle to cancel the task.
+     * @throws IllegalStateException When the scheduler has been closed.
+     */
+    ScheduledExpiry schedule(Runnable task, long expiresAtMillis, ExpiryGroup group) {
+        if (closed)
+            throw new IllegalStateException("Scheduler already closed.");
+
+        Entry entry = new Entry(task, toDeadlineTick(expiresAtMillis), group);
+        pending.increment();
+        newEntries.offer(entry);
+        return entry;
+    }
+
+    /**
+     * Schedule many tasks at once. The tasks are handed to the worker thread with a single insertion into its queue.
+     *
+     * @param tasks The tasks to run.
+     * @throws IllegalStateException When the scheduler has been closed.
+     */
+    @Override
+    public void scheduleAll(Collection<? extends ExpiryTask> tasks) {
+        scheduleAll(tasks, null);
+    }
+
+    /**
+     * Schedule many tasks of a group at once.
+     *
+     * @param tasks The tasks to run.
+     * @param group The group of the tasks. Can be null.
+     * @throws IllegalStateException When the scheduler has been closed.
+     */
+    void scheduleAll(Collection<? extends ExpiryTask> tasks, ExpiryGroup group) {
+        if (closed)
+            throw new IllegalStateException("Scheduler already closed.");
+
+        List<Entry> entries = new ArrayList<>(tasks.size());
+        for (ExpiryTask task : tasks) {
+            Entry entry = new Entry(task, toDeadlineTick(task.getExpiresAtMillis()), group);
+            task.setScheduledExpiry(entry);
+            entries.add(entry);
+        }
+        pending.add(entries.size());
+        newEntries.addAll(entries);
+    }
+
+    /**
+     * Round up, so tasks never run before their timestamp.
+     *
+     * @param expiresAtMillis Timestamp in milliseconds since the epoch.
+     * @return The first tick at or after the timestamp.
+     */
+    private long toDeadlineTick(long expiresAtMillis) {
+        return Math.floorDiv(expiresAtMillis + tickMillis - 1, tickMillis);
+    }
+
+    /**
+     * Stop the worker thread and drop all pending tasks.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        workerThread.interrupt();
+    }
+
+    /**
+     * Getter
+     *
+     * @return Amount of tasks that have neither run nor been cancelled yet.
+     */
+    @Override
+    public long getPendingCount() {
+        return pending.sum();
+    }
+
+    /**
+     * Getter
+     *
+     * @return Resolution of the wheel in milliseconds.
+     */
+    public long getTickMillis() {
+        return tickMillis;
+    }
+
+    private void work() {
+        try {
+            while (!closed) {
+                long nowTick = System.currentTimeMillis() / tickMillis;
+
+                transferNewEntries();
+                removeCancelledEntries();
+
+                if (size == 0 && nowTick > currentTick)
+                    currentTick = nowTick;
+
+                while (currentTick < nowTick && !closed) {
+                    advanceTo(currentTick + 1);
+                }
+
+                long sleepMillis = (currentTick + 1) * tickMillis - System.currentTimeMillis();
+                if (sleepMillis > 0)
+                    Thread.sleep(sleepMillis);
+            }
+        } catch (InterruptedException e) {
+            if (!closed)
+                log.warn("Worker thread of timing wheel interrupted.");
+        } finally {
+            newEntries.clear();
+            cancelledEntries.clear();
+            for (int level = 0; level < levels.length; level++) {
+                levels[level] = null;
+            }
+            size = 0;
+        }
+    }
+
+    private void transferNewEntries() {
+        Entry entry;
+        while ((entry = newEntries.poll()) != null) {
+            if (entry.isWaiting())
+                place(entry);
+        }
+    }
+
+    private void removeCancelledEntries() {
+        Entry entry;
+        while ((entry = cancelledEntries.poll()) != null) {
+            if (entry.bucket != null) {
+                entry.bucket.remove(entry);
+                size--;
+            }
+        }
+    }
+
+    /**
+     * Advance the wheel by one tick. Cascade the due buckets of higher levels down, then expire the current bucket of
+     * level 0.
+     *
+     * @param tick The new current tick.
+     */
+    private void advanceTo(long tick) {
+        currentTick = tick;
+
+        for (int level = levels.length - 1; level >= 1; level--) {
+            int shift = wheelBits * level;
+            if (levels[level] != null && (tick & ((1L << shift) - 1)) == 0) {
+                Entry entry = bucket(level, (int) ((tick >>> shift) & wheelMask)).clear();
+                while (entry != null) {
+                    Entry next = entry.next;
+                    entry.bucket = null;
+                    entry.prev = null;
+                    entry.next = null;
+                    size--;
+                    if (entry.isWaiting())
+                        place(entry);
+                    entry = next;
+                }
+            }
+        }
+
+        if (levels[0] != null) {
+            Entry entry = bucket(0, (int) (tick & wheelMask)).clear();
+            while (entry != null) {
+                Entry next = entry.next;
+                entry.bucket = null;
+                entry.prev = null;
+                entry.next = null;
+                size--;
+                expire(entry);
+                entry = next;
+            }
+        }
+    }
+
+    /**
+     * Put an entry into the lowest level whose current revolution contains the deadline of the entry. Entries that are
+     * already due expire immediately.
+     *
+     * @param entry The entry to place.
+     */
+    private void place(Entry entry) {
+        long deadline = entry.deadlineTick;
+        if (deadline <= currentTick) {
+            expire(entry);
+            return;
+        }
+
+        int level = 0;
+        while (level < levels.length - 1) {
+            int shift = wheelBits * (level + 1);
+            if ((deadline >>> shift) == (currentTick >>> shift))
+                break;
+            level++;
+        }
+
+        bucket(level, (int) ((deadline >>> (wheelBits * level)) & wheelMask)).add(entry);
+        size++;
+    }
+
+    private Bucket bucket(int level, int index) {
+        Bucket[] buckets = levels[level];
+        if (buckets == null) {
+            buckets = new Bucket[(int) wheelMask + 1];
+            levels[level] = buckets;
+        }
+        Bucket bucket = buckets[index];
+        if (bucket == null) {
+            bucket = new Bucket();
+            buckets[index] = bucket;
+        }
+        return bucket;
+    }
+
+    private void expire(Entry entry) {
+        if (!entry.isWaiting() || !STATE.compareAndSet(entry, STATE_WAITING, STATE_EXPIRED))
+            return;
+        pending.decrement();
+        try {
+            if (executor != null)
+                executor.execute(entry.task);
+            else
+                entry.task.run();
+        } catch (RejectedExecutionException e) {
+            log.warn("Expiry task rejected by executor.", e);
+        } catch (Throwable t) {
+            log.error("Expiry task failed.", t);
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package co.arago.util.collections.expiringstore.stats;
+
+import co.arago.util.collections.expiringstore.listener.RemovalCause;
+
+/**
+ * An immutable snapshot of the statistics of a store.
+ * <p>
+ * Counters only grow. Rates, i.e. expirations per second, are calculated from two snapshots with
+ * {@link #ratePerSecond(long, long, StoreStats)}.
+ */
+public class StoreStats {
+
+    private final String name;
+    private final long timestampMillis;
+    private final int size;
+    private final long pendingExpiries;
+    private final long hitCount;
+    private final long missCount;
+    private final long addCount;
+    private final long putCount;
+    private final long[] removalCounts;
+    private final LatencyHistogram.Snapshot addLatency;
+    private final LatencyHistogram.Snapshot addLockWait;
+    private final LatencyHistogram.Snapshot getLatency;
+    private final LatencyHistogram.Snapshot retryGetLatency;
+
+    /**
+     * Constructor
+     *
+     * @param name            Name of the store.
+     * @param timestampMillis Time of the snapshot in milliseconds since the epoch.
+     * @param size            Amount of messages in the store.
+     * @param pendingExpiries Amount of pending tasks of the scheduler of the store, -1 if unknown.
+     * @param hitCount        Reads that found a message.
+     * @param missCount       Reads that did not find a message.
+     * @param addCount        Added messages.
+     * @param putCount        Put messages.
+     * @param removalCounts   Removed messages by the ordinal of their {@link RemovalCause}.
+     * @param addLatency      Latencies of add, including the wait for the lock of the store.
+     * @param addLockWait     Time add waited for the lock of the store.
+     * @param getLatency      Latencies of get, including the wait for the lock of the store.
+     * @param retryGetLatency Latencies of retryGet, including the wait for the lock of the store.
+     */
+    public StoreStats(
+            String name,
+            long timestampMillis,
+            int size,
+            long pendingExpiries,
+            long hitCount,
+            long missCount,
+            long addCount,
+            long putCount,
+            long[] removalCounts,
+            LatencyHistogram.Snapshot addLatency,
+            LatencyHistogram.Snapshot addLockWait,
+            LatencyHistogram.Snapshot getLatency,
+            LatencyHistogram.Snapshot retryGetLatency) {
+        this.name = name;
+        this.timestampMillis = timestampMillis;
+        this.size = size;
+        this.pendingExpiries = pendingExpiries;
+        this.hitCount = hitCount;
+        this.missCount = missCount;
+        this.addCount = addCount;
+        this.putCount = putCount;
+        this.removalCounts = removalCounts;
+        this.addLatency = addLatency;
+        this.addLockWait = addLockWait;
+        this.getLatency = getLatency;
+        this.retryGetLatency = retryGetLatency;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getTimestampMillis() {
+        return timestampMillis;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public long getPendingExpiries() {
+        return pendingExpiries;
+    }
+
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    public long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * Getter
+     *
+     * @return Ratio of reads that found a message, 0 if there have been no reads.
+     */
+    public double getHitRate() {
+        long reads = hitCount + missCount;
+        return (reads > 0) ? (double) hitCount / reads : 0.0;
+    }
+
+    public long getAddCount() {
+        return addCount;
+    }
+
+    public long getPutCount() {
+        return putCount;
+    }
+
+    /**
+     * Getter
+     *
+     * @param cause The cause.
+     * @return Amount of messages that left the store for this cause.
+     */
+    public long getRemovalCount(RemovalCause cause) {
+        return removalCounts[cause.ordinal()];
+    }
+
+    public LatencyHistogram.Snapshot getAddLatency() {
+        return addLatency;
+    }
+
+    /**
+     * Getter
+     *
+     * @return Time add waited for the lock of the store. Empty for stores without a store-wide lock.
+     */
+    public LatencyHistogram.Snapshot getAddLockWait() {
+        return addLockWait;
+    }
+
+    public LatencyHistogram.Snapshot getGetLatency() {
+        return getLatency;
+    }
+
+    public LatencyHistogram.Snapshot getRetryGetLatency() {
+        return retryGetLatency;
+    }
+
+    /**
+     * Calculate the rate of a counter between an earlier snapshot and this one.
+     *
+     * @param current  Value of the counter in this snapshot.
+     * @param previous Value of the counter in the earlier snapshot.
+     * @param earlier  The earlier snapshot.
+     * @return Increase of the counter per second, 0 if no time has passed.
+     */
+    public double ratePerSecond(long current, long previous, StoreStats earlier) {
+        long millis = timestampMillis - earlier.timestampMillis;
+        return (millis > 0) ? (current - previous) * 1000.0 / millis : 0.0;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder removals = new StringBuilder();
+        for (RemovalCause cause : RemovalCause.values()) {
+            removals.append(", ").append(cause.name().toLowerCase()).append('=').append(getRemovalCount(cause));
+        }
+        return "StoreStats{name=" + name + ", size=" + size + ", pendingExpiries=" + pendingExpiries + ", hits="
+                + hitCount + ", misses=" + missCount + ", adds=" + addCount + ", puts=" + putCount + removals
+                + ", add=[" + addLatency + "], addLockWait=[" + addLockWait + "], get=[" + getLatency + "], retryGet=["
+                + retryGetLatency + "]}";
+    }
+}
@@ -0,0 +1,472 @@
+package co.arago.util.collections.expiringstore.tiered;
+
+import co.arago.util.collections.expiringstore.persistent.LogRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The cold tier of a {@link co.arago.util.collections.expiringstore.TieredExpiringRetryStore}: serialized messages in
+ * segment files of a local directory, indexed by id on the heap.
+ * <p>
+ * A segment file only holds the serialized payloads, back to back. Id, expiry, retries left and the position of the
+ * payload are kept in the index, so a message costs its payload on disk and its index entry on the heap. With
+ * compressed references, an index entry takes about 80 bytes: 40 for the entry and 40 for its node and slot in the
+ * index. The id comes on top, so for typical ids the cold tier still needs more than 100 bytes of heap per message.
+ * Payloads are appended to the active segment. When it is full, a new segment is started.
+ * <p>
+ * A segment file is deleted as soon as none of its payloads is referenced anymore. {@link #removeExpired(long)} also
+ * moves the live payloads of sparse segments to the active segment, so a few long-lived messages do not keep many
+ * mostly empty segments on disk.
+ * <p>
+ * The cold tier is not durable. Its files are temporary and deleted when it is closed. This class is thread-safe.
+ * Payloads are read and moved outside its monitor, sweeps take the monitor once per chunk of
+ * {@link #SWEEP_CHUNK_SIZE} messages.
+ */
+public class ColdTier implements AutoCloseable {
+
+    private final static Logger log = LoggerFactory.getLogger(ColdTier.class);
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * Segments with less than this fraction of live payload bytes are compacted.
+     */
+    private static final double SPARSE_SEGMENT = 0.25;
+
+    /**
+     * Maximum amount of messages a sweep removes or moves under one lock.
+     */
+    public static final int SWEEP_CHUNK_SIZE = 256;
+
+    /**
+     * A segment file.
+     */
+    private static final class Segment {
+        private final Path path;
+        private final FileChannel channel;
+        // Written under the monitor of the tier only, read without it to find sparse segments.
+        private volatile int size = 0;
+        private volatile long liveBytes = 0;
+
+        private Segment(Path path) throws IOException {
+            this.path = path;
+            this.channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+
+        private void delete() throws IOException {
+            channel.close();
+            Files.deleteIfExists(path);
+        }
+    }
+
+    /**
+     * The index entry of a message.
+     */
+    private static final class Entry {
+        private final Segment segment;
+        private final int position;
+        private final int length;
+        private final long expiresAt;
+        private final int retriesLeft;
+
+        private Entry(Segment segment, int position, int length, long expiresAt, int retriesLeft) {
+            this.segment = segment;
+            this.position = position;
+            this.length = length;
+            this.expiresAt = expiresAt;
+            this.retriesLeft = retriesLeft;
+        }
+    }
+
+    /**
+     * A message read by {@link #read(String)}, which is still in the tier.
+     */
+    public static final class Copy {
+        private final Entry entry;
+        private final LogRecord record;
+
+        private Copy(Entry entry, LogRecord record) {
+            this.entry = entry;
+            this.record = record;
+        }
+
+        /**
+         * Getter
+         *
+         * @return The message.
+         */
+        public LogRecord getRecord() {
+            return record;
+        }
+    }
+
+    private final Path directory;
+    private final String prefix;
+    private final int segmentSize;
+
+    // Changed under the monitor only, read without it.
+    private final ConcurrentHashMap<String, Entry> index = new ConcurrentHashMap<>();
+    private final List<Segment> segments = new ArrayList<>();
+    private volatile Segment active;
+    private long payloadBytes = 0;
+
+    /**
+     * Constructor
+     *
+     * @param directory   Directory of the segment files. It is created if it does not exist.
+     * @param prefix      Prefix of the names of the segment files.
+     * @param segmentSize Size of a segment file in bytes. Larger payloads get a segment of their own.
+     * @throws IOException When the directory cannot be created.
+     */
+    public ColdTier(Path directory, String prefix, int segmentSize) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.prefix = prefix.replaceAll("[^A-Za-z0-9_.-]", "_") + "-";
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Store a message, replacing a message with the same id.
+     *
+     * @param id          Id of the message
+     * @param expiresAt   Expiry of the message in milliseconds since the epoch.
+     * @param retriesLeft Retries left of the message.
+     * @param payload     The serialized message.
+     * @throws IOException When the payload cannot be written.
+     */
+    public synchronized void put(String id, long expiresAt, int retriesLeft, byte[] payload) throws IOException {
+        Entry entry = write(payload, expiresAt, retriesLeft);
+        release(index.put(id, entry));
+    }
+
+    /**
+     * Remove a message and return it.
+     *
+     * @param id Id of the message
+     * @return The message or null if it is not in this tier.
+     * @throws IOException When the payload cannot be read.
+     */
+    public synchronized LogRecord take(String id) throws IOException {
+        Entry entry = index.remove(id);
+        if (entry == null)
+            return null;
+        try {
+            return LogRecord.put(id, entry.expiresAt, entry.retriesLeft, read(entry));
+        } finally {
+            release(entry);
+        }
+    }
+
+    /**
+     * Read a message without removing it. The payload is read outside the monitor of this tier.
+     *
+     * @param id Id of the message
+     * @return A copy of the message, to be removed with {@link #remove(String, Copy)}, or null if it is not in this
+     *         tier.
+     * @throws IOException When the payload cannot be read.
+     */
+    public Copy read(String id) throws IOException {
+        for (;;) {
+            Entry entry = index.get(id);
+            if (entry == null)
+                return null;
+            try {
+                return new Copy(entry, LogRecord.put(id, entry.expiresAt, entry.retriesLeft, read(entry)));
+            } catch (IOException e) {
+                // The segment has been deleted after the message has been removed, replaced or moved.
+                if (index.get(id) == entry)
+                    throw e;
+            }
+        }
+    }
+
+    /**
+     * Remove a message if it has neither been removed, replaced nor moved since it has been read.
+     *
+     * @param id   Id of the message
+     * @param copy The copy returned by {@link #read(String)}.
+     * @return true if the message has been removed, false if it has changed in the meantime.
+     * @throws IOException When an empty segment file cannot be deleted.
+     */
+    public synchronized boolean remove(String id, Copy copy) throws IOException {
+        if (!index.remove(id, copy.entry))
+            return false;
+        release(copy.entry);
+        return true;
+    }
+
+    /**
+     * Check for a message that has not expired.
+     *
+     * @param id  Id of the message
+     * @param now The current time in milliseconds since the epoch.
+     * @return true if the message is in this tier and has not expired at now.
+     */
+    public boolean contains(String id, long now) {
+        Entry entry = index.get(id);
+        return entry != null && entry.expiresAt >= now;
+    }
+
+    /**
+     * Remove a message.
+     *
+     * @param id Id of the message
+     * @return true if the message has been in this tier.
+     * @throws IOException When an empty segment file cannot be deleted.
+     */
+    public synchronized boolean remove(String id) throws IOException {
+        Entry entry = index.remove(id);
+        release(entry);
+        return entry != null;
+    }
+
+    /**
+     * Remove all expired messages and compact sparse segments by moving their live payloads to the active segment.
+     * The index is scanned without the monitor, which is taken once per chunk of messages to remove or move. The
+     * payloads are copied outside the monitor.
+     *
+     * @param now The current time in milliseconds since the epoch.
+     * @return Amount of expired messages removed.
+     * @throws IOException When the segment files cannot be read, written or deleted.
+     */
+    public int removeExpired(long now) throws IOException {
+        int expired = 0;
+        List<Map.Entry<String, Entry>> chunk = new ArrayList<>(SWEEP_CHUNK_SIZE);
+        for (Map.Entry<String, Entry> indexEntry : index.entrySet()) {
+            if (indexEntry.getValue().expiresAt < now) {
+                chunk.add(Map.entry(indexEntry.getKey(), indexEntry.getValue()));
+                if (chunk.size() == SWEEP_CHUNK_SIZE) {
+                    expired += removeAll(chunk);
+                    chunk.clear();
+                }
+            }
+        }
+        expired += removeAll(chunk);
+        chunk.clear();
+
+        for (Map.Entry<String, Entry> indexEntry : index.entrySet()) {
+            Entry entry = indexEntry.getValue();
+            if (isSparse(entry.segment)) {
+                chunk.add(Map.entry(indexEntry.getKey(), entry));
+                if (chunk.size() == SWEEP_CHUNK_SIZE) {
+                    moveAll(chunk);
+                    chunk.clear();
+                }
+            }
+        }
+        moveAll(chunk);
+        return expired;
+    }
+
+    private synchronized int removeAll(List<Map.Entry<String, Entry>> chunk) throws IOException {
+        int removed = 0;
+        for (Map.Entry<String, Entry> indexEntry : chunk) {
+            if (index.remove(indexEntry.getKey(), indexEntry.getValue())) {
+                release(indexEntry.getValue());
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    private boolean isSparse(Segment segment) {
+        return segment != active && segment.liveBytes < segment.size * SPARSE_SEGMENT;
+    }
+
+    /**
+     * Move the payloads of a chunk of messages to the active segment. The payloads are read and written outside the
+     * monitor, which is only taken to reserve their space and to switch the index to the moved payloads. Messages that
+     * have been removed, replaced or moved in the meantime are skipped.
+     *
+     * @param chunk Ids and index entries of the messages.
+     * @throws IOException When a payload cannot be read or written.
+     */
+    private void moveAll(List<Map.Entry<String, Entry>> chunk) throws IOException {
+        if (chunk.isEmpty())
+            return;
+        List<byte[]> payloads = new ArrayList<>(chunk.size());
+        for (Map.Entry<String, Entry> indexEntry : chunk) {
+            byte[] payload = null;
+            try {
+                payload = read(indexEntry.getValue());
+            } catch (IOException e) {
+                // The segment has been deleted after the message has been removed, replaced or moved.
+                if (index.get(indexEntry.getKey()) == indexEntry.getValue())
+                    throw e;
+            }
+            payloads.add(payload);
+        }
+
+        List<Entry> moved = new ArrayList<>(chunk.size());
+        synchronized (this) {
+            for (int i = 0; i < chunk.size(); i++) {
+                Map.Entry<String, Entry> indexEntry = chunk.get(i);
+                byte[] payload = payloads.get(i);
+                Entry entry = indexEntry.getValue();
+                boolean current = payload != null && index.get(indexEntry.getKey()) == entry;
+                moved.add(current ? reserve(payload.length, entry.expiresAt, entry.retriesLeft) : null);
+            }
+        }
+
+        IOException failure = null;
+        try {
+            for (int i = 0; i < chunk.size(); i++) {
+                if (moved.get(i) != null)
+                    writeAt(moved.get(i), payloads.get(i));
+            }
+        } catch (IOException e) {
+            failure = e;
+        }
+
+        synchronized (this) {
+            for (int i = 0; i < chunk.size(); i++) {
+                Entry entry = moved.get(i);
+                if (entry == null)
+                    continue;
+                Map.Entry<String, Entry> indexEntry = chunk.get(i);
+                if (failure == null && index.replace(indexEntry.getKey(), indexEntry.getValue(), entry)) {
+                    release(indexEntry.getValue());
+                } else {
+                    release(entry);
+                }
+            }
+        }
+        if (failure != null)
+            throw failure;
+    }
+
+    /**
+     * Getter
+     *
+     * @return Amount of messages in this tier, including expired ones that have not been removed yet.
+     */
+    public int size() {
+        return index.size();
+    }
+
+    /**
+     * Getter
+     *
+     * @return Bytes of the segment files on disk.
+     */
+    public synchronized long getDiskBytes() {
+        long bytes = 0;
+        for (Segment segment : segments) {
+            bytes += segment.size;
+        }
+        return bytes;
+    }
+
+    /**
+     * Getter
+     *
+     * @return Bytes of the payloads of the messages in this tier.
+     */
+    public synchronized long getPayloadBytes() {
+        return payloadBytes;
+    }
+
+    private Entry write(byte[] payload, long expiresAt, int retriesLeft) throws IOException {
+        Entry entry = reserve(payload.length, expiresAt, retriesLeft);
+        try {
+            writeAt(entry, payload);
+        } catch (IOException e) {
+            release(entry);
+            throw e;
+        }
+        return entry;
+    }
+
+    /**
+     * Reserve the space of a payload in the active segment. It counts as live until the entry is released.
+     *
+     * @param length      Length of the payload.
+     * @param expiresAt   Expiry of the message in milliseconds since the epoch.
+     * @param retriesLeft Retries left of the message.
+     * @return The entry of the payload, which has not been written yet.
+     * @throws IOException When a new segment file cannot be created.
+     */
+    private Entry reserve(int length, long expiresAt, int retriesLeft) throws IOException {
+        if (active == null || (long) active.size + length > segmentSize)
+            active = newSegment();
+        Segment segment = active;
+        int position = segment.size;
+        segment.size += length;
+        segment.liveBytes += length;
+        payloadBytes += length;
+        return new Entry(segment, position, length, expiresAt, retriesLeft);
+    }
+
+    private void writeAt(Entry entry, byte[] payload) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        while (buffer.hasRemaining()) {
+            entry.segment.channel.write(buffer, entry.position + buffer.position());
+        }
+    }
+
+    private byte[] read(Entry entry) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(entry.length);
+        while (buffer.hasRemaining()) {
+            if (entry.segment.channel.read(buffer, entry.position + buffer.position()) < 0)
+                throw new IOException("Unexpected end of " + entry.segment.path + ".");
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Drop the payload of an entry that is no longer indexed and delete its segment if it has become empty.
+     *
+     * @param entry The entry or null.
+     * @throws IOException When the segment file cannot be deleted.
+     */
+    private void release(Entry entry) throws IOException {
+        if (entry == null)
+            return;
+        Segment segment = entry.segment;
+        segment.liveBytes -= entry.length;
+        payloadBytes -= entry.length;
+        if (segment.liveBytes == 0 && segment != active) {
+            segments.remove(segment);
+            segment.delete();
+        }
+    }
+
+    private Segment newSegment() throws IOException {
+        Segment segment = new Segment(Files.createTempFile(directory, prefix, ".cold"));
+        segments.add(segment);
+        // The previous active segment is not written anymore, delete it if nothing is left in it.
+        if (active != null && active.liveBytes == 0) {
+            segments.remove(active);
+            active.delete();
+        }
+        return segment;
+    }
+
+    /**
+     * Drop all messages and delete the segment files.
+     */
+    @Override
+    public synchronized void close() {
+        index.clear();
+        for (Segment segment : segments) {
+            try {
+                segment.delete();
+            } catch (IOException e) {
+                log.warn("Cannot delete {}.", segment.path, e);
+            }
+        }
+        segments.clear();
+        active = null;
+        payloadBytes = 0;
+    }
+}
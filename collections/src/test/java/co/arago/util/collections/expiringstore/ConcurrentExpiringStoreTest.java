@@ -0,0 +1,131 @@
+package co.arago.util.collections.expiringstore;
+
+import co.arago.util.collections.expiringstore.exceptions.StoreItemExistsException;
+import co.arago.util.collections.expiringstore.exceptions.StoreItemExpiredException;
+import co.arago.util.collections.expiringstore.scheduler.ExpiryScheduler;
+import co.arago.util.collections.expiringstore.scheduler.ScheduledExpiry;
+import co.arago.util.collections.expiringstore.scheduler.TimingWheelExpiryScheduler;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ConcurrentExpiringStoreTest {
+
+    @Test
+    void sameSemanticsAsExpiringStore() throws Exception {
+        try (ConcurrentExpiringStore<String, String> store = new ConcurrentExpiringStore<>()) {
+            store.add(Instant.now().plusSeconds(60), "1", "one");
+            assertEquals("one", store.get("1"));
+
+            assertThrows(StoreItemExistsException.class, () -> store.add(Instant.now().plusSeconds(60), "1", "two"));
+            assertThrows(StoreItemExpiredException.class, () -> store.add(Instant.now().minusSeconds(1), "2", "two"));
+
+            store.put(Instant.now().plusSeconds(60), "1", "two");
+            assertEquals("two", store.get("1"));
+
+            store.remove("1");
+            assertNull(store.get("1"));
+        }
+    }
+
+    @Test
+    void messagesThatExpireRightAwayAreRemoved() throws Exception {
+        long now = 1_000_000;
+        // Runs each expiry while it is being scheduled, i.e. before add or put return.
+        ExpiryScheduler immediate = new ExpiryScheduler() {
+            @Override
+            public ScheduledExpiry schedule(Runnable task, long expiresAtMillis) {
+                task.run();
+                return () -> false;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+
+        for (boolean concurrent : new boolean[] { false, true }) {
+            try (ExpiringStore<String, String> store = ExpiringStore.<String, String>newBuilder()
+                    .setConcurrent(concurrent)
+                    .setScheduler(immediate)
+                    .setClock(() -> now)
+                    .build()) {
+                store.add(now, "1", "one");
+                store.put(now, "2", "two");
+                assertEquals(0, store.size(), "Concurrent: " + concurrent);
+            }
+        }
+    }
+
+    @Test
+    void concurrentAddsOnlySucceedOnce() throws Exception {
+        int threads = 8;
+        int ids = 1000;
+        AtomicInteger added = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+        try (ConcurrentExpiringStore<String, Integer> store = new ConcurrentExpiringStore<>("concurrent",
+                new TimingWheelExpiryScheduler("concurrent", Duration.ofMillis(1)))) {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < ids; i++) {
+                        try {
+                            store.add(Instant.now().plusSeconds(60), String.valueOf(i), i);
+                            added.incrementAndGet();
+                        } catch (StoreItemExistsException e) {
+                            // expected for all but one thread
+                        }
+                        assertEquals(i, store.get(String.valueOf(i)));
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            assertEquals(ids, added.get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void retriesAreCountedAcrossThreads() throws Exception {
+        int threads = 4;
+        int retries = 1000;
+        AtomicInteger hits = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+        try (ConcurrentExpiringRetryStore<String, String> store = new ConcurrentExpiringRetryStore<>(retries)) {
+            store.add(Instant.now().plusSeconds(60), "1", "one");
+
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < retries; i++) {
+                        if (store.retryGet("1") != null)
+                            hits.incrementAndGet();
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+
+            assertEquals(retries, hits.get());
+            assertNull(store.get("1"));
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
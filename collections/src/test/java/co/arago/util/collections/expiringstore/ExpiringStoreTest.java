@@ -0,0 +1,876 @@
+package co.arago.util.collections.expiringstore;
+
+import co.arago.util.collections.expiringstore.exceptions.ExpiringStoreException;
+import co.arago.util.collections.expiringstore.clock.CoarseClock;
+import co.arago.util.collections.expiringstore.exceptions.StoreItemExistsException;
+import co.arago.util.collections.expiringstore.exceptions.StoreItemExpiredException;
+import co.arago.util.collections.expiringstore.exceptions.StoreItemLoadException;
+import co.arago.util.collections.expiringstore.listener.RemovalCause;
+import co.arago.util.collections.expiringstore.listener.RemovalNotification;
+import co.arago.util.collections.expiringstore.loader.Loader;
+import co.arago.util.collections.expiringstore.messages.ExpiringMessage;
+import co.arago.util.collections.expiringstore.reference.ValueReference;
+import co.arago.util.collections.expiringstore.reference.ValueStrength;
+import co.arago.util.collections.expiringstore.retry.Backoff;
+import co.arago.util.collections.expiringstore.scheduler.ExpiryScheduler;
+import co.arago.util.collections.expiringstore.scheduler.ScheduledExpiry;
+import co.arago.util.collections.expiringstore.scheduler.TimingWheelExpiryScheduler;
+import co.arago.util.collections.expiringstore.stats.StoreStats;
+import org.junit.jupiter.api.Test;
+
+import java.lang.ref.Reference;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ExpiringStoreTest {
+
+    /**
+     * A scheduler that runs its tasks only when the test lets the time pass.
+     */
+    private static final class ManualScheduler implements ExpiryScheduler {
+        private final List<Runnable> tasks = new ArrayList<>();
+        private final List<Long> times = new ArrayList<>();
+
+        @Override
+        public synchronized ScheduledExpiry schedule(Runnable task, long expiresAtMillis) {
+            tasks.add(task);
+            times.add(expiresAtMillis);
+            return () -> cancel(task);
+        }
+
+        private synchronized boolean cancel(Runnable task) {
+            int index = tasks.indexOf(task);
+            if (index < 0)
+                return false;
+            tasks.remove(index);
+            times.remove(index);
+            return true;
+        }
+
+        /**
+         * Run all tasks that are due at the given time, including the ones they schedule for it.
+         *
+         * @param nowMillis The current time.
+         */
+        void runDue(long nowMillis) {
+            for (;;) {
+                Runnable due = null;
+                synchronized (this) {
+                    for (int i = 0; i < tasks.size(); i++) {
+                        if (times.get(i) <= nowMillis) {
+                            due = tasks.remove(i);
+                            times.remove(i);
+                            break;
+                        }
+                    }
+                }
+                if (due == null)
+                    return;
+                due.run();
+            }
+        }
+
+        synchronized int size() {
+            return tasks.size();
+        }
+
+        synchronized Runnable get(int index) {
+            return tasks.get(index);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static <K> void awaitRemoval(AbstractExpiringStore<K, ?, ?> store, K id) throws InterruptedException {
+        long until = System.currentTimeMillis() + 5000;
+        while (store.get(id) != null && System.currentTimeMillis() < until) {
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    void addGetRemove() throws Exception {
+        try (ExpiringStore<String, String> store = new ExpiringStore<>()) {
+            store.add(Instant.now().plusSeconds(60), "1", "one");
+            assertEquals("one", store.get("1"));
+
+            assertThrows(StoreItemExistsException.class, () -> store.add(Instant.now().plusSeconds(60), "1", "two"));
+            assertThrows(StoreItemExpiredException.class, () -> store.add(Instant.now().minusSeconds(1), "2", "two"));
+
+            store.put(Instant.now().plusSeconds(60), "1", "two");
+            assertEquals("two", store.get("1"));
+
+            store.remove("1");
+            assertNull(store.get("1"));
+        }
+    }
+
+    @Test
+    void expiresWithTimingWheel() throws Exception {
+        try (ExpiringStore<String, String> store = new ExpiringStore<>("wheel",
+                new TimingWheelExpiryScheduler("wheel", Duration.ofMillis(1)))) {
+            store.add(Instant.now().plusMillis(50), "1", "one");
+            store.add(Instant.now().plusSeconds(60), "2", "two");
+
+            // Overwritten messages must not expire the new message.
+            store.add(Instant.now().plusMillis(20), "3", "three");
+            store.put(Instant.now().plusSeconds(60), "3", "three again");
+
+            awaitRemoval(store, "1");
+            Thread.sleep(50);
+
+            assertNull(store.get("1"));
+            assertEquals("two", store.get("2"));
+            assertEquals("three again", store.get("3"));
+        }
+    }
+
+    @Test
+    void retriesWithTimingWheel() throws Exception {
+        try (ExpiringRetryStore<String, String> store = new ExpiringRetryStore<>(2, "retry",
+                new TimingWheelExpiryScheduler("retry"))) {
+            store.add(Instant.now().plusSeconds(60), "1", "one");
+
+            assertEquals("one", store.retryGet("1"));
+            assertEquals("one", store.retryGet("1"));
+            assertNull(store.retryGet("1"));
+            assertNull(store.get("1"));
+        }
+    }
+
+    @Test
+    void batchOperations() throws Exception {
+        try (ExpiringStore<String, String> store = new ExpiringStore<>("batch",
+                new TimingWheelExpiryScheduler("batch", Duration.ofMillis(1)))) {
+            store.add(Instant.now().plusSeconds(60), "1", "one");
+
+            Map<String, ExpiringStoreException> failures = store.addAll(List.of(
+                    new StoreItem<>(Instant.now().plusSeconds(60), "1", "one again"),
+                    new StoreItem<>(Instant.now().plusSeconds(60), "2", "two"),
+                    new StoreItem<>(Instant.now().minusSeconds(1), "3", "three"),
+                    new StoreItem<>(Instant.now().plusMillis(20), "4", "four")));
+
+            assertEquals(2, failures.size());
+            assertTrue(failures.get("1") instanceof StoreItemExistsException);
+            assertTrue(failures.get("3") instanceof StoreItemExpiredException);
+
+            assertEquals(Map.of("1", "one", "2", "two", "4", "four"), store.getAll(List.of("1", "2", "3", "4")));
+
+            failures = store.putAll(List.of(new StoreItem<>(Instant.now().plusSeconds(60), "1", "one again")));
+            assertTrue(failures.isEmpty());
+            assertEquals("one again", store.get("1"));
+
+            awaitRemoval(store, "4");
+            assertNull(store.get("4"));
+
+            store.removeAll(List.of("1", "2"));
+            assertTrue(store.getAll(List.of("1", "2")).isEmpty());
+        }
+    }
+
+    @Test
+    void lazyExpiry() throws Exception {
+        try (ExpiringRetryStore<String, String> store = ExpiringRetryStore.<String, String>newBuilder()
+                .setName("lazy")
+                .setLazyExpiry(true)
+                .setSweepBatchSize(0)
+                .build()) {
+            assertTrue(store.isLazyExpiry());
+            assertTrue(Thread.getAllStackTraces().keySet().stream()
+                    .noneMatch(thread -> thread.getName().equals("Timer for lazy")));
+
+            store.add(Instant.now().plusMillis(20), "1", "one");
+            store.add(Instant.now().plusMillis(20), "2", "two");
+            store.add(Instant.now().plusSeconds(60), "3", "three");
+            assertEquals("one", store.retryGet("1"));
+
+            Thread.sleep(50);
+
+            // Reads never return expired messages, even if they have not been swept.
+            assertNull(store.retryGet("1"));
+            assertEquals(2, store.storeMap.size());
+
+            // Expired messages do not block adds.
+            store.add(Instant.now().plusSeconds(60), "2", "two again");
+            assertEquals("two again", store.get("2"));
+
+            store.put(Instant.now().plusMillis(10), "4", "four");
+            Thread.sleep(30);
+            assertEquals(1, store.sweep(100));
+            assertEquals(2, store.storeMap.size());
+        }
+    }
+
+    @Test
+    void lazyExpiryWithBackgroundSweep() throws Exception {
+        try (ExpiringStore<String, String> store = ExpiringStore.<String, String>newBuilder()
+                .setConcurrent(true)
+                .setLazyExpiry(true)
+                .setSweepInterval(Duration.ofMillis(10))
+                .build()) {
+            store.add(Instant.now().plusMillis(10), "1", "one");
+            store.add(Instant.now().plusSeconds(60), "2", "two");
+
+            long until = System.currentTimeMillis() + 5000;
+            while (store.storeMap.size() > 1 && System.currentTimeMillis() < until) {
+                Thread.sleep(5);
+            }
+
+            assertEquals(1, store.storeMap.size());
+            assertEquals("two", store.get("2"));
+        }
+    }
+
+    @Test
+    void boundedByEntries() throws Exception {
+        try (ExpiringStore<String, String> store = ExpiringStore.<String, String>newBuilder()
+                .setConcurrent(true)
+                .setMaxEntries(100)
+                .build()) {
+            // A popular set of messages ...
+            for (int i = 0; i < 50; i++) {
+                store.put(Instant.now().plusSeconds(60), "hot-" + i, "hot");
+                for (int j = 0; j < 5; j++) {
+                    assertEquals("hot", store.get("hot-" + i));
+                }
+            }
+
+            // ... survives a scan of messages used once.
+            for (int i = 0; i < 1000; i++) {
+                store.put(Instant.now().plusSeconds(60), "cold-" + i, "cold");
+            }
+
+            assertEquals(100, store.size());
+            assertEquals(100, store.getWeight());
+
+            long hotLeft = 0;
+            for (int i = 0; i < 50; i++) {
+                if (store.get("hot-" + i) != null)
+                    hotLeft++;
+            }
+            assertTrue(hotLeft >= 40, "Only " + hotLeft + " popular messages left.");
+
+            store.remove("hot-0");
+            store.remove("cold-999");
+            assertTrue(store.getWeight() <= 99);
+        }
+    }
+
+    @Test
+    void boundedByWeight() throws Exception {
+        try (ExpiringRetryStore<String, String> store = ExpiringRetryStore.<String, String>newBuilder()
+                .setMaxWeight(100, (id, message) -> message.isEmpty() ? -1 : message.length())
+                .build()) {
+            assertThrows(IllegalArgumentException.class, () -> store.add(Instant.now().plusSeconds(60), "x", ""));
+            assertTrue(store.addAll(List.of(new StoreItem<>(Instant.now().plusSeconds(60), "x", ""))).containsKey("x"));
+            assertEquals(0, store.size());
+
+            for (int i = 0; i < 20; i++) {
+                store.add(Instant.now().plusSeconds(60), "" + i, "0123456789");
+            }
+
+            assertEquals(10, store.size());
+            assertEquals(100, store.getWeight());
+
+            store.put(Instant.now().plusSeconds(60), "big", "0123456789".repeat(5));
+            assertTrue(store.getWeight() <= 100);
+            // The new message is not more popular than the others, so it has been rejected.
+            assertNull(store.get("big"));
+            assertEquals(10, store.size());
+        }
+    }
+
+    @Test
+    void offHeap() throws Exception {
+        try (OffHeapExpiringStore store = OffHeapExpiringStore.newBuilder()
+                .setScheduler(new TimingWheelExpiryScheduler("offheap", Duration.ofMillis(1)))
+                .setSlabSize(4096)
+                .build()) {
+            byte[] small = "small".getBytes();
+            byte[] large = new byte[10000];
+            large[9999] = 42;
+
+            store.add(Instant.now().plusSeconds(60), "small", small);
+            store.add(Instant.now().plusSeconds(60), "large", large);
+            assertThrows(StoreItemExistsException.class, () -> store.add(Instant.now().plusSeconds(60), "small", large));
+
+            assertArrayEquals(small, store.get("small"));
+            assertArrayEquals(large, store.get("large"));
+            assertEquals(small.length + large.length, store.getUsedBytes());
+            assertEquals(4096 + large.length, store.getReservedBytes());
+
+            // Replaced and removed payloads free their memory.
+            store.put(Instant.now().plusSeconds(60), "small", "other".getBytes());
+            assertEquals("other", new String(store.get("small")));
+            store.remove("large");
+            assertEquals(5, store.getUsedBytes());
+            assertEquals(4096, store.getReservedBytes());
+
+            store.add(Instant.now().plusMillis(20), "expiring", large);
+            awaitRemoval(store, "expiring");
+            assertNull(store.get("expiring"));
+            assertEquals(5, store.getUsedBytes());
+
+            // Three slabs of four chunks each. Emptied slabs are released, except the last one with free chunks.
+            byte[] chunk = new byte[1000];
+            for (int i = 0; i < 12; i++) {
+                chunk[0] = (byte) i;
+                store.add(Instant.now().plusSeconds(60), "chunk" + i, chunk);
+            }
+            assertEquals(4 * 4096, store.getReservedBytes());
+            store.removeAll(List.of("chunk0", "chunk4", "chunk8", "chunk1", "chunk2", "chunk3", "chunk5", "chunk6",
+                    "chunk7"));
+            assertEquals(2 * 4096, store.getReservedBytes());
+            for (int i = 9; i < 12; i++) {
+                assertEquals(i, store.get("chunk" + i)[0]);
+            }
+
+            // Slabs of a single chunk are released, too.
+            byte[] single = new byte[3000];
+            for (int i = 0; i < 3; i++) {
+                store.add(Instant.now().plusSeconds(60), "single" + i, single);
+            }
+            assertEquals(5 * 4096, store.getReservedBytes());
+            store.removeAll(List.of("single0", "single1", "single2"));
+            assertEquals(3 * 4096, store.getReservedBytes());
+        }
+    }
+
+    @Test
+    void removalListener() throws Exception {
+        List<RemovalNotification<String, String>> notifications = new CopyOnWriteArrayList<>();
+        try (ExpiringRetryStore<String, String> store = ExpiringRetryStore.<String, String>newBuilder()
+                .setScheduler(new TimingWheelExpiryScheduler("listener", Duration.ofMillis(1)))
+                .setMaxRetries(1)
+                .setMaxEntries(10)
+                .setRemovalListener(notifications::addAll)
+                .build()) {
+            store.add(Instant.now().plusMillis(10), "expired", "one");
+            store.add(Instant.now().plusSeconds(60), "retried", "two");
+            store.add(Instant.now().plusSeconds(60), "replaced", "three");
+            store.add(Instant.now().plusSeconds(60), "removed", "four");
+
+            store.retryGet("retried");
+            store.retryGet("retried");
+            store.put(Instant.now().plusSeconds(60), "replaced", "three again");
+            store.remove("removed");
+            for (int i = 0; i < 20; i++) {
+                store.add(Instant.now().plusSeconds(60), "evicted-" + i, "five");
+            }
+
+            long until = System.currentTimeMillis() + 5000;
+            while (notifications.stream().noneMatch(n -> n.getCause() == RemovalCause.EXPIRED)
+                    && System.currentTimeMillis() < until) {
+                Thread.sleep(5);
+            }
+            Thread.sleep(50);
+
+            Map<String, RemovalCause> causes = new HashMap<>();
+            notifications.forEach(n -> causes.put(n.getId(), n.getCause()));
+            assertEquals(RemovalCause.EXPIRED, causes.get("expired"));
+            assertEquals(RemovalCause.RETRIES_EXHAUSTED, causes.get("retried"));
+            assertEquals(RemovalCause.REPLACED, causes.get("replaced"));
+            assertEquals(RemovalCause.REMOVED, causes.get("removed"));
+            assertTrue(causes.containsValue(RemovalCause.EVICTED));
+
+            assertEquals("three", notifications.stream()
+                    .filter(n -> n.getId().equals("replaced")).findFirst().orElseThrow().getMessage());
+        }
+    }
+
+    @Test
+    void retryScheduling() throws Exception {
+        AtomicLong now = new AtomicLong(1_000_000);
+        ManualScheduler scheduler = new ManualScheduler();
+        try (ExpiringRetryStore<String, String> store = ExpiringRetryStore.<String, String>newBuilder()
+                .setScheduler(scheduler)
+                .setClock(now::get)
+                .setMaxRetries(2)
+                .setBackoff(new Backoff(Duration.ofMillis(10), 2.0, Duration.ofSeconds(1), 0.0))
+                .build()) {
+            store.add(now.get() + 60_000, "1", "one");
+            store.add(now.get() + 60_000, "2", "two");
+            scheduler.runDue(now.addAndGet(9));
+            assertTrue(store.drainDue(10).isEmpty());
+
+            scheduler.runDue(now.addAndGet(1));
+            List<StoreItem<String, String>> due = store.drainDue(10);
+            assertEquals(2, due.size());
+
+            // Handled messages are removed and not due again.
+            store.remove("2");
+
+            scheduler.runDue(now.addAndGet(19));
+            assertTrue(store.drainDue(10).isEmpty());
+            scheduler.runDue(now.addAndGet(1));
+            due = store.drainDue(10);
+            assertEquals(1, due.size());
+            assertEquals("one", due.get(0).getMessage());
+
+            // No retries left.
+            scheduler.runDue(now.addAndGet(40));
+            assertTrue(store.drainDue(10).isEmpty());
+            assertNull(store.get("1"));
+        }
+    }
+
+    @Test
+    void retryHandler() throws Exception {
+        List<String> attempts = new CopyOnWriteArrayList<>();
+        try (ExpiringRetryStore<String, String> store = ExpiringRetryStore.<String, String>newBuilder()
+                .setConcurrent(true)
+                .setMaxRetries(3)
+                .setBackoff(Backoff.exponential(Duration.ofMillis(1), Duration.ofMillis(20)),
+                        due -> due.forEach(item -> attempts.add(item.getId())), Runnable::run)
+                .build()) {
+            store.add(Instant.now().plusSeconds(60), "1", "one");
+
+            long until = System.currentTimeMillis() + 5000;
+            while (store.get("1") != null && System.currentTimeMillis() < until) {
+                Thread.sleep(5);
+            }
+
+            assertNull(store.get("1"));
+            assertEquals(List.of("1", "1", "1"), attempts);
+
+            // The attempts run on the scheduler of the store.
+            assertTrue(Thread.getAllStackTraces().keySet().stream()
+                    .noneMatch(thread -> thread.getName().startsWith("Retries for")));
+        }
+    }
+
+    @Test
+    void stats() throws Exception {
+        try (ExpiringRetryStore<String, String> store = ExpiringRetryStore.<String, String>newBuilder()
+                .setMaxRetries(1)
+                .setRecordStats(true)
+                .build()) {
+            store.add(Instant.now().plusSeconds(60), "1", "one");
+            store.put(Instant.now().plusSeconds(60), "1", "one again");
+            store.add(Instant.now().plusSeconds(60), "2", "two");
+
+            assertEquals("one again", store.get("1"));
+            assertNull(store.get("3"));
+            assertEquals("two", store.retryGet("2"));
+            assertNull(store.retryGet("2"));
+
+            StoreStats stats = store.getStats();
+            assertEquals(1, stats.getSize());
+            assertEquals(2, stats.getAddCount());
+            assertEquals(1, stats.getPutCount());
+            assertEquals(2, stats.getHitCount());
+            assertEquals(2, stats.getMissCount());
+            assertEquals(0.5, stats.getHitRate());
+            assertEquals(1, stats.getRemovalCount(RemovalCause.REPLACED));
+            assertEquals(1, stats.getRemovalCount(RemovalCause.RETRIES_EXHAUSTED));
+            assertEquals(2, stats.getAddLatency().getCount());
+            assertEquals(2, stats.getAddLockWait().getCount());
+            assertEquals(2, stats.getGetLatency().getCount());
+            assertEquals(2, stats.getRetryGetLatency().getCount());
+            assertTrue(stats.getGetLatency().getPercentile(99) >= stats.getGetLatency().getPercentile(50));
+        }
+
+        try (ExpiringStore<String, String> store = new ExpiringStore<>()) {
+            store.add(Instant.now().plusSeconds(60), "1", "one");
+            store.get("1");
+
+            assertFalse(store.isRecordingStats());
+            assertEquals(0, store.getStats().getHitCount());
+            assertEquals(0, store.getStats().getAddLatency().getCount());
+        }
+    }
+
+    @Test
+    void genericAndLongKeys() throws Exception {
+        try (ExpiringStore<Long, String> store = ExpiringStore.<Long, String>newBuilder()
+                .setScheduler(new TimingWheelExpiryScheduler("generic", Duration.ofMillis(1)))
+                .build()) {
+            store.add(Instant.now().plusSeconds(60), 1L, "one");
+            store.add(Instant.now().plusMillis(20), 2L, "two");
+            assertEquals("one", store.get(1L));
+
+            awaitRemoval(store, 2L);
+            assertNull(store.get(2L));
+        }
+
+        try (LongKeyExpiringStore<String> store = LongKeyExpiringStore.<String>newBuilder()
+                .setScheduler(new TimingWheelExpiryScheduler("long", Duration.ofMillis(1)))
+                .build()) {
+            store.add(Instant.now().plusSeconds(60), 1L, "one");
+            assertThrows(StoreItemExistsException.class, () -> store.add(Instant.now().plusSeconds(60), 1L, "two"));
+            assertThrows(StoreItemExpiredException.class, () -> store.add(Instant.now().minusSeconds(1), 2L, "two"));
+
+            // Replaced messages must not expire the new message.
+            store.add(Instant.now().plusMillis(20), 3L, "three");
+            store.put(Instant.now().plusSeconds(60), 3L, "three again");
+            store.add(Instant.now().plusMillis(20), 4L, "four");
+
+            long until = System.currentTimeMillis() + 5000;
+            while (store.get(4L) != null && System.currentTimeMillis() < until) {
+                Thread.sleep(5);
+            }
+
+            assertNull(store.get(4L));
+            assertEquals("one", store.get(1L));
+            assertEquals("three again", store.get(3L));
+            store.remove(1L);
+            assertNull(store.get(1L));
+            assertEquals(1, store.size());
+        }
+    }
+
+    @Test
+    void getOrLoad() throws Exception {
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        Loader<String, String> slowLoader = id -> {
+            loads.incrementAndGet();
+            Thread.sleep(50);
+            return "loaded " + id;
+        };
+
+        try (ExpiringStore<String, String> store = ExpiringStore.<String, String>newBuilder()
+                .setConcurrent(true)
+                .build()) {
+            ExecutorService executor = Executors.newFixedThreadPool(8);
+            try {
+                List<Future<String>> results = new ArrayList<>();
+                for (int i = 0; i < 8; i++) {
+                    results.add(executor.submit(() -> {
+                        start.await();
+                        return store.getOrLoad("1", slowLoader, Duration.ofSeconds(60));
+                    }));
+                }
+                start.countDown();
+                for (Future<String> result : results) {
+                    assertEquals("loaded 1", result.get());
+                }
+            } finally {
+                executor.shutdown();
+            }
+
+            assertEquals(1, loads.get());
+            assertEquals("loaded 1", store.get("1"));
+
+            StoreItemLoadException e = assertThrows(StoreItemLoadException.class,
+                    () -> store.getOrLoad("2", id -> {
+                        throw new IllegalStateException("backend down");
+                    }, Duration.ofSeconds(60)));
+            assertTrue(e.getCause() instanceof IllegalStateException);
+            assertNull(store.getOrLoad("3", id -> null, Duration.ofSeconds(60)));
+            assertNull(store.get("3"));
+        }
+    }
+
+    @Test
+    void refreshAhead() throws Exception {
+        AtomicInteger loads = new AtomicInteger();
+        Loader<String, String> loader = id -> "loaded " + loads.incrementAndGet();
+
+        AtomicLong now = new AtomicLong(1_000_000);
+        try (ExpiringStore<String, String> store = ExpiringStore.<String, String>newBuilder()
+                .setRefreshAhead(0.5, Runnable::run)
+                .setScheduler(new ManualScheduler())
+                .setClock(now::get)
+                .build()) {
+            Duration ttl = Duration.ofMillis(200);
+            assertEquals("loaded 1", store.getOrLoad("1", loader, ttl));
+            assertEquals("loaded 1", store.getOrLoad("1", loader, ttl));
+            assertEquals(1, loads.get());
+
+            // Within the last half of the ttl, the read returns the current message and triggers a reload.
+            now.addAndGet(120);
+            assertEquals("loaded 1", store.getOrLoad("1", loader, ttl));
+            assertEquals(2, loads.get());
+            assertEquals("loaded 2", store.get("1"));
+        }
+
+        assertThrows(NullPointerException.class,
+                () -> ExpiringStore.<String, String>newBuilder().setRefreshAhead(0.5, null));
+    }
+
+    @Test
+    void asyncApi() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try (ExpiringRetryStore<String, String> store = ExpiringRetryStore.<String, String>newBuilder()
+                .setMaxRetries(2)
+                .setAsyncExecutor(executor)
+                .build()) {
+            CompletableFuture<Void> added;
+            synchronized (store) {
+                // The caller does not wait for the lock held by another thread.
+                added = store.addAsync(Instant.now().plusSeconds(60), "1", "one");
+                Thread.sleep(20);
+                assertFalse(added.isDone());
+            }
+            added.get();
+            assertEquals("one", store.getAsync("1").get());
+
+            ExecutionException e = assertThrows(ExecutionException.class,
+                    () -> store.addAsync(Instant.now().plusSeconds(60), "1", "again").get());
+            assertTrue(e.getCause() instanceof StoreItemExistsException);
+
+            assertEquals("one", store.retryGetAsync("1").get());
+            assertEquals("one", store.retryGetAsync("1").get());
+            assertNull(store.retryGetAsync("1").get());
+
+            assertEquals("loaded 2", store.getOrLoadAsync("2", id -> "loaded " + id, Duration.ofSeconds(60)).get());
+            assertEquals("loaded 2", store.get("2"));
+            e = assertThrows(ExecutionException.class,
+                    () -> store.getOrLoadAsync("3", id -> {
+                        throw new IllegalStateException("backend down");
+                    }, Duration.ofSeconds(60)).get());
+            assertTrue(e.getCause() instanceof StoreItemLoadException);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void slidingExpiry() throws Exception {
+        for (boolean concurrent : new boolean[] { false, true }) {
+            AtomicLong now = new AtomicLong(1_000_000);
+            ManualScheduler scheduler = new ManualScheduler();
+            try (ExpiringStore<String, String> store = ExpiringStore.<String, String>newBuilder()
+                    .setConcurrent(concurrent)
+                    .setSlidingExpiry(Duration.ofMillis(100))
+                    .setScheduler(scheduler)
+                    .setClock(now::get)
+                    .build()) {
+                store.add(now.get() + 100, "1", "one");
+                store.add(now.get() + 100, "2", "two");
+
+                // Each access moves the expiry, although the message has been scheduled only once.
+                for (int i = 0; i < 6; i++) {
+                    scheduler.runDue(now.addAndGet(40));
+                    assertTrue(store.touch("1"));
+                    assertEquals("two", store.get("2"));
+                    assertEquals(2, scheduler.size());
+                }
+                assertFalse(store.touch("3"));
+
+                // Reading would extend the expiry again.
+                scheduler.runDue(now.addAndGet(100));
+                assertEquals(0, store.size());
+                assertEquals(0, scheduler.size());
+            }
+        }
+
+        AtomicLong now = new AtomicLong(1_000_000);
+        ManualScheduler scheduler = new ManualScheduler();
+        try (ExpiringStore<String, String> store = ExpiringStore.<String, String>newBuilder()
+                .setScheduler(scheduler)
+                .setClock(now::get)
+                .build()) {
+            store.add(now.get() + 50, "1", "one");
+            assertThrows(IllegalStateException.class, () -> store.touch("1"));
+            assertTrue(store.extend("1", Instant.ofEpochMilli(now.get() + 300)));
+            assertFalse(store.extend("2", Instant.ofEpochMilli(now.get() + 300)));
+
+            scheduler.runDue(now.addAndGet(150));
+            assertEquals("one", store.get("1"));
+            scheduler.runDue(now.addAndGet(150));
+            assertNull(store.get("1"));
+        }
+    }
+
+    @Test
+    void iteration() throws Exception {
+        for (boolean concurrent : new boolean[] { false, true }) {
+            try (ExpiringStore<String, String> store = ExpiringStore.<String, String>newBuilder()
+                    .setConcurrent(concurrent)
+                    .setLazyExpiry(true)
+                    .build()) {
+                for (int i = 0; i < 1000; i++) {
+                    store.add(Instant.now().plusSeconds(60), "" + i, "message " + i);
+                }
+                store.add(Instant.now().plusMillis(10), "expired", "expired");
+                Thread.sleep(20);
+
+                assertEquals(1000, store.stream().count());
+                assertEquals(1000, store.parallelStream().map(StoreItem::getId).distinct().count());
+                assertTrue(store.stream().noneMatch(item -> item.getId().equals("expired")));
+
+                Set<String> keys = new HashSet<>();
+                store.keys().forEach(keys::add);
+                assertEquals(1000, keys.size());
+
+                // Writes during the traversal neither fail nor wait for its end.
+                int seen = 0;
+                for (StoreItem<String, String> item : store.entries()) {
+                    assertEquals("message " + item.getId(), item.getMessage());
+                    store.remove(item.getId());
+                    seen++;
+                }
+                assertEquals(1000, seen);
+                assertEquals(0, store.stream().count());
+            }
+        }
+    }
+
+    @Test
+    void clock() throws Exception {
+        AtomicLong now = new AtomicLong(System.currentTimeMillis());
+        try (ExpiringStore<String, String> store = ExpiringStore.<String, String>newBuilder()
+                .setLazyExpiry(true)
+                .setClock(now::get)
+                .build()) {
+            long expiresAt = now.get() + 1000;
+            store.add(expiresAt, "1", "one");
+            store.put(expiresAt, "2", "two");
+            assertThrows(StoreItemExpiredException.class, () -> store.add(now.get() - 1, "3", "three"));
+            assertEquals("one", store.get("1"));
+
+            // Reads only see the time of the clock of the store.
+            now.addAndGet(2000);
+            assertNull(store.get("1"));
+            assertNull(store.get("2"));
+        }
+
+        // The sweeper and the stats only see the time of the clock of the store, too.
+        try (ExpiringStore<String, String> store = ExpiringStore.<String, String>newBuilder()
+                .setLazyExpiry(true)
+                .setClock(now::get)
+                .build()) {
+            store.add(now.get() + 1000, "1", "one");
+            assertEquals(0, store.sweep(10));
+            assertEquals(now.get(), store.getStats().getTimestampMillis());
+
+            now.addAndGet(2000);
+            assertEquals(1, store.sweep(10));
+            assertEquals(0, store.size());
+        }
+
+        try (CoarseClock coarseClock = new CoarseClock("coarse", Duration.ofMillis(5));
+                ExpiringRetryStore<String, String> store = ExpiringRetryStore.<String, String>newBuilder()
+                        .setClock(coarseClock)
+                        .build()) {
+            assertTrue(Math.abs(coarseClock.millis() - System.currentTimeMillis()) < 1000);
+            store.add(coarseClock.millis() + 20, "1", "one", 1);
+            assertEquals("one", store.retryGet("1"));
+            assertNull(store.retryGet("1"));
+
+            store.put(coarseClock.millis() + 20, "2", "two");
+            awaitRemoval(store, "2");
+            assertNull(store.get("2"));
+        }
+    }
+
+    @Test
+    void cancelledExpiryIsNotRescheduled() throws Exception {
+        AtomicLong now = new AtomicLong(1_000_000);
+        ManualScheduler scheduler = new ManualScheduler();
+        try (ExpiringStore<String, String> store = ExpiringStore.<String, String>newBuilder()
+                .setScheduler(scheduler)
+                .setSlidingExpiry(Duration.ofSeconds(10))
+                .setClock(now::get)
+                .build()) {
+            store.add(now.get() + 1000, "1", "one");
+            assertEquals(1, scheduler.size());
+            Runnable expiry = scheduler.get(0);
+
+            // The expiry has been extended and runs while the message is removed.
+            store.get("1");
+            now.addAndGet(2000);
+            store.remove("1");
+            expiry.run();
+            assertEquals(0, scheduler.size());
+        }
+    }
+
+    @Test
+    void coalescedExpiry() throws Exception {
+        for (boolean concurrent : new boolean[] { false, true }) {
+            try (ExpiringStore<String, String> store = ExpiringStore.<String, String>newBuilder()
+                    .setConcurrent(concurrent)
+                    .setCoalescedExpiry(Duration.ofMillis(50))
+                    .setExpiryChunkSize(100)
+                    .build()) {
+                Instant expiresAt = Instant.now().plusMillis(200);
+                List<StoreItem<String, String>> items = new ArrayList<>();
+                for (int i = 0; i < 10_000; i++) {
+                    items.add(new StoreItem<>(expiresAt, "" + i, "message " + i));
+                }
+                assertTrue(store.addAll(items).isEmpty());
+                store.add(expiresAt, "extended", "extended");
+                assertTrue(store.extend("extended", Instant.now().plusSeconds(60)));
+                store.put(expiresAt, "replaced", "old");
+                store.put(Instant.now().plusSeconds(60), "replaced", "new");
+
+                long until = System.currentTimeMillis() + 5000;
+                while (store.size() > 2 && System.currentTimeMillis() < until) {
+                    Thread.sleep(5);
+                }
+                assertEquals(2, store.size());
+                assertEquals("extended", store.get("extended"));
+                assertEquals("new", store.get("replaced"));
+            }
+        }
+    }
+
+    @Test
+    void weakAndSoftValues() throws Exception {
+        for (boolean concurrent : new boolean[] { false, true }) {
+            try (ExpiringStore<String, Object> store = ExpiringStore.<String, Object>newBuilder()
+                    .setConcurrent(concurrent)
+                    .setValueStrength(ValueStrength.WEAK)
+                    .setRecordStats(true)
+                    .build()) {
+                Object kept = new Object();
+                store.add(Instant.now().plusSeconds(60), "kept", kept);
+                for (int i = 0; i < 1000; i++) {
+                    store.add(Instant.now().plusSeconds(60), "" + i, new byte[1024]);
+                }
+
+                // Clear the payloads like the garbage collector does, unless it did already. The next read reclaims
+                // them.
+                for (int i = 0; i < 1000; i++) {
+                    ExpiringMessage<String, Object> message = store.storeMap.get("" + i);
+                    if (message != null)
+                        ((Reference<?>) message.getValueReference()).enqueue();
+                }
+                assertSame(kept, store.get("kept"));
+                assertEquals(1, store.size());
+                assertNull(store.get("0"));
+                assertEquals(1000, store.getStats().getRemovalCount(RemovalCause.COLLECTED));
+            }
+        }
+
+        try (ExpiringStore<String, Object> store = ExpiringStore.<String, Object>newBuilder()
+                .setValueStrength(ValueStrength.SOFT)
+                .build()) {
+            byte[] payload = new byte[1024];
+            store.add(Instant.now().plusSeconds(60), "1", payload);
+            ValueReference reference = store.storeMap.get("1").getValueReference();
+            assertTrue(reference instanceof ValueReference.Soft);
+            assertSame(payload, store.get("1"));
+
+            ((Reference<?>) reference).enqueue();
+            assertNull(store.get("1"));
+            assertEquals(0, store.size());
+        }
+
+        assertThrows(IllegalArgumentException.class, () -> OffHeapExpiringStore.newBuilder()
+                .setValueStrength(ValueStrength.SOFT)
+                .build());
+    }
+}
@@ -0,0 +1,133 @@
+package co.arago.util.collections.expiringstore;
+
+import co.arago.util.collections.expiringstore.persistent.AppendLog;
+import co.arago.util.collections.expiringstore.persistent.LogRecord;
+import co.arago.util.collections.expiringstore.persistent.Serializer;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PersistentExpiringRetryStoreTest {
+
+    private static PersistentExpiringRetryStore<String> open(Path directory) {
+        return PersistentExpiringRetryStore.newBuilder(directory, Serializer.ofString())
+                .setMaxRetries(3)
+                .setSegmentSize(4096)
+                .setCompactionThreshold(2)
+                .build();
+    }
+
+    private static long countSegments(Path directory) throws Exception {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.count();
+        }
+    }
+
+    @Test
+    void recoversAfterRestart(@TempDir Path directory) throws Exception {
+        try (PersistentExpiringRetryStore<String> store = open(directory)) {
+            store.add(Instant.now().plusSeconds(60), "1", "one");
+            store.add(Instant.now().plusSeconds(60), "2", "two");
+            store.put(Instant.now().plusSeconds(60), "2", "two again");
+            store.add(Instant.now().plusSeconds(60), "3", "three");
+            store.add(Instant.now().plusMillis(20), "4", "four");
+            store.remove("3");
+
+            assertEquals("one", store.retryGet("1"));
+            assertEquals("one", store.retryGet("1"));
+
+            Thread.sleep(50);
+        }
+
+        try (PersistentExpiringRetryStore<String> store = open(directory)) {
+            assertEquals("two again", store.get("2"));
+            assertNull(store.get("3"));
+            assertNull(store.get("4"));
+
+            // Retries left survive the restart.
+            assertEquals("one", store.retryGet("1"));
+            assertNull(store.retryGet("1"));
+        }
+
+        try (PersistentExpiringRetryStore<String> store = open(directory)) {
+            assertNull(store.get("1"));
+            assertEquals(1, store.size());
+        }
+    }
+
+    @Test
+    void compactsSegments(@TempDir Path directory) throws Exception {
+        try (PersistentExpiringRetryStore<String> store = open(directory)) {
+            String payload = "x".repeat(500);
+            for (int i = 0; i < 200; i++) {
+                store.put(Instant.now().plusSeconds(60), "" + (i % 5), payload + i);
+            }
+
+            long until = System.currentTimeMillis() + 5000;
+            while (countSegments(directory) > 3 && System.currentTimeMillis() < until) {
+                Thread.sleep(5);
+            }
+            assertTrue(countSegments(directory) <= 3);
+        }
+
+        try (PersistentExpiringRetryStore<String> store = open(directory)) {
+            assertEquals(5, store.size());
+            assertEquals("x".repeat(500) + 199, store.get("4"));
+        }
+    }
+
+    @Test
+    void compactionSupersedesLeftoverSegments(@TempDir Path directory) throws Exception {
+        LogRecord filler = LogRecord.put("filler", Long.MAX_VALUE, 3, new byte[1000]);
+        Path oldest;
+        byte[] leftover;
+        try (AppendLog appendLog = new AppendLog(directory, 4096)) {
+            appendLog.recover(System.currentTimeMillis());
+            // The PUT and the REMOVE end up in different segments.
+            appendLog.append(LogRecord.put("removed", Long.MAX_VALUE, 3, new byte[0]));
+            while (!appendLog.append(filler)) {
+                // Fill the segment.
+            }
+            appendLog.append(LogRecord.remove("removed"));
+            while (!appendLog.append(filler)) {
+                // Fill the segment.
+            }
+            assertEquals(2, appendLog.getSealedSegments());
+
+            try (Stream<Path> files = Files.list(directory)) {
+                oldest = files.sorted().collect(Collectors.toList()).get(0);
+            }
+            leftover = Files.readAllBytes(oldest);
+            appendLog.compact(appendLog.getLastSealedSegment(), List.of(filler));
+            assertFalse(Files.exists(oldest));
+            assertEquals(1, appendLog.getSealedSegments());
+        }
+
+        // A crash before the delete, or a failed delete, leaves the oldest segment behind.
+        Files.write(oldest, leftover);
+
+        try (AppendLog appendLog = new AppendLog(directory, 4096)) {
+            Map<String, LogRecord> live = appendLog.recover(System.currentTimeMillis());
+            assertFalse(live.containsKey("removed"));
+            assertTrue(live.containsKey("filler"));
+            assertFalse(Files.exists(oldest));
+        }
+    }
+
+    @Test
+    void rejectsCompactionThresholdBelowTwo(@TempDir Path directory) {
+        assertThrows(IllegalArgumentException.class, () -> PersistentExpiringRetryStore
+                .newBuilder(directory, Serializer.ofString())
+                .setCompactionThreshold(1)
+                .build());
+    }
+}
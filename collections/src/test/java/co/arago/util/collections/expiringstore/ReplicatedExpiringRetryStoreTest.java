@@ -0,0 +1,250 @@
+package co.arago.util.collections.expiringstore;
+
+import co.arago.util.collections.expiringstore.persistent.Serializer;
+import co.arago.util.collections.expiringstore.replication.LoopbackNetwork;
+import co.arago.util.collections.expiringstore.replication.ReplicationEvent;
+import co.arago.util.collections.expiringstore.replication.ReplicationTransport;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ReplicatedExpiringRetryStoreTest {
+
+    private LoopbackNetwork network;
+    private final List<ReplicatedExpiringRetryStore<String>> nodes = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() {
+        network = new LoopbackNetwork("test");
+        for (int i = 0; i < 3; i++) {
+            nodes.add(ReplicatedExpiringRetryStore
+                    .newBuilder("node-" + i, network.newTransport(), Serializer.ofString())
+                    .setMaxRetries(3)
+                    .build());
+        }
+    }
+
+    @AfterEach
+    void tearDown() {
+        for (ReplicatedExpiringRetryStore<String> node : nodes) {
+            node.close();
+        }
+        network.close();
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long until = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < until) {
+            Thread.sleep(5);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+
+    @Test
+    void replicatesPutsAndRemoves() throws Exception {
+        for (int i = 0; i < 1000; i++) {
+            nodes.get(i % 3).add(Instant.now().plusSeconds(60), "" + i, "message " + i);
+        }
+        for (ReplicatedExpiringRetryStore<String> node : nodes) {
+            await(() -> node.size() == 1000);
+            assertEquals("message 42", node.get("42"));
+        }
+
+        nodes.get(1).remove("42");
+        for (ReplicatedExpiringRetryStore<String> node : nodes) {
+            await(() -> node.size() == 999);
+            assertNull(node.get("42"));
+        }
+    }
+
+    @Test
+    void lastWriterWins() throws Exception {
+        nodes.get(0).put(Instant.now().plusSeconds(60), "id", "first");
+        nodes.get(1).put(Instant.now().plusSeconds(60), "id", "second");
+        nodes.get(2).put(Instant.now().plusSeconds(60), "id", "third");
+        for (ReplicatedExpiringRetryStore<String> node : nodes) {
+            node.flush();
+        }
+
+        // All nodes agree on one of the writes, whichever order the batches arrived in.
+        await(() -> nodes.get(0).get("id") != null
+                && nodes.get(0).get("id").equals(nodes.get(1).get("id"))
+                && nodes.get(0).get("id").equals(nodes.get(2).get("id")));
+
+        // A later write wins everywhere.
+        nodes.get(0).put(Instant.now().plusSeconds(60), "id", "last");
+        for (ReplicatedExpiringRetryStore<String> node : nodes) {
+            await(() -> "last".equals(node.get("id")));
+        }
+    }
+
+    @Test
+    void sharesRetries() throws Exception {
+        nodes.get(0).add(Instant.now().plusSeconds(60), "id", "message");
+        await(() -> nodes.get(2).get("id") != null);
+
+        // Three retries in total, no matter on which nodes they are used up.
+        for (ReplicatedExpiringRetryStore<String> node : nodes) {
+            assertEquals("message", node.retryGet("id"));
+            node.flush();
+            network.awaitDelivery();
+        }
+        for (ReplicatedExpiringRetryStore<String> node : nodes) {
+            assertNull(node.retryGet("id"), node.getNodeId());
+        }
+    }
+
+    @Test
+    void countsConcurrentRetriesOfAllNodes() throws Exception {
+        // Nodes that only ship when flushed, so their retries are used up before the other node knows about them.
+        List<ReplicatedExpiringRetryStore<String>> slow = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            slow.add(ReplicatedExpiringRetryStore
+                    .newBuilder("slow-" + i, network.newTransport(), Serializer.ofString())
+                    .setMaxRetries(3)
+                    .setBatchInterval(Duration.ofMinutes(1))
+                    .build());
+        }
+        nodes.addAll(slow);
+        slow.get(0).add(Instant.now().plusSeconds(60), "id", "message");
+        slow.get(0).flush();
+        await(() -> slow.get(1).get("id") != null);
+
+        assertEquals("message", slow.get(0).retryGet("id"));
+        assertEquals("message", slow.get(1).retryGet("id"));
+        for (ReplicatedExpiringRetryStore<String> node : slow) {
+            node.flush();
+        }
+        network.awaitDelivery();
+
+        // Both retries count, so only one is left.
+        assertEquals("message", slow.get(1).retryGet("id"));
+        slow.get(1).flush();
+        network.awaitDelivery();
+        for (ReplicatedExpiringRetryStore<String> node : slow) {
+            assertNull(node.retryGet("id"), node.getNodeId());
+        }
+    }
+
+    @Test
+    void appliesRetriesThatArriveBeforeTheirWrite() {
+        ReplicatedExpiringRetryStore<String> node = nodes.get(0);
+        long version = System.currentTimeMillis();
+        long expiresAt = version + 60_000;
+        ReplicationEvent retries = ReplicationEvent.retries("id", "remote", version, expiresAt, "other", 2);
+
+        // Retries of an older write are dropped once the write arrives, duplicates count once.
+        node.receive(List.of(retries, retries,
+                ReplicationEvent.retries("id", "remote", version - 1, expiresAt, "other", 3)));
+        node.receive(List.of(ReplicationEvent.put("id", "remote", version, expiresAt, 3,
+                Serializer.ofString().serialize("message"))));
+
+        assertEquals("message", node.retryGet("id"));
+        assertNull(node.retryGet("id"));
+    }
+
+    /**
+     * A transport of the network that fails to publish while the condition holds.
+     */
+    private ReplicationTransport flakyTransport(BooleanSupplier fails) {
+        ReplicationTransport delegate = network.newTransport();
+        return new ReplicationTransport() {
+            @Override
+            public void start(Consumer<List<ReplicationEvent>> receiver) {
+                delegate.start(receiver);
+            }
+
+            @Override
+            public void publish(List<ReplicationEvent> events) {
+                if (fails.getAsBoolean())
+                    throw new IllegalStateException("Network down");
+                delegate.publish(events);
+            }
+
+            @Override
+            public void close() {
+                delegate.close();
+            }
+        };
+    }
+
+    @Test
+    void shipsFailedBatchesAgain() throws Exception {
+        AtomicInteger attempts = new AtomicInteger();
+        ReplicatedExpiringRetryStore<String> node = ReplicatedExpiringRetryStore
+                .newBuilder("flaky", flakyTransport(() -> attempts.incrementAndGet() == 1), Serializer.ofString())
+                .setBatchInterval(Duration.ofMinutes(1))
+                .build();
+        nodes.add(node);
+
+        node.add(Instant.now().plusSeconds(60), "first", "message");
+        node.flush();
+        node.add(Instant.now().plusSeconds(60), "second", "message");
+        node.flush();
+        network.awaitDelivery();
+
+        assertEquals(2, attempts.get());
+        assertEquals("message", nodes.get(0).get("first"));
+        assertEquals("message", nodes.get(0).get("second"));
+    }
+
+    @Test
+    void dropsTheOldestEventsBeyondTheLimit() throws Exception {
+        AtomicBoolean down = new AtomicBoolean(true);
+        ReplicatedExpiringRetryStore<String> node = ReplicatedExpiringRetryStore
+                .newBuilder("flaky", flakyTransport(down::get), Serializer.ofString())
+                .setBatchSize(2)
+                .setMaxPendingEvents(4)
+                .setBatchInterval(Duration.ofMinutes(1))
+                .build();
+        nodes.add(node);
+
+        for (int i = 0; i < 10; i++) {
+            node.add(Instant.now().plusSeconds(60), "" + i, "message " + i);
+        }
+        node.flush();
+        down.set(false);
+        node.flush();
+        network.awaitDelivery();
+
+        assertEquals(4, nodes.get(0).size());
+        assertNull(nodes.get(0).get("5"));
+        assertEquals("message 6", nodes.get(0).get("6"));
+        assertEquals("message 9", nodes.get(0).get("9"));
+    }
+
+    @Test
+    void encodesEvents() {
+        List<ReplicationEvent> events = List.of(
+                ReplicationEvent.put("\u00fc", "node", 1, 2, 3, new byte[] { 4, 5 }),
+                ReplicationEvent.remove("id", "node", 6, 7),
+                ReplicationEvent.retries("id", "node", 8, 9, "other", 10));
+
+        List<ReplicationEvent> decoded = ReplicationEvent.decode(ReplicationEvent.encode(events));
+        assertEquals(3, decoded.size());
+        assertEquals(ReplicationEvent.Type.PUT, decoded.get(0).getType());
+        assertEquals("\u00fc", decoded.get(0).getId());
+        assertEquals(2, decoded.get(0).getExpiresAt());
+        assertArrayEquals(new byte[] { 4, 5 }, decoded.get(0).getPayload());
+        assertEquals(ReplicationEvent.Type.REMOVE, decoded.get(1).getType());
+        assertEquals(6, decoded.get(1).getVersion());
+        assertEquals("node", decoded.get(1).getNode());
+        assertEquals("other", decoded.get(2).getNode());
+        assertEquals(9, decoded.get(2).getExpiresAt());
+        assertEquals(10, decoded.get(2).getRetriesUsed());
+        assertEquals(0, decoded.get(2).getRetriesLeft());
+
+        assertThrows(IllegalArgumentException.class, () -> ReplicationEvent.decode(new byte[] { 0, 0, 0, 1 }));
+    }
+}
@@ -0,0 +1,148 @@
+package co.arago.util.collections.expiringstore;
+
+import co.arago.util.collections.expiringstore.exceptions.StoreItemExistsException;
+import co.arago.util.collections.expiringstore.persistent.Serializer;
+import co.arago.util.collections.expiringstore.tiered.ColdTier;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TieredExpiringRetryStoreTest {
+
+    private static TieredExpiringRetryStore<String> open(Path directory) {
+        return TieredExpiringRetryStore.newBuilder(directory, Serializer.ofString())
+                .setMaxEntries(100)
+                .setMaxRetries(3)
+                .setSegmentSize(4096)
+                .setColdSweepInterval(Duration.ofMillis(50))
+                .build();
+    }
+
+    private static long countFiles(Path directory) throws Exception {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.count();
+        }
+    }
+
+    @Test
+    void spillsAndPromotes(@TempDir Path directory) throws Exception {
+        try (TieredExpiringRetryStore<String> store = open(directory)) {
+            for (int i = 0; i < 1000; i++) {
+                store.add(Instant.now().plusSeconds(60), "" + i, "message " + i);
+            }
+            assertEquals(1000, store.size());
+            assertTrue(store.getHotSize() <= 100);
+            assertTrue(store.getColdSize() >= 900);
+            assertTrue(store.getColdDiskBytes() > 0);
+
+            // Every message is found, wherever it is.
+            for (int i = 0; i < 1000; i++) {
+                assertEquals("message " + i, store.get("" + i));
+            }
+            assertEquals(1000, store.size());
+
+            // Retries left move between the tiers with the message.
+            assertEquals("message 0", store.retryGet("0"));
+            for (int i = 1; i < 200; i++) {
+                store.get("" + i);
+            }
+            assertEquals("message 0", store.retryGet("0"));
+            assertEquals("message 0", store.retryGet("0"));
+            assertNull(store.retryGet("0"));
+
+            assertThrows(StoreItemExistsException.class,
+                    () -> store.add(Instant.now().plusSeconds(60), "500", "again"));
+            store.put(Instant.now().plusSeconds(60), "500", "replaced");
+            assertEquals("replaced", store.get("500"));
+            store.remove("501");
+            assertNull(store.get("501"));
+            assertEquals(998, store.size());
+        }
+        assertEquals(0, countFiles(directory));
+    }
+
+    @Test
+    void removeAllClearsBothTiers(@TempDir Path directory) throws Exception {
+        try (TieredExpiringRetryStore<String> store = open(directory)) {
+            List<String> ids = new ArrayList<>();
+            for (int i = 0; i < 1000; i++) {
+                store.put(Instant.now().plusSeconds(60), "" + i, "message " + i);
+                ids.add("" + i);
+            }
+            assertTrue(store.getColdSize() >= 900);
+
+            store.removeAll(ids.subList(0, 990));
+            assertEquals(10, store.size());
+            assertTrue(store.getColdSize() <= 10);
+            for (int i = 0; i < 990; i++) {
+                assertNull(store.get("" + i));
+            }
+            for (int i = 990; i < 1000; i++) {
+                assertEquals("message " + i, store.get("" + i));
+            }
+        }
+    }
+
+    @Test
+    void expiresInBothTiers(@TempDir Path directory) throws Exception {
+        try (TieredExpiringRetryStore<String> store = open(directory)) {
+            for (int i = 0; i < 1000; i++) {
+                store.add(Instant.now().plusMillis(100), "" + i, "message " + i);
+            }
+            assertTrue(store.getColdSize() > 0);
+            assertTrue(countFiles(directory) > 0);
+
+            long until = System.currentTimeMillis() + 5000;
+            while (store.size() > 0 && System.currentTimeMillis() < until) {
+                Thread.sleep(10);
+            }
+            assertEquals(0, store.size());
+            assertNull(store.get("999"));
+
+            // Empty segments are deleted, the active one stays.
+            assertTrue(countFiles(directory) <= 1);
+        }
+    }
+
+    @Test
+    void coldTierSweepsInChunksAndCompacts(@TempDir Path directory) throws Exception {
+        try (ColdTier coldTier = new ColdTier(directory, "cold", 4096)) {
+            byte[] payload = new byte[100];
+            for (int i = 0; i < 1000; i++) {
+                coldTier.put("" + i, (i % 5 == 0) ? Long.MAX_VALUE : 100, 3, payload);
+            }
+            assertEquals(100_000, coldTier.getDiskBytes());
+
+            // More expired messages than fit into one chunk, the live ones are moved out of their sparse segments.
+            assertEquals(800, coldTier.removeExpired(200));
+            assertEquals(200, coldTier.size());
+            assertEquals(20_000, coldTier.getPayloadBytes());
+            assertTrue(coldTier.getDiskBytes() < 30_000, "Disk bytes: " + coldTier.getDiskBytes());
+            for (int i = 0; i < 1000; i += 5) {
+                assertEquals(100, coldTier.read("" + i).getRecord().getPayload().length);
+            }
+
+            // A copy is only removed if the message has not changed since it has been read.
+            ColdTier.Copy copy = coldTier.read("0");
+            coldTier.put("0", Long.MAX_VALUE, 2, payload);
+            assertFalse(coldTier.remove("0", copy));
+            assertTrue(coldTier.remove("0", coldTier.read("0")));
+            assertNull(coldTier.read("0"));
+        }
+    }
+
+    @Test
+    void rejectsUnboundedHotTier(@TempDir Path directory) {
+        assertThrows(IllegalArgumentException.class,
+                () -> TieredExpiringRetryStore.newBuilder(directory, Serializer.ofString()).build());
+    }
+}
@@ -0,0 +1,148 @@
+package co.arago.util.collections.expiringstore.counter;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ExpiringCounterStoreTest {
+
+    @Test
+    void fixedWindow() {
+        AtomicLong now = new AtomicLong(1_000_000);
+        try (ExpiringCounterStore<String> store = ExpiringCounterStore.<String>newBuilder()
+                .setWindow(Duration.ofSeconds(1))
+                .setClock(now::get)
+                .build()) {
+
+            assertEquals(1, store.incrementAndGet("client-1"));
+            assertEquals(6, store.incrementAndGet("client-1", 5));
+            assertEquals(1, store.incrementAndGet("client-2"));
+
+            now.addAndGet(999);
+            assertEquals(6, store.get("client-1"));
+
+            // A new window starts at zero.
+            now.addAndGet(1);
+            assertEquals(0, store.get("client-1"));
+            assertEquals(1, store.incrementAndGet("client-1"));
+            assertEquals(0, store.get("unknown"));
+        }
+    }
+
+    @Test
+    void slidingWindow() {
+        AtomicLong now = new AtomicLong(1_000_000);
+        try (ExpiringCounterStore<String> store = ExpiringCounterStore.<String>newBuilder()
+                .setWindow(Duration.ofSeconds(4))
+                .setBuckets(4)
+                .setClock(now::get)
+                .build()) {
+
+            store.incrementAndGet("client", 1);
+            now.addAndGet(1000);
+            store.incrementAndGet("client", 2);
+            now.addAndGet(1000);
+            store.incrementAndGet("client", 4);
+            now.addAndGet(1000);
+            assertEquals(7, store.incrementAndGet("client", 0));
+
+            // The first bucket leaves the window.
+            now.addAndGet(1000);
+            assertEquals(6, store.get("client"));
+            now.addAndGet(2000);
+            assertEquals(0, store.get("client"));
+            assertEquals(8, store.incrementAndGet("client", 8));
+        }
+    }
+
+    @Test
+    void tryIncrementRespectsTheLimit() {
+        AtomicLong now = new AtomicLong(1_000_000);
+        try (ExpiringCounterStore<Long> store = ExpiringCounterStore.<Long>newBuilder()
+                .setWindow(Duration.ofSeconds(1))
+                .setClock(now::get)
+                .build()) {
+
+            for (int i = 0; i < 10; i++) {
+                assertTrue(store.tryIncrement(42L, 1, 10));
+            }
+            assertFalse(store.tryIncrement(42L, 1, 10));
+            assertEquals(10, store.get(42L));
+
+            now.addAndGet(1000);
+            assertTrue(store.tryIncrement(42L, 10, 10));
+        }
+    }
+
+    @Test
+    void rolloverRemovesIdleCounters() {
+        AtomicLong now = new AtomicLong(1_000_000);
+        try (ExpiringCounterStore<String> store = ExpiringCounterStore.<String>newBuilder()
+                .setWindow(Duration.ofSeconds(2))
+                .setBuckets(2)
+                .setClock(now::get)
+                .build()) {
+
+            store.incrementAndGet("idle");
+            now.addAndGet(1000);
+            store.incrementAndGet("active");
+            assertEquals(0, store.rollover());
+
+            now.addAndGet(1000);
+            assertEquals(1, store.rollover());
+            assertEquals(1, store.size());
+            assertEquals(1, store.get("active"));
+            assertEquals(0, store.get("idle"));
+
+            store.remove("active");
+            assertEquals(0, store.size());
+        }
+    }
+
+    @Test
+    void concurrentIncrementsAreNeverLost() throws Exception {
+        try (ExpiringCounterStore<String> store = ExpiringCounterStore.<String>newBuilder()
+                .setWindow(Duration.ofHours(1))
+                .build()) {
+
+            ExecutorService executor = Executors.newFixedThreadPool(4);
+            try {
+                List<Future<?>> results = new ArrayList<>();
+                for (int t = 0; t < 4; t++) {
+                    results.add(executor.submit(() -> {
+                        for (int i = 0; i < 100_000; i++) {
+                            store.incrementAndGet("key-" + (i % 16));
+                            if (i % 1000 == 0)
+                                store.rollover();
+                        }
+                    }));
+                }
+                for (Future<?> result : results) {
+                    result.get();
+                }
+            } finally {
+                executor.shutdown();
+            }
+            for (int k = 0; k < 16; k++) {
+                assertEquals(25_000, store.get("key-" + k));
+            }
+        }
+    }
+
+    @Test
+    void rejectsInvalidSettings() {
+        assertThrows(IllegalArgumentException.class, () -> ExpiringCounterStore.newBuilder().build());
+        assertThrows(IllegalArgumentException.class, () -> ExpiringCounterStore.newBuilder()
+                .setWindow(Duration.ofMillis(2))
+                .setBuckets(3)
+                .build());
+    }
+}
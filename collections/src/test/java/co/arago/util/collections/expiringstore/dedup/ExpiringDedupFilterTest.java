@@ -0,0 +1,129 @@
+package co.arago.util.collections.expiringstore.dedup;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ExpiringDedupFilterTest {
+
+    @Test
+    void forgetsIdsAfterTheWindow() {
+        AtomicLong now = new AtomicLong(1_000_000);
+        ExpiringDedupFilter filter = ExpiringDedupFilter.newBuilder()
+                .setWindow(Duration.ofSeconds(4))
+                .setExpectedInsertions(1000)
+                .setSlices(4)
+                .setClock(now::get)
+                .build();
+
+        assertFalse(filter.seenBefore("message-1"));
+        assertTrue(filter.seenBefore("message-1"));
+        assertFalse(filter.seenBefore(42L));
+        assertTrue(filter.mightContain(42L));
+        assertFalse(filter.mightContain("message-2"));
+
+        // Still detected at the end of the window.
+        now.addAndGet(3999);
+        assertTrue(filter.mightContain("message-1"));
+        assertFalse(filter.seenBefore("message-2"));
+
+        // Gone one slice after the window.
+        now.addAndGet(2001);
+        assertFalse(filter.mightContain("message-1"));
+        assertTrue(filter.mightContain("message-2"));
+
+        // Idle for longer than the whole ring of slices.
+        now.addAndGet(60_000);
+        assertFalse(filter.mightContain("message-2"));
+        assertFalse(filter.seenBefore(42L));
+    }
+
+    @Test
+    void falsePositiveRate() {
+        ExpiringDedupFilter filter = ExpiringDedupFilter.newBuilder()
+                .setWindow(Duration.ofHours(1))
+                .setExpectedInsertions(100_000)
+                .setFalsePositiveRate(0.01)
+                .build();
+
+        // All ids land in the same slice, the worst case for its filter.
+        for (int i = 0; i < 25_000; i++) {
+            filter.seenBefore("id-" + i);
+        }
+        int falsePositives = 0;
+        for (int i = 0; i < 100_000; i++) {
+            if (filter.mightContain("other-" + i))
+                falsePositives++;
+        }
+        assertTrue(falsePositives < 2000, "False positives: " + falsePositives);
+        assertTrue(filter.getMemoryBytes() < 1024 * 1024);
+    }
+
+    @Test
+    void concurrentInsertsAreNeverLost() throws Exception {
+        ExpiringDedupFilter filter = ExpiringDedupFilter.newBuilder()
+                .setWindow(Duration.ofMinutes(1))
+                .setExpectedInsertions(400_000)
+                .build();
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Integer>> results = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                long offset = t * 100_000L;
+                results.add(executor.submit(() -> {
+                    int missing = 0;
+                    for (long id = offset; id < offset + 100_000; id++) {
+                        filter.seenBefore(id);
+                        if (!filter.mightContain(id))
+                            missing++;
+                    }
+                    return missing;
+                }));
+            }
+            for (Future<Integer> result : results) {
+                assertEquals(0, result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        for (long id = 0; id < 400_000; id++) {
+            assertTrue(filter.mightContain(id));
+        }
+    }
+
+    @Test
+    void bitIndexCoversSlotsBeyondTheIntRange() {
+        long bitsPerSlot = 3_190_000_000L;
+        assertEquals(0, ExpiringDedupFilter.bitIndex(0, bitsPerSlot));
+        assertEquals(bitsPerSlot - 1, ExpiringDedupFilter.bitIndex(-1L, bitsPerSlot));
+        assertEquals(bitsPerSlot / 2, ExpiringDedupFilter.bitIndex(Long.MIN_VALUE, bitsPerSlot));
+
+        long max = 0;
+        long hash = 1;
+        for (int i = 0; i < 1000; i++, hash *= 3) {
+            long bit = ExpiringDedupFilter.bitIndex(hash, bitsPerSlot);
+            assertTrue(bit >= 0 && bit < bitsPerSlot, "Bit " + bit);
+            max = Math.max(max, bit);
+        }
+        assertTrue(max > Integer.MAX_VALUE);
+    }
+
+    @Test
+    void rejectsInvalidSettings() {
+        assertThrows(IllegalArgumentException.class, () -> ExpiringDedupFilter.newBuilder().build());
+        assertThrows(IllegalArgumentException.class, () -> ExpiringDedupFilter.newBuilder()
+                .setWindow(Duration.ofSeconds(1))
+                .setExpectedInsertions(10)
+                .setFalsePositiveRate(1.5)
+                .build());
+    }
+}
@@ -0,0 +1,55 @@
+package co.arago.util.collections.expiringstore.longkey;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LongKeyMapTest {
+
+    @Test
+    void behavesLikeHashMap() {
+        LongKeyMap<String> map = new LongKeyMap<>(4);
+        Map<Long, String> expected = new HashMap<>();
+        Random random = new Random(42);
+
+        // Few distinct keys, so removals have to shift back many probe sequences.
+        for (int i = 0; i < 100_000; i++) {
+            long key = random.nextInt(2000) - 1000L;
+            String value = "v" + i;
+            switch (random.nextInt(4)) {
+            case 0:
+                assertEquals(expected.put(key, value), map.put(key, value));
+                break;
+            case 1:
+                assertEquals(expected.putIfAbsent(key, value), map.putIfAbsent(key, value));
+                break;
+            case 2:
+                assertEquals(expected.remove(key), map.remove(key));
+                break;
+            default:
+                assertEquals(expected.get(key), map.get(key));
+            }
+            assertEquals(expected.size(), map.size());
+        }
+
+        for (Map.Entry<Long, String> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), map.get(entry.getKey()));
+        }
+    }
+
+    @Test
+    void removeOnlyExactValue() {
+        LongKeyMap<String> map = new LongKeyMap<>();
+        String value = "one";
+        map.put(Long.MIN_VALUE, value);
+
+        assertFalse(map.remove(Long.MIN_VALUE, "other"));
+        assertTrue(map.remove(Long.MIN_VALUE, value));
+        assertNull(map.get(Long.MIN_VALUE));
+        assertEquals(0, map.size());
+    }
+}
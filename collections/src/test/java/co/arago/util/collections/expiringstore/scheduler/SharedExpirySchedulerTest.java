@@ -0,0 +1,107 @@
+package co.arago.util.collections.expiringstore.scheduler;
+
+import co.arago.util.collections.expiringstore.ExpiringRetryStore;
+import co.arago.util.collections.expiringstore.ExpiringStore;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SharedExpirySchedulerTest {
+
+    private static void awaitRemoval(ExpiringStore<String, ?> store, String id) throws InterruptedException {
+        long until = System.currentTimeMillis() + 5000;
+        while (store.get(id) != null && System.currentTimeMillis() < until) {
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    void storesShareThreads() throws Exception {
+        try (SharedExpiryScheduler shared = new SharedExpiryScheduler("shared", Duration.ofMillis(1), 2)) {
+            List<ExpiringStore<String, String>> stores = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                stores.add(ExpiringStore.<String, String>newBuilder()
+                        .setSharedScheduler(shared)
+                        .setConcurrent(i % 2 == 0)
+                        .build());
+            }
+
+            long expiryThreads = Thread.getAllStackTraces().keySet().stream()
+                    .filter(thread -> thread.getName().contains("for shared"))
+                    .count();
+            assertTrue(expiryThreads <= 3, "Too many threads: " + expiryThreads);
+
+            for (ExpiringStore<String, String> store : stores) {
+                store.add(Instant.now().plusMillis(20), "1", "one");
+                store.add(Instant.now().plusSeconds(60), "2", "two");
+            }
+            for (ExpiringStore<String, String> store : stores) {
+                awaitRemoval(store, "1");
+                assertNull(store.get("1"));
+                assertEquals("two", store.get("2"));
+            }
+
+            stores.forEach(ExpiringStore::close);
+        }
+    }
+
+    @Test
+    void closingAStoreDetachesOnlyThatStore() throws Exception {
+        try (SharedExpiryScheduler shared = new SharedExpiryScheduler("detach", Duration.ofMillis(1), 1)) {
+            ExpiringRetryStore<String, String> closed = ExpiringRetryStore.<String, String>newBuilder()
+                    .setSharedScheduler(shared)
+                    .build();
+            ExpiringStore<String, String> open = ExpiringStore.<String, String>newBuilder()
+                    .setName("open")
+                    .setSharedScheduler(shared)
+                    .build();
+
+            closed.add(Instant.now().plusMillis(10), "1", "one");
+            closed.close();
+            assertThrows(IllegalStateException.class, () -> closed.add(Instant.now().plusMillis(10), "2", "two"));
+
+            open.add(Instant.now().plusMillis(10), "1", "one");
+            awaitRemoval(open, "1");
+            assertNull(open.get("1"));
+            assertEquals("open", open.getName());
+
+            open.close();
+        }
+    }
+
+    @Test
+    void closingAStoreReleasesItsExpiries() throws Exception {
+        try (SharedExpiryScheduler shared = new SharedExpiryScheduler("release", Duration.ofMillis(1), 1)) {
+            ExpiringStore<String, String> closed = ExpiringStore.<String, String>newBuilder()
+                    .setSharedScheduler(shared)
+                    .setConcurrent(true)
+                    .build();
+            ExpiringStore<String, String> coalesced = ExpiringStore.<String, String>newBuilder()
+                    .setSharedScheduler(shared)
+                    .setCoalescedExpiry(Duration.ofSeconds(1))
+                    .build();
+            ExpiringStore<String, String> open = ExpiringStore.<String, String>newBuilder()
+                    .setSharedScheduler(shared)
+                    .build();
+
+            for (int i = 0; i < 100; i++) {
+                closed.add(Instant.now().plusSeconds(3600), "" + i, "message");
+                coalesced.add(Instant.now().plusSeconds(3600), "" + i, "message");
+            }
+            open.add(Instant.now().plusSeconds(3600), "1", "one");
+
+            closed.close();
+            coalesced.close();
+
+            // Only the expiry of the open store is left in the shared wheel.
+            ExpiryScheduler scheduler = shared.register("probe");
+            assertEquals(1, scheduler.getPendingCount());
+            open.close();
+        }
+    }
+}
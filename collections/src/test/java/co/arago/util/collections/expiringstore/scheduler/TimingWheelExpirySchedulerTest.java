@@ -0,0 +1,73 @@
+package co.arago.util.collections.expiringstore.scheduler;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TimingWheelExpirySchedulerTest {
+
+    private TimingWheelExpiryScheduler scheduler;
+
+    @BeforeEach
+    void setUp() {
+        // Small wheel, so tasks have to cascade through several levels.
+        scheduler = new TimingWheelExpiryScheduler("test-wheel", Duration.ofMillis(1), 4);
+    }
+
+    @AfterEach
+    void tearDown() {
+        scheduler.close();
+    }
+
+    @Test
+    void runsTasksNotBeforeTheirTime() throws InterruptedException {
+        int amount = 200;
+        CountDownLatch latch = new CountDownLatch(amount);
+        Set<Integer> early = ConcurrentHashMap.newKeySet();
+
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < amount; i++) {
+            int index = i;
+            long expiresAt = now + i * 3L;
+            scheduler.schedule(() -> {
+                if (System.currentTimeMillis() < expiresAt)
+                    early.add(index);
+                latch.countDown();
+            }, expiresAt);
+        }
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertTrue(early.isEmpty(), "Tasks ran early: " + early);
+    }
+
+    @Test
+    void cancelledTasksDoNotRun() throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        Set<String> ran = ConcurrentHashMap.newKeySet();
+
+        long now = System.currentTimeMillis();
+        ScheduledExpiry cancelled = scheduler.schedule(() -> ran.add("cancelled"), now + 20);
+        scheduler.schedule(latch::countDown, now + 100);
+
+        assertTrue(cancelled.cancel());
+        assertFalse(cancelled.cancel());
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertTrue(ran.isEmpty());
+    }
+
+    @Test
+    void scheduleAfterCloseFails() {
+        scheduler.close();
+        assertThrows(IllegalStateException.class, () -> scheduler.schedule(() -> {
+        }, System.currentTimeMillis()));
+    }
+}